@@ -0,0 +1,184 @@
+package org.activiti.pm;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.activiti.engine.history.HistoricActivityInstance;
+import org.activiti.engine.history.HistoricProcessInstance;
+import org.activiti.engine.repository.ProcessDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Request scoped memo of engine lookups. While a context is open on the
+ * current thread, {@link ActivitiUtil} reads each historic process instance,
+ * process definition and historic activity list at most once. Usage:
+ *
+ * <pre>
+ * ActivitiLookupContext context = ActivitiLookupContext.open();
+ * try {
+ *   ...
+ * } finally {
+ *   context.close();
+ * }
+ * </pre>
+ *
+ * Opening a context on a thread which already has one returns the same
+ * context, it is closed by the outermost close. Context is thread-safe and
+ * can be bound to worker threads with {@link #bind(ActivitiLookupContext)}.
+ * {@link ActivitiLookupContextFilter} opens a context around each request.
+ * Lookups of closed contexts are summed in {@link #getTotalLookupCount()} and
+ * {@link #getTotalSavedLookupCount()}.
+ *
+ * @author Dmitry Farafonov
+ */
+public class ActivitiLookupContext {
+  private static Logger logger = LoggerFactory.getLogger(ActivitiLookupContext.class);
+
+  private static final ThreadLocal<ActivitiLookupContext> currentContext = new ThreadLocal<ActivitiLookupContext>();
+
+  private static final AtomicLong totalLookupCount = new AtomicLong();
+  private static final AtomicLong totalSavedLookupCount = new AtomicLong();
+
+  private final ConcurrentMap<String, HistoricProcessInstance> historicProcessInstances = new ConcurrentHashMap<String, HistoricProcessInstance>();
+  private final ConcurrentMap<String, ProcessDefinition> processDefinitions = new ConcurrentHashMap<String, ProcessDefinition>();
+  private final ConcurrentMap<String, List<HistoricActivityInstance>> historicActivityInstances = new ConcurrentHashMap<String, List<HistoricActivityInstance>>();
+
+  private final AtomicInteger depth = new AtomicInteger();
+  private final AtomicLong lookupCount = new AtomicLong();
+  private final AtomicLong savedLookupCount = new AtomicLong();
+
+  /**
+   * Opens a context on the current thread or joins the open one
+   *
+   * @return
+   */
+  public static ActivitiLookupContext open() {
+    ActivitiLookupContext context = currentContext.get();
+    if (context == null) {
+      context = new ActivitiLookupContext();
+      currentContext.set(context);
+    }
+    context.depth.incrementAndGet();
+    return context;
+  }
+
+  /**
+   * @return context of the current thread or null
+   */
+  public static ActivitiLookupContext getCurrent() {
+    return currentContext.get();
+  }
+
+  /**
+   * Binds context to the current (worker) thread, null unbinds it
+   *
+   * @param context
+   */
+  public static void bind(ActivitiLookupContext context) {
+    if (context != null) {
+      currentContext.set(context);
+    } else {
+      currentContext.remove();
+    }
+  }
+
+  public void close() {
+    if (depth.decrementAndGet() > 0) {
+      return;
+    }
+    if (currentContext.get() == this) {
+      currentContext.remove();
+    }
+    totalLookupCount.addAndGet(lookupCount.get());
+    totalSavedLookupCount.addAndGet(savedLookupCount.get());
+    if (logger.isDebugEnabled()) {
+      logger.debug("Lookup context closed: " + lookupCount.get() + " lookups, " + savedLookupCount.get() + " saved");
+    }
+  }
+
+  public HistoricProcessInstance getHistoricProcessInstance(String processInstanceId) {
+    return saved(historicProcessInstances.get(processInstanceId));
+  }
+
+  public void putHistoricProcessInstance(HistoricProcessInstance historicProcessInstance) {
+    lookupCount.incrementAndGet();
+    if (historicProcessInstance != null) {
+      historicProcessInstances.put(historicProcessInstance.getId(), historicProcessInstance);
+    }
+  }
+
+  /**
+   * Adds process instances read as a part of another lookup, i.e. subprocesses
+   * of a tree. It is not counted as a lookup.
+   *
+   * @param historicProcessInstances
+   */
+  public void addHistoricProcessInstances(List<HistoricProcessInstance> historicProcessInstances) {
+    for (HistoricProcessInstance historicProcessInstance : historicProcessInstances) {
+      this.historicProcessInstances.put(historicProcessInstance.getId(), historicProcessInstance);
+    }
+  }
+
+  public ProcessDefinition getProcessDefinition(String processDefinitionId) {
+    return saved(processDefinitions.get(processDefinitionId));
+  }
+
+  public void putProcessDefinition(ProcessDefinition processDefinition) {
+    lookupCount.incrementAndGet();
+    if (processDefinition != null) {
+      processDefinitions.put(processDefinition.getId(), processDefinition);
+    }
+  }
+
+  /**
+   * @param processInstanceId
+   * @return historic activity instances ordered by start time, the list must not be modified
+   */
+  public List<HistoricActivityInstance> getHistoricActivityInstances(String processInstanceId) {
+    return saved(historicActivityInstances.get(processInstanceId));
+  }
+
+  public void putHistoricActivityInstances(String processInstanceId, List<HistoricActivityInstance> historicActivityInstances) {
+    lookupCount.incrementAndGet();
+    this.historicActivityInstances.put(processInstanceId, historicActivityInstances);
+  }
+
+  private <T> T saved(T value) {
+    if (value != null) {
+      savedLookupCount.incrementAndGet();
+    }
+    return value;
+  }
+
+  /**
+   * @return number of lookups sent to the engine
+   */
+  public long getLookupCount() {
+    return lookupCount.get();
+  }
+
+  /**
+   * @return number of lookups answered by the context
+   */
+  public long getSavedLookupCount() {
+    return savedLookupCount.get();
+  }
+
+  /**
+   * @return number of lookups sent to the engine by all closed contexts
+   */
+  public static long getTotalLookupCount() {
+    return totalLookupCount.get();
+  }
+
+  /**
+   * @return number of lookups answered by all closed contexts
+   */
+  public static long getTotalSavedLookupCount() {
+    return totalSavedLookupCount.get();
+  }
+}
@@ -0,0 +1,38 @@
+package org.activiti.pm;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Opens {@link ActivitiLookupContext} around the request, so all engine
+ * lookups of the request share it. Map it to process manager requests.
+ *
+ * @author Dmitry Farafonov
+ */
+public class ActivitiLookupContextFilter implements Filter {
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+      ServletException {
+    ActivitiLookupContext context = ActivitiLookupContext.open();
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      context.close();
+    }
+  }
+
+  @Override
+  public void destroy() {
+  }
+}
@@ -1,11 +1,25 @@
 package org.activiti.pm;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.activiti.engine.ActivitiObjectNotFoundException;
 import org.activiti.engine.HistoryService;
 import org.activiti.engine.ManagementService;
 import org.activiti.engine.ProcessEngine;
@@ -15,15 +29,18 @@ import org.activiti.engine.RuntimeService;
 import org.activiti.engine.TaskService;
 import org.activiti.engine.history.HistoricActivityInstance;
 import org.activiti.engine.history.HistoricProcessInstance;
-import org.activiti.engine.impl.persistence.entity.HistoricActivityInstanceEntity;
+import org.activiti.engine.history.NativeHistoricProcessInstanceQuery;
 import org.activiti.engine.impl.persistence.entity.ProcessDefinitionEntity;
-import org.activiti.engine.impl.pvm.PvmTransition;
 import org.activiti.engine.impl.pvm.process.ActivityImpl;
 import org.activiti.engine.impl.util.json.JSONArray;
 import org.activiti.engine.repository.ProcessDefinition;
 import org.activiti.engine.runtime.Job;
 import org.activiti.engine.runtime.ProcessInstance;
 import org.activiti.engine.task.Comment;
+import org.activiti.pm.archive.ProcessInstanceArchive;
+import org.activiti.pm.index.HistoricProcessInstanceFacetIndex;
+import org.activiti.pm.index.ProcessInstanceTreeIndex;
+import org.activiti.pm.util.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,6 +60,20 @@ public class ActivitiUtil {
 
   private static ObjectMapper mapper = new ObjectMapper();
 
+  private static final int IN_CLAUSE_CHUNK_SIZE = 500;
+
+  private static ProcessInstanceTreeIndex processInstanceTreeIndex;
+
+  private static ProcessInstanceArchive processInstanceArchive;
+
+  private static HistoricProcessInstanceFacetIndex historicProcessInstanceFacetIndex;
+
+  private static ExecutorService processInstanceDetailExecutor = createProcessInstanceDetailExecutor();
+
+  private static EndedProcessInstanceCache endedProcessInstanceCache = new EndedProcessInstanceCache(
+      Integer.getInteger("processmanager.cache.ended.maxEntries", 3000),
+      Long.getLong("processmanager.cache.ended.maxWeight", 1000000L));
+
   static {
     processEngine = ProcessEngines.getDefaultProcessEngine();
     runtimeService = processEngine.getRuntimeService();
@@ -52,6 +83,36 @@ public class ActivitiUtil {
     taskService = processEngine.getTaskService();
   }
 
+  /**
+   * Sets index used for process instance tree lookups, null disables it
+   *
+   * @param processInstanceTreeIndex
+   */
+  public static void setProcessInstanceTreeIndex(ProcessInstanceTreeIndex processInstanceTreeIndex) {
+    ActivitiUtil.processInstanceTreeIndex = processInstanceTreeIndex;
+  }
+
+  /**
+   * Sets archive searched for process instances which are not in history, null
+   * disables it
+   *
+   * @param processInstanceArchive
+   */
+  public static void setProcessInstanceArchive(ProcessInstanceArchive processInstanceArchive) {
+    ActivitiUtil.processInstanceArchive = processInstanceArchive;
+  }
+
+  /**
+   * Sets index from which process instances deleted from history are removed,
+   * null disables it
+   *
+   * @param historicProcessInstanceFacetIndex
+   */
+  public static void setHistoricProcessInstanceFacetIndex(
+      HistoricProcessInstanceFacetIndex historicProcessInstanceFacetIndex) {
+    ActivitiUtil.historicProcessInstanceFacetIndex = historicProcessInstanceFacetIndex;
+  }
+
   /**
    * Returns top process instance from execution history tree
    *
@@ -59,10 +120,17 @@ public class ActivitiUtil {
    * @return
    */
   public static String getTopProcessInstanceId(String processInstanceId) {
+    if (processInstanceTreeIndex != null) {
+      String topProcessInstanceId = processInstanceTreeIndex.getTopProcessInstanceId(processInstanceId);
+      if (topProcessInstanceId != null) {
+        return topProcessInstanceId;
+      }
+    }
+
+    // not indexed: walk up the history tree
     String topProcessInstanceId = processInstanceId;
     do {
-      HistoricProcessInstance historicProcessInstance = historyService.createHistoricProcessInstanceQuery()
-          .processInstanceId(processInstanceId).singleResult();
+      HistoricProcessInstance historicProcessInstance = findHistoricProcessInstance(processInstanceId);
       processInstanceId = historicProcessInstance.getSuperProcessInstanceId();
       if (processInstanceId != null) {
         topProcessInstanceId = processInstanceId;
@@ -106,35 +174,98 @@ public class ActivitiUtil {
   }
 
   private static List<ProcessInstanceItem> getProcessInstanceTree(String processInstanceId, int level, boolean activeOnly) {
-    HistoricProcessInstance historicProcessInstance = historyService.createHistoricProcessInstanceQuery()
-        .processInstanceId(processInstanceId).singleResult();
+    HistoricProcessInstance historicProcessInstance = findHistoricProcessInstance(processInstanceId);
 
-    ProcessInstanceItem processInstanceItem = null;
+    return getProcessInstanceTree(historicProcessInstance, level, activeOnly);
+  }
 
+  private static List<ProcessInstanceItem> getProcessInstanceTree(HistoricProcessInstance historicProcessInstance, int level, boolean activeOnly) {
     List<ProcessInstanceItem> itemList = new ArrayList<ProcessInstanceItem>();
+    if (historicProcessInstance == null) {
+      return itemList;
+    }
     if (activeOnly && historicProcessInstance.getEndTime() != null) {
       return itemList;
     }
 
-    if (historicProcessInstance.getEndTime() != null) {
-      processInstanceItem = new ProcessInstanceItem(historicProcessInstance, level);
-    } else {
-      processInstanceItem = new ProcessInstanceItem(historicProcessInstance, level);
-      // processInstanceItem = new ProcessInstanceItem(processInstance, level);
+    // go through subprocesses level by level: all children of the current
+    // frontier are loaded with one query. Ended subprocesses are not added to
+    // the next frontier in activeOnly mode, so their subtrees are never loaded.
+    Map<String, List<HistoricProcessInstance>> subProcessesBySuperId = new HashMap<String, List<HistoricProcessInstance>>();
+    List<String> frontier = Collections.singletonList(historicProcessInstance.getId());
+    while (!frontier.isEmpty()) {
+      List<String> nextFrontier = new ArrayList<String>();
+      for (HistoricProcessInstance subProcess : getHistoricSubProcessInstances(frontier)) {
+        if (activeOnly && subProcess.getEndTime() != null) {
+          continue;
+        }
+        List<HistoricProcessInstance> subProcesses = subProcessesBySuperId.get(subProcess.getSuperProcessInstanceId());
+        if (subProcesses == null) {
+          subProcesses = new ArrayList<HistoricProcessInstance>();
+          subProcessesBySuperId.put(subProcess.getSuperProcessInstanceId(), subProcesses);
+        }
+        subProcesses.add(subProcess);
+        nextFrontier.add(subProcess.getId());
+      }
+      frontier = nextFrontier;
     }
 
-    itemList.add(processInstanceItem);
-
-    // go through subprocesses
-    List<HistoricProcessInstance> historicSubProcesses = historyService.createHistoricProcessInstanceQuery()
-        .superProcessInstanceId(processInstanceId).list();
+    addProcessInstanceTreeItems(historicProcessInstance, level, subProcessesBySuperId, itemList);
+    return itemList;
+  }
 
-    for (HistoricProcessInstance subProcess : historicSubProcesses) {
-      List<ProcessInstanceItem> subProcessIds = getProcessInstanceTree(subProcess.getId(), level + 1, activeOnly);
-      itemList.addAll(subProcessIds);
+  /**
+   * Adds process instance and its loaded subprocesses to the list in depth-first order
+   *
+   * @param historicProcessInstance
+   * @param level
+   * @param subProcessesBySuperId
+   * @param itemList
+   */
+  private static void addProcessInstanceTreeItems(HistoricProcessInstance historicProcessInstance, int level,
+      Map<String, List<HistoricProcessInstance>> subProcessesBySuperId, List<ProcessInstanceItem> itemList) {
+    itemList.add(new ProcessInstanceItem(historicProcessInstance, level));
+
+    List<HistoricProcessInstance> subProcesses = subProcessesBySuperId.get(historicProcessInstance.getId());
+    if (subProcesses != null) {
+      for (HistoricProcessInstance subProcess : subProcesses) {
+        addProcessInstanceTreeItems(subProcess, level + 1, subProcessesBySuperId, itemList);
+      }
     }
+  }
 
-    return itemList;
+  /**
+   * Returns historic subprocesses of all given super process instances. Ids are
+   * split into chunks to keep the IN clause within database limits.
+   *
+   * @param superProcessInstanceIds
+   * @return
+   */
+  private static List<HistoricProcessInstance> getHistoricSubProcessInstances(List<String> superProcessInstanceIds) {
+    List<HistoricProcessInstance> subProcesses = new ArrayList<HistoricProcessInstance>();
+    String tableName = managementService.getTableName(HistoricProcessInstance.class);
+    for (int from = 0; from < superProcessInstanceIds.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+      List<String> chunk = superProcessInstanceIds.subList(from,
+          Math.min(from + IN_CLAUSE_CHUNK_SIZE, superProcessInstanceIds.size()));
+
+      NativeHistoricProcessInstanceQuery query = historyService.createNativeHistoricProcessInstanceQuery();
+      StringBuilder sql = new StringBuilder("SELECT RES.* FROM ").append(tableName)
+          .append(" RES WHERE RES.SUPER_PROCESS_INSTANCE_ID_ IN (");
+      for (int i = 0; i < chunk.size(); i++) {
+        if (i > 0) {
+          sql.append(", ");
+        }
+        sql.append("#{superId").append(i).append("}");
+        query.parameter("superId" + i, chunk.get(i));
+      }
+      sql.append(")");
+      subProcesses.addAll(query.sql(sql.toString()).list());
+    }
+    ActivitiLookupContext context = ActivitiLookupContext.getCurrent();
+    if (context != null) {
+      context.addHistoricProcessInstances(subProcesses);
+    }
+    return subProcesses;
   }
 
   public static void dumpProcessInstanceTree(List<ProcessInstanceItem> processInstanceItems) {
@@ -157,47 +288,52 @@ public class ActivitiUtil {
    */
   public static List<HistoricActivityInstanceFlow> getHistoricActivityInstanceFlows(String processInstanceId) {
 
-    HistoricProcessInstance processInstance = historyService.createHistoricProcessInstanceQuery()
-        .processInstanceId(processInstanceId).singleResult();
+    HistoricProcessInstance processInstance = findHistoricProcessInstance(processInstanceId);
 
-    ProcessDefinitionEntity processDefinition = (ProcessDefinitionEntity) repositoryService
-        .getProcessDefinition(processInstance.getProcessDefinitionId());
+    return getHistoricActivityInstanceFlows(processInstance);
+  }
 
+  private static List<HistoricActivityInstanceFlow> getHistoricActivityInstanceFlows(HistoricProcessInstance processInstance) {
+    ProcessDefinitionGraph graph = getProcessDefinitionGraph(processInstance.getProcessDefinitionId());
 
     List<HistoricActivityInstanceFlow> historicActivityInstanceFlows = new ArrayList<HistoricActivityInstanceFlow>();
-    List<HistoricActivityInstance> historicActivityInstances = getHistoricActivityInstances(processDefinition, processInstanceId);
+    List<HistoricActivityInstance> historicActivityInstances = getHistoricActivityInstances(processInstance, graph);
+    HistoricActivityInstanceIndex historicActivityInstanceIndex = new HistoricActivityInstanceIndex(historicActivityInstances);
 
     // Activities and their sequence-flows, using incoming transitions:
     // For each historical activity get incoming flow. If the Source Activity of
     // the flow is present in history, add it.
     for (HistoricActivityInstance historicActivityInstance : historicActivityInstances) {
-      ActivityImpl historicActivity = processDefinition.findActivity(historicActivityInstance.getActivityId());
+      int activity = graph.getActivityOrdinal(historicActivityInstance.getActivityId());
 
       HistoricActivityInstanceFlow historicActivityInstanceFlow = new HistoricActivityInstanceFlow();
       historicActivityInstanceFlow.setHistoricActivityInstance(historicActivityInstance);
-      historicActivityInstanceFlow.setActivity(historicActivity);
+      historicActivityInstanceFlows.add(historicActivityInstanceFlow);
+      if (activity < 0) {
+        continue;
+      }
+      historicActivityInstanceFlow.setActivity(graph.getActivity(activity));
 
       // boolean isMultiInstance = historicActivity.getProperty("multiInstance") != null;
-      String type = historicActivityInstance.getActivityType();
-      List<PvmTransition> incomingTransitions = historicActivity.getIncomingTransitions();
-      for (PvmTransition incomingTransition : incomingTransitions) {
-        String sourceId = incomingTransition.getSource().getId();
+      int incomingCount = graph.getIncomingCount(activity);
+      for (int i = 0; i < incomingCount; i++) {
+        int incomingTransition = graph.getIncomingTransition(activity, i);
+        String sourceId = graph.getActivityId(graph.getTransitionSource(incomingTransition));
         HistoricActivityInstance sourceHistoricActivityInstance = null;
         // Find in history with the same execution id, used for joined parallel gateways.
         // Multiple incoming paths of execution have different executionIds and
         // there is many instances of the Parallel Gateway activity in the
         // history. Because of that we should find activity in the same execution.
         // It is only for joined executions (incoming transitions count > 1)
-        if (("parallelGateway".equals(type) || "inclusiveGateway".equals(type)) && incomingTransitions.size() > 1){
-          sourceHistoricActivityInstance = getHistoricActivityById(historicActivityInstances, sourceId, historicActivityInstance.getExecutionId());
+        if (graph.isJoin(activity)) {
+          sourceHistoricActivityInstance = historicActivityInstanceIndex.get(sourceId, historicActivityInstance.getExecutionId());
         } else {
-          sourceHistoricActivityInstance = getHistoricActivityById(historicActivityInstances, sourceId);
+          sourceHistoricActivityInstance = historicActivityInstanceIndex.get(sourceId);
         }
         if (sourceHistoricActivityInstance != null) {
-          historicActivityInstanceFlow.setIncomingTransition(incomingTransition);
+          historicActivityInstanceFlow.setIncomingTransition(graph.getTransition(incomingTransition));
         }
       }
-      historicActivityInstanceFlows.add(historicActivityInstanceFlow);
     }
 
     // TODO: check subprocess
@@ -233,9 +369,20 @@ public class ActivitiUtil {
    * @return
    */
   public static List<String> getHighLightedFlows(String processInstanceId) {
+    List<String> cachedHighLightedFlows = endedProcessInstanceCache.getHighLightedFlows(processInstanceId);
+    if (cachedHighLightedFlows != null) {
+      return new ArrayList<String>(cachedHighLightedFlows);
+    }
+
+    HistoricProcessInstance processInstance = findHistoricProcessInstance(processInstanceId);
+
+    return getHighLightedFlows(processInstance);
+  }
+
+  private static List<String> getHighLightedFlows(HistoricProcessInstance processInstance) {
     List<String> highLightedFlows = new ArrayList<String>();
 
-    List<HistoricActivityInstanceFlow> historicActivityInstanceFlows = getHistoricActivityInstanceFlows(processInstanceId);
+    List<HistoricActivityInstanceFlow> historicActivityInstanceFlows = getHistoricActivityInstanceFlows(processInstance);
 
     for (HistoricActivityInstanceFlow historicActivityInstanceFlow : historicActivityInstanceFlows) {
       if (historicActivityInstanceFlow.getIncomingTransition() != null) {
@@ -243,6 +390,7 @@ public class ActivitiUtil {
       }
     }
 
+    endedProcessInstanceCache.putHighLightedFlows(processInstance, new ArrayList<String>(highLightedFlows));
     return highLightedFlows;
   }
 
@@ -254,23 +402,49 @@ public class ActivitiUtil {
    * @return
    */
   public static List<HistoricActivityInstance> getHistoricActivityInstances(String processInstanceId) {
-    HistoricProcessInstance processInstance = historyService.createHistoricProcessInstanceQuery()
-        .processInstanceId(processInstanceId).singleResult();
+    List<HistoricActivityInstance> cachedHistoricActivityInstances = endedProcessInstanceCache.getHistoricActivityInstances(processInstanceId);
+    if (cachedHistoricActivityInstances != null) {
+      return new ArrayList<HistoricActivityInstance>(cachedHistoricActivityInstances);
+    }
+
+    HistoricProcessInstance processInstance = findHistoricProcessInstance(processInstanceId);
 
     // prevent NullPointerException
     if (processInstance == null) {
       return Collections.<HistoricActivityInstance>emptyList();
     }
 
-    ProcessDefinitionEntity processDefinition = (ProcessDefinitionEntity) repositoryService
-        .getProcessDefinition(processInstance.getProcessDefinitionId());
+    // the cache is already looked up
+    List<HistoricActivityInstance> historicActivityInstances = getHistoricActivityInstances(
+        getProcessDefinitionGraph(processInstance.getProcessDefinitionId()), processInstanceId);
+    endedProcessInstanceCache.putHistoricActivityInstances(processInstance, historicActivityInstances);
+    return new ArrayList<HistoricActivityInstance>(historicActivityInstances);
+  }
 
-    return getHistoricActivityInstances(processDefinition, processInstanceId);
+  /**
+   * Returns historic activity instances, cached ones for ended process instance
+   *
+   * @param processInstance
+   * @param graph
+   * @return list which must not be modified, it can be shared with the cache
+   */
+  private static List<HistoricActivityInstance> getHistoricActivityInstances(HistoricProcessInstance processInstance, ProcessDefinitionGraph graph) {
+    // data of running process instances is never cached
+    List<HistoricActivityInstance> historicActivityInstances = (processInstance.getEndTime() != null)
+        ? endedProcessInstanceCache.getHistoricActivityInstances(processInstance.getId()) : null;
+    if (historicActivityInstances == null) {
+      historicActivityInstances = getHistoricActivityInstances(graph, processInstance.getId());
+      endedProcessInstanceCache.putHistoricActivityInstances(processInstance, historicActivityInstances);
+    }
+    return historicActivityInstances;
   }
 
   public static List<HistoricActivityInstance> getHistoricActivityInstances(ProcessDefinitionEntity processDefinition, String processInstanceId) {
-    List<HistoricActivityInstance> historicActivityInstances = historyService.createHistoricActivityInstanceQuery()
-        .processInstanceId(processInstanceId).orderByHistoricActivityInstanceStartTime().asc().list();
+    return getHistoricActivityInstances(ProcessDefinitionGraph.get(processDefinition), processInstanceId);
+  }
+
+  private static List<HistoricActivityInstance> getHistoricActivityInstances(ProcessDefinitionGraph graph, String processInstanceId) {
+    List<HistoricActivityInstance> historicActivityInstances = findHistoricActivityInstances(processInstanceId);
 
     // remove duplicates historic activities:
     // Set<String> hs = new LinkedHashSet<String>();
@@ -278,42 +452,60 @@ public class ActivitiUtil {
     // historicActivityIds.clear();
     // historicActivityIds.addAll(hs);
 
-    historicActivityInstances = addSubProcessStartActivities(processDefinition, historicActivityInstances);
-
-    // ad hoc
-    // History with EventBsedGateway doesn't have Events. But we can find it and
-    // add a fictive one manualy by next activity from the history.
-    List<HistoricActivityInstance> eventBasedActivities = getHistoricActivityInstancesByType(historicActivityInstances, "eventBasedGateway");
-    for (HistoricActivityInstance eventBasedHistoricActivity : eventBasedActivities) {
-      ActivityImpl eventBasedActivity = processDefinition.findActivity(eventBasedHistoricActivity.getActivityId());
-      int index = historicActivityInstances.indexOf(eventBasedHistoricActivity);
-      // get outgoing Event activities
-      List<ActivityImpl> eventActivities = eventBasedActivity.getActivities();
-      for (ActivityImpl eventActivity : eventActivities) {
-        // get outgoing activities from Event
-        List<ActivityImpl> nextActivities = getDestinationActivities(processDefinition, eventActivity.getId());
-        // if history has next activity
-        for (ActivityImpl nextActivity : nextActivities) {
-          if (getHistoricActivityById(historicActivityInstances, nextActivity.getId()) != null) {
-            // insert after eventBasedActivity
-            HistoricActivityInstance historicActivityInstance = createHistoricActivityInstanceEntity(eventActivity);
-            historicActivityInstances.add(index + 1, historicActivityInstance);
+    // Activities present in history. An event of event based gateway is added
+    // if its next activity is present anywhere in history, so it is collected
+    // before the merge pass. Subprocess start events count as present.
+    Set<String> historicActivityIds = new HashSet<String>(historicActivityInstances.size() * 2);
+    int syntheticCount = 0;
+    for (HistoricActivityInstance historicActivityInstance : historicActivityInstances) {
+      historicActivityIds.add(historicActivityInstance.getActivityId());
+      if ("subProcess".equals(historicActivityInstance.getActivityType())) {
+        int activity = graph.getActivityOrdinal(historicActivityInstance.getActivityId());
+        historicActivityIds.add(graph.getActivityId(graph.getInitialActivity(activity)));
+        syntheticCount++;
+      }
+    }
+
+    List<HistoricActivityInstance> result = new ArrayList<HistoricActivityInstance>(historicActivityInstances.size() + syntheticCount);
+    List<HistoricActivityInstance> eventHistoricActivities = new ArrayList<HistoricActivityInstance>();
+    for (HistoricActivityInstance historicActivityInstance : historicActivityInstances) {
+      result.add(historicActivityInstance);
+      String type = historicActivityInstance.getActivityType();
+      if ("subProcess".equals(type)) {
+        // add fictive start event after subprocess
+        int activity = graph.getActivityOrdinal(historicActivityInstance.getActivityId());
+        result.add(graph.getSyntheticHistoricActivityInstance(graph.getInitialActivity(activity)));
+      } else if ("eventBasedGateway".equals(type)) {
+        // ad hoc
+        // History with EventBsedGateway doesn't have Events. But we can find it and
+        // add a fictive one manualy by next activity from the history.
+        int eventBasedActivity = graph.getActivityOrdinal(historicActivityInstance.getActivityId());
+        eventHistoricActivities.clear();
+        // get outgoing Event activities
+        int eventActivityCount = graph.getChildCount(eventBasedActivity);
+        for (int i = 0; i < eventActivityCount; i++) {
+          int eventActivity = graph.getChild(eventBasedActivity, i);
+          // get outgoing activities from Event
+          int nextActivityCount = graph.getOutgoingCount(eventActivity);
+          // if history has next activity
+          for (int j = 0; j < nextActivityCount; j++) {
+            int nextActivity = graph.getTransitionDestination(graph.getOutgoingTransition(eventActivity, j));
+            if (historicActivityIds.contains(graph.getActivityId(nextActivity))) {
+              eventHistoricActivities.add(graph.getSyntheticHistoricActivityInstance(eventActivity));
+              historicActivityIds.add(graph.getActivityId(eventActivity));
+            }
           }
         }
+        // each event used to be inserted right after eventBasedActivity, so
+        // the last found event comes first
+        for (int i = eventHistoricActivities.size() - 1; i >= 0; i--) {
+          result.add(eventHistoricActivities.get(i));
+        }
+        // check duplicates?
       }
-      // check duplicates?
     }
 
-    return historicActivityInstances;
-  }
-
-  private static HistoricActivityInstance createHistoricActivityInstanceEntity(ActivityImpl activity) {
-    HistoricActivityInstanceEntity historicActivityInstance = new HistoricActivityInstanceEntity();
-    historicActivityInstance.setActivityId(activity.getId());
-    historicActivityInstance.setActivityName((String)activity.getProperty("name"));
-    historicActivityInstance.setActivityType((String)activity.getProperty("type"));
-    historicActivityInstance.setProcessDefinitionId(activity.getProcessDefinition().getId());
-    return historicActivityInstance;
+    return result;
   }
 
   /**
@@ -333,112 +525,102 @@ public class ActivitiUtil {
     return activities;
   }
 
-  private static List<HistoricActivityInstance> addSubProcessStartActivities(ProcessDefinitionEntity processDefinition,
-      List<HistoricActivityInstance> historicActivityInstances) {
-    List<HistoricActivityInstance> newHistoricActivityInstances = new ArrayList<HistoricActivityInstance>();
-    for (int i = 0; i < historicActivityInstances.size(); i++) {
-      HistoricActivityInstance historicActivityInstance = historicActivityInstances.get(i);
-      newHistoricActivityInstances.add(historicActivityInstance);
-      if ("subProcess".equals(historicActivityInstance.getActivityType())) {
-        ActivityImpl activity = processDefinition.findActivity(historicActivityInstance.getActivityId());
-        ActivityImpl startActivity = (ActivityImpl) activity.getProperty("initial");
-        HistoricActivityInstance initialHistoricActivityInstance = createHistoricActivityInstanceEntity(startActivity);
-        newHistoricActivityInstances.add(initialHistoricActivityInstance );
-      }
-    }
-    return newHistoricActivityInstances;
-  }
-
   /**
-   * Returns historic activity instance by activity id
+   * Returns cached process definition graph, definition is loaded from the
+   * repository only when graph is not built yet
    *
-   * @param historicActivityInstances
-   * @param activityId
+   * @param processDefinitionId
    * @return
    */
-  private static HistoricActivityInstance getHistoricActivityById(List<HistoricActivityInstance> historicActivityInstances, String activityId) {
-    return getHistoricActivityById(historicActivityInstances, activityId, null);
+  public static ProcessDefinitionGraph getProcessDefinitionGraph(String processDefinitionId) {
+    ProcessDefinitionGraph graph = ProcessDefinitionGraph.get(processDefinitionId);
+    if (graph == null) {
+      graph = ProcessDefinitionGraph.get((ProcessDefinitionEntity) findProcessDefinition(processDefinitionId));
+    }
+    return graph;
   }
 
   /**
-   * Returns historic activity instance by activity id and specified execution id
+   * Returns historic process instance, reads it once per lookup context
    *
-   * @param historicActivityInstances
-   * @param activityId
-   * @param executionId
+   * @param processInstanceId
    * @return
    */
-  private static HistoricActivityInstance getHistoricActivityById(List<HistoricActivityInstance> historicActivityInstances, String activityId, String executionId) {
-    for (HistoricActivityInstance historicActivityInstance : historicActivityInstances) {
-      if (historicActivityInstance.getActivityId().equals(activityId)) {
-        if (executionId == null || (executionId != null && executionId.equals(historicActivityInstance.getExecutionId()))) {
-          return historicActivityInstance;
-        }
+  private static HistoricProcessInstance findHistoricProcessInstance(String processInstanceId) {
+    ActivitiLookupContext context = ActivitiLookupContext.getCurrent();
+    HistoricProcessInstance historicProcessInstance = (context != null) ? context.getHistoricProcessInstance(processInstanceId) : null;
+    if (historicProcessInstance == null) {
+      historicProcessInstance = historyService.createHistoricProcessInstanceQuery()
+          .processInstanceId(processInstanceId).singleResult();
+      if (historicProcessInstance == null && processInstanceArchive != null) {
+        historicProcessInstance = processInstanceArchive.getProcessInstance(processInstanceId);
       }
-    }
-    return null;
-  }
-
-  private static List<HistoricActivityInstance> getHistoricActivityInstancesByType(List<HistoricActivityInstance> historicActivityInstances, String type) {
-    List<HistoricActivityInstance> result = new ArrayList<HistoricActivityInstance>();
-    for (HistoricActivityInstance historicActivityInstance : historicActivityInstances) {
-      if (type.equals(historicActivityInstance.getActivityType())) {
-        result.add(historicActivityInstance);
+      if (context != null) {
+        context.putHistoricProcessInstance(historicProcessInstance);
       }
     }
-    return result;
+    return historicProcessInstance;
   }
 
   /**
-   * Returns next activities for source activity by outgoing transitions
+   * Returns process definition, reads it once per lookup context
    *
-   * @param processDefinition
-   * @param sourceActivityId
+   * @param processDefinitionId
    * @return
    */
-  private static List<ActivityImpl> getDestinationActivities(ProcessDefinitionEntity processDefinition, String sourceActivityId) {
-    List<ActivityImpl> destinationActivities = new ArrayList<ActivityImpl>();
-    ActivityImpl sourceActivity = processDefinition.findActivity(sourceActivityId);
-    if (sourceActivity != null) {
-      List<PvmTransition> outgoingTransitions = sourceActivity.getOutgoingTransitions();
-      for (PvmTransition outgoingTransition : outgoingTransitions) {
-        String destinationId = outgoingTransition.getDestination().getId();
-        ActivityImpl destinationActivity = processDefinition.findActivity(destinationId);
-        if (destinationActivity != null) {
-          destinationActivities.add(destinationActivity);
-        }
+  private static ProcessDefinition findProcessDefinition(String processDefinitionId) {
+    ActivitiLookupContext context = ActivitiLookupContext.getCurrent();
+    ProcessDefinition processDefinition = (context != null) ? context.getProcessDefinition(processDefinitionId) : null;
+    if (processDefinition == null) {
+      processDefinition = repositoryService.getProcessDefinition(processDefinitionId);
+      if (context != null) {
+        context.putProcessDefinition(processDefinition);
       }
     }
-    return destinationActivities;
+    return processDefinition;
   }
 
   /**
-   * Returns prevoius activities for destination activity by incoming transitions
+   * Returns historic activity instances ordered by start time, reads them once
+   * per lookup context
    *
-   * @param processDefinition
-   * @param destinationActivityId
-   * @return
+   * @param processInstanceId
+   * @return list which must not be modified
    */
-  private static List<ActivityImpl> getSourceActivities(ProcessDefinitionEntity processDefinition, String destinationActivityId) {
-    List<ActivityImpl> sourceActivities = new ArrayList<ActivityImpl>();
-    ActivityImpl destinationActivity = processDefinition.findActivity(destinationActivityId);
-    if (destinationActivity != null) {
-      List<PvmTransition> incomingTransitions = destinationActivity.getIncomingTransitions();
-      for (PvmTransition incomingTransition : incomingTransitions) {
-        String sourceId = incomingTransition.getSource().getId();
-        ActivityImpl sourceActivity = processDefinition.findActivity(sourceId);
-        if (sourceActivity != null) {
-          sourceActivities.add(sourceActivity);
-        }
+  private static List<HistoricActivityInstance> findHistoricActivityInstances(String processInstanceId) {
+    ActivitiLookupContext context = ActivitiLookupContext.getCurrent();
+    List<HistoricActivityInstance> historicActivityInstances = (context != null) ? context.getHistoricActivityInstances(processInstanceId) : null;
+    if (historicActivityInstances == null) {
+      historicActivityInstances = historyService.createHistoricActivityInstanceQuery()
+          .processInstanceId(processInstanceId).orderByHistoricActivityInstanceStartTime().asc().list();
+      if (historicActivityInstances.isEmpty() && processInstanceArchive != null) {
+        historicActivityInstances = processInstanceArchive.getActivityInstances(processInstanceId);
+      }
+      if (context != null) {
+        context.putHistoricActivityInstances(processInstanceId, historicActivityInstances);
+      }
+    }
+    return historicActivityInstances;
+  }
+
+  private static List<HistoricActivityInstance> getHistoricActivityInstancesByType(List<HistoricActivityInstance> historicActivityInstances, String type) {
+    List<HistoricActivityInstance> result = new ArrayList<HistoricActivityInstance>();
+    for (HistoricActivityInstance historicActivityInstance : historicActivityInstances) {
+      if (type.equals(historicActivityInstance.getActivityType())) {
+        result.add(historicActivityInstance);
       }
     }
-    return sourceActivities;
+    return result;
   }
 
   public static List<String> getActiveActivityIds(String processInstanceId) {
-    HistoricProcessInstance processInstance = historyService.createHistoricProcessInstanceQuery()
-        .processInstanceId(processInstanceId).singleResult();
+    HistoricProcessInstance processInstance = findHistoricProcessInstance(processInstanceId);
+
+    return getActiveActivityIds(processInstance);
+  }
 
+  private static List<String> getActiveActivityIds(HistoricProcessInstance processInstance) {
+    String processInstanceId = processInstance.getId();
     if (processInstance.getEndTime() != null) {
       return Collections.<String>emptyList();
     }
@@ -448,24 +630,23 @@ public class ActivitiUtil {
     // and there is no any next activity in history then add this parallel
     // gateway as active, waiting parallel ways
 
-    List<HistoricActivityInstance> historicActivityInstances = historyService.createHistoricActivityInstanceQuery()
-        .processInstanceId(processInstanceId).orderByHistoricActivityInstanceStartTime().asc().list();
+    List<HistoricActivityInstance> historicActivityInstances = findHistoricActivityInstances(processInstanceId);
 
-    ProcessDefinitionEntity processDefinition = (ProcessDefinitionEntity) repositoryService
-        .getProcessDefinition(processInstance.getProcessDefinitionId());
+    ProcessDefinitionGraph graph = getProcessDefinitionGraph(processInstance.getProcessDefinitionId());
+    HistoricActivityInstanceIndex historicActivityInstanceIndex = new HistoricActivityInstanceIndex(historicActivityInstances);
 
     List<HistoricActivityInstance> parallelGateways = getHistoricActivityInstancesByType(historicActivityInstances, "parallelGateway");
     for (HistoricActivityInstance parallelGateway : parallelGateways) {
       if (parallelGateway.getEndTime() != null) {
-        List<ActivityImpl> prevActivities = getSourceActivities(processDefinition, parallelGateway.getActivityId());
-        if (prevActivities.size() < 2) {
+        int activity = graph.getActivityOrdinal(parallelGateway.getActivityId());
+        if (activity < 0 || graph.getIncomingCount(activity) < 2) {
           continue;
         }
-        List<ActivityImpl> nextActivities = getDestinationActivities(processDefinition, parallelGateway.getActivityId());
         boolean foundNextActivities = false;
-        for (ActivityImpl nextActivity : nextActivities) {
-          HistoricActivityInstance nextHistoricActivity = getHistoricActivityById(historicActivityInstances, nextActivity.getId());
-          if (nextHistoricActivity != null) {
+        int nextActivityCount = graph.getOutgoingCount(activity);
+        for (int i = 0; i < nextActivityCount; i++) {
+          int nextActivity = graph.getTransitionDestination(graph.getOutgoingTransition(activity, i));
+          if (historicActivityInstanceIndex.contains(graph.getActivityId(nextActivity))) {
             foundNextActivities = true;
             break;
           }
@@ -479,6 +660,238 @@ public class ActivitiUtil {
     return activityIds;
   }
 
+  /**
+   * Loads all data of the process detail page. Process instance and its
+   * definition graph are loaded once, then tree, highlighted flows, active
+   * activities, jobs, variables and comments are loaded concurrently. A part
+   * which fails or does not finish in time is returned with its status and
+   * without value.
+   *
+   * @param processInstanceId
+   * @param timeoutMillis time limit for all parts
+   * @return detail document or null if there is no such process instance
+   */
+  public static ProcessInstanceDetail getProcessInstanceDetail(String processInstanceId, long timeoutMillis) {
+    ActivitiLookupContext context = ActivitiLookupContext.open();
+    try {
+      return getProcessInstanceDetail(processInstanceId, timeoutMillis, context);
+    } finally {
+      context.close();
+    }
+  }
+
+  private static ProcessInstanceDetail getProcessInstanceDetail(final String processInstanceId, long timeoutMillis,
+      ActivitiLookupContext context) {
+    long startTime = System.currentTimeMillis();
+    // variables are read with the process instance unless they are cached
+    final Map<String, Object> cachedVariables = endedProcessInstanceCache.getVariables(processInstanceId);
+    final HistoricProcessInstance processInstance = (cachedVariables != null) ? findHistoricProcessInstance(processInstanceId)
+        : findHistoricProcessInstanceWithVariables(processInstanceId);
+    if (processInstance == null) {
+      return null;
+    }
+    getProcessDefinitionGraph(processInstance.getProcessDefinitionId());
+
+    Map<String, TimedCall> calls = new LinkedHashMap<String, TimedCall>();
+    calls.put(ProcessInstanceDetail.TREE, new TimedCall(context) {
+      @Override
+      protected Object doCall() {
+        return getProcessInstanceTree(processInstance, 0, true);
+      }
+    });
+    calls.put(ProcessInstanceDetail.HIGH_LIGHTED_FLOWS, new TimedCall(context) {
+      @Override
+      protected Object doCall() {
+        List<String> highLightedFlows = endedProcessInstanceCache.getHighLightedFlows(processInstanceId);
+        return (highLightedFlows != null) ? highLightedFlows : getHighLightedFlows(processInstance);
+      }
+    });
+    calls.put(ProcessInstanceDetail.ACTIVE_ACTIVITY_IDS, new TimedCall(context) {
+      @Override
+      protected Object doCall() {
+        return getActiveActivityIds(processInstance);
+      }
+    });
+    calls.put(ProcessInstanceDetail.JOBS, new TimedCall(context) {
+      @Override
+      protected Object doCall() {
+        return getJobs(processInstanceId);
+      }
+    });
+    calls.put(ProcessInstanceDetail.VARIABLES, new TimedCall(context) {
+      @Override
+      protected Object doCall() {
+        return (cachedVariables != null) ? cachedVariables : getProcessInstanceVariables(processInstance);
+      }
+    });
+    calls.put(ProcessInstanceDetail.COMMENTS, new TimedCall(context) {
+      @Override
+      protected Object doCall() {
+        return getProcessInstanceComments(processInstanceId);
+      }
+    });
+
+    Map<String, Future<Object>> futures = new LinkedHashMap<String, Future<Object>>();
+    for (Map.Entry<String, TimedCall> call : calls.entrySet()) {
+      Future<Object> future;
+      try {
+        future = processInstanceDetailExecutor.submit(call.getValue());
+      } catch (RejectedExecutionException e) {
+        // the part is not run on this thread, where its timeout could not stop it
+        future = null;
+      }
+      futures.put(call.getKey(), future);
+    }
+
+    ProcessInstanceDetail detail = new ProcessInstanceDetail();
+    detail.setProcessInstanceId(processInstanceId);
+    detail.setProcessInstance(processInstance);
+    long deadline = startTime + timeoutMillis;
+    for (Map.Entry<String, Future<Object>> future : futures.entrySet()) {
+      TimedCall call = calls.get(future.getKey());
+      ProcessInstanceDetail.Part part;
+      if (future.getValue() == null) {
+        detail.addPart(future.getKey(), new ProcessInstanceDetail.Part(ProcessInstanceDetail.PartStatus.FAILED, null,
+            0, "Rejected, detail executor is saturated"));
+        continue;
+      }
+      try {
+        Object value = future.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        part = new ProcessInstanceDetail.Part(ProcessInstanceDetail.PartStatus.OK, value, call.getDurationInMillis(), null);
+      } catch (TimeoutException e) {
+        future.getValue().cancel(true);
+        part = new ProcessInstanceDetail.Part(ProcessInstanceDetail.PartStatus.TIMEOUT, null,
+            System.currentTimeMillis() - startTime, "Timed out after " + timeoutMillis + " ms");
+      } catch (ExecutionException e) {
+        logger.error("Can not load " + future.getKey() + " of process instance " + processInstanceId, e.getCause());
+        part = new ProcessInstanceDetail.Part(ProcessInstanceDetail.PartStatus.FAILED, null, call.getDurationInMillis(),
+            String.valueOf(e.getCause().getMessage()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        future.getValue().cancel(true);
+        part = new ProcessInstanceDetail.Part(ProcessInstanceDetail.PartStatus.FAILED, null,
+            System.currentTimeMillis() - startTime, "Interrupted");
+      }
+      detail.addPart(future.getKey(), part);
+    }
+    detail.setDurationInMillis(System.currentTimeMillis() - startTime);
+    return detail;
+  }
+
+  /**
+   * Sets executor for process detail parts, i.e. a virtual thread executor where
+   * it is available
+   *
+   * @param executor
+   */
+  public static void setProcessInstanceDetailExecutor(ExecutorService executor) {
+    processInstanceDetailExecutor = executor;
+  }
+
+  private static ExecutorService createProcessInstanceDetailExecutor() {
+    int threads = Integer.getInteger("processmanager.detail.threads", 8);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(threads * 16), new NamedThreadFactory("pm-detail-"),
+        new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Callable which measures its own execution time
+   */
+  private static abstract class TimedCall implements Callable<Object> {
+    private final ActivitiLookupContext context;
+    private volatile long durationInMillis;
+
+    TimedCall(ActivitiLookupContext context) {
+      this.context = context;
+    }
+
+    @Override
+    public Object call() throws Exception {
+      long startTime = System.currentTimeMillis();
+      ActivitiLookupContext callerContext = ActivitiLookupContext.getCurrent();
+      ActivitiLookupContext.bind(context);
+      try {
+        return doCall();
+      } finally {
+        ActivitiLookupContext.bind(callerContext);
+        durationInMillis = System.currentTimeMillis() - startTime;
+      }
+    }
+
+    protected abstract Object doCall();
+
+    public long getDurationInMillis() {
+      return durationInMillis;
+    }
+  }
+
+  /**
+   * Returns highlighted flows, visited and active activities of the process as
+   * bitsets of process definition graph ordinals
+   *
+   * @param processInstanceId
+   * @return
+   * @throws ActivitiObjectNotFoundException if the process instance does not exist
+   */
+  public static ProcessInstanceBitsets getProcessInstanceBitsets(String processInstanceId) {
+    ProcessInstanceBitsets cachedBitsets = endedProcessInstanceCache.getBitsets(processInstanceId);
+    if (cachedBitsets != null) {
+      return cachedBitsets;
+    }
+
+    HistoricProcessInstance processInstance = findHistoricProcessInstance(processInstanceId);
+    if (processInstance == null) {
+      throw new ActivitiObjectNotFoundException("Could not find a process instance with id '" + processInstanceId
+          + "'.", HistoricProcessInstance.class);
+    }
+
+    ProcessDefinitionGraph graph = getProcessDefinitionGraph(processInstance.getProcessDefinitionId());
+    BitSet highLightedFlows = new BitSet(graph.getTransitionCount());
+    BitSet activities = new BitSet(graph.getActivityCount());
+    BitSet activeActivities = new BitSet(graph.getActivityCount());
+
+    for (HistoricActivityInstanceFlow historicActivityInstanceFlow : getHistoricActivityInstanceFlows(processInstance)) {
+      int activity = graph.getActivityOrdinal(historicActivityInstanceFlow.getHistoricActivityInstance().getActivityId());
+      if (activity >= 0) {
+        activities.set(activity);
+      }
+      if (historicActivityInstanceFlow.getIncomingTransition() != null) {
+        int transition = graph.getTransitionOrdinal(historicActivityInstanceFlow.getIncomingTransitionId());
+        if (transition >= 0) {
+          highLightedFlows.set(transition);
+        }
+      }
+    }
+    for (String activityId : getActiveActivityIds(processInstance)) {
+      int activity = graph.getActivityOrdinal(activityId);
+      if (activity >= 0) {
+        activeActivities.set(activity);
+      }
+    }
+
+    ProcessInstanceBitsets bitsets = new ProcessInstanceBitsets();
+    bitsets.setProcessInstanceId(processInstanceId);
+    bitsets.setVersionKey(graph.getVersionKey());
+    bitsets.setHighLightedFlows(ProcessInstanceBitsets.encode(highLightedFlows));
+    bitsets.setActivities(ProcessInstanceBitsets.encode(activities));
+    bitsets.setActiveActivities(ProcessInstanceBitsets.encode(activeActivities));
+    endedProcessInstanceCache.putBitsets(processInstance, bitsets);
+    return bitsets;
+  }
+
+  /**
+   * Returns ordinal to id map for expanding process instance bitsets
+   *
+   * @param processDefinitionId
+   * @return
+   */
+  public static ProcessDefinitionGraphMap getProcessDefinitionGraphMap(String processDefinitionId) {
+    return new ProcessDefinitionGraphMap(getProcessDefinitionGraph(processDefinitionId));
+  }
+
   /**
    * Gets process instance variables
    *
@@ -486,11 +899,73 @@ public class ActivitiUtil {
    * @return variables map
    */
   public static Map<String, Object> getProcessInstanceVariables(String processInstanceId) {
-    HistoricProcessInstance processInstance = historyService.createHistoricProcessInstanceQuery()
-        .processInstanceId(processInstanceId).includeProcessVariables().singleResult();
+    Map<String, Object> cachedVariables = endedProcessInstanceCache.getVariables(processInstanceId);
+    if (cachedVariables != null) {
+      return cachedVariables;
+    }
+
+    HistoricProcessInstance processInstance = findHistoricProcessInstanceWithVariables(processInstanceId);
+    if (processInstance == null) {
+      throw new ActivitiObjectNotFoundException("Could not find a process instance with id '" + processInstanceId
+          + "'.", HistoricProcessInstance.class);
+    }
+    return getProcessInstanceVariables(processInstance);
+  }
+
+  /**
+   * @param processInstance
+   *          process instance read with its variables
+   * @return variables map
+   */
+  private static Map<String, Object> getProcessInstanceVariables(HistoricProcessInstance processInstance) {
+    endedProcessInstanceCache.putVariables(processInstance, processInstance.getProcessVariables());
     return processInstance.getProcessVariables();
   }
 
+  /**
+   * Reads process instance with its variables, from the archive if it is not in
+   * history, and shares it in the lookup context
+   *
+   * @param processInstanceId
+   * @return process instance or null
+   */
+  private static HistoricProcessInstance findHistoricProcessInstanceWithVariables(String processInstanceId) {
+    HistoricProcessInstance historicProcessInstance = historyService.createHistoricProcessInstanceQuery()
+        .processInstanceId(processInstanceId).includeProcessVariables().singleResult();
+    if (historicProcessInstance == null && processInstanceArchive != null) {
+      historicProcessInstance = processInstanceArchive.getProcessInstance(processInstanceId);
+    }
+    ActivitiLookupContext context = ActivitiLookupContext.getCurrent();
+    if (historicProcessInstance != null && context != null) {
+      context.putHistoricProcessInstance(historicProcessInstance);
+    }
+    return historicProcessInstance;
+  }
+
+  /**
+   * Deletes history of the process instance and removes it from the cache of
+   * ended process instances and the facet index. History deletes do not
+   * publish engine events, so they should be done by this method.
+   *
+   * @param processInstanceId
+   */
+  public static void deleteHistoricProcessInstance(String processInstanceId) {
+    historyService.deleteHistoricProcessInstance(processInstanceId);
+    endedProcessInstanceCache.remove(processInstanceId);
+    if (historicProcessInstanceFacetIndex != null) {
+      historicProcessInstanceFacetIndex.remove(processInstanceId);
+    }
+  }
+
+  /**
+   * Returns cache of ended process instances data, i.e. to read hit/miss metrics
+   *
+   * @return
+   */
+  public static EndedProcessInstanceCache getEndedProcessInstanceCache() {
+    return endedProcessInstanceCache;
+  }
+
   public static JSONArray getProcessInstanceTreeJSON(List<ProcessInstanceItem> processInstanceItems) {
     int currentLevel = 0;
     Map<String, Object> lastElement = null;
@@ -563,7 +1038,7 @@ public class ActivitiUtil {
    * @return
    */
   public static HistoricProcessInstance getHistoricProcessInstance(String processInstanceId) {
-    return historyService.createHistoricProcessInstanceQuery().processInstanceId(processInstanceId).singleResult();
+    return findHistoricProcessInstance(processInstanceId);
   }
 
   /**
@@ -573,7 +1048,7 @@ public class ActivitiUtil {
    * @return
    */
   public static ProcessDefinition getProcessDefinition(String processDefinitionId) {
-    return repositoryService.getProcessDefinition(processDefinitionId);
+    return findProcessDefinition(processDefinitionId);
   }
 
   /**
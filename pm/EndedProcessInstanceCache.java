@@ -0,0 +1,213 @@
+package org.activiti.pm;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.activiti.engine.history.HistoricActivityInstance;
+import org.activiti.engine.history.HistoricProcessInstance;
+import org.activiti.pm.util.BoundedCache;
+import org.apache.commons.lang3.SerializationUtils;
+
+/**
+ * Cache of data computed for ended process instances: highlighted flows,
+ * historic activity instances, variables and bitsets. History of an ended
+ * process instance never changes, so entries do not expire and are evicted by
+ * size and weight (number of cached elements). Data of running process
+ * instances is never cached: lookups do not count misses, a miss is counted
+ * when data of an ended process instance is put after a lookup. Entries are
+ * removed by {@link ActivitiUtil#deleteHistoricProcessInstance(String)}.
+ * Variable values and bitsets are mutable, so they are copied when put and
+ * read.
+ *
+ * @author Dmitry Farafonov
+ */
+public class EndedProcessInstanceCache {
+
+  private static final String HIGH_LIGHTED_FLOWS = "flows:";
+  private static final String HISTORIC_ACTIVITY_INSTANCES = "activities:";
+  private static final String VARIABLES = "variables:";
+  private static final String BITSETS = "bitsets:";
+
+  private final BoundedCache<String, Object> cache;
+
+  public EndedProcessInstanceCache(int maxEntries, long maxWeight) {
+    cache = new BoundedCache<String, Object>(maxEntries, maxWeight, new BoundedCache.Weigher<Object>() {
+      @Override
+      public long weigh(Object value) {
+        if (value instanceof Collection) {
+          return ((Collection<?>) value).size() + 1;
+        } else if (value instanceof Map) {
+          return ((Map<?, ?>) value).size() + 1;
+        }
+        return 1;
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<String> getHighLightedFlows(String processInstanceId) {
+    return (List<String>) cache.getIfPresent(HIGH_LIGHTED_FLOWS + processInstanceId);
+  }
+
+  public void putHighLightedFlows(HistoricProcessInstance processInstance, List<String> highLightedFlows) {
+    put(HIGH_LIGHTED_FLOWS, processInstance, Collections.unmodifiableList(highLightedFlows));
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<HistoricActivityInstance> getHistoricActivityInstances(String processInstanceId) {
+    return (List<HistoricActivityInstance>) cache.getIfPresent(HISTORIC_ACTIVITY_INSTANCES + processInstanceId);
+  }
+
+  public void putHistoricActivityInstances(HistoricProcessInstance processInstance,
+      List<HistoricActivityInstance> historicActivityInstances) {
+    put(HISTORIC_ACTIVITY_INSTANCES, processInstance, Collections.unmodifiableList(historicActivityInstances));
+  }
+
+  /**
+   * @param processInstanceId
+   * @return copy of cached variables or null
+   */
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> getVariables(String processInstanceId) {
+    Map<String, Object> variables = (Map<String, Object>) cache.getIfPresent(VARIABLES + processInstanceId);
+    return (variables != null) ? copyVariables(variables) : null;
+  }
+
+  public void putVariables(HistoricProcessInstance processInstance, Map<String, Object> variables) {
+    if (processInstance.getEndTime() == null) {
+      return;
+    }
+    put(VARIABLES, processInstance, Collections.unmodifiableMap(copyVariables(variables)));
+  }
+
+  /**
+   * @param processInstanceId
+   * @return copy of cached bitsets or null
+   */
+  public ProcessInstanceBitsets getBitsets(String processInstanceId) {
+    ProcessInstanceBitsets bitsets = (ProcessInstanceBitsets) cache.getIfPresent(BITSETS + processInstanceId);
+    return (bitsets != null) ? copyBitsets(bitsets) : null;
+  }
+
+  public void putBitsets(HistoricProcessInstance processInstance, ProcessInstanceBitsets bitsets) {
+    put(BITSETS, processInstance, copyBitsets(bitsets));
+  }
+
+  private static ProcessInstanceBitsets copyBitsets(ProcessInstanceBitsets bitsets) {
+    ProcessInstanceBitsets copy = new ProcessInstanceBitsets();
+    copy.setProcessInstanceId(bitsets.getProcessInstanceId());
+    copy.setVersionKey(bitsets.getVersionKey());
+    copy.setHighLightedFlows(bitsets.getHighLightedFlows());
+    copy.setActivities(bitsets.getActivities());
+    copy.setActiveActivities(bitsets.getActiveActivities());
+    return copy;
+  }
+
+  private void put(String part, HistoricProcessInstance processInstance, Object value) {
+    if (processInstance.getEndTime() == null) {
+      return;
+    }
+    cache.recordMiss();
+    cache.put(part + processInstance.getId(), value);
+  }
+
+  private static Map<String, Object> copyVariables(Map<String, Object> variables) {
+    Map<String, Object> copy = new HashMap<String, Object>(variables.size() * 2);
+    for (Map.Entry<String, Object> variable : variables.entrySet()) {
+      copy.put(variable.getKey(), copyValue(variable.getValue()));
+    }
+    return copy;
+  }
+
+  /**
+   * Copies mutable value, values of known immutable types are shared
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private static Object copyValue(Object value) {
+    if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean
+        || value instanceof Character || value instanceof Enum) {
+      return value;
+    } else if (value instanceof Date) {
+      return ((Date) value).clone();
+    } else if (value instanceof byte[]) {
+      return ((byte[]) value).clone();
+    } else if (value instanceof Map) {
+      Map copy = new LinkedHashMap();
+      for (Map.Entry entry : ((Map<?, ?>) value).entrySet()) {
+        copy.put(entry.getKey(), copyValue(entry.getValue()));
+      }
+      return copy;
+    } else if (value instanceof Set) {
+      Set copy = new LinkedHashSet();
+      for (Object element : (Set<?>) value) {
+        copy.add(copyValue(element));
+      }
+      return copy;
+    } else if (value instanceof Collection) {
+      List copy = new ArrayList();
+      for (Object element : (Collection<?>) value) {
+        copy.add(copyValue(element));
+      }
+      return copy;
+    } else if (value instanceof Serializable) {
+      // i.e. serializable objects stored as variables
+      return SerializationUtils.clone((Serializable) value);
+    }
+    return value;
+  }
+
+  /**
+   * Removes all cached data of the process instance, i.e. when its history is
+   * deleted
+   *
+   * @param processInstanceId
+   */
+  public void remove(String processInstanceId) {
+    cache.remove(HIGH_LIGHTED_FLOWS + processInstanceId);
+    cache.remove(HISTORIC_ACTIVITY_INSTANCES + processInstanceId);
+    cache.remove(VARIABLES + processInstanceId);
+    cache.remove(BITSETS + processInstanceId);
+  }
+
+  public void clear() {
+    cache.clear();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  public long getWeight() {
+    return cache.getWeight();
+  }
+
+  public long getHitCount() {
+    return cache.getHitCount();
+  }
+
+  public long getMissCount() {
+    return cache.getMissCount();
+  }
+
+  public long getEvictionCount() {
+    return cache.getEvictionCount();
+  }
+
+  public double getHitRatio() {
+    return cache.getHitRatio();
+  }
+
+  @Override
+  public String toString() {
+    return "EndedProcessInstanceCache " + cache;
+  }
+}
@@ -0,0 +1,82 @@
+package org.activiti.pm;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.activiti.engine.history.HistoricActivityInstance;
+
+/**
+ * Index of historic activity instances by activity id and by activity id and
+ * execution id. Built in a single pass, keeps the first instance in list order
+ * for every key.
+ *
+ * @author Dmitry Farafonov
+ */
+public class HistoricActivityInstanceIndex {
+
+  private final Map<String, HistoricActivityInstance> byActivityId;
+  private final Map<String, Map<String, HistoricActivityInstance>> byActivityIdAndExecutionId;
+
+  public HistoricActivityInstanceIndex(List<HistoricActivityInstance> historicActivityInstances) {
+    byActivityId = new HashMap<String, HistoricActivityInstance>(historicActivityInstances.size() * 2);
+    byActivityIdAndExecutionId = new HashMap<String, Map<String, HistoricActivityInstance>>(historicActivityInstances.size() * 2);
+    for (HistoricActivityInstance historicActivityInstance : historicActivityInstances) {
+      add(historicActivityInstance);
+    }
+  }
+
+  /**
+   * Adds historic activity instance, it is returned by lookups only if there is no
+   * instance with the same key yet
+   *
+   * @param historicActivityInstance
+   */
+  public void add(HistoricActivityInstance historicActivityInstance) {
+    String activityId = historicActivityInstance.getActivityId();
+    if (!byActivityId.containsKey(activityId)) {
+      byActivityId.put(activityId, historicActivityInstance);
+    }
+    String executionId = historicActivityInstance.getExecutionId();
+    if (executionId != null) {
+      Map<String, HistoricActivityInstance> byExecutionId = byActivityIdAndExecutionId.get(activityId);
+      if (byExecutionId == null) {
+        byExecutionId = new HashMap<String, HistoricActivityInstance>(4);
+        byActivityIdAndExecutionId.put(activityId, byExecutionId);
+      }
+      if (!byExecutionId.containsKey(executionId)) {
+        byExecutionId.put(executionId, historicActivityInstance);
+      }
+    }
+  }
+
+  /**
+   * Returns first historic activity instance by activity id
+   *
+   * @param activityId
+   * @return
+   */
+  public HistoricActivityInstance get(String activityId) {
+    return byActivityId.get(activityId);
+  }
+
+  /**
+   * Returns first historic activity instance by activity id and specified
+   * execution id, null execution id matches any execution
+   *
+   * @param activityId
+   * @param executionId
+   * @return
+   */
+  public HistoricActivityInstance get(String activityId, String executionId) {
+    if (executionId == null) {
+      return get(activityId);
+    }
+    Map<String, HistoricActivityInstance> byExecutionId = byActivityIdAndExecutionId.get(activityId);
+    return (byExecutionId != null) ? byExecutionId.get(executionId) : null;
+  }
+
+  public boolean contains(String activityId) {
+    return byActivityId.containsKey(activityId);
+  }
+}
@@ -0,0 +1,356 @@
+package org.activiti.pm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.activiti.engine.history.HistoricActivityInstance;
+import org.activiti.engine.impl.persistence.entity.ProcessDefinitionEntity;
+import org.activiti.engine.impl.pvm.PvmTransition;
+import org.activiti.engine.impl.pvm.process.ActivityImpl;
+import org.activiti.pm.util.BoundedCache;
+
+/**
+ * Immutable index of a process definition graph. Activities (including nested
+ * ones) and transitions get int ordinals, adjacency is stored in compressed
+ * sparse row arrays: transitions of activity <code>a</code> are
+ * <code>outgoing[outgoingOffsets[a] .. outgoingOffsets[a + 1])</code>.
+ *
+ * Graphs are built once and cached by process definition id, deployed
+ * definitions never change. The cache is bounded and is invalidated by
+ * deployment events of {@link ProcessDefinitionMetadataCache}.
+ *
+ * @author Dmitry Farafonov
+ */
+public class ProcessDefinitionGraph {
+
+  private static final int MAX_GRAPHS = 1000;
+
+  private static final BoundedCache<String, ProcessDefinitionGraph> graphs = new BoundedCache<String, ProcessDefinitionGraph>(
+      MAX_GRAPHS);
+
+  private final String processDefinitionId;
+
+  private final ActivityImpl[] activities;
+  private final String[] activityTypes;
+  private final Map<String, Integer> activityOrdinals;
+
+  private final PvmTransition[] transitions;
+  private final int[] transitionSources;
+  private final int[] transitionDestinations;
+  private final Map<String, Integer> transitionOrdinals;
+
+  private final int[] outgoingOffsets;
+  private final int[] outgoing;
+  private final int[] incomingOffsets;
+  private final int[] incoming;
+  private final int[] childOffsets;
+  private final int[] children;
+
+  private final int[] initialActivities;
+  private final boolean[] joins;
+  private final boolean[] forks;
+  private final boolean[] eventBasedGateways;
+
+  private final SyntheticHistoricActivityInstance[] syntheticHistoricActivityInstances;
+
+  private final String versionKey;
+
+  /**
+   * Returns cached graph
+   *
+   * @param processDefinitionId
+   * @return graph or null if it is not built yet
+   */
+  public static ProcessDefinitionGraph get(String processDefinitionId) {
+    return graphs.get(processDefinitionId);
+  }
+
+  /**
+   * Returns cached graph or builds a new one
+   *
+   * @param processDefinition
+   * @return
+   */
+  public static ProcessDefinitionGraph get(ProcessDefinitionEntity processDefinition) {
+    ProcessDefinitionGraph graph = graphs.get(processDefinition.getId());
+    if (graph == null) {
+      // concurrent builds of the same graph are equal, the last one is cached
+      graph = new ProcessDefinitionGraph(processDefinition);
+      graphs.put(processDefinition.getId(), graph);
+    }
+    return graph;
+  }
+
+  /**
+   * Removes cached graph of a deleted process definition
+   *
+   * @param processDefinitionId
+   */
+  public static void remove(String processDefinitionId) {
+    graphs.remove(processDefinitionId);
+  }
+
+  public static void clear() {
+    graphs.clear();
+  }
+
+  private ProcessDefinitionGraph(ProcessDefinitionEntity processDefinition) {
+    this.processDefinitionId = processDefinition.getId();
+
+    // activities in depth-first order, nested activities follow their parent
+    List<ActivityImpl> activityList = new ArrayList<ActivityImpl>();
+    collectActivities(processDefinition.getActivities(), activityList);
+    int activityCount = activityList.size();
+
+    activities = activityList.toArray(new ActivityImpl[activityCount]);
+    activityTypes = new String[activityCount];
+    Map<String, Integer> ordinals = new HashMap<String, Integer>();
+    for (int i = 0; i < activityCount; i++) {
+      activityTypes[i] = (String) activities[i].getProperty("type");
+      ordinals.put(activities[i].getId(), i);
+    }
+    activityOrdinals = Collections.unmodifiableMap(ordinals);
+
+    List<PvmTransition> transitionList = new ArrayList<PvmTransition>();
+    for (ActivityImpl activity : activities) {
+      transitionList.addAll(activity.getOutgoingTransitions());
+    }
+    int transitionCount = transitionList.size();
+    transitions = transitionList.toArray(new PvmTransition[transitionCount]);
+    transitionSources = new int[transitionCount];
+    transitionDestinations = new int[transitionCount];
+    Map<String, Integer> flowOrdinals = new HashMap<String, Integer>();
+    for (int i = 0; i < transitionCount; i++) {
+      transitionSources[i] = getActivityOrdinal(transitions[i].getSource().getId());
+      transitionDestinations[i] = getActivityOrdinal(transitions[i].getDestination().getId());
+      if (transitions[i].getId() != null) {
+        flowOrdinals.put(transitions[i].getId(), i);
+      }
+    }
+    transitionOrdinals = Collections.unmodifiableMap(flowOrdinals);
+
+    // transitions were collected by source activity, so outgoing adjacency
+    // is a plain running offset; incoming adjacency keeps the order of
+    // ActivityImpl.getIncomingTransitions()
+    Map<PvmTransition, Integer> transitionIndex = new IdentityHashMap<PvmTransition, Integer>();
+    for (int i = 0; i < transitionCount; i++) {
+      transitionIndex.put(transitions[i], i);
+    }
+    outgoingOffsets = new int[activityCount + 1];
+    outgoing = new int[transitionCount];
+    incomingOffsets = new int[activityCount + 1];
+    List<Integer> incomingList = new ArrayList<Integer>(transitionCount);
+    int outgoingPosition = 0;
+    for (int i = 0; i < activityCount; i++) {
+      outgoingOffsets[i] = outgoingPosition;
+      for (int j = 0; j < activities[i].getOutgoingTransitions().size(); j++) {
+        outgoing[outgoingPosition] = outgoingPosition;
+        outgoingPosition++;
+      }
+      incomingOffsets[i] = incomingList.size();
+      for (PvmTransition incomingTransition : activities[i].getIncomingTransitions()) {
+        Integer transition = transitionIndex.get(incomingTransition);
+        if (transition != null) {
+          incomingList.add(transition);
+        }
+      }
+    }
+    outgoingOffsets[activityCount] = outgoingPosition;
+    incomingOffsets[activityCount] = incomingList.size();
+    incoming = toArray(incomingList);
+
+    childOffsets = new int[activityCount + 1];
+    List<Integer> childList = new ArrayList<Integer>();
+    for (int i = 0; i < activityCount; i++) {
+      childOffsets[i] = childList.size();
+      for (ActivityImpl child : activities[i].getActivities()) {
+        childList.add(getActivityOrdinal(child.getId()));
+      }
+    }
+    childOffsets[activityCount] = childList.size();
+    children = toArray(childList);
+
+    initialActivities = new int[activityCount];
+    joins = new boolean[activityCount];
+    forks = new boolean[activityCount];
+    eventBasedGateways = new boolean[activityCount];
+    for (int i = 0; i < activityCount; i++) {
+      ActivityImpl initial = (ActivityImpl) activities[i].getProperty("initial");
+      initialActivities[i] = (initial != null) ? getActivityOrdinal(initial.getId()) : -1;
+      boolean gateway = "parallelGateway".equals(activityTypes[i]) || "inclusiveGateway".equals(activityTypes[i]);
+      joins[i] = gateway && getIncomingCount(i) > 1;
+      forks[i] = gateway && getOutgoingCount(i) > 1;
+      eventBasedGateways[i] = "eventBasedGateway".equals(activityTypes[i]);
+    }
+
+    syntheticHistoricActivityInstances = new SyntheticHistoricActivityInstance[activityCount];
+    for (int i = 0; i < activityCount; i++) {
+      syntheticHistoricActivityInstances[i] = new SyntheticHistoricActivityInstance(activities[i]);
+    }
+
+    int ordinalsHash = 1;
+    for (ActivityImpl activity : activities) {
+      ordinalsHash = 31 * ordinalsHash + activity.getId().hashCode();
+    }
+    for (PvmTransition transition : transitions) {
+      ordinalsHash = 31 * ordinalsHash + (transition.getId() != null ? transition.getId().hashCode() : 0);
+    }
+    versionKey = processDefinitionId + "#" + Integer.toHexString(ordinalsHash);
+  }
+
+  private static void collectActivities(List<ActivityImpl> activities, List<ActivityImpl> result) {
+    for (ActivityImpl activity : activities) {
+      result.add(activity);
+      collectActivities(activity.getActivities(), result);
+    }
+  }
+
+  private static int[] toArray(List<Integer> list) {
+    int[] array = new int[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i);
+    }
+    return array;
+  }
+
+  public String getProcessDefinitionId() {
+    return processDefinitionId;
+  }
+
+  /**
+   * Key of the definition and its ordinal assignment. Bitsets built against
+   * the graph can be expanded only with ids of a graph with the same key.
+   *
+   * @return
+   */
+  public String getVersionKey() {
+    return versionKey;
+  }
+
+  public int getActivityCount() {
+    return activities.length;
+  }
+
+  /**
+   * @param activityId
+   * @return activity ordinal or -1 if definition has no such activity
+   */
+  public int getActivityOrdinal(String activityId) {
+    Integer ordinal = activityOrdinals.get(activityId);
+    return (ordinal != null) ? ordinal : -1;
+  }
+
+  public ActivityImpl getActivity(int activity) {
+    return activities[activity];
+  }
+
+  public String getActivityId(int activity) {
+    return activities[activity].getId();
+  }
+
+  public String getActivityType(int activity) {
+    return activityTypes[activity];
+  }
+
+  public int getTransitionCount() {
+    return transitions.length;
+  }
+
+  /**
+   * @param transitionId
+   * @return transition ordinal or -1 if definition has no such transition
+   */
+  public int getTransitionOrdinal(String transitionId) {
+    Integer ordinal = transitionOrdinals.get(transitionId);
+    return (ordinal != null) ? ordinal : -1;
+  }
+
+  public PvmTransition getTransition(int transition) {
+    return transitions[transition];
+  }
+
+  public int getTransitionSource(int transition) {
+    return transitionSources[transition];
+  }
+
+  public int getTransitionDestination(int transition) {
+    return transitionDestinations[transition];
+  }
+
+  public int getOutgoingCount(int activity) {
+    return outgoingOffsets[activity + 1] - outgoingOffsets[activity];
+  }
+
+  /**
+   * @param activity
+   * @param index from 0 to {@link #getOutgoingCount(int)}
+   * @return transition ordinal
+   */
+  public int getOutgoingTransition(int activity, int index) {
+    return outgoing[outgoingOffsets[activity] + index];
+  }
+
+  public int getIncomingCount(int activity) {
+    return incomingOffsets[activity + 1] - incomingOffsets[activity];
+  }
+
+  /**
+   * @param activity
+   * @param index from 0 to {@link #getIncomingCount(int)}
+   * @return transition ordinal
+   */
+  public int getIncomingTransition(int activity, int index) {
+    return incoming[incomingOffsets[activity] + index];
+  }
+
+  public int getChildCount(int activity) {
+    return childOffsets[activity + 1] - childOffsets[activity];
+  }
+
+  /**
+   * @param activity
+   * @param index from 0 to {@link #getChildCount(int)}
+   * @return child activity ordinal
+   */
+  public int getChild(int activity, int index) {
+    return children[childOffsets[activity] + index];
+  }
+
+  /**
+   * @param activity
+   * @return ordinal of initial activity of a scope (i.e. subprocess start event) or -1
+   */
+  public int getInitialActivity(int activity) {
+    return initialActivities[activity];
+  }
+
+  /**
+   * @return true for parallel and inclusive gateways with more than one incoming transition
+   */
+  public boolean isJoin(int activity) {
+    return joins[activity];
+  }
+
+  /**
+   * @return true for parallel and inclusive gateways with more than one outgoing transition
+   */
+  public boolean isFork(int activity) {
+    return forks[activity];
+  }
+
+  public boolean isEventBasedGateway(int activity) {
+    return eventBasedGateways[activity];
+  }
+
+  /**
+   * @param activity
+   * @return shared fictive historic activity instance of the activity
+   */
+  public HistoricActivityInstance getSyntheticHistoricActivityInstance(int activity) {
+    return syntheticHistoricActivityInstances[activity];
+  }
+}
@@ -0,0 +1,54 @@
+package org.activiti.pm;
+
+import java.io.Serializable;
+
+/**
+ * Ordinal to id map of a process definition graph, used to expand
+ * {@link ProcessInstanceBitsets}. It changes only with the version key, so
+ * clients cache it once per definition.
+ *
+ * @author Dmitry Farafonov
+ */
+public class ProcessDefinitionGraphMap implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final String processDefinitionId;
+  private final String versionKey;
+  private final String[] activityIds;
+  private final String[] flowIds;
+
+  public ProcessDefinitionGraphMap(ProcessDefinitionGraph graph) {
+    this.processDefinitionId = graph.getProcessDefinitionId();
+    this.versionKey = graph.getVersionKey();
+    this.activityIds = new String[graph.getActivityCount()];
+    for (int i = 0; i < activityIds.length; i++) {
+      activityIds[i] = graph.getActivityId(i);
+    }
+    this.flowIds = new String[graph.getTransitionCount()];
+    for (int i = 0; i < flowIds.length; i++) {
+      flowIds[i] = graph.getTransition(i).getId();
+    }
+  }
+
+  public String getProcessDefinitionId() {
+    return processDefinitionId;
+  }
+
+  public String getVersionKey() {
+    return versionKey;
+  }
+
+  /**
+   * @return activity ids by activity ordinal
+   */
+  public String[] getActivityIds() {
+    return activityIds;
+  }
+
+  /**
+   * @return sequence flow ids by transition ordinal
+   */
+  public String[] getFlowIds() {
+    return flowIds;
+  }
+}
@@ -0,0 +1,49 @@
+package org.activiti.pm;
+
+import java.io.Serializable;
+
+import org.activiti.engine.repository.ProcessDefinition;
+
+/**
+ * Immutable metadata of a process definition needed to render process
+ * instance rows
+ *
+ * @author Dmitry Farafonov
+ */
+public class ProcessDefinitionMetadata implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final String id;
+  private final String key;
+  private final String name;
+  private final int version;
+  private final String tenantId;
+
+  public ProcessDefinitionMetadata(ProcessDefinition processDefinition) {
+    this.id = processDefinition.getId();
+    this.key = processDefinition.getKey();
+    this.name = processDefinition.getName();
+    this.version = processDefinition.getVersion();
+    this.tenantId = processDefinition.getTenantId();
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public String getTenantId() {
+    return tenantId;
+  }
+}
@@ -0,0 +1,129 @@
+package org.activiti.pm;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+
+import org.activiti.engine.RepositoryService;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.delegate.event.ActivitiEntityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.impl.persistence.entity.DeploymentEntity;
+import org.activiti.engine.impl.persistence.entity.ProcessDefinitionEntity;
+import org.activiti.engine.repository.ProcessDefinition;
+import org.activiti.pm.util.BoundedCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded cache of process definition metadata. Definitions of a page are
+ * resolved with one query for all ids missing in the cache. Entries and cached
+ * {@link ProcessDefinitionGraph}s are invalidated by deployment and process
+ * definition entity events.
+ *
+ * @author Dmitry Farafonov
+ */
+@Component
+public class ProcessDefinitionMetadataCache implements ActivitiEventListener {
+  private static Logger logger = LoggerFactory.getLogger(ProcessDefinitionMetadataCache.class);
+
+  @Autowired
+  protected Environment environment;
+
+  @Autowired
+  protected RepositoryService repositoryService;
+
+  @Autowired
+  protected RuntimeService runtimeService;
+
+  private BoundedCache<String, ProcessDefinitionMetadata> cache;
+
+  @PostConstruct
+  public void init() {
+    int maxEntries = environment.getProperty("processmanager.cache.definitions.maxEntries", Integer.class, 1000);
+    cache = new BoundedCache<String, ProcessDefinitionMetadata>(maxEntries);
+    runtimeService.addEventListener(this, ActivitiEventType.ENTITY_CREATED, ActivitiEventType.ENTITY_UPDATED,
+        ActivitiEventType.ENTITY_DELETED);
+  }
+
+  /**
+   * @param processDefinitionId
+   * @return metadata or null if process definition does not exist
+   */
+  public ProcessDefinitionMetadata get(String processDefinitionId) {
+    ProcessDefinitionMetadata metadata = cache.get(processDefinitionId);
+    if (metadata == null) {
+      ProcessDefinition processDefinition = repositoryService.createProcessDefinitionQuery()
+          .processDefinitionId(processDefinitionId).singleResult();
+      if (processDefinition != null) {
+        metadata = new ProcessDefinitionMetadata(processDefinition);
+        cache.put(processDefinitionId, metadata);
+      }
+    }
+    return metadata;
+  }
+
+  /**
+   * Returns metadata of the process definitions, definitions missing in the
+   * cache are read with one query
+   *
+   * @param processDefinitionIds
+   * @return metadata by process definition id, without not existing definitions
+   */
+  public Map<String, ProcessDefinitionMetadata> getAll(Collection<String> processDefinitionIds) {
+    Map<String, ProcessDefinitionMetadata> result = new HashMap<String, ProcessDefinitionMetadata>();
+    Set<String> missingIds = new HashSet<String>();
+    for (String processDefinitionId : processDefinitionIds) {
+      if (processDefinitionId == null || result.containsKey(processDefinitionId)) {
+        continue;
+      }
+      ProcessDefinitionMetadata metadata = cache.get(processDefinitionId);
+      if (metadata != null) {
+        result.put(processDefinitionId, metadata);
+      } else {
+        missingIds.add(processDefinitionId);
+      }
+    }
+    if (!missingIds.isEmpty()) {
+      for (ProcessDefinition processDefinition : repositoryService.createProcessDefinitionQuery()
+          .processDefinitionIds(missingIds).list()) {
+        ProcessDefinitionMetadata metadata = new ProcessDefinitionMetadata(processDefinition);
+        cache.put(processDefinition.getId(), metadata);
+        result.put(processDefinition.getId(), metadata);
+      }
+    }
+    return result;
+  }
+
+  public void clear() {
+    cache.clear();
+  }
+
+  @Override
+  public void onEvent(ActivitiEvent event) {
+    Object entity = ((ActivitiEntityEvent) event).getEntity();
+    if (entity instanceof ProcessDefinitionEntity) {
+      cache.remove(((ProcessDefinitionEntity) entity).getId());
+      ProcessDefinitionGraph.remove(((ProcessDefinitionEntity) entity).getId());
+    } else if (entity instanceof DeploymentEntity) {
+      // a deployment adds or removes many definitions
+      cache.clear();
+      ProcessDefinitionGraph.clear();
+      logger.debug("Process definition cache is cleared by deployment " + ((DeploymentEntity) entity).getId());
+    }
+  }
+
+  @Override
+  public boolean isFailOnException() {
+    return false;
+  }
+}
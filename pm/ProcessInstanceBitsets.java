@@ -0,0 +1,82 @@
+package org.activiti.pm;
+
+import java.io.Serializable;
+import java.util.BitSet;
+
+import com.fasterxml.jackson.core.Base64Variants;
+
+/**
+ * Compact form of highlighted flows and activities of a process instance. Each
+ * field is a base64 encoded bitset of ordinals of the process definition graph
+ * identified by {@link #getVersionKey()}: bit <code>i</code> is
+ * <code>(bytes[i / 8] >> (i % 8)) & 1</code>. Ids are expanded on the client
+ * side using {@link ProcessDefinitionGraphMap} with the same version key.
+ *
+ * @author Dmitry Farafonov
+ */
+public class ProcessInstanceBitsets implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private String processInstanceId;
+  private String versionKey;
+  private String highLightedFlows;
+  private String activities;
+  private String activeActivities;
+
+  public String getProcessInstanceId() {
+    return processInstanceId;
+  }
+
+  public void setProcessInstanceId(String processInstanceId) {
+    this.processInstanceId = processInstanceId;
+  }
+
+  public String getVersionKey() {
+    return versionKey;
+  }
+
+  public void setVersionKey(String versionKey) {
+    this.versionKey = versionKey;
+  }
+
+  /**
+   * @return visited sequence flows by transition ordinal
+   */
+  public String getHighLightedFlows() {
+    return highLightedFlows;
+  }
+
+  public void setHighLightedFlows(String highLightedFlows) {
+    this.highLightedFlows = highLightedFlows;
+  }
+
+  /**
+   * @return visited activities by activity ordinal
+   */
+  public String getActivities() {
+    return activities;
+  }
+
+  public void setActivities(String activities) {
+    this.activities = activities;
+  }
+
+  /**
+   * @return active activities by activity ordinal
+   */
+  public String getActiveActivities() {
+    return activeActivities;
+  }
+
+  public void setActiveActivities(String activeActivities) {
+    this.activeActivities = activeActivities;
+  }
+
+  public static String encode(BitSet bitSet) {
+    return Base64Variants.MIME_NO_LINEFEEDS.encode(bitSet.toByteArray());
+  }
+
+  public static BitSet decode(String value) {
+    return BitSet.valueOf(Base64Variants.MIME_NO_LINEFEEDS.decode(value));
+  }
+}
@@ -0,0 +1,120 @@
+package org.activiti.pm;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.activiti.engine.history.HistoricProcessInstance;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * All data of the process detail page in one document. Parts are loaded
+ * independently, each part has its own timing and status, so a failed or
+ * timed out part does not hide the others.
+ *
+ * @author Dmitry Farafonov
+ */
+public class ProcessInstanceDetail implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public static final String TREE = "tree";
+  public static final String HIGH_LIGHTED_FLOWS = "highLightedFlows";
+  public static final String ACTIVE_ACTIVITY_IDS = "activeActivityIds";
+  public static final String JOBS = "jobs";
+  public static final String VARIABLES = "variables";
+  public static final String COMMENTS = "comments";
+
+  public enum PartStatus {
+    OK, FAILED, TIMEOUT
+  }
+
+  private String processInstanceId;
+  @JsonIgnoreProperties({"persistentState"})
+  private HistoricProcessInstance processInstance;
+  private long durationInMillis;
+  private Map<String, Part> parts = new LinkedHashMap<String, Part>();
+
+  public String getProcessInstanceId() {
+    return processInstanceId;
+  }
+
+  public void setProcessInstanceId(String processInstanceId) {
+    this.processInstanceId = processInstanceId;
+  }
+
+  public HistoricProcessInstance getProcessInstance() {
+    return processInstance;
+  }
+
+  public void setProcessInstance(HistoricProcessInstance processInstance) {
+    this.processInstance = processInstance;
+  }
+
+  /**
+   * @return total time of the operation
+   */
+  public long getDurationInMillis() {
+    return durationInMillis;
+  }
+
+  public void setDurationInMillis(long durationInMillis) {
+    this.durationInMillis = durationInMillis;
+  }
+
+  public Map<String, Part> getParts() {
+    return parts;
+  }
+
+  public Part getPart(String name) {
+    return parts.get(name);
+  }
+
+  public void addPart(String name, Part part) {
+    parts.put(name, part);
+  }
+
+  /**
+   * @return true if all parts are loaded
+   */
+  public boolean isComplete() {
+    for (Part part : parts.values()) {
+      if (part.getStatus() != PartStatus.OK) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static class Part implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private PartStatus status;
+    private Object value;
+    private long durationInMillis;
+    private String error;
+
+    public Part(PartStatus status, Object value, long durationInMillis, String error) {
+      this.status = status;
+      this.value = value;
+      this.durationInMillis = durationInMillis;
+      this.error = error;
+    }
+
+    public PartStatus getStatus() {
+      return status;
+    }
+
+    public Object getValue() {
+      return value;
+    }
+
+    public long getDurationInMillis() {
+      return durationInMillis;
+    }
+
+    public String getError() {
+      return error;
+    }
+  }
+}
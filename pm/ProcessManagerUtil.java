@@ -1,25 +1,35 @@
 package org.activiti.pm;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
+import org.activiti.engine.ActivitiIllegalArgumentException;
 import org.activiti.pm.filter.HistoricProcessInstanceFilterResource;
 import org.activiti.pm.filter.ProcessInstanceFilterResource;
+import org.activiti.pm.index.FacetCounts;
+import org.activiti.pm.index.HistoricProcessInstanceFacetIndex;
 import org.activiti.pm.request.AbstractFilterResource;
 import org.activiti.pm.request.DataResponse;
+import org.activiti.pm.request.ExportWriter;
 import org.activiti.pm.request.HistoricProcessInstanceQueryRequest;
+import org.activiti.pm.request.KeysetQuery;
 import org.activiti.pm.request.ProcessInstanceQueryRequest;
 import org.activiti.pm.request.QueryRequest;
+import org.activiti.pm.request.RequestUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -33,16 +43,17 @@ public class ProcessManagerUtil {
   @Autowired
   HistoricProcessInstanceFilterResource historicProcessInstanceFilterResource;
 
+  @Autowired
+  HistoricProcessInstanceFacetIndex historicProcessInstanceFacetIndex;
+
   @Autowired
   PmI18nManager pmI18nManager;
 
   private ObjectMapper mapper = new ObjectMapper();
-  private static final DateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
 
   private static ProcessManagerUtil processManagerUtil = new ProcessManagerUtil();
 
   public ProcessManagerUtil() {
-    // mapper.setDateFormat(simpleDateFormat);
     mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
   }
 
@@ -100,6 +111,104 @@ public class ProcessManagerUtil {
     return filterResource.getFilteredList(queryRequest, allRequestParams);
   }
 
+  /**
+   * Streams all rows of the filter of the request to the response as NDJSON or
+   * CSV (param 'format'). Response is compressed if param 'gzip' is true or the
+   * client accepts gzip encoding.
+   *
+   * @param request
+   * @param response
+   * @throws IOException
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void export(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    Map<String, String> allRequestParams = getRequestParameters(request);
+
+    QueryRequest queryRequest = getFilterFromRequest(request);
+
+    AbstractFilterResource filterResource = (queryRequest instanceof HistoricProcessInstanceQueryRequest)
+        ? getHistoricProcessInstanceFilterResource()
+        : getProcessInstanceFilterResource();
+
+    // an invalid format, sort or order is reported before any header of the
+    // export is set
+    String format = allRequestParams.get("format");
+    ExportWriter.checkFormat(format);
+    KeysetQuery keysetQuery = filterResource.checkExport(queryRequest, allRequestParams);
+    boolean gzip = RequestUtil.getBoolean(allRequestParams, "gzip", false)
+        || acceptsGzip(request.getHeader("Accept-Encoding"));
+
+    response.setHeader("Vary", "Accept-Encoding");
+    OutputStream out = response.getOutputStream();
+    GZIPOutputStream gzipOut = null;
+    if (gzip) {
+      response.setHeader("Content-Encoding", "gzip");
+      gzipOut = new GZIPOutputStream(out, 8192);
+      out = gzipOut;
+    }
+    ExportWriter writer = filterResource.createExportWriter(queryRequest, format, out, mapper);
+    response.setContentType(writer.getContentType());
+    response.setHeader("Content-Disposition", "attachment; filename=\"process-instances." + writer.getFileExtension() + "\"");
+
+    long count = filterResource.export(keysetQuery, queryRequest, allRequestParams, writer);
+    if (gzipOut != null) {
+      gzipOut.finish();
+    }
+    out.flush();
+    logger.debug("Exported " + count + " process instances");
+  }
+
+  /**
+   * @param acceptEncoding value of the Accept-Encoding header or null
+   * @return true if gzip is listed without a zero quality value
+   */
+  private static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      if (!"gzip".equalsIgnoreCase(name) && !"x-gzip".equalsIgnoreCase(name)) {
+        continue;
+      }
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim();
+        if (parameter.startsWith("q=")) {
+          try {
+            return Double.parseDouble(parameter.substring(2).trim()) > 0;
+          } catch (NumberFormatException e) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns counts of historic process instances by facet for the facet filter
+   * of the request (param 'facets'), e.g.
+   * <code>{"definitionKey":["order","invoice"],"finished":["false"]}</code>
+   *
+   * @param request
+   * @return
+   */
+  public FacetCounts getFacetCounts(HttpServletRequest request) {
+    String facets = getRequestParameters(request).get("facets");
+    Map<String, List<String>> filter = null;
+    if (facets != null) {
+      try {
+        filter = mapper.readValue(facets, new TypeReference<Map<String, List<String>>>() {
+        });
+      } catch (IOException e) {
+        throw new ActivitiIllegalArgumentException("Can not convert facet filter " + facets, e);
+      }
+    }
+    return historicProcessInstanceFacetIndex.getCounts(filter);
+  }
+
   private AbstractFilterResource<?> getHistoricProcessInstanceFilterResource() {
     return historicProcessInstanceFilterResource;
   }
@@ -0,0 +1,96 @@
+package org.activiti.pm;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import org.activiti.engine.history.HistoricActivityInstance;
+import org.activiti.engine.impl.pvm.process.ActivityImpl;
+
+/**
+ * Immutable fictive historic activity instance for activities which are not
+ * recorded in history, i.e. subprocess start event or event of event based
+ * gateway. It has only activity data, so one instance per activity of a process
+ * definition is shared by all process instances.
+ *
+ * @author Dmitry Farafonov
+ */
+public class SyntheticHistoricActivityInstance implements HistoricActivityInstance, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final String activityId;
+  private final String activityName;
+  private final String activityType;
+  private final String processDefinitionId;
+
+  public SyntheticHistoricActivityInstance(ActivityImpl activity) {
+    this.activityId = activity.getId();
+    this.activityName = (String) activity.getProperty("name");
+    this.activityType = (String) activity.getProperty("type");
+    this.processDefinitionId = activity.getProcessDefinition().getId();
+  }
+
+  public String getId() {
+    return null;
+  }
+
+  public String getActivityId() {
+    return activityId;
+  }
+
+  public String getActivityName() {
+    return activityName;
+  }
+
+  public String getActivityType() {
+    return activityType;
+  }
+
+  public String getProcessDefinitionId() {
+    return processDefinitionId;
+  }
+
+  public String getProcessInstanceId() {
+    return null;
+  }
+
+  public String getExecutionId() {
+    return null;
+  }
+
+  public String getTaskId() {
+    return null;
+  }
+
+  public String getCalledProcessInstanceId() {
+    return null;
+  }
+
+  public String getAssignee() {
+    return null;
+  }
+
+  public Date getStartTime() {
+    return null;
+  }
+
+  public Date getEndTime() {
+    return null;
+  }
+
+  public Long getDurationInMillis() {
+    return null;
+  }
+
+  public String getTenantId() {
+    return null;
+  }
+
+  public Date getTime() {
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return "SyntheticHistoricActivityInstance[activityId=" + activityId + ", activityType=" + activityType + "]";
+  }
+}
@@ -0,0 +1,348 @@
+package org.activiti.pm.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.activiti.engine.ActivitiException;
+
+/**
+ * Read-only segment of archived process instances: columns of process instance
+ * fields, of their activity instances and of their variables, in a memory
+ * mapped file. The footer keeps ranges of start and end times, so a filter on
+ * times skips segments without reading any column. Columns are inflated when
+ * they are first read and kept while memory allows.
+ *
+ * Activity instance and variable rows are ordered by the row of their process
+ * instance, column {@link #ACTIVITY_ROW} or {@link #VARIABLE_ROW}.
+ *
+ * @author Dmitry Farafonov
+ */
+public class ArchiveSegment {
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+  static final int MAGIC = 0x504d5347;
+  static final int FORMAT_VERSION = 1;
+
+  public static final long NULL_LONG = Long.MIN_VALUE;
+
+  public static final String ID = "pi.id";
+  public static final String PROCESS_DEFINITION_ID = "pi.processDefinitionId";
+  public static final String BUSINESS_KEY = "pi.businessKey";
+  public static final String START_USER_ID = "pi.startUserId";
+  public static final String START_ACTIVITY_ID = "pi.startActivityId";
+  public static final String END_ACTIVITY_ID = "pi.endActivityId";
+  public static final String SUPER_PROCESS_INSTANCE_ID = "pi.superProcessInstanceId";
+  public static final String DELETE_REASON = "pi.deleteReason";
+  public static final String TENANT_ID = "pi.tenantId";
+  /** user ids of identity links, separated by new line */
+  public static final String INVOLVED_USERS = "pi.involvedUsers";
+  public static final String START_TIME = "pi.startTime";
+  public static final String END_TIME = "pi.endTime";
+  public static final String DURATION = "pi.duration";
+
+  public static final String ACTIVITY_ROW = "act.row";
+  public static final String ACTIVITY_INSTANCE_ID = "act.id";
+  public static final String ACTIVITY_ID = "act.activityId";
+  public static final String ACTIVITY_NAME = "act.activityName";
+  public static final String ACTIVITY_TYPE = "act.activityType";
+  public static final String ACTIVITY_EXECUTION_ID = "act.executionId";
+  public static final String ACTIVITY_TASK_ID = "act.taskId";
+  public static final String ACTIVITY_CALLED_PROCESS_INSTANCE_ID = "act.calledProcessInstanceId";
+  public static final String ACTIVITY_ASSIGNEE = "act.assignee";
+  public static final String ACTIVITY_START_TIME = "act.startTime";
+  public static final String ACTIVITY_END_TIME = "act.endTime";
+  public static final String ACTIVITY_DURATION = "act.duration";
+
+  public static final String VARIABLE_ROW = "var.row";
+  /** id of the archived row of the historic variable instance table */
+  public static final String VARIABLE_INSTANCE_ID = "var.id";
+  public static final String VARIABLE_NAME = "var.name";
+  /** engine type name: string, long, integer, short, boolean, date, double or null */
+  public static final String VARIABLE_TYPE = "var.type";
+  public static final String VARIABLE_TEXT = "var.text";
+  public static final String VARIABLE_LONG = "var.long";
+  public static final String VARIABLE_DOUBLE = "var.double";
+
+  /**
+   * Dictionary encoded column of strings
+   */
+  public static final class StringColumn {
+    private final String[] dictionary;
+    private final int[] codes;
+    private volatile Map<String, Integer> codesByValue;
+
+    StringColumn(String[] dictionary, int[] codes) {
+      this.dictionary = dictionary;
+      this.codes = codes;
+    }
+
+    public String get(int row) {
+      int code = codes[row];
+      return (code < 0) ? null : dictionary[code];
+    }
+
+    /**
+     * @param row
+     * @return code of the value of the row, -1 for null
+     */
+    public int getCode(int row) {
+      return codes[row];
+    }
+
+    /**
+     * @param value
+     * @return code of the value or -2 if no row has the value, so rows are
+     *         compared by codes
+     */
+    public int getCode(String value) {
+      if (value == null) {
+        return -1;
+      }
+      Map<String, Integer> map = codesByValue;
+      if (map == null) {
+        map = new HashMap<String, Integer>(dictionary.length * 4 / 3 + 16);
+        for (int i = 0; i < dictionary.length; i++) {
+          map.put(dictionary[i], i);
+        }
+        codesByValue = map;
+      }
+      Integer code = map.get(value);
+      return (code != null) ? code : -2;
+    }
+
+    public int size() {
+      return codes.length;
+    }
+
+    /**
+     * @return number of distinct values, codes are from 0 to this size
+     */
+    public int getDictionarySize() {
+      return dictionary.length;
+    }
+
+    public String getDictionaryValue(int code) {
+      return dictionary[code];
+    }
+  }
+
+  private final File file;
+  private final MappedByteBuffer buffer;
+  private final int rowCount;
+  private final long minStartTime;
+  private final long maxStartTime;
+  private final long minEndTime;
+  private final long maxEndTime;
+  private final Map<String, long[]> directory = new HashMap<String, long[]>();
+  private final ConcurrentMap<String, SoftReference<Object>> decodedColumns = new ConcurrentHashMap<String, SoftReference<Object>>();
+
+  private ArchiveSegment(File file, MappedByteBuffer buffer) {
+    this.file = file;
+    this.buffer = buffer;
+    ByteBuffer footer = buffer.duplicate();
+    footer.position((int) footer.getLong(buffer.capacity() - 8));
+    if (footer.getInt() != MAGIC || footer.getInt() != FORMAT_VERSION) {
+      throw new ActivitiException("File " + file + " is not an archive segment of version " + FORMAT_VERSION);
+    }
+    rowCount = footer.getInt();
+    minStartTime = footer.getLong();
+    maxStartTime = footer.getLong();
+    minEndTime = footer.getLong();
+    maxEndTime = footer.getLong();
+    int columnCount = footer.getInt();
+    for (int i = 0; i < columnCount; i++) {
+      byte[] name = new byte[footer.getShort() & 0xFFFF];
+      footer.get(name);
+      directory.put(new String(name, UTF8), new long[] { footer.getLong(), footer.getInt(), footer.getInt() });
+    }
+  }
+
+  /**
+   * Maps the segment file to memory
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static ArchiveSegment open(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      return new ArchiveSegment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      // the mapping stays valid after the channel is closed
+      randomAccessFile.close();
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * Returns false if no process instance of the segment started and ended in
+   * the ranges, bounds are inclusive and null if not limited
+   */
+  public boolean overlaps(Date startedAfter, Date startedBefore, Date finishedAfter, Date finishedBefore) {
+    if (startedAfter != null && maxStartTime < startedAfter.getTime()) {
+      return false;
+    }
+    if (startedBefore != null && minStartTime > startedBefore.getTime()) {
+      return false;
+    }
+    if (finishedAfter != null && maxEndTime < finishedAfter.getTime()) {
+      return false;
+    }
+    if (finishedBefore != null && minEndTime > finishedBefore.getTime()) {
+      return false;
+    }
+    return true;
+  }
+
+  public StringColumn getStrings(String name) {
+    Object column = getDecoded(name);
+    if (column == null) {
+      try {
+        DataInputStream in = inflate(name);
+        String[] dictionary = new String[in.readInt()];
+        for (int i = 0; i < dictionary.length; i++) {
+          byte[] utf8 = new byte[(int) readVarLong(in)];
+          in.readFully(utf8);
+          dictionary[i] = new String(utf8, UTF8);
+        }
+        int[] codes = new int[in.readInt()];
+        for (int i = 0; i < codes.length; i++) {
+          codes[i] = (int) readVarLong(in) - 1;
+        }
+        column = new StringColumn(dictionary, codes);
+      } catch (IOException e) {
+        throw new ActivitiException("Can not read column " + name + " of archive segment " + file, e);
+      }
+      decodedColumns.put(name, new SoftReference<Object>(column));
+    }
+    return (StringColumn) column;
+  }
+
+  /**
+   * @param name
+   * @return values, {@link #NULL_LONG} for null
+   */
+  public long[] getLongs(String name) {
+    Object column = getDecoded(name);
+    if (column == null) {
+      try {
+        DataInputStream in = inflate(name);
+        long[] values = new long[in.readInt()];
+        long previous = 0;
+        for (int i = 0; i < values.length; i++) {
+          if (in.readByte() == 0) {
+            values[i] = NULL_LONG;
+          } else {
+            long zigZag = readVarLong(in);
+            previous += (zigZag >>> 1) ^ -(zigZag & 1);
+            values[i] = previous;
+          }
+        }
+        column = values;
+      } catch (IOException e) {
+        throw new ActivitiException("Can not read column " + name + " of archive segment " + file, e);
+      }
+      decodedColumns.put(name, new SoftReference<Object>(column));
+    }
+    return (long[]) column;
+  }
+
+  /**
+   * Returns the first row of every process instance in a column of rows ordered
+   * by process instance row
+   *
+   * @param rowColumn
+   *          {@link #ACTIVITY_ROW} or {@link #VARIABLE_ROW}
+   * @return array of {@link #getRowCount()} + 1 offsets, rows of process
+   *         instance <code>i</code> are from <code>offsets[i]</code> to
+   *         <code>offsets[i + 1]</code>
+   */
+  public int[] getOffsets(String rowColumn) {
+    String name = rowColumn + "#offsets";
+    Object offsets = getDecoded(name);
+    if (offsets == null) {
+      long[] rows = getLongs(rowColumn);
+      int[] result = new int[rowCount + 1];
+      int index = 0;
+      for (int row = 0; row <= rowCount; row++) {
+        while (index < rows.length && rows[index] < row) {
+          index++;
+        }
+        result[row] = index;
+      }
+      offsets = result;
+      decodedColumns.put(name, new SoftReference<Object>(offsets));
+    }
+    return (int[]) offsets;
+  }
+
+  private Object getDecoded(String name) {
+    SoftReference<Object> reference = decodedColumns.get(name);
+    return (reference != null) ? reference.get() : null;
+  }
+
+  private DataInputStream inflate(String name) throws IOException {
+    long[] entry = directory.get(name);
+    if (entry == null) {
+      throw new ActivitiException("Archive segment " + file + " has no column " + name);
+    }
+    byte[] compressed = new byte[(int) entry[1]];
+    ByteBuffer column = buffer.duplicate();
+    column.position((int) entry[0]);
+    column.get(compressed);
+    byte[] raw = new byte[(int) entry[2]];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      int length = 0;
+      while (length < raw.length && !inflater.finished()) {
+        int inflated = inflater.inflate(raw, length, raw.length - length);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Column " + name + " is truncated");
+        }
+        length += inflated;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Column " + name + " is corrupted", e);
+    } finally {
+      inflater.end();
+    }
+    return new DataInputStream(new ByteArrayInputStream(raw));
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = in.readByte();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+}
@@ -0,0 +1,27 @@
+package org.activiti.pm.archive;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.activiti.engine.impl.persistence.entity.HistoricProcessInstanceEntity;
+
+/**
+ * Historic process instance read from an {@link ArchiveSegment}, with its
+ * archived process variables
+ *
+ * @author Dmitry Farafonov
+ */
+public class ArchivedProcessInstance extends HistoricProcessInstanceEntity {
+  private static final long serialVersionUID = 1L;
+
+  private Map<String, Object> archivedVariables = Collections.emptyMap();
+
+  @Override
+  public Map<String, Object> getProcessVariables() {
+    return archivedVariables;
+  }
+
+  public void setArchivedVariables(Map<String, Object> archivedVariables) {
+    this.archivedVariables = archivedVariables;
+  }
+}
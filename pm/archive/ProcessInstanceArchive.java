@@ -0,0 +1,761 @@
+package org.activiti.pm.archive;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.ManagementService;
+import org.activiti.engine.history.HistoricActivityInstance;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.HistoricActivityInstanceEntity;
+import org.activiti.engine.impl.persistence.entity.HistoricIdentityLinkEntity;
+import org.activiti.engine.impl.persistence.entity.HistoricProcessInstanceEntity;
+import org.activiti.engine.impl.persistence.entity.HistoricVariableInstanceEntity;
+import org.activiti.pm.ActivitiUtil;
+import org.activiti.pm.util.NamedThreadFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Archive of process instances ended more than
+ * <code>processmanager.archive.afterDays</code> ago. The archiver moves them
+ * from the history tables to {@link ArchiveSegment} files of up to
+ * <code>processmanager.archive.segmentSize</code> process instances, with their
+ * activity instances, identity link users and variables listed in
+ * <code>processmanager.archive.variables</code> ('*' for all) of simple types.
+ *
+ * A segment is written as a pending file, then the archived rows are deleted
+ * from the process instance, activity instance and variable instance history
+ * tables and the file is renamed and becomes visible. A pending file left by a
+ * crash is completed on startup. Rows which are not archived (task history,
+ * details, comments, attachments, identity links and variables of tasks, of
+ * child executions or of other types) are kept.
+ *
+ * @author Dmitry Farafonov
+ */
+@Component
+public class ProcessInstanceArchive {
+  private static Logger logger = LoggerFactory.getLogger(ProcessInstanceArchive.class);
+
+  private static final String SEGMENT_SUFFIX = ".pmseg";
+  private static final String PENDING_SUFFIX = ".pending";
+  private static final int IN_CLAUSE_CHUNK_SIZE = 500;
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  private static final Set<String> archivedTypes = new LinkedHashSet<String>(Arrays.asList("string", "long",
+      "integer", "short", "boolean", "date", "double", "null"));
+
+  @Autowired
+  protected Environment environment;
+
+  @Autowired
+  protected ManagementService managementService;
+
+  private volatile boolean enabled;
+  private File directory;
+  private int afterDays;
+  private int segmentSize;
+  private Set<String> variableNames;
+  private boolean allVariables;
+
+  private final List<ArchiveSegment> segments = new CopyOnWriteArrayList<ArchiveSegment>();
+  private final Object archiveLock = new Object();
+
+  private ScheduledExecutorService scheduler;
+
+  @PostConstruct
+  public void init() {
+    if (!environment.getProperty("processmanager.archive.enabled", Boolean.class, Boolean.FALSE)) {
+      return;
+    }
+    directory = new File(environment.getProperty("processmanager.archive.dir",
+        new File(System.getProperty("java.io.tmpdir"), "pm-archive").getPath()));
+    afterDays = environment.getProperty("processmanager.archive.afterDays", Integer.class, 90);
+    segmentSize = environment.getProperty("processmanager.archive.segmentSize", Integer.class, 10000);
+    long intervalMinutes = environment.getProperty("processmanager.archive.intervalMinutes", Long.class, 60L);
+    String variables = environment.getProperty("processmanager.archive.variables", "*").trim();
+    allVariables = "*".equals(variables);
+    variableNames = new LinkedHashSet<String>();
+    for (String name : StringUtils.split(variables, ",")) {
+      if (StringUtils.isNotBlank(name)) {
+        variableNames.add(name.trim());
+      }
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new ActivitiException("Can not create archive directory " + directory);
+    }
+
+    completePendingSegments();
+    File[] files = directory.listFiles(new SuffixFilter(SEGMENT_SUFFIX));
+    Arrays.sort(files);
+    for (File file : files) {
+      try {
+        segments.add(ArchiveSegment.open(file));
+      } catch (IOException e) {
+        throw new ActivitiException("Can not open archive segment " + file, e);
+      }
+    }
+    enabled = true;
+    ActivitiUtil.setProcessInstanceArchive(this);
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("pm-archive-"));
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          archive();
+        } catch (RuntimeException e) {
+          logger.error("Can not archive process instances", e);
+        }
+      }
+    }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    logger.info("Process instance archive is enabled, " + segments.size() + " segments in " + directory);
+  }
+
+  @PreDestroy
+  public void destroy() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return live view of visible segments, in the order of archiving
+   */
+  public List<ArchiveSegment> getSegments() {
+    return Collections.unmodifiableList(segments);
+  }
+
+  /**
+   * @param name
+   * @return true if values of the variable are archived
+   */
+  public boolean isVariableArchived(String name) {
+    return allVariables || variableNames.contains(name);
+  }
+
+  /**
+   * Moves all process instances ended before the archive period to segments
+   *
+   * @return number of archived process instances
+   */
+  public int archive() {
+    synchronized (archiveLock) {
+      Date endedBefore = new Date(System.currentTimeMillis() - afterDays * DAY_MILLIS);
+      int archived = 0;
+      while (true) {
+        int count = archiveSegment(endedBefore);
+        archived += count;
+        if (count < segmentSize) {
+          break;
+        }
+      }
+      if (archived > 0) {
+        logger.info("Archived " + archived + " process instances ended before " + endedBefore);
+      }
+      return archived;
+    }
+  }
+
+  private int archiveSegment(final Date endedBefore) {
+    final File pendingFile = newPendingFile();
+    List<String> ids = managementService.executeCommand(new Command<List<String>>() {
+      @Override
+      public List<String> execute(CommandContext commandContext) {
+        Connection connection = commandContext.getDbSqlSession().getSqlSession().getConnection();
+        try {
+          return writeSegment(connection, endedBefore, pendingFile);
+        } catch (SQLException e) {
+          throw new ActivitiException("Can not read process instances to archive", e);
+        } catch (IOException e) {
+          pendingFile.delete();
+          throw new ActivitiException("Can not write archive segment " + pendingFile, e);
+        }
+      }
+    });
+    if (ids.isEmpty()) {
+      return 0;
+    }
+    List<String> variableIds;
+    try {
+      variableIds = getStrings(ArchiveSegment.open(pendingFile), ArchiveSegment.VARIABLE_INSTANCE_ID);
+    } catch (IOException e) {
+      throw new ActivitiException("Can not open archive segment " + pendingFile, e);
+    }
+    File file = completePendingSegment(pendingFile, ids, variableIds);
+    try {
+      segments.add(ArchiveSegment.open(file));
+    } catch (IOException e) {
+      throw new ActivitiException("Can not open archive segment " + file, e);
+    }
+    logger.debug("Archive segment " + file + " is written, " + ids.size() + " process instances");
+    return ids.size();
+  }
+
+  private File newPendingFile() {
+    long timestamp = System.currentTimeMillis();
+    File file;
+    do {
+      file = new File(directory, "segment-" + (timestamp++) + SEGMENT_SUFFIX + PENDING_SUFFIX);
+    } while (file.exists() || new File(directory, file.getName().replace(PENDING_SUFFIX, "")).exists());
+    return file;
+  }
+
+  /**
+   * Deletes archived rows from history and renames the pending file. Rows are
+   * deleted by id, so a segment is completed again after a restart.
+   *
+   * @param ids
+   *          archived process instance ids
+   * @param variableIds
+   *          archived variable instance ids
+   * @return segment file
+   */
+  private File completePendingSegment(File pendingFile, List<String> ids, List<String> variableIds) {
+    deleteRows(managementService.getTableName(HistoricVariableInstanceEntity.class), "ID_", variableIds);
+    deleteRows(managementService.getTableName(HistoricActivityInstanceEntity.class), "PROC_INST_ID_", ids);
+    deleteRows(managementService.getTableName(HistoricProcessInstanceEntity.class), "ID_", ids);
+    File file = new File(directory, pendingFile.getName().replace(PENDING_SUFFIX, ""));
+    if (!pendingFile.renameTo(file)) {
+      throw new ActivitiException("Can not rename " + pendingFile + " to " + file);
+    }
+    return file;
+  }
+
+  /**
+   * Completes segments pending on startup, segments written partially are
+   * deleted
+   */
+  private void completePendingSegments() {
+    File[] pendingFiles = directory.listFiles(new SuffixFilter(SEGMENT_SUFFIX + PENDING_SUFFIX));
+    Arrays.sort(pendingFiles);
+    for (File pendingFile : pendingFiles) {
+      List<String> ids;
+      List<String> variableIds;
+      try {
+        ArchiveSegment segment = ArchiveSegment.open(pendingFile);
+        ids = getStrings(segment, ArchiveSegment.ID);
+        variableIds = getStrings(segment, ArchiveSegment.VARIABLE_INSTANCE_ID);
+      } catch (RuntimeException e) {
+        // written partially, the process instances are still in history
+        logger.warn("Incomplete archive segment " + pendingFile + " is deleted", e);
+        pendingFile.delete();
+        continue;
+      } catch (IOException e) {
+        logger.warn("Incomplete archive segment " + pendingFile + " is deleted", e);
+        pendingFile.delete();
+        continue;
+      }
+      logger.info("Completing archive segment " + pendingFile);
+      completePendingSegment(pendingFile, ids, variableIds);
+    }
+  }
+
+  /**
+   * Deletes rows of the table by values of the column, a transaction per
+   * chunk of values
+   */
+  private void deleteRows(final String table, final String column, List<String> values) {
+    for (int from = 0; from < values.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+      final List<String> chunk = values.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, values.size()));
+      managementService.executeCommand(new Command<Void>() {
+        @Override
+        public Void execute(CommandContext commandContext) {
+          Connection connection = commandContext.getDbSqlSession().getSqlSession().getConnection();
+          try {
+            PreparedStatement statement = prepareIn(connection, "DELETE FROM " + table + " WHERE " + column
+                + " IN ", "", chunk);
+            try {
+              statement.executeUpdate();
+            } finally {
+              statement.close();
+            }
+          } catch (SQLException e) {
+            throw new ActivitiException("Can not delete archived rows of " + table, e);
+          }
+          return null;
+        }
+      });
+    }
+  }
+
+  private static List<String> getStrings(ArchiveSegment segment, String name) {
+    ArchiveSegment.StringColumn column = segment.getStrings(name);
+    List<String> values = new ArrayList<String>(column.size());
+    for (int row = 0; row < column.size(); row++) {
+      values.add(column.get(row));
+    }
+    return values;
+  }
+
+  /**
+   * Reads process instances ended before the date with their activity
+   * instances, involved users and variables and writes them to the file
+   *
+   * @return ids of written process instances
+   */
+  private List<String> writeSegment(Connection connection, Date endedBefore, File file) throws SQLException,
+      IOException {
+    List<String> ids = new ArrayList<String>();
+    List<String> definitionIds = new ArrayList<String>();
+    List<String> businessKeys = new ArrayList<String>();
+    List<String> startUserIds = new ArrayList<String>();
+    List<String> startActivityIds = new ArrayList<String>();
+    List<String> endActivityIds = new ArrayList<String>();
+    List<String> superProcessInstanceIds = new ArrayList<String>();
+    List<String> deleteReasons = new ArrayList<String>();
+    List<String> tenantIds = new ArrayList<String>();
+    List<Long> startTimes = new ArrayList<Long>();
+    List<Long> endTimes = new ArrayList<Long>();
+    List<Long> durations = new ArrayList<Long>();
+
+    PreparedStatement statement = connection.prepareStatement("SELECT RES.ID_, RES.PROC_DEF_ID_, RES.BUSINESS_KEY_,"
+        + " RES.START_USER_ID_, RES.START_ACT_ID_, RES.END_ACT_ID_, RES.SUPER_PROCESS_INSTANCE_ID_,"
+        + " RES.DELETE_REASON_, RES.TENANT_ID_, RES.START_TIME_, RES.END_TIME_, RES.DURATION_ FROM "
+        + managementService.getTableName(HistoricProcessInstanceEntity.class)
+        + " RES WHERE RES.END_TIME_ < ? ORDER BY RES.END_TIME_, RES.ID_");
+    try {
+      statement.setTimestamp(1, new Timestamp(endedBefore.getTime()));
+      statement.setMaxRows(segmentSize);
+      statement.setFetchSize(1000);
+      ResultSet resultSet = statement.executeQuery();
+      while (resultSet.next()) {
+        ids.add(resultSet.getString(1));
+        definitionIds.add(resultSet.getString(2));
+        businessKeys.add(resultSet.getString(3));
+        startUserIds.add(resultSet.getString(4));
+        startActivityIds.add(resultSet.getString(5));
+        endActivityIds.add(resultSet.getString(6));
+        superProcessInstanceIds.add(resultSet.getString(7));
+        deleteReasons.add(resultSet.getString(8));
+        tenantIds.add(resultSet.getString(9));
+        startTimes.add(getTime(resultSet, 10));
+        endTimes.add(getTime(resultSet, 11));
+        long duration = resultSet.getLong(12);
+        durations.add(resultSet.wasNull() ? ArchiveSegment.NULL_LONG : duration);
+      }
+    } finally {
+      statement.close();
+    }
+    if (ids.isEmpty()) {
+      return ids;
+    }
+
+    Map<String, Integer> rows = new HashMap<String, Integer>(ids.size() * 4 / 3 + 16);
+    for (int i = 0; i < ids.size(); i++) {
+      rows.put(ids.get(i), i);
+    }
+    List<String> involvedUsers = readInvolvedUsers(connection, ids, rows);
+
+    SegmentWriter writer = new SegmentWriter();
+    writer.addStrings(ArchiveSegment.ID, ids);
+    writer.addStrings(ArchiveSegment.PROCESS_DEFINITION_ID, definitionIds);
+    writer.addStrings(ArchiveSegment.BUSINESS_KEY, businessKeys);
+    writer.addStrings(ArchiveSegment.START_USER_ID, startUserIds);
+    writer.addStrings(ArchiveSegment.START_ACTIVITY_ID, startActivityIds);
+    writer.addStrings(ArchiveSegment.END_ACTIVITY_ID, endActivityIds);
+    writer.addStrings(ArchiveSegment.SUPER_PROCESS_INSTANCE_ID, superProcessInstanceIds);
+    writer.addStrings(ArchiveSegment.DELETE_REASON, deleteReasons);
+    writer.addStrings(ArchiveSegment.TENANT_ID, tenantIds);
+    writer.addStrings(ArchiveSegment.INVOLVED_USERS, involvedUsers);
+    writer.addLongs(ArchiveSegment.START_TIME, toArray(startTimes));
+    writer.addLongs(ArchiveSegment.END_TIME, toArray(endTimes));
+    writer.addLongs(ArchiveSegment.DURATION, toArray(durations));
+    writeActivityInstances(connection, ids, rows, writer);
+    writeVariables(connection, ids, rows, writer);
+
+    long minStartTime = Long.MAX_VALUE;
+    long maxStartTime = Long.MIN_VALUE;
+    for (long startTime : startTimes) {
+      if (startTime != ArchiveSegment.NULL_LONG) {
+        minStartTime = Math.min(minStartTime, startTime);
+        maxStartTime = Math.max(maxStartTime, startTime);
+      }
+    }
+    // rows are ordered by end time
+    writer.write(file, ids.size(), minStartTime, maxStartTime, endTimes.get(0), endTimes.get(endTimes.size() - 1));
+    return ids;
+  }
+
+  private List<String> readInvolvedUsers(Connection connection, List<String> ids, Map<String, Integer> rows)
+      throws SQLException {
+    List<Set<String>> users = new ArrayList<Set<String>>(Collections.<Set<String>> nCopies(ids.size(), null));
+    String sql = "SELECT PROC_INST_ID_, USER_ID_ FROM "
+        + managementService.getTableName(HistoricIdentityLinkEntity.class)
+        + " WHERE USER_ID_ IS NOT NULL AND PROC_INST_ID_ IN ";
+    for (int from = 0; from < ids.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+      List<String> chunk = ids.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, ids.size()));
+      PreparedStatement statement = prepareIn(connection, sql, "", chunk);
+      try {
+        ResultSet resultSet = statement.executeQuery();
+        while (resultSet.next()) {
+          int row = rows.get(resultSet.getString(1));
+          if (users.get(row) == null) {
+            users.set(row, new LinkedHashSet<String>());
+          }
+          users.get(row).add(resultSet.getString(2));
+        }
+      } finally {
+        statement.close();
+      }
+    }
+    List<String> involvedUsers = new ArrayList<String>(ids.size());
+    for (Set<String> rowUsers : users) {
+      involvedUsers.add(rowUsers != null ? StringUtils.join(rowUsers, '\n') : null);
+    }
+    return involvedUsers;
+  }
+
+  private void writeActivityInstances(Connection connection, List<String> ids, Map<String, Integer> rows,
+      SegmentWriter writer) throws SQLException, IOException {
+    List<List<Object[]>> activities = new ArrayList<List<Object[]>>(Collections.<List<Object[]>> nCopies(ids.size(),
+        null));
+    String sql = "SELECT PROC_INST_ID_, ID_, ACT_ID_, ACT_NAME_, ACT_TYPE_, EXECUTION_ID_, TASK_ID_,"
+        + " CALL_PROC_INST_ID_, ASSIGNEE_, START_TIME_, END_TIME_, DURATION_ FROM "
+        + managementService.getTableName(HistoricActivityInstanceEntity.class) + " WHERE PROC_INST_ID_ IN ";
+    int count = 0;
+    for (int from = 0; from < ids.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+      List<String> chunk = ids.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, ids.size()));
+      PreparedStatement statement = prepareIn(connection, sql, " ORDER BY START_TIME_, ID_", chunk);
+      try {
+        statement.setFetchSize(1000);
+        ResultSet resultSet = statement.executeQuery();
+        while (resultSet.next()) {
+          int row = rows.get(resultSet.getString(1));
+          long duration = resultSet.getLong(12);
+          if (resultSet.wasNull()) {
+            duration = ArchiveSegment.NULL_LONG;
+          }
+          Object[] activity = new Object[] { resultSet.getString(2), resultSet.getString(3), resultSet.getString(4),
+              resultSet.getString(5), resultSet.getString(6), resultSet.getString(7), resultSet.getString(8),
+              resultSet.getString(9), getTime(resultSet, 10), getTime(resultSet, 11), duration };
+          if (activities.get(row) == null) {
+            activities.set(row, new ArrayList<Object[]>());
+          }
+          activities.get(row).add(activity);
+          count++;
+        }
+      } finally {
+        statement.close();
+      }
+    }
+
+    long[] activityRows = new long[count];
+    List<List<String>> strings = new ArrayList<List<String>>();
+    for (int i = 0; i < 8; i++) {
+      strings.add(new ArrayList<String>(count));
+    }
+    long[][] longs = new long[3][count];
+    int index = 0;
+    for (int row = 0; row < ids.size(); row++) {
+      if (activities.get(row) == null) {
+        continue;
+      }
+      for (Object[] activity : activities.get(row)) {
+        activityRows[index] = row;
+        for (int i = 0; i < 8; i++) {
+          strings.get(i).add((String) activity[i]);
+        }
+        for (int i = 0; i < 3; i++) {
+          longs[i][index] = (Long) activity[8 + i];
+        }
+        index++;
+      }
+    }
+    writer.addLongs(ArchiveSegment.ACTIVITY_ROW, activityRows);
+    writer.addStrings(ArchiveSegment.ACTIVITY_INSTANCE_ID, strings.get(0));
+    writer.addStrings(ArchiveSegment.ACTIVITY_ID, strings.get(1));
+    writer.addStrings(ArchiveSegment.ACTIVITY_NAME, strings.get(2));
+    writer.addStrings(ArchiveSegment.ACTIVITY_TYPE, strings.get(3));
+    writer.addStrings(ArchiveSegment.ACTIVITY_EXECUTION_ID, strings.get(4));
+    writer.addStrings(ArchiveSegment.ACTIVITY_TASK_ID, strings.get(5));
+    writer.addStrings(ArchiveSegment.ACTIVITY_CALLED_PROCESS_INSTANCE_ID, strings.get(6));
+    writer.addStrings(ArchiveSegment.ACTIVITY_ASSIGNEE, strings.get(7));
+    writer.addLongs(ArchiveSegment.ACTIVITY_START_TIME, longs[0]);
+    writer.addLongs(ArchiveSegment.ACTIVITY_END_TIME, longs[1]);
+    writer.addLongs(ArchiveSegment.ACTIVITY_DURATION, longs[2]);
+  }
+
+  private void writeVariables(Connection connection, List<String> ids, Map<String, Integer> rows,
+      SegmentWriter writer) throws SQLException, IOException {
+    List<List<Object[]>> variables = new ArrayList<List<Object[]>>(Collections.<List<Object[]>> nCopies(ids.size(),
+        null));
+    String sql = "SELECT PROC_INST_ID_, NAME_, VAR_TYPE_, TEXT_, LONG_, DOUBLE_, ID_ FROM "
+        + managementService.getTableName(HistoricVariableInstanceEntity.class)
+        + " WHERE TASK_ID_ IS NULL AND EXECUTION_ID_ = PROC_INST_ID_ AND PROC_INST_ID_ IN ";
+    int count = 0;
+    for (int from = 0; from < ids.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+      List<String> chunk = ids.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, ids.size()));
+      PreparedStatement statement = prepareIn(connection, sql, " ORDER BY NAME_", chunk);
+      try {
+        statement.setFetchSize(1000);
+        ResultSet resultSet = statement.executeQuery();
+        while (resultSet.next()) {
+          String name = resultSet.getString(2);
+          String type = resultSet.getString(3);
+          if (!isVariableArchived(name) || !archivedTypes.contains(type)) {
+            continue;
+          }
+          int row = rows.get(resultSet.getString(1));
+          long longValue = resultSet.getLong(5);
+          longValue = resultSet.wasNull() ? 0 : longValue;
+          double doubleValue = resultSet.getDouble(6);
+          Object[] variable = new Object[] { name, type, resultSet.getString(4), longValue,
+              Double.doubleToLongBits(doubleValue), resultSet.getString(7) };
+          if (variables.get(row) == null) {
+            variables.set(row, new ArrayList<Object[]>());
+          }
+          variables.get(row).add(variable);
+          count++;
+        }
+      } finally {
+        statement.close();
+      }
+    }
+
+    long[] variableRows = new long[count];
+    List<String> names = new ArrayList<String>(count);
+    List<String> types = new ArrayList<String>(count);
+    List<String> texts = new ArrayList<String>(count);
+    long[] longValues = new long[count];
+    long[] doubleValues = new long[count];
+    List<String> variableIds = new ArrayList<String>(count);
+    int index = 0;
+    for (int row = 0; row < ids.size(); row++) {
+      if (variables.get(row) == null) {
+        continue;
+      }
+      for (Object[] variable : variables.get(row)) {
+        variableRows[index] = row;
+        names.add((String) variable[0]);
+        types.add((String) variable[1]);
+        texts.add((String) variable[2]);
+        longValues[index] = (Long) variable[3];
+        doubleValues[index] = (Long) variable[4];
+        variableIds.add((String) variable[5]);
+        index++;
+      }
+    }
+    writer.addLongs(ArchiveSegment.VARIABLE_ROW, variableRows);
+    writer.addStrings(ArchiveSegment.VARIABLE_INSTANCE_ID, variableIds);
+    writer.addStrings(ArchiveSegment.VARIABLE_NAME, names);
+    writer.addStrings(ArchiveSegment.VARIABLE_TYPE, types);
+    writer.addStrings(ArchiveSegment.VARIABLE_TEXT, texts);
+    writer.addLongs(ArchiveSegment.VARIABLE_LONG, longValues);
+    writer.addLongs(ArchiveSegment.VARIABLE_DOUBLE, doubleValues);
+  }
+
+  private static PreparedStatement prepareIn(Connection connection, String sql, String suffix, List<String> values)
+      throws SQLException {
+    StringBuilder in = new StringBuilder(sql).append("(");
+    for (int i = 0; i < values.size(); i++) {
+      in.append(i > 0 ? ", ?" : "?");
+    }
+    in.append(")").append(suffix);
+    PreparedStatement statement = connection.prepareStatement(in.toString());
+    for (int i = 0; i < values.size(); i++) {
+      statement.setString(i + 1, values.get(i));
+    }
+    return statement;
+  }
+
+  private static long getTime(ResultSet resultSet, int column) throws SQLException {
+    Timestamp timestamp = resultSet.getTimestamp(column);
+    return (timestamp != null) ? timestamp.getTime() : ArchiveSegment.NULL_LONG;
+  }
+
+  private static long[] toArray(List<Long> values) {
+    long[] array = new long[values.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = values.get(i);
+    }
+    return array;
+  }
+
+  /**
+   * @param segment
+   * @param row
+   * @param variableNames
+   *          names of returned variables, null for all, empty for none
+   * @return process instance of the row of the segment
+   */
+  public ArchivedProcessInstance getProcessInstance(ArchiveSegment segment, int row, Collection<String> variableNames) {
+    ArchivedProcessInstance processInstance = new ArchivedProcessInstance();
+    String id = segment.getStrings(ArchiveSegment.ID).get(row);
+    processInstance.setId(id);
+    processInstance.setProcessInstanceId(id);
+    processInstance.setProcessDefinitionId(segment.getStrings(ArchiveSegment.PROCESS_DEFINITION_ID).get(row));
+    processInstance.setBusinessKey(segment.getStrings(ArchiveSegment.BUSINESS_KEY).get(row));
+    processInstance.setStartUserId(segment.getStrings(ArchiveSegment.START_USER_ID).get(row));
+    processInstance.setStartActivityId(segment.getStrings(ArchiveSegment.START_ACTIVITY_ID).get(row));
+    processInstance.setEndActivityId(segment.getStrings(ArchiveSegment.END_ACTIVITY_ID).get(row));
+    processInstance.setSuperProcessInstanceId(segment.getStrings(ArchiveSegment.SUPER_PROCESS_INSTANCE_ID).get(row));
+    processInstance.setDeleteReason(segment.getStrings(ArchiveSegment.DELETE_REASON).get(row));
+    processInstance.setTenantId(segment.getStrings(ArchiveSegment.TENANT_ID).get(row));
+    processInstance.setStartTime(toDate(segment.getLongs(ArchiveSegment.START_TIME)[row]));
+    processInstance.setEndTime(toDate(segment.getLongs(ArchiveSegment.END_TIME)[row]));
+    long duration = segment.getLongs(ArchiveSegment.DURATION)[row];
+    processInstance.setDurationInMillis(duration != ArchiveSegment.NULL_LONG ? duration : null);
+    if (variableNames == null || !variableNames.isEmpty()) {
+      Map<String, Object> variables = getVariables(segment, row);
+      if (variableNames != null) {
+        variables.keySet().retainAll(variableNames);
+      }
+      processInstance.setArchivedVariables(variables);
+    }
+    return processInstance;
+  }
+
+  /**
+   * @param segment
+   * @param row
+   * @return archived variables of the process instance of the row, ordered by
+   *         name
+   */
+  public Map<String, Object> getVariables(ArchiveSegment segment, int row) {
+    int[] offsets = segment.getOffsets(ArchiveSegment.VARIABLE_ROW);
+    Map<String, Object> variables = new LinkedHashMap<String, Object>();
+    if (offsets[row] == offsets[row + 1]) {
+      return variables;
+    }
+    ArchiveSegment.StringColumn names = segment.getStrings(ArchiveSegment.VARIABLE_NAME);
+    ArchiveSegment.StringColumn types = segment.getStrings(ArchiveSegment.VARIABLE_TYPE);
+    ArchiveSegment.StringColumn texts = segment.getStrings(ArchiveSegment.VARIABLE_TEXT);
+    long[] longValues = segment.getLongs(ArchiveSegment.VARIABLE_LONG);
+    long[] doubleValues = segment.getLongs(ArchiveSegment.VARIABLE_DOUBLE);
+    for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+      String type = types.get(i);
+      Object value;
+      if ("string".equals(type)) {
+        value = texts.get(i);
+      } else if ("double".equals(type)) {
+        value = Double.longBitsToDouble(doubleValues[i]);
+      } else if ("integer".equals(type)) {
+        value = (int) longValues[i];
+      } else if ("short".equals(type)) {
+        value = (short) longValues[i];
+      } else if ("boolean".equals(type)) {
+        value = longValues[i] == 1;
+      } else if ("date".equals(type)) {
+        value = new Date(longValues[i]);
+      } else if ("long".equals(type)) {
+        value = longValues[i];
+      } else {
+        value = null;
+      }
+      variables.put(names.get(i), value);
+    }
+    return variables;
+  }
+
+  /**
+   * @param processInstanceId
+   * @return archived process instance with all archived variables or null
+   */
+  public ArchivedProcessInstance getProcessInstance(String processInstanceId) {
+    for (ArchiveSegment segment : segments) {
+      int row = getRow(segment, processInstanceId);
+      if (row >= 0) {
+        return getProcessInstance(segment, row, null);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param processInstanceId
+   * @return archived activity instances ordered by start time, empty if the
+   *         process instance is not archived
+   */
+  public List<HistoricActivityInstance> getActivityInstances(String processInstanceId) {
+    for (ArchiveSegment segment : segments) {
+      int row = getRow(segment, processInstanceId);
+      if (row < 0) {
+        continue;
+      }
+      String processDefinitionId = segment.getStrings(ArchiveSegment.PROCESS_DEFINITION_ID).get(row);
+      String tenantId = segment.getStrings(ArchiveSegment.TENANT_ID).get(row);
+      int[] offsets = segment.getOffsets(ArchiveSegment.ACTIVITY_ROW);
+      List<HistoricActivityInstance> activityInstances = new ArrayList<HistoricActivityInstance>();
+      for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+        HistoricActivityInstanceEntity activityInstance = new HistoricActivityInstanceEntity();
+        activityInstance.setId(segment.getStrings(ArchiveSegment.ACTIVITY_INSTANCE_ID).get(i));
+        activityInstance.setProcessInstanceId(processInstanceId);
+        activityInstance.setProcessDefinitionId(processDefinitionId);
+        activityInstance.setTenantId(tenantId);
+        activityInstance.setActivityId(segment.getStrings(ArchiveSegment.ACTIVITY_ID).get(i));
+        activityInstance.setActivityName(segment.getStrings(ArchiveSegment.ACTIVITY_NAME).get(i));
+        activityInstance.setActivityType(segment.getStrings(ArchiveSegment.ACTIVITY_TYPE).get(i));
+        activityInstance.setExecutionId(segment.getStrings(ArchiveSegment.ACTIVITY_EXECUTION_ID).get(i));
+        activityInstance.setTaskId(segment.getStrings(ArchiveSegment.ACTIVITY_TASK_ID).get(i));
+        activityInstance.setCalledProcessInstanceId(segment.getStrings(
+            ArchiveSegment.ACTIVITY_CALLED_PROCESS_INSTANCE_ID).get(i));
+        activityInstance.setAssignee(segment.getStrings(ArchiveSegment.ACTIVITY_ASSIGNEE).get(i));
+        activityInstance.setStartTime(toDate(segment.getLongs(ArchiveSegment.ACTIVITY_START_TIME)[i]));
+        activityInstance.setEndTime(toDate(segment.getLongs(ArchiveSegment.ACTIVITY_END_TIME)[i]));
+        long duration = segment.getLongs(ArchiveSegment.ACTIVITY_DURATION)[i];
+        activityInstance.setDurationInMillis(duration != ArchiveSegment.NULL_LONG ? duration : null);
+        activityInstances.add(activityInstance);
+      }
+      return activityInstances;
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Ids are unique in a segment, so the dictionary code of an id is its row
+   */
+  private static int getRow(ArchiveSegment segment, String processInstanceId) {
+    return segment.getStrings(ArchiveSegment.ID).getCode(processInstanceId);
+  }
+
+  private static Date toDate(long time) {
+    return (time != ArchiveSegment.NULL_LONG) ? new Date(time) : null;
+  }
+
+  private static class SuffixFilter implements FilenameFilter {
+    private final String suffix;
+
+    SuffixFilter(String suffix) {
+      this.suffix = suffix;
+    }
+
+    @Override
+    public boolean accept(File dir, String name) {
+      return name.endsWith(suffix);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package org.activiti.pm.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an {@link ArchiveSegment} file. Every column is encoded and
+ * compressed separately, so a query inflates only the columns it reads.
+ * String columns are dictionary encoded, long columns are delta encoded as
+ * variable length numbers.
+ *
+ * @author Dmitry Farafonov
+ */
+public class SegmentWriter {
+
+  private final Map<String, byte[]> columns = new LinkedHashMap<String, byte[]>();
+  private final Map<String, Integer> rawLengths = new HashMap<String, Integer>();
+
+  public void addStrings(String name, List<String> values) throws IOException {
+    Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+    int[] codes = new int[values.size()];
+    for (int i = 0; i < codes.length; i++) {
+      String value = values.get(i);
+      if (value == null) {
+        codes[i] = -1;
+        continue;
+      }
+      Integer code = dictionary.get(value);
+      if (code == null) {
+        code = dictionary.size();
+        dictionary.put(value, code);
+      }
+      codes[i] = code;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(dictionary.size());
+    for (String value : dictionary.keySet()) {
+      byte[] utf8 = value.getBytes(ArchiveSegment.UTF8);
+      writeVarLong(out, utf8.length);
+      out.write(utf8);
+    }
+    out.writeInt(codes.length);
+    for (int code : codes) {
+      writeVarLong(out, code + 1);
+    }
+    out.flush();
+    addColumn(name, bytes.toByteArray());
+  }
+
+  /**
+   * @param name
+   * @param values
+   *          values, {@link ArchiveSegment#NULL_LONG} for null
+   * @throws IOException
+   */
+  public void addLongs(String name, long[] values) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(values.length);
+    long previous = 0;
+    for (long value : values) {
+      if (value == ArchiveSegment.NULL_LONG) {
+        out.writeByte(0);
+      } else {
+        out.writeByte(1);
+        writeVarLong(out, zigZag(value - previous));
+        previous = value;
+      }
+    }
+    out.flush();
+    addColumn(name, bytes.toByteArray());
+  }
+
+  private void addColumn(String name, byte[] raw) {
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(raw);
+      deflater.finish();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        int length = deflater.deflate(buffer);
+        compressed.write(buffer, 0, length);
+      }
+      columns.put(name, compressed.toByteArray());
+      rawLengths.put(name, raw.length);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Writes columns and the footer with the row count and ranges of start and
+   * end times of process instances
+   *
+   * @throws IOException
+   */
+  public void write(File file, int rowCount, long minStartTime, long maxStartTime, long minEndTime, long maxEndTime)
+      throws IOException {
+    FileOutputStream fileOut = new FileOutputStream(file);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+      long offset = 0;
+      Map<String, Long> offsets = new HashMap<String, Long>();
+      for (Map.Entry<String, byte[]> column : columns.entrySet()) {
+        offsets.put(column.getKey(), offset);
+        out.write(column.getValue());
+        offset += column.getValue().length;
+      }
+      out.writeInt(ArchiveSegment.MAGIC);
+      out.writeInt(ArchiveSegment.FORMAT_VERSION);
+      out.writeInt(rowCount);
+      out.writeLong(minStartTime);
+      out.writeLong(maxStartTime);
+      out.writeLong(minEndTime);
+      out.writeLong(maxEndTime);
+      out.writeInt(columns.size());
+      for (Map.Entry<String, byte[]> column : columns.entrySet()) {
+        out.writeUTF(column.getKey());
+        out.writeLong(offsets.get(column.getKey()));
+        out.writeInt(column.getValue().length);
+        out.writeInt(rawLengths.get(column.getKey()));
+      }
+      out.writeLong(offset);
+      out.flush();
+      fileOut.getFD().sync();
+    } finally {
+      fileOut.close();
+    }
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+}
@@ -0,0 +1,321 @@
+package org.activiti.pm.filter;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.activiti.engine.ActivitiIllegalArgumentException;
+import org.activiti.engine.query.NativeQuery;
+import org.activiti.pm.filter.variable.QueryVariable;
+import org.activiti.pm.filter.variable.QueryVariable.QueryVariableOperation;
+
+/**
+ * Base of builders which translate a process instance filter to native SQL.
+ * Process instance is aliased <code>RES</code> and its process definition
+ * <code>DEF</code>. Keeps conditions and parameters of the filter and builds
+ * seek predicates of keyset pagination over (column, RES.ID_).
+ *
+ * @author Dmitry Farafonov
+ */
+public abstract class AbstractProcessInstanceSqlBuilder {
+  private static final int IN_CLAUSE_CHUNK_SIZE = 500;
+
+  private final List<String> conditions = new ArrayList<String>();
+  private final Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+
+  /**
+   * @return from clause with the process instance and definition tables
+   */
+  public abstract String getFrom();
+
+  /**
+   * @param operation
+   * @return true if variables can be compared by the operation
+   */
+  protected boolean isSupported(QueryVariableOperation operation) {
+    return true;
+  }
+
+  /**
+   * Returns EXISTS condition on a process variable, values are matched by the
+   * column and type the engine stores them with
+   *
+   * @param filterRequestFactory
+   * @param variable
+   * @param variableTable
+   * @param typeColumn column of the variable type
+   * @param ownerCondition condition which joins the variable to its process instance
+   * @return
+   */
+  protected String variableCondition(FilterRequestFactory filterRequestFactory, QueryVariable variable,
+      String variableTable, String typeColumn, String ownerCondition) {
+    if (variable.getVariableOperation() == null) {
+      throw new ActivitiIllegalArgumentException("Variable operation is missing for variable: " + variable.getName());
+    }
+    if (variable.getValue() == null) {
+      throw new ActivitiIllegalArgumentException("Variable value is missing for variable: " + variable.getName());
+    }
+
+    boolean nameLess = variable.getName() == null;
+    QueryVariableOperation operation = variable.getVariableOperation();
+    Object actualValue = filterRequestFactory.getVariableValue(variable);
+
+    // A value-only query is only possible using equals-operator
+    if (nameLess && operation != QueryVariableOperation.EQUALS) {
+      throw new ActivitiIllegalArgumentException(
+          "Value-only query (without a variable-name) is only supported when using 'equals' operation.");
+    }
+    if (!isSupported(operation)) {
+      throw new ActivitiIllegalArgumentException("Unsupported variable query operation: " + operation);
+    }
+
+    String column;
+    String type;
+    Object value = actualValue;
+    if (actualValue instanceof String) {
+      column = "VAR.TEXT_";
+      type = "string";
+    } else if (actualValue instanceof Long) {
+      column = "VAR.LONG_";
+      type = "long";
+    } else if (actualValue instanceof Integer) {
+      column = "VAR.LONG_";
+      type = "integer";
+      value = ((Integer) actualValue).longValue();
+    } else if (actualValue instanceof Short) {
+      column = "VAR.LONG_";
+      type = "short";
+      value = ((Short) actualValue).longValue();
+    } else if (actualValue instanceof Boolean) {
+      column = "VAR.LONG_";
+      type = "boolean";
+      value = (Boolean) actualValue ? 1L : 0L;
+    } else if (actualValue instanceof Date) {
+      column = "VAR.LONG_";
+      type = "date";
+      value = ((Date) actualValue).getTime();
+    } else if (actualValue instanceof Double) {
+      column = "VAR.DOUBLE_";
+      type = "double";
+    } else {
+      throw new ActivitiIllegalArgumentException("Variable '" + variable.getName() + "' has unsupported value type: "
+          + actualValue.getClass().getName());
+    }
+
+    String comparison;
+    switch (operation) {
+    case EQUALS:
+      comparison = column + " = " + parameter(value);
+      break;
+    case EQUALS_IGNORE_CASE:
+      if (!(actualValue instanceof String)) {
+        throw new ActivitiIllegalArgumentException(
+            "Only string variable values are supported when ignoring casing, but was: "
+                + actualValue.getClass().getName());
+      }
+      comparison = "LOWER(" + column + ") = " + parameter(((String) actualValue).toLowerCase());
+      break;
+    case NOT_EQUALS:
+      comparison = column + " <> " + parameter(value);
+      break;
+    case NOT_EQUALS_IGNORE_CASE:
+      if (!(actualValue instanceof String)) {
+        throw new ActivitiIllegalArgumentException(
+            "Only string variable values are supported when ignoring casing, but was: "
+                + actualValue.getClass().getName());
+      }
+      comparison = "LOWER(" + column + ") <> " + parameter(((String) actualValue).toLowerCase());
+      break;
+    case LIKE:
+      if (!(actualValue instanceof String)) {
+        throw new ActivitiIllegalArgumentException(
+            "Only string variable values are supported for like, but was: " + actualValue.getClass().getName());
+      }
+      comparison = column + " LIKE " + parameter(value);
+      break;
+    case GREATER_THAN:
+      comparison = column + " > " + parameter(value);
+      break;
+    case GREATER_THAN_OR_EQUALS:
+      comparison = column + " >= " + parameter(value);
+      break;
+    case LESS_THAN:
+      comparison = column + " < " + parameter(value);
+      break;
+    case LESS_THAN_OR_EQUALS:
+      comparison = column + " <= " + parameter(value);
+      break;
+    default:
+      throw new ActivitiIllegalArgumentException("Unsupported variable query operation: " + operation);
+    }
+
+    StringBuilder sql = new StringBuilder("EXISTS (SELECT VAR.ID_ FROM ").append(variableTable)
+        .append(" VAR WHERE ").append(ownerCondition);
+    if (!nameLess) {
+      sql.append(" AND VAR.NAME_ = ").append(parameter(variable.getName()));
+    }
+    sql.append(" AND ").append(typeColumn).append(" = ").append(parameter(type));
+    sql.append(" AND ").append(comparison).append(")");
+    return sql.toString();
+  }
+
+  protected String in(String column, List<String> values) {
+    StringBuilder sql = new StringBuilder("(");
+    for (int from = 0; from < values.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+      if (from > 0) {
+        sql.append(" OR ");
+      }
+      sql.append(column).append(" IN (");
+      int to = Math.min(from + IN_CLAUSE_CHUNK_SIZE, values.size());
+      for (int i = from; i < to; i++) {
+        if (i > from) {
+          sql.append(", ");
+        }
+        sql.append(parameter(values.get(i)));
+      }
+      sql.append(")");
+    }
+    return sql.append(")").toString();
+  }
+
+  /**
+   * Returns order by clause of keyset pagination: nulls after values in
+   * ascending order and id as a tie breaker
+   *
+   * @param column
+   * @param asc
+   * @return
+   */
+  public String getKeysetOrderBy(String column, boolean asc) {
+    String direction = asc ? " ASC" : " DESC";
+    if ("RES.ID_".equals(column)) {
+      return "RES.ID_" + direction;
+    }
+    return "CASE WHEN " + column + " IS NULL THEN 1 ELSE 0 END" + direction + ", " + column + direction
+        + ", RES.ID_" + direction;
+  }
+
+  /**
+   * Returns condition which selects rows after the key and id. Rows with null
+   * key are the last in ascending order and the first in descending order.
+   *
+   * @param column
+   * @param asc
+   * @param key placeholder of the key or null
+   * @param id placeholder of the id
+   * @return
+   */
+  public String getSeekCondition(String column, boolean asc, String key, String id) {
+    if ("RES.ID_".equals(column)) {
+      return "RES.ID_" + (asc ? " > " : " < ") + id;
+    }
+    if (asc) {
+      if (key == null) {
+        return "(" + column + " IS NULL AND RES.ID_ > " + id + ")";
+      }
+      return "(" + column + " IS NULL OR " + column + " > " + key + " OR (" + column + " = " + key + " AND RES.ID_ > " + id + "))";
+    }
+    if (key == null) {
+      return "((" + column + " IS NULL AND RES.ID_ < " + id + ") OR " + column + " IS NOT NULL)";
+    }
+    return "(" + column + " < " + key + " OR (" + column + " = " + key + " AND RES.ID_ < " + id + "))";
+  }
+
+  /**
+   * Adds a condition to the where clause
+   *
+   * @param condition
+   */
+  public void and(String condition) {
+    conditions.add(condition);
+  }
+
+  /**
+   * Adds a parameter
+   *
+   * @param value
+   * @return placeholder of the parameter to put into SQL
+   */
+  public String parameter(Object value) {
+    return parameter("p" + parameters.size(), value);
+  }
+
+  /**
+   * Sets a named parameter, a parameter of the same name is replaced. Used for
+   * values which change from one statement to another, e.g. keyset position.
+   *
+   * @param name
+   * @param value
+   * @return placeholder of the parameter to put into SQL
+   */
+  public String parameter(String name, Object value) {
+    parameters.put(name, value);
+    return "#{" + name + "}";
+  }
+
+  public Map<String, Object> getParameters() {
+    return parameters;
+  }
+
+  /**
+   * @return where clause, empty if there is no conditions
+   */
+  public String getWhere() {
+    return getWhere(null);
+  }
+
+  private String getWhere(String extraCondition) {
+    StringBuilder sql = new StringBuilder();
+    for (String condition : conditions) {
+      sql.append(sql.length() == 0 ? " WHERE " : " AND ").append(condition);
+    }
+    if (extraCondition != null) {
+      sql.append(sql.length() == 0 ? " WHERE " : " AND ").append(extraCondition);
+    }
+    return sql.toString();
+  }
+
+  /**
+   * Returns select statement of the filter
+   *
+   * @param columns
+   * @param orderBy order by clause without the keywords, or null
+   * @return
+   */
+  public String select(String columns, String orderBy) {
+    return select(columns, null, orderBy);
+  }
+
+  /**
+   * Returns select statement of the filter with one more condition, which is
+   * not kept by the builder
+   *
+   * @param columns
+   * @param condition
+   * @param orderBy order by clause without the keywords, or null
+   * @return
+   */
+  public String select(String columns, String condition, String orderBy) {
+    String sql = "SELECT " + columns + getFrom() + getWhere(condition);
+    if (orderBy != null) {
+      sql += " ORDER BY " + orderBy;
+    }
+    return sql;
+  }
+
+  /**
+   * Sets the parameters of the filter to a native query
+   *
+   * @param query
+   * @return
+   */
+  @SuppressWarnings("rawtypes")
+  public <Q extends NativeQuery> Q applyParameters(Q query) {
+    for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+      query.parameter(parameter.getKey(), parameter.getValue());
+    }
+    return query;
+  }
+}
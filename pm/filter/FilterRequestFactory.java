@@ -1,15 +1,31 @@
 package org.activiti.pm.filter;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.activiti.engine.ActivitiIllegalArgumentException;
 import org.activiti.engine.HistoryService;
+import org.activiti.engine.ManagementService;
 import org.activiti.engine.RepositoryService;
 import org.activiti.engine.history.HistoricProcessInstance;
-import org.activiti.engine.repository.ProcessDefinition;
+import org.activiti.engine.history.HistoricVariableInstance;
+import org.activiti.engine.history.NativeHistoricVariableInstanceQuery;
+import org.activiti.engine.impl.NativeHistoricVariableInstanceQueryImpl;
+import org.activiti.engine.impl.history.HistoryLevel;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.VariableInstanceEntity;
 import org.activiti.engine.runtime.ProcessInstance;
+import org.activiti.pm.ProcessDefinitionMetadata;
+import org.activiti.pm.ProcessDefinitionMetadataCache;
+import org.activiti.pm.archive.ArchivedProcessInstance;
 import org.activiti.pm.filter.variable.BooleanRestVariableConverter;
 import org.activiti.pm.filter.variable.DateRestVariableConverter;
 import org.activiti.pm.filter.variable.DoubleRestVariableConverter;
@@ -48,6 +64,12 @@ public class FilterRequestFactory {
   @Autowired
   HistoryService historyService;
 
+  @Autowired
+  ManagementService managementService;
+
+  @Autowired
+  ProcessDefinitionMetadataCache processDefinitionMetadataCache;
+
   public static final int VARIABLE_TASK = 1;
   public static final int VARIABLE_EXECUTION = 2;
   public static final int VARIABLE_PROCESS = 3;
@@ -59,8 +81,12 @@ public class FilterRequestFactory {
   public static final String BYTE_ARRAY_VARIABLE_TYPE = "binary";
   public static final String SERIALIZABLE_VARIABLE_TYPE = "serializable";
 
+  private static final int IN_CLAUSE_CHUNK_SIZE = 500;
+
   protected List<RestVariableConverter> variableConverters = new ArrayList<RestVariableConverter>();
 
+  private volatile RestVariableConverterRegistry converterRegistry;
+
   public FilterRequestFactory() {
     initializeVariableConverters();
   }
@@ -71,13 +97,7 @@ public class FilterRequestFactory {
 
     if(restVariable.getType() != null) {
       // Try locating a converter if the type has been specified
-      RestVariableConverter converter = null;
-      for(RestVariableConverter conv : variableConverters) {
-        if(conv.getRestTypeName().equals(restVariable.getType())) {
-          converter = conv;
-          break;
-        }
-      }
+      RestVariableConverter converter = getConverterRegistry().getConverter(restVariable.getType());
       if(converter == null) {
         throw new ActivitiIllegalArgumentException("Variable '" + restVariable.getName() + "' has unsupported type: '" + restVariable.getType() + "'.");
       }
@@ -97,12 +117,26 @@ public class FilterRequestFactory {
 
   /**
    * @return list of {@link RestVariableConverter} which are used by this factory. Additional
-   * converters can be added and existing ones replaced ore removed.
+   * converters can be added and existing ones replaced ore removed. The converter index is
+   * rebuilt after this call.
    */
   public List<RestVariableConverter> getVariableConverters() {
+    converterRegistry = null;
     return variableConverters;
   }
 
+  /**
+   * @return index of the converters, built on first use after the converter list is exposed
+   */
+  protected RestVariableConverterRegistry getConverterRegistry() {
+    RestVariableConverterRegistry registry = converterRegistry;
+    if (registry == null) {
+      registry = new RestVariableConverterRegistry(variableConverters);
+      converterRegistry = registry;
+    }
+    return registry;
+  }
+
   /**
    * Called once when the converters need to be initialized. Override of custom conversion
    * needs to be done between java and rest.
@@ -120,17 +154,83 @@ public class FilterRequestFactory {
 
   public List<ProcessInstanceResponse> createProcessInstanceResponseList(List<ProcessInstance> processInstances) {
     // RestUrlBuilder urlBuilder = createUrlBuilder();
+    Map<String, HistoricProcessInstance> historicProcessInstances = getHistoricProcessInstances(processInstances);
+    List<ProcessInstanceResponse> responseList = new ArrayList<ProcessInstanceResponse>();
+    for (ProcessInstance instance : processInstances) {
+      responseList.add(createProcessInstanceResponse(instance, historicProcessInstances.get(instance.getId())));
+    }
+    return responseList;
+  }
+
+  /**
+   * Creates responses with the process variables of the given names, which are
+   * read in one batch
+   *
+   * @param processInstances
+   * @param variableNames names of variables, null for all, empty list for none
+   * @return
+   */
+  public List<ProcessInstanceResponse> createProcessInstanceResponseList(List<ProcessInstance> processInstances,
+      List<String> variableNames) {
+    List<String> processInstanceIds = new ArrayList<String>();
+    for (ProcessInstance instance : processInstances) {
+      processInstanceIds.add(instance.getId());
+    }
+    Map<String, Map<String, Object>> variables = getRuntimeProcessVariables(processInstanceIds, variableNames);
+    Map<String, HistoricProcessInstance> historicProcessInstances = getHistoricProcessInstances(processInstances);
     List<ProcessInstanceResponse> responseList = new ArrayList<ProcessInstanceResponse>();
     for (ProcessInstance instance : processInstances) {
-      responseList.add(createProcessInstanceResponse(instance));
+      ProcessInstanceResponse response = createProcessInstanceResponse(instance,
+          historicProcessInstances.get(instance.getId()));
+      Map<String, Object> variableMap = variables.get(instance.getId());
+      if (variableMap != null) {
+        response.setVariables(new RestVariableMap(this, variableMap, RestVariableScope.LOCAL, instance.getId(),
+            VARIABLE_PROCESS));
+      }
+      responseList.add(response);
     }
     return responseList;
   }
 
+  /**
+   * Returns historic counterparts of the process instances with one query per
+   * 500 instances
+   *
+   * @param processInstances
+   * @return historic process instances by id, instances missing in history are absent
+   */
+  private Map<String, HistoricProcessInstance> getHistoricProcessInstances(List<ProcessInstance> processInstances) {
+    List<String> ids = new ArrayList<String>();
+    for (ProcessInstance instance : processInstances) {
+      ids.add(instance.getProcessInstanceId());
+    }
+    Map<String, HistoricProcessInstance> historicProcessInstances = new HashMap<String, HistoricProcessInstance>();
+    for (int from = 0; from < ids.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+      Set<String> chunk = new HashSet<String>(ids.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, ids.size())));
+      for (HistoricProcessInstance historicProcessInstance : historyService.createHistoricProcessInstanceQuery()
+          .processInstanceIds(chunk).list()) {
+        historicProcessInstances.put(historicProcessInstance.getId(), historicProcessInstance);
+      }
+    }
+    return historicProcessInstances;
+  }
+
   public ProcessInstanceResponse createProcessInstanceResponse(ProcessInstance processInstance) {
     HistoricProcessInstance historicProcessInstance = historyService.createHistoricProcessInstanceQuery()
         .processInstanceId(processInstance.getProcessInstanceId()).singleResult();
+    return createProcessInstanceResponse(processInstance, historicProcessInstance);
+  }
 
+  /**
+   * Creates response of the process instance, start time and super process
+   * instance are taken from its historic counterpart
+   *
+   * @param processInstance
+   * @param historicProcessInstance historic counterpart or null if it is missing in history
+   * @return
+   */
+  protected ProcessInstanceResponse createProcessInstanceResponse(ProcessInstance processInstance,
+      HistoricProcessInstance historicProcessInstance) {
     ProcessInstanceResponse result = new ProcessInstanceResponse();
     result.setActivityId(processInstance.getActivityId());
     result.setBusinessKey(processInstance.getBusinessKey());
@@ -139,7 +239,9 @@ public class FilterRequestFactory {
     result.setProcessDefinitionKey(processInstance.getProcessDefinitionKey());
     result.setProcessDefinitionName(processInstance.getProcessDefinitionName());
     // result.setProcessDefinitionUrl(urlBuilder.buildUrl(RestUrls.URL_PROCESS_DEFINITION, processInstance.getProcessDefinitionId()));
-    result.setStartTime(historicProcessInstance.getStartTime());
+    if (historicProcessInstance != null) {
+      result.setStartTime(historicProcessInstance.getStartTime());
+    }
     result.setEnded(processInstance.isEnded());
     result.setSuspended(processInstance.isSuspended());
     // result.setUrl(urlBuilder.buildUrl(RestUrls.URL_PROCESS_INSTANCE, processInstance.getId()));
@@ -155,7 +257,9 @@ public class FilterRequestFactory {
     }
     //End Added by Ryan Johnston
 
-    result.setSuperProcessInstanceId(historicProcessInstance.getSuperProcessInstanceId());
+    if (historicProcessInstance != null) {
+      result.setSuperProcessInstanceId(historicProcessInstance.getSuperProcessInstanceId());
+    }
 
     if (processInstance.getProcessVariables() != null) {
       Map<String, Object> variableMap = processInstance.getProcessVariables();
@@ -170,16 +274,193 @@ public class FilterRequestFactory {
 
   public List<HistoricProcessInstanceResponse> createHistoricProcessInstanceResponseList(List<HistoricProcessInstance> processInstances) {
     // RestUrlBuilder urlBuilder = createUrlBuilder();
+    Map<String, ProcessDefinitionMetadata> processDefinitions = getProcessDefinitions(processInstances);
     List<HistoricProcessInstanceResponse> responseList = new ArrayList<HistoricProcessInstanceResponse>();
     for (HistoricProcessInstance instance : processInstances) {
-      responseList.add(createHistoricProcessInstanceResponse(instance));
+      responseList.add(createHistoricProcessInstanceResponse(instance,
+          processDefinitions.get(instance.getProcessDefinitionId())));
     }
     return responseList;
   }
 
-  @SuppressWarnings("deprecation")
+  /**
+   * Creates responses with the process variables of the given names, which are
+   * read in one batch. Variables of archived process instances are read with
+   * them from the archive.
+   *
+   * @param processInstances
+   * @param variableNames names of variables, null for all, empty list for none
+   * @return
+   */
+  public List<HistoricProcessInstanceResponse> createHistoricProcessInstanceResponseList(
+      List<HistoricProcessInstance> processInstances, List<String> variableNames) {
+    List<String> processInstanceIds = new ArrayList<String>();
+    for (HistoricProcessInstance instance : processInstances) {
+      if (!(instance instanceof ArchivedProcessInstance)) {
+        processInstanceIds.add(instance.getId());
+      }
+    }
+    Map<String, Map<String, Object>> variables = getProcessVariables(processInstanceIds, variableNames);
+    Map<String, ProcessDefinitionMetadata> processDefinitions = getProcessDefinitions(processInstances);
+    List<HistoricProcessInstanceResponse> responseList = new ArrayList<HistoricProcessInstanceResponse>();
+    boolean includeVariables = variableNames == null || !variableNames.isEmpty();
+    for (HistoricProcessInstance instance : processInstances) {
+      HistoricProcessInstanceResponse response = createHistoricProcessInstanceResponse(instance,
+          processDefinitions.get(instance.getProcessDefinitionId()));
+      Map<String, Object> variableMap = (instance instanceof ArchivedProcessInstance && includeVariables) ? instance
+          .getProcessVariables() : variables.get(instance.getId());
+      if (variableMap != null) {
+        response.setVariables(new RestVariableMap(this, variableMap, RestVariableScope.LOCAL, instance.getId(),
+            VARIABLE_HISTORY_PROCESS));
+      }
+      responseList.add(response);
+    }
+    return responseList;
+  }
+
+  /**
+   * Returns process scope variables of the process instances with one query
+   * per 500 instances. Variables are read from history, running process
+   * instances are read from history too if the history level is at least
+   * <code>activity</code>, otherwise see
+   * {@link #getRuntimeProcessVariables(Collection, Collection)}.
+   *
+   * @param processInstanceIds
+   * @param variableNames names of variables, null for all, empty list for none
+   * @return variables by process instance id, ordered by name
+   */
+  public Map<String, Map<String, Object>> getProcessVariables(final Collection<String> processInstanceIds,
+      final Collection<String> variableNames) {
+    if (processInstanceIds.isEmpty() || (variableNames != null && variableNames.isEmpty())) {
+      return Collections.emptyMap();
+    }
+    // values of byte array, serializable and long string variables are read
+    // from ACT_GE_BYTEARRAY within the command context of the query
+    return managementService.executeCommand(new Command<Map<String, Map<String, Object>>>() {
+      @Override
+      public Map<String, Map<String, Object>> execute(CommandContext commandContext) {
+        return readHistoricProcessVariables(commandContext, processInstanceIds, variableNames);
+      }
+    });
+  }
+
+  /**
+   * Returns process scope variables of running process instances with one
+   * query per 500 instances. Variables are read from history if the history
+   * level is at least <code>activity</code>, otherwise from runtime variables.
+   *
+   * @param processInstanceIds
+   * @param variableNames names of variables, null for all, empty list for none
+   * @return variables by process instance id, ordered by name
+   */
+  public Map<String, Map<String, Object>> getRuntimeProcessVariables(final Collection<String> processInstanceIds,
+      final Collection<String> variableNames) {
+    if (processInstanceIds.isEmpty() || (variableNames != null && variableNames.isEmpty())) {
+      return Collections.emptyMap();
+    }
+    return managementService.executeCommand(new Command<Map<String, Map<String, Object>>>() {
+      @Override
+      public Map<String, Map<String, Object>> execute(CommandContext commandContext) {
+        if (commandContext.getProcessEngineConfiguration().getHistoryLevel().isAtLeast(HistoryLevel.ACTIVITY)) {
+          return readHistoricProcessVariables(commandContext, processInstanceIds, variableNames);
+        }
+        return readRuntimeProcessVariables(commandContext, processInstanceIds, variableNames);
+      }
+    });
+  }
+
+  private Map<String, Map<String, Object>> readHistoricProcessVariables(CommandContext commandContext,
+      Collection<String> processInstanceIds, Collection<String> variableNames) {
+    String tableName = managementService.getTableName(HistoricVariableInstance.class);
+    return readProcessVariables(commandContext, "SELECT RES.* FROM " + tableName, processInstanceIds, variableNames);
+  }
+
+  /**
+   * Reads runtime variables by the historic variable query. Columns of the
+   * runtime table are the same except the type one, so they are mapped to
+   * historic variable instances. Values are decoded the same way.
+   */
+  private Map<String, Map<String, Object>> readRuntimeProcessVariables(CommandContext commandContext,
+      Collection<String> processInstanceIds, Collection<String> variableNames) {
+    String tableName = managementService.getTableName(VariableInstanceEntity.class);
+    return readProcessVariables(commandContext, "SELECT RES.ID_, RES.REV_, RES.PROC_INST_ID_, RES.EXECUTION_ID_,"
+        + " RES.TASK_ID_, RES.NAME_, RES.TYPE_ AS VAR_TYPE_, RES.BYTEARRAY_ID_, RES.DOUBLE_, RES.LONG_,"
+        + " RES.TEXT_, RES.TEXT2_ FROM " + tableName, processInstanceIds, variableNames);
+  }
+
+  /**
+   * Reads process scope variables with one query per 500 process instances
+   *
+   * @param select select clause and table of variables aliased as RES
+   */
+  private Map<String, Map<String, Object>> readProcessVariables(CommandContext commandContext, String select,
+      Collection<String> processInstanceIds, Collection<String> variableNames) {
+    Map<String, Map<String, Object>> variables = new HashMap<String, Map<String, Object>>();
+    List<String> ids = new ArrayList<String>(processInstanceIds);
+    for (int from = 0; from < ids.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+      List<String> chunk = ids.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, ids.size()));
+
+      NativeHistoricVariableInstanceQuery query = new NativeHistoricVariableInstanceQueryImpl(commandContext);
+      StringBuilder sql = new StringBuilder(select)
+          .append(" RES WHERE RES.TASK_ID_ IS NULL AND RES.EXECUTION_ID_ IN (");
+      for (int i = 0; i < chunk.size(); i++) {
+        if (i > 0) {
+          sql.append(", ");
+        }
+        sql.append("#{id").append(i).append("}");
+        query.parameter("id" + i, chunk.get(i));
+      }
+      sql.append(")");
+      if (variableNames != null) {
+        sql.append(" AND RES.NAME_ IN (");
+        int i = 0;
+        for (String variableName : variableNames) {
+          if (i > 0) {
+            sql.append(", ");
+          }
+          sql.append("#{name").append(i).append("}");
+          query.parameter("name" + i, variableName);
+          i++;
+        }
+        sql.append(")");
+      }
+      sql.append(" ORDER BY RES.NAME_");
+
+      for (HistoricVariableInstance variable : query.sql(sql.toString()).list()) {
+        Map<String, Object> variableMap = variables.get(variable.getProcessInstanceId());
+        if (variableMap == null) {
+          variableMap = new LinkedHashMap<String, Object>();
+          variables.put(variable.getProcessInstanceId(), variableMap);
+        }
+        variableMap.put(variable.getVariableName(), variable.getValue());
+      }
+    }
+    return variables;
+  }
+
+  /**
+   * Returns metadata of all distinct process definitions of the process
+   * instances
+   *
+   * @param processInstances
+   * @return
+   */
+  private Map<String, ProcessDefinitionMetadata> getProcessDefinitions(List<HistoricProcessInstance> processInstances) {
+    Set<String> processDefinitionIds = new HashSet<String>();
+    for (HistoricProcessInstance instance : processInstances) {
+      processDefinitionIds.add(instance.getProcessDefinitionId());
+    }
+    return processDefinitionMetadataCache.getAll(processDefinitionIds);
+  }
+
   public HistoricProcessInstanceResponse createHistoricProcessInstanceResponse(HistoricProcessInstance processInstance) {
-    ProcessDefinition processDefinition = repositoryService.createProcessDefinitionQuery().processDefinitionId(processInstance.getProcessDefinitionId()).singleResult();
+    return createHistoricProcessInstanceResponse(processInstance,
+        processDefinitionMetadataCache.get(processInstance.getProcessDefinitionId()));
+  }
+
+  @SuppressWarnings("deprecation")
+  protected HistoricProcessInstanceResponse createHistoricProcessInstanceResponse(HistoricProcessInstance processInstance,
+      ProcessDefinitionMetadata processDefinition) {
 
     HistoricProcessInstanceResponse result = new HistoricProcessInstanceResponse();
     result.setBusinessKey(processInstance.getBusinessKey());
@@ -189,8 +470,10 @@ public class FilterRequestFactory {
     result.setEndTime(processInstance.getEndTime());
     result.setId(processInstance.getId());
     result.setProcessDefinitionId(processInstance.getProcessDefinitionId());
-    result.setProcessDefinitionKey(processDefinition.getKey());
-    result.setProcessDefinitionName(processDefinition.getName());
+    if (processDefinition != null) {
+      result.setProcessDefinitionKey(processDefinition.getKey());
+      result.setProcessDefinitionName(processDefinition.getName());
+    }
     //result.setProcessDefinitionUrl(urlBuilder.buildUrl(RestUrls.URL_PROCESS_DEFINITION, processInstance.getProcessDefinitionId()));
     result.setStartActivityId(processInstance.getStartActivityId());
     result.setStartTime(processInstance.getStartTime());
@@ -211,30 +494,21 @@ public class FilterRequestFactory {
   public RestVariable createRestVariable(String name, Object value, RestVariableScope scope,
       String id, int variableType, boolean includeBinaryValue) {
 
-    RestVariableConverter converter = null;
     RestVariable restVar = new RestVariable();
     restVar.setVariableScope(scope);
     restVar.setName(name);
 
     if (value != null) {
       // Try converting the value
-      for (RestVariableConverter c : variableConverters) {
-        if (c.getVariableType().isAssignableFrom(value.getClass())) {
-          converter = c;
-          break;
-        }
-      }
+      RestVariableConverterRegistry.Resolution resolution = getConverterRegistry().resolve(value.getClass());
+      RestVariableConverter converter = resolution.getConverter();
 
       if (converter != null) {
         converter.convertVariableValue(value, restVar);
         restVar.setType(converter.getRestTypeName());
       } else {
         // Revert to default conversion, which is the serializable/byte-array form
-        if (value instanceof Byte[] || value instanceof byte[]) {
-          restVar.setType(BYTE_ARRAY_VARIABLE_TYPE);
-        } else {
-          restVar.setType(SERIALIZABLE_VARIABLE_TYPE);
-        }
+        restVar.setType(resolution.getRestTypeName());
 
         if (includeBinaryValue) {
           restVar.setValue(value);
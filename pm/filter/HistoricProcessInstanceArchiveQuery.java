@@ -0,0 +1,528 @@
+package org.activiti.pm.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.activiti.engine.history.HistoricProcessInstance;
+import org.activiti.pm.ProcessDefinitionMetadata;
+import org.activiti.pm.ProcessDefinitionMetadataCache;
+import org.activiti.pm.archive.ArchiveSegment;
+import org.activiti.pm.archive.ArchiveSegment.StringColumn;
+import org.activiti.pm.archive.ProcessInstanceArchive;
+import org.activiti.pm.filter.variable.QueryVariable;
+import org.activiti.pm.request.IHistoricProcessInstanceQueryRequest;
+import org.activiti.pm.request.KeysetToken;
+import org.activiti.pm.request.MergedQuery;
+
+/**
+ * Answers a historic process instance filter from {@link ProcessInstanceArchive}
+ * with the same semantics as {@link HistoricProcessInstanceFilterResource}.
+ * Segments are skipped by ranges of start and end times, conditions on string
+ * fields are compared by dictionary codes. Conditions on variables which are
+ * not archived match no archived process instance.
+ *
+ * @author Dmitry Farafonov
+ */
+public class HistoricProcessInstanceArchiveQuery implements MergedQuery {
+
+  private static final Set<String> sortProperties = new HashSet<String>();
+
+  static {
+    sortProperties.add("id");
+    sortProperties.add("processInstanceId");
+    sortProperties.add("processDefinitionId");
+    sortProperties.add("processDefinitionName");
+    sortProperties.add("businessKey");
+    sortProperties.add("startTime");
+    sortProperties.add("endTime");
+    sortProperties.add("duration");
+    sortProperties.add("tenantId");
+  }
+
+  /** code of a value which is not in a column */
+  private static final int NO_CODE = -2;
+
+  protected ProcessInstanceArchive archive;
+  protected ProcessDefinitionMetadataCache processDefinitionMetadataCache;
+  protected IHistoricProcessInstanceQueryRequest queryRequest;
+  protected List<String> variableNames;
+
+  private final List<ArchiveSegment> segments;
+  private final Pattern tenantIdPattern;
+  private final List<VariableCondition> variableConditions = new ArrayList<VariableCondition>();
+  private final boolean matchesNothing;
+  /** process definition keys by id, null of not existing definitions too */
+  private final Map<String, String> processDefinitionKeys = new HashMap<String, String>();
+  private List<long[]> matches;
+  /** sort and order of the previous page, next pages of it seek in sorted keys */
+  private String listedSort;
+  private List<RowKey> sortedKeys;
+
+  /**
+   * @param archive
+   * @param processDefinitionMetadataCache
+   * @param filterRequestFactory
+   * @param queryRequest
+   * @param variableNames
+   *          names of returned variables, null for all, empty for none
+   */
+  public HistoricProcessInstanceArchiveQuery(ProcessInstanceArchive archive,
+      ProcessDefinitionMetadataCache processDefinitionMetadataCache, FilterRequestFactory filterRequestFactory,
+      IHistoricProcessInstanceQueryRequest queryRequest, List<String> variableNames) {
+    this.archive = archive;
+    this.processDefinitionMetadataCache = processDefinitionMetadataCache;
+    this.queryRequest = queryRequest;
+    this.variableNames = variableNames;
+    this.segments = new ArrayList<ArchiveSegment>(archive.getSegments());
+    tenantIdPattern = (queryRequest.getTenantIdLike() != null) ? VariableCondition.toPattern(queryRequest
+        .getTenantIdLike()) : null;
+    boolean archivedVariables = true;
+    if (queryRequest.getVariables() != null) {
+      for (QueryVariable variable : queryRequest.getVariables()) {
+        VariableCondition condition = VariableCondition.create(filterRequestFactory, variable);
+        variableConditions.add(condition);
+        if (condition.getName() != null && !archive.isVariableArchived(condition.getName())) {
+          archivedVariables = false;
+        }
+      }
+    }
+    // archived process instances are finished
+    matchesNothing = !archivedVariables || Boolean.FALSE.equals(queryRequest.getFinished());
+  }
+
+  @Override
+  public boolean isSortSupported(String sort) {
+    return sortProperties.contains(sort);
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public Comparator getComparator(final String sort, String order) {
+    final boolean asc = "asc".equals(order);
+    return new Comparator<HistoricProcessInstance>() {
+      @Override
+      public int compare(HistoricProcessInstance o1, HistoricProcessInstance o2) {
+        int result = compareValues(getSortValue(o1, sort), getSortValue(o2, sort));
+        if (result == 0) {
+          result = o1.getId().compareTo(o2.getId());
+        }
+        return asc ? result : -result;
+      }
+    };
+  }
+
+  @Override
+  public List<HistoricProcessInstance> listFirstRows(String sort, String order, int maxResults) {
+    return listRowsAfter(sort, order, null, maxResults);
+  }
+
+  /**
+   * Returns rows after the position of a keyset page, in the order of
+   * {@link #getComparator(String, String)}. The first page of a sort keeps the
+   * best rows in a heap of maxResults rows, next pages of the same sort, i.e.
+   * batches of an export, seek in the matches sorted once.
+   *
+   * @param sort
+   * @param order
+   * @param after position of the last row of the previous page, null for the first page
+   * @param maxResults
+   * @return
+   */
+  @SuppressWarnings("rawtypes")
+  public List<HistoricProcessInstance> listRowsAfter(String sort, String order, KeysetToken after, int maxResults) {
+    boolean asc = "asc".equals(order);
+    RowKey afterKey = (after != null) ? new RowKey(-1, -1, toSortValue(sort, after.getKey()), after.getId()) : null;
+    List<RowKey> page;
+    if ((sort + " " + order).equals(listedSort)) {
+      if (sortedKeys == null) {
+        sortedKeys = getRowKeys(sort);
+        Collections.sort(sortedKeys, new RowKeyComparator(asc));
+      }
+      int from = 0;
+      if (afterKey != null) {
+        int index = Collections.binarySearch(sortedKeys, afterKey, new RowKeyComparator(asc));
+        from = (index >= 0) ? index + 1 : -index - 1;
+      }
+      page = sortedKeys.subList(from, Math.min(from + maxResults, sortedKeys.size()));
+    } else {
+      listedSort = sort + " " + order;
+      sortedKeys = null;
+      page = listTopRows(sort, asc, afterKey, maxResults);
+    }
+    List<HistoricProcessInstance> processInstances = new ArrayList<HistoricProcessInstance>(page.size());
+    for (RowKey key : page) {
+      processInstances.add(archive.getProcessInstance(segments.get(key.segment), key.row, variableNames));
+    }
+    return processInstances;
+  }
+
+  /**
+   * Selects the first rows after the key with a heap of maxResults rows, the
+   * worst of them on top
+   */
+  @SuppressWarnings("rawtypes")
+  private List<RowKey> listTopRows(String sort, boolean asc, RowKey afterKey, int maxResults) {
+    if (maxResults <= 0) {
+      return Collections.emptyList();
+    }
+    RowKeyComparator comparator = new RowKeyComparator(asc);
+    PriorityQueue<RowKey> heap = new PriorityQueue<RowKey>(Math.min(maxResults, 1024),
+        Collections.reverseOrder(comparator));
+    int segmentIndex = -1;
+    StringColumn ids = null;
+    Object sortColumn = null;
+    for (long[] match : getMatches()) {
+      int row = (int) match[1];
+      if (match[0] != segmentIndex) {
+        segmentIndex = (int) match[0];
+        ids = segments.get(segmentIndex).getStrings(ArchiveSegment.ID);
+        sortColumn = getSortColumn(segments.get(segmentIndex), sort);
+      }
+      Comparable value = getSortValue(sortColumn, row, sort);
+      String id = ids.get(row);
+      if (afterKey != null && comparator.compare(value, id, afterKey) <= 0) {
+        continue;
+      }
+      if (heap.size() < maxResults) {
+        heap.add(new RowKey(segmentIndex, row, value, id));
+      } else if (comparator.compare(value, id, heap.peek()) < 0) {
+        heap.poll();
+        heap.add(new RowKey(segmentIndex, row, value, id));
+      }
+    }
+    List<RowKey> rows = new ArrayList<RowKey>(heap);
+    Collections.sort(rows, comparator);
+    return rows;
+  }
+
+  /**
+   * @return sort keys of all matches, columns are read once per segment
+   */
+  private List<RowKey> getRowKeys(String sort) {
+    List<RowKey> keys = new ArrayList<RowKey>(getMatches().size());
+    int segmentIndex = -1;
+    StringColumn ids = null;
+    Object sortColumn = null;
+    for (long[] match : getMatches()) {
+      int row = (int) match[1];
+      if (match[0] != segmentIndex) {
+        segmentIndex = (int) match[0];
+        ids = segments.get(segmentIndex).getStrings(ArchiveSegment.ID);
+        sortColumn = getSortColumn(segments.get(segmentIndex), sort);
+      }
+      keys.add(new RowKey(segmentIndex, row, getSortValue(sortColumn, row, sort), ids.get(row)));
+    }
+    return keys;
+  }
+
+  @Override
+  public long count() {
+    return getMatches().size();
+  }
+
+  /**
+   * @return matching rows as pairs of segment index and row
+   */
+  private List<long[]> getMatches() {
+    if (matches == null) {
+      matches = new ArrayList<long[]>();
+      if (!matchesNothing) {
+        for (int i = 0; i < segments.size(); i++) {
+          collectMatches(i, segments.get(i), matches);
+        }
+      }
+    }
+    return matches;
+  }
+
+  private void collectMatches(int segmentIndex, ArchiveSegment segment, List<long[]> result) {
+    if (!segment.overlaps(queryRequest.getStartedAfter(), queryRequest.getStartedBefore(),
+        queryRequest.getFinishedAfter(), queryRequest.getFinishedBefore())) {
+      return;
+    }
+    StringColumn ids = segment.getStrings(ArchiveSegment.ID);
+    int idCode = getCode(ids, queryRequest.getProcessInstanceId());
+    Set<Integer> idCodes = null;
+    if (queryRequest.getProcessInstanceIds() != null && !queryRequest.getProcessInstanceIds().isEmpty()) {
+      idCodes = new HashSet<Integer>();
+      for (String id : queryRequest.getProcessInstanceIds()) {
+        int code = ids.getCode(id);
+        if (code >= 0) {
+          idCodes.add(code);
+        }
+      }
+      if (idCodes.isEmpty()) {
+        return;
+      }
+    }
+    StringColumn definitions = segment.getStrings(ArchiveSegment.PROCESS_DEFINITION_ID);
+    int definitionCode = getCode(definitions, queryRequest.getProcessDefinitionId());
+    boolean[] definitionKeyMatches = null;
+    if (queryRequest.getProcessDefinitionKey() != null) {
+      definitionKeyMatches = new boolean[definitions.getDictionarySize()];
+      for (int code = 0; code < definitionKeyMatches.length; code++) {
+        definitionKeyMatches[code] = queryRequest.getProcessDefinitionKey().equals(
+            getProcessDefinitionKey(definitions.getDictionaryValue(code)));
+      }
+    }
+    StringColumn businessKeys = segment.getStrings(ArchiveSegment.BUSINESS_KEY);
+    int businessKeyCode = getCode(businessKeys, queryRequest.getProcessBusinessKey());
+    StringColumn superProcessInstanceIds = segment.getStrings(ArchiveSegment.SUPER_PROCESS_INSTANCE_ID);
+    int superProcessInstanceCode = getCode(superProcessInstanceIds, queryRequest.getSuperProcessInstanceId());
+    StringColumn startUserIds = segment.getStrings(ArchiveSegment.START_USER_ID);
+    int startUserCode = getCode(startUserIds, queryRequest.getStartedBy());
+    StringColumn tenantIds = segment.getStrings(ArchiveSegment.TENANT_ID);
+    int tenantCode = getCode(tenantIds, queryRequest.getTenantId());
+    boolean[] tenantMatches = null;
+    if (tenantIdPattern != null || Boolean.TRUE.equals(queryRequest.getWithoutTenantId())) {
+      tenantMatches = new boolean[tenantIds.getDictionarySize()];
+      for (int code = 0; code < tenantMatches.length; code++) {
+        String tenantId = tenantIds.getDictionaryValue(code);
+        tenantMatches[code] = (tenantIdPattern == null || tenantIdPattern.matcher(tenantId).matches())
+            && (!Boolean.TRUE.equals(queryRequest.getWithoutTenantId()) || tenantId.length() == 0);
+      }
+    }
+    StringColumn involvedUsers = segment.getStrings(ArchiveSegment.INVOLVED_USERS);
+    boolean[] involvedUserMatches = null;
+    if (queryRequest.getInvolvedUser() != null) {
+      involvedUserMatches = new boolean[involvedUsers.getDictionarySize()];
+      for (int code = 0; code < involvedUserMatches.length; code++) {
+        involvedUserMatches[code] = ("\n" + involvedUsers.getDictionaryValue(code) + "\n").contains("\n"
+            + queryRequest.getInvolvedUser() + "\n");
+      }
+    }
+    if (idCode == NO_CODE || definitionCode == NO_CODE || businessKeyCode == NO_CODE
+        || superProcessInstanceCode == NO_CODE || startUserCode == NO_CODE || tenantCode == NO_CODE) {
+      return;
+    }
+    long[] startTimes = segment.getLongs(ArchiveSegment.START_TIME);
+    long[] endTimes = segment.getLongs(ArchiveSegment.END_TIME);
+    boolean excludeSubprocesses = Boolean.TRUE.equals(queryRequest.getExcludeSubprocesses());
+
+    for (int row = 0; row < segment.getRowCount(); row++) {
+      if ((idCode >= 0 && ids.getCode(row) != idCode) || (idCodes != null && !idCodes.contains(ids.getCode(row)))) {
+        continue;
+      }
+      if (definitionCode >= 0 && definitions.getCode(row) != definitionCode) {
+        continue;
+      }
+      if (definitionKeyMatches != null && (definitions.getCode(row) < 0 || !definitionKeyMatches[definitions
+          .getCode(row)])) {
+        continue;
+      }
+      if (businessKeyCode >= 0 && businessKeys.getCode(row) != businessKeyCode) {
+        continue;
+      }
+      if (superProcessInstanceCode >= 0 && superProcessInstanceIds.getCode(row) != superProcessInstanceCode) {
+        continue;
+      }
+      if (excludeSubprocesses && superProcessInstanceIds.getCode(row) >= 0) {
+        continue;
+      }
+      if (startUserCode >= 0 && startUserIds.getCode(row) != startUserCode) {
+        continue;
+      }
+      if (tenantCode >= 0 && tenantIds.getCode(row) != tenantCode) {
+        continue;
+      }
+      if (tenantMatches != null) {
+        int code = tenantIds.getCode(row);
+        // without tenant matches null tenant too, like the engine query
+        boolean matches = (code >= 0) ? tenantMatches[code] : tenantIdPattern == null;
+        if (!matches) {
+          continue;
+        }
+      }
+      if (involvedUserMatches != null
+          && (involvedUsers.getCode(row) < 0 || !involvedUserMatches[involvedUsers.getCode(row)])) {
+        continue;
+      }
+      if (!matchesTime(startTimes[row], queryRequest.getStartedAfter(), queryRequest.getStartedBefore())
+          || !matchesTime(endTimes[row], queryRequest.getFinishedAfter(), queryRequest.getFinishedBefore())) {
+        continue;
+      }
+      if (!variableConditions.isEmpty() && !matchesVariables(segment, row)) {
+        continue;
+      }
+      result.add(new long[] { segmentIndex, row });
+    }
+  }
+
+  private boolean matchesVariables(ArchiveSegment segment, int row) {
+    Map<String, Object> variables = archive.getVariables(segment, row);
+    for (VariableCondition condition : variableConditions) {
+      if (!condition.matches(variables)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return -1 if the value is null, {@link #NO_CODE} if no row has the value
+   */
+  private static int getCode(StringColumn column, String value) {
+    return (value == null) ? -1 : column.getCode(value);
+  }
+
+  private static boolean matchesTime(long time, Date after, Date before) {
+    if (after == null && before == null) {
+      return true;
+    }
+    if (time == ArchiveSegment.NULL_LONG) {
+      return false;
+    }
+    return (after == null || time >= after.getTime()) && (before == null || time <= before.getTime());
+  }
+
+  @SuppressWarnings("rawtypes")
+  private Comparable getSortValue(HistoricProcessInstance instance, String sort) {
+    if ("processDefinitionId".equals(sort)) {
+      return instance.getProcessDefinitionId();
+    } else if ("processDefinitionName".equals(sort)) {
+      return getProcessDefinitionKey(instance.getProcessDefinitionId());
+    } else if ("businessKey".equals(sort)) {
+      return instance.getBusinessKey();
+    } else if ("startTime".equals(sort)) {
+      return instance.getStartTime() != null ? instance.getStartTime().getTime() : null;
+    } else if ("endTime".equals(sort)) {
+      return instance.getEndTime() != null ? instance.getEndTime().getTime() : null;
+    } else if ("duration".equals(sort)) {
+      return instance.getDurationInMillis();
+    } else if ("tenantId".equals(sort)) {
+      return instance.getTenantId();
+    }
+    return instance.getId();
+  }
+
+  /**
+   * @return column of the sort property, {@link StringColumn} or long[]
+   */
+  private static Object getSortColumn(ArchiveSegment segment, String sort) {
+    if ("processDefinitionId".equals(sort) || "processDefinitionName".equals(sort)) {
+      return segment.getStrings(ArchiveSegment.PROCESS_DEFINITION_ID);
+    } else if ("businessKey".equals(sort)) {
+      return segment.getStrings(ArchiveSegment.BUSINESS_KEY);
+    } else if ("startTime".equals(sort)) {
+      return segment.getLongs(ArchiveSegment.START_TIME);
+    } else if ("endTime".equals(sort)) {
+      return segment.getLongs(ArchiveSegment.END_TIME);
+    } else if ("duration".equals(sort)) {
+      return segment.getLongs(ArchiveSegment.DURATION);
+    } else if ("tenantId".equals(sort)) {
+      return segment.getStrings(ArchiveSegment.TENANT_ID);
+    }
+    return segment.getStrings(ArchiveSegment.ID);
+  }
+
+  /**
+   * @param column column returned by {@link #getSortColumn(ArchiveSegment, String)}
+   */
+  @SuppressWarnings("rawtypes")
+  private Comparable getSortValue(Object column, int row, String sort) {
+    if (column instanceof long[]) {
+      return toLong(((long[]) column)[row]);
+    }
+    String value = ((StringColumn) column).get(row);
+    return "processDefinitionName".equals(sort) ? getProcessDefinitionKey(value) : value;
+  }
+
+  /**
+   * Sort value of the key of a continuation token, times and durations are
+   * numbers of any type after decoding
+   */
+  @SuppressWarnings("rawtypes")
+  private static Comparable toSortValue(String sort, Object key) {
+    if (key == null) {
+      return null;
+    }
+    if ("startTime".equals(sort) || "endTime".equals(sort) || "duration".equals(sort)) {
+      return ((Number) key).longValue();
+    }
+    return key.toString();
+  }
+
+  /**
+   * @param processDefinitionId
+   * @return key of the process definition or null if it does not exist, as
+   *         joined DEF.KEY_ of the database query
+   */
+  private String getProcessDefinitionKey(String processDefinitionId) {
+    if (processDefinitionId == null) {
+      return null;
+    }
+    if (!processDefinitionKeys.containsKey(processDefinitionId)) {
+      ProcessDefinitionMetadata metadata = processDefinitionMetadataCache.get(processDefinitionId);
+      processDefinitionKeys.put(processDefinitionId, (metadata != null) ? metadata.getKey() : null);
+    }
+    return processDefinitionKeys.get(processDefinitionId);
+  }
+
+  private static Long toLong(long value) {
+    return (value != ArchiveSegment.NULL_LONG) ? value : null;
+  }
+
+  /**
+   * Sort value and id of a matching row
+   */
+  private static class RowKey {
+    final int segment;
+    final int row;
+    @SuppressWarnings("rawtypes")
+    final Comparable value;
+    final String id;
+
+    @SuppressWarnings("rawtypes")
+    RowKey(int segment, int row, Comparable value, String id) {
+      this.segment = segment;
+      this.row = row;
+      this.value = value;
+      this.id = id;
+    }
+  }
+
+  /**
+   * Order of {@link #getComparator(String, String)}
+   */
+  private static class RowKeyComparator implements Comparator<RowKey> {
+    private final boolean asc;
+
+    RowKeyComparator(boolean asc) {
+      this.asc = asc;
+    }
+
+    @Override
+    public int compare(RowKey o1, RowKey o2) {
+      return compare(o1.value, o1.id, o2);
+    }
+
+    @SuppressWarnings("rawtypes")
+    int compare(Comparable value, String id, RowKey key) {
+      int result = compareValues(value, key.value);
+      if (result == 0) {
+        result = id.compareTo(key.id);
+      }
+      return asc ? result : -result;
+    }
+  }
+
+  /**
+   * Nulls after values in ascending order
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private static int compareValues(Comparable v1, Comparable v2) {
+    if (v1 == null) {
+      return (v2 == null) ? 0 : 1;
+    }
+    return (v2 == null) ? -1 : v1.compareTo(v2);
+  }
+}
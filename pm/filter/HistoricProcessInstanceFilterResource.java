@@ -4,18 +4,27 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.activiti.engine.ActivitiIllegalArgumentException;
 import org.activiti.engine.HistoryService;
+import org.activiti.engine.ManagementService;
 import org.activiti.engine.history.HistoricProcessInstanceQuery;
 import org.activiti.engine.impl.HistoricProcessInstanceQueryProperty;
 import org.activiti.engine.query.Query;
 import org.activiti.engine.query.QueryProperty;
+import org.activiti.pm.ProcessDefinitionMetadataCache;
+import org.activiti.pm.archive.ProcessInstanceArchive;
 import org.activiti.pm.filter.variable.QueryVariable;
 import org.activiti.pm.filter.variable.QueryVariable.QueryVariableOperation;
+import org.activiti.pm.index.VariableValueIndex;
 import org.activiti.pm.request.AbstractFilterResource;
+import org.activiti.pm.request.DataResponse;
 import org.activiti.pm.request.IHistoricProcessInstanceQueryRequest;
+import org.activiti.pm.request.KeysetQuery;
+import org.activiti.pm.request.PaginateRequest;
 import org.activiti.pm.request.QueryPaginateList;
+import org.activiti.pm.request.QueryRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -25,6 +34,18 @@ public class HistoricProcessInstanceFilterResource extends AbstractFilterResourc
   @Autowired
   HistoryService historyService;
 
+  @Autowired
+  ManagementService managementService;
+
+  @Autowired
+  VariableValueIndex variableValueIndex;
+
+  @Autowired
+  ProcessDefinitionMetadataCache processDefinitionMetadataCache;
+
+  @Autowired
+  ProcessInstanceArchive processInstanceArchive;
+
   protected static Map<String, QueryProperty> allowedSortProperties = new HashMap<String, QueryProperty>();
 
   static {
@@ -100,14 +121,8 @@ public class HistoricProcessInstanceFilterResource extends AbstractFilterResourc
       }
     }
 
-    if (queryRequest.getIncludeProcessVariables() != null) {
-      if (queryRequest.getIncludeProcessVariables()) {
-        query.includeProcessVariables();
-      }
-    }
-
     if (queryRequest.getVariables() != null) {
-      addVariables(query, queryRequest.getVariables());
+      addVariables(query, queryRequest.getVariables(), queryRequest.getProcessInstanceIds());
     }
 
     if (queryRequest.getTenantId() != null) {
@@ -127,7 +142,8 @@ public class HistoricProcessInstanceFilterResource extends AbstractFilterResourc
     return query;
   }
 
-  protected void addVariables(HistoricProcessInstanceQuery processInstanceQuery, List<QueryVariable> variables) {
+  protected void addVariables(HistoricProcessInstanceQuery processInstanceQuery, List<QueryVariable> variables,
+      List<String> processInstanceIds) {
     for (QueryVariable variable : variables) {
       if (variable.getVariableOperation() == null) {
         throw new ActivitiIllegalArgumentException("Variable operation is missing for variable: " + variable.getName());
@@ -200,14 +216,76 @@ public class HistoricProcessInstanceFilterResource extends AbstractFilterResourc
             "Unsupported variable query operation: " + variable.getVariableOperation());
       }
     }
+
+    // the index holds a superset of matches, conditions above stay to check candidates
+    Set<String> candidateIds = variableValueIndex.restrictProcessInstanceIds(filterRequestFactory, variables,
+        processInstanceIds);
+    if (candidateIds != null) {
+      processInstanceQuery.processInstanceIds(candidateIds);
+    }
+  }
+
+  /**
+   * Pages over the database and the archive of ended process instances when
+   * archived instances may match, up to offset
+   * <code>processmanager.archive.maxOffset</code>. Keyset pages are merged by
+   * {@link #getKeysetQuery(IHistoricProcessInstanceQueryRequest)}.
+   */
+  @Override
+  protected DataResponse queryFilteredList(QueryRequest<IHistoricProcessInstanceQueryRequest> queryRequest,
+      Map<String, String> allRequestParams) {
+    IHistoricProcessInstanceQueryRequest historicQueryRequest = (IHistoricProcessInstanceQueryRequest) queryRequest;
+    if (!isKeysetPagination((PaginateRequest) queryRequest, allRequestParams)) {
+      HistoricProcessInstanceArchiveQuery archiveQuery = getArchiveQuery(historicQueryRequest);
+      if (archiveQuery != null && archiveQuery.count() > 0) {
+        QueryPaginateList paginateList = createPaginateList();
+        paginateList.setPaginateTotals(paginateTotals);
+        paginateList.setVariableNames(getVariableNames(queryRequest));
+        int maxOffset = environment.getProperty("processmanager.archive.maxOffset", Integer.class, 10000);
+        return paginateList.paginateMergedList(allRequestParams, (PaginateRequest) queryRequest,
+            getDatabaseKeysetQuery(historicQueryRequest), archiveQuery, "processInstanceId", maxOffset);
+      }
+    }
+    return super.queryFilteredList(queryRequest, allRequestParams);
   }
 
   @SuppressWarnings("rawtypes")
   @Override
   protected Query getQuery(IHistoricProcessInstanceQueryRequest queryRequest) {
-    HistoricProcessInstanceQuery query = getHistoricProcessInstanceQuery(queryRequest);
-    query.includeProcessVariables();
-    return query;
+    return getHistoricProcessInstanceQuery(queryRequest);
+  }
+
+  /**
+   * Keyset pages and exports include archived process instances when they may
+   * match
+   */
+  @Override
+  protected KeysetQuery getKeysetQuery(IHistoricProcessInstanceQueryRequest queryRequest) {
+    KeysetQuery keysetQuery = getDatabaseKeysetQuery(queryRequest);
+    HistoricProcessInstanceArchiveQuery archiveQuery = getArchiveQuery(queryRequest);
+    if (archiveQuery != null && archiveQuery.count() > 0) {
+      return new HistoricProcessInstanceMergedKeysetQuery(keysetQuery, archiveQuery);
+    }
+    return keysetQuery;
+  }
+
+  private KeysetQuery getDatabaseKeysetQuery(IHistoricProcessInstanceQueryRequest queryRequest) {
+    HistoricProcessInstanceSqlBuilder sqlBuilder = new HistoricProcessInstanceSqlBuilder(managementService,
+        filterRequestFactory, queryRequest);
+    return new HistoricProcessInstanceKeysetQuery(historyService, sqlBuilder, processDefinitionMetadataCache);
+  }
+
+  /**
+   * @param queryRequest
+   * @return query of archived process instances or null if nothing is
+   *         archived
+   */
+  private HistoricProcessInstanceArchiveQuery getArchiveQuery(IHistoricProcessInstanceQueryRequest queryRequest) {
+    if (!processInstanceArchive.isEnabled() || processInstanceArchive.getSegments().isEmpty()) {
+      return null;
+    }
+    return new HistoricProcessInstanceArchiveQuery(processInstanceArchive, processDefinitionMetadataCache,
+        filterRequestFactory, queryRequest, getVariableNames(queryRequest));
   }
 
   @Override
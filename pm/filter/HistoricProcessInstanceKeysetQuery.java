@@ -0,0 +1,131 @@
+package org.activiti.pm.filter;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.activiti.engine.HistoryService;
+import org.activiti.engine.history.HistoricProcessInstance;
+import org.activiti.engine.history.NativeHistoricProcessInstanceQuery;
+import org.activiti.pm.ProcessDefinitionMetadata;
+import org.activiti.pm.ProcessDefinitionMetadataCache;
+import org.activiti.pm.request.KeysetQuery;
+import org.activiti.pm.request.KeysetToken;
+
+/**
+ * Keyset pagination of historic process instances. Rows are ordered by the
+ * sort column, nulls after values in ascending order, and by id as a tie
+ * breaker, so every row has a unique position and the next page is selected
+ * with a range predicate on (sort column, id) instead of an offset.
+ *
+ * @author Dmitry Farafonov
+ */
+public class HistoricProcessInstanceKeysetQuery implements KeysetQuery {
+
+  protected static Map<String, String> sortColumns = new HashMap<String, String>();
+
+  static {
+    sortColumns.put("id", "RES.ID_");
+    sortColumns.put("processInstanceId", "RES.ID_");
+    sortColumns.put("processDefinitionId", "RES.PROC_DEF_ID_");
+    sortColumns.put("processDefinitionName", "DEF.KEY_");
+    sortColumns.put("businessKey", "RES.BUSINESS_KEY_");
+    sortColumns.put("startTime", "RES.START_TIME_");
+    sortColumns.put("endTime", "RES.END_TIME_");
+    sortColumns.put("duration", "RES.DURATION_");
+    sortColumns.put("tenantId", "RES.TENANT_ID_");
+  }
+
+  protected HistoryService historyService;
+  protected HistoricProcessInstanceSqlBuilder sqlBuilder;
+  protected ProcessDefinitionMetadataCache processDefinitionMetadataCache;
+
+  public HistoricProcessInstanceKeysetQuery(HistoryService historyService, HistoricProcessInstanceSqlBuilder sqlBuilder,
+      ProcessDefinitionMetadataCache processDefinitionMetadataCache) {
+    this.historyService = historyService;
+    this.sqlBuilder = sqlBuilder;
+    this.processDefinitionMetadataCache = processDefinitionMetadataCache;
+  }
+
+  @Override
+  public boolean isSortSupported(String sort) {
+    return sortColumns.containsKey(sort);
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public List listPage(String sort, String order, KeysetToken after, int size) {
+    String column = sortColumns.get(sort);
+    boolean asc = "asc".equals(order);
+
+    String seek = null;
+    if (after != null) {
+      seek = sqlBuilder.getSeekCondition(column, asc, toParameter(sort, after.getKey()),
+          sqlBuilder.parameter("keysetId", after.getId()));
+    }
+    String orderBy = sqlBuilder.getKeysetOrderBy(column, asc);
+
+    NativeHistoricProcessInstanceQuery query = historyService.createNativeHistoricProcessInstanceQuery();
+    sqlBuilder.applyParameters(query);
+    return query.sql(sqlBuilder.select("RES.*", seek, orderBy)).listPage(0, size);
+  }
+
+  private String toParameter(String sort, Object key) {
+    if (key == null) {
+      return null;
+    }
+    if ("startTime".equals(sort) || "endTime".equals(sort)) {
+      return sqlBuilder.parameter("keysetKey", new Date(((Number) key).longValue()));
+    }
+    if ("duration".equals(sort)) {
+      return sqlBuilder.parameter("keysetKey", ((Number) key).longValue());
+    }
+    return sqlBuilder.parameter("keysetKey", key.toString());
+  }
+
+  @Override
+  public KeysetToken getToken(String sort, String order, Object row) {
+    HistoricProcessInstance historicProcessInstance = (HistoricProcessInstance) row;
+    Object key;
+    if ("processDefinitionId".equals(sort)) {
+      key = historicProcessInstance.getProcessDefinitionId();
+    } else if ("processDefinitionName".equals(sort)) {
+      // DEF.KEY_, the definition id is not always 'key:version:id'
+      key = getProcessDefinitionKey(historicProcessInstance.getProcessDefinitionId());
+    } else if ("businessKey".equals(sort)) {
+      key = historicProcessInstance.getBusinessKey();
+    } else if ("startTime".equals(sort)) {
+      key = historicProcessInstance.getStartTime() != null ? historicProcessInstance.getStartTime().getTime() : null;
+    } else if ("endTime".equals(sort)) {
+      key = historicProcessInstance.getEndTime() != null ? historicProcessInstance.getEndTime().getTime() : null;
+    } else if ("duration".equals(sort)) {
+      key = historicProcessInstance.getDurationInMillis();
+    } else if ("tenantId".equals(sort)) {
+      key = historicProcessInstance.getTenantId();
+    } else {
+      key = historicProcessInstance.getId();
+    }
+    return new KeysetToken(sort, order, key, historicProcessInstance.getId());
+  }
+
+  /**
+   * @param processDefinitionId
+   * @return key of the process definition or null if it does not exist, as
+   *         joined DEF.KEY_
+   */
+  private String getProcessDefinitionKey(String processDefinitionId) {
+    if (processDefinitionId == null) {
+      return null;
+    }
+    ProcessDefinitionMetadata metadata = processDefinitionMetadataCache.get(processDefinitionId);
+    return (metadata != null) ? metadata.getKey() : null;
+  }
+
+  @Override
+  public long count() {
+    NativeHistoricProcessInstanceQuery query = historyService.createNativeHistoricProcessInstanceQuery();
+    sqlBuilder.applyParameters(query);
+    return query.sql(sqlBuilder.select("COUNT(RES.ID_)", null)).count();
+  }
+}
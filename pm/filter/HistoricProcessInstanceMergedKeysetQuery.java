@@ -0,0 +1,51 @@
+package org.activiti.pm.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.activiti.pm.request.KeysetQuery;
+import org.activiti.pm.request.KeysetToken;
+
+/**
+ * Keyset pagination over the database and the archive of ended process
+ * instances. Both are ordered by the sort property and id, so a page is the
+ * first rows of the merged pages of both after the same position.
+ *
+ * @author Dmitry Farafonov
+ */
+public class HistoricProcessInstanceMergedKeysetQuery implements KeysetQuery {
+
+  protected KeysetQuery databaseQuery;
+  protected HistoricProcessInstanceArchiveQuery archiveQuery;
+
+  public HistoricProcessInstanceMergedKeysetQuery(KeysetQuery databaseQuery,
+      HistoricProcessInstanceArchiveQuery archiveQuery) {
+    this.databaseQuery = databaseQuery;
+    this.archiveQuery = archiveQuery;
+  }
+
+  @Override
+  public boolean isSortSupported(String sort) {
+    return databaseQuery.isSortSupported(sort) && archiveQuery.isSortSupported(sort);
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  @Override
+  public List listPage(String sort, String order, KeysetToken after, int size) {
+    List rows = new ArrayList(databaseQuery.listPage(sort, order, after, size));
+    rows.addAll(archiveQuery.listRowsAfter(sort, order, after, size));
+    Collections.sort(rows, archiveQuery.getComparator(sort, order));
+    return rows.subList(0, Math.min(size, rows.size()));
+  }
+
+  @Override
+  public KeysetToken getToken(String sort, String order, Object row) {
+    return databaseQuery.getToken(sort, order, row);
+  }
+
+  @Override
+  public long count() {
+    return databaseQuery.count() + archiveQuery.count();
+  }
+}
@@ -2,6 +2,7 @@ package org.activiti.pm.filter;
 
 import java.util.List;
 
+import org.activiti.engine.history.HistoricProcessInstance;
 import org.activiti.pm.request.QueryPaginateList;
 
 /**
@@ -15,9 +16,14 @@ public class HistoricProcessInstancePaginateList extends QueryPaginateList {
     this.filterRequestFactory = filterRequestFactory;
   }
 
+  @Override
+  protected Class<?> getStatisticsEntity() {
+    return HistoricProcessInstance.class;
+  }
+
   @SuppressWarnings({ "rawtypes", "unchecked" })
   @Override
   protected List processList(List list) {
-    return filterRequestFactory.createHistoricProcessInstanceResponseList(list);
+    return filterRequestFactory.createHistoricProcessInstanceResponseList(list, variableNames);
   }
 }
@@ -0,0 +1,109 @@
+package org.activiti.pm.filter;
+
+import org.activiti.engine.ManagementService;
+import org.activiti.engine.history.HistoricProcessInstance;
+import org.activiti.engine.history.HistoricVariableInstance;
+import org.activiti.engine.impl.persistence.entity.HistoricIdentityLinkEntity;
+import org.activiti.engine.repository.ProcessDefinition;
+import org.activiti.pm.filter.variable.QueryVariable;
+import org.activiti.pm.filter.variable.QueryVariable.QueryVariableOperation;
+import org.activiti.pm.request.IHistoricProcessInstanceQueryRequest;
+
+/**
+ * Translates a historic process instance filter to native SQL with the same
+ * semantics as {@link HistoricProcessInstanceFilterResource}. Native SQL is
+ * needed where the query API has no way to express a condition, i.e. seek
+ * predicates of keyset pagination. Historic process instance is aliased
+ * <code>RES</code> and its process definition <code>DEF</code>.
+ *
+ * @author Dmitry Farafonov
+ */
+public class HistoricProcessInstanceSqlBuilder extends AbstractProcessInstanceSqlBuilder {
+
+  private final String processInstanceTable;
+  private final String processDefinitionTable;
+  private final String identityLinkTable;
+  private final String variableTable;
+
+  public HistoricProcessInstanceSqlBuilder(ManagementService managementService,
+      FilterRequestFactory filterRequestFactory, IHistoricProcessInstanceQueryRequest queryRequest) {
+    this.processInstanceTable = managementService.getTableName(HistoricProcessInstance.class);
+    this.processDefinitionTable = managementService.getTableName(ProcessDefinition.class);
+    this.identityLinkTable = managementService.getTableName(HistoricIdentityLinkEntity.class);
+    this.variableTable = managementService.getTableName(HistoricVariableInstance.class);
+    addConditions(filterRequestFactory, queryRequest);
+  }
+
+  private void addConditions(FilterRequestFactory filterRequestFactory, IHistoricProcessInstanceQueryRequest queryRequest) {
+    if (queryRequest.getProcessInstanceId() != null) {
+      and("RES.PROC_INST_ID_ = " + parameter(queryRequest.getProcessInstanceId()));
+    }
+    if (queryRequest.getProcessInstanceIds() != null && !queryRequest.getProcessInstanceIds().isEmpty()) {
+      and(in("RES.PROC_INST_ID_", queryRequest.getProcessInstanceIds()));
+    }
+    if (queryRequest.getProcessDefinitionKey() != null) {
+      and("DEF.KEY_ = " + parameter(queryRequest.getProcessDefinitionKey()));
+    }
+    if (queryRequest.getProcessDefinitionId() != null) {
+      and("RES.PROC_DEF_ID_ = " + parameter(queryRequest.getProcessDefinitionId()));
+    }
+    if (queryRequest.getProcessBusinessKey() != null) {
+      and("RES.BUSINESS_KEY_ = " + parameter(queryRequest.getProcessBusinessKey()));
+    }
+    if (queryRequest.getInvolvedUser() != null) {
+      and("EXISTS (SELECT LINK.USER_ID_ FROM " + identityLinkTable + " LINK WHERE LINK.USER_ID_ = "
+          + parameter(queryRequest.getInvolvedUser()) + " AND LINK.PROC_INST_ID_ = RES.ID_)");
+    }
+    if (queryRequest.getSuperProcessInstanceId() != null) {
+      and("RES.SUPER_PROCESS_INSTANCE_ID_ = " + parameter(queryRequest.getSuperProcessInstanceId()));
+    }
+    if (Boolean.TRUE.equals(queryRequest.getExcludeSubprocesses())) {
+      and("RES.SUPER_PROCESS_INSTANCE_ID_ IS NULL");
+    }
+    if (queryRequest.getFinishedAfter() != null) {
+      and("RES.END_TIME_ >= " + parameter(queryRequest.getFinishedAfter()));
+    }
+    if (queryRequest.getFinishedBefore() != null) {
+      and("RES.END_TIME_ <= " + parameter(queryRequest.getFinishedBefore()));
+    }
+    if (queryRequest.getStartedAfter() != null) {
+      and("RES.START_TIME_ >= " + parameter(queryRequest.getStartedAfter()));
+    }
+    if (queryRequest.getStartedBefore() != null) {
+      and("RES.START_TIME_ <= " + parameter(queryRequest.getStartedBefore()));
+    }
+    if (queryRequest.getStartedBy() != null) {
+      and("RES.START_USER_ID_ = " + parameter(queryRequest.getStartedBy()));
+    }
+    if (queryRequest.getFinished() != null) {
+      and(queryRequest.getFinished() ? "RES.END_TIME_ IS NOT NULL" : "RES.END_TIME_ IS NULL");
+    }
+    if (queryRequest.getVariables() != null) {
+      for (QueryVariable variable : queryRequest.getVariables()) {
+        and(variableCondition(filterRequestFactory, variable, variableTable, "VAR.VAR_TYPE_",
+            "VAR.PROC_INST_ID_ = RES.PROC_INST_ID_"));
+      }
+    }
+    if (queryRequest.getTenantId() != null) {
+      and("RES.TENANT_ID_ = " + parameter(queryRequest.getTenantId()));
+    }
+    if (queryRequest.getTenantIdLike() != null) {
+      and("RES.TENANT_ID_ LIKE " + parameter(queryRequest.getTenantIdLike()));
+    }
+    if (Boolean.TRUE.equals(queryRequest.getWithoutTenantId())) {
+      and("(RES.TENANT_ID_ = '' OR RES.TENANT_ID_ IS NULL)");
+    }
+  }
+
+  @Override
+  protected boolean isSupported(QueryVariableOperation operation) {
+    // not supported by the historic process instance query
+    return operation != QueryVariableOperation.NOT_EQUALS_IGNORE_CASE;
+  }
+
+  @Override
+  public String getFrom() {
+    return " FROM " + processInstanceTable + " RES LEFT OUTER JOIN " + processDefinitionTable
+        + " DEF ON RES.PROC_DEF_ID_ = DEF.ID_";
+  }
+}
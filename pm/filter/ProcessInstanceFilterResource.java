@@ -4,18 +4,27 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.activiti.engine.ActivitiIllegalArgumentException;
+import org.activiti.engine.ManagementService;
 import org.activiti.engine.RuntimeService;
 import org.activiti.engine.impl.ProcessInstanceQueryProperty;
 import org.activiti.engine.query.Query;
 import org.activiti.engine.query.QueryProperty;
 import org.activiti.engine.runtime.ProcessInstanceQuery;
+import org.activiti.pm.ProcessDefinitionMetadataCache;
 import org.activiti.pm.filter.variable.QueryVariable;
 import org.activiti.pm.filter.variable.QueryVariable.QueryVariableOperation;
+import org.activiti.pm.index.RunningProcessInstanceIndex;
+import org.activiti.pm.index.VariableValueIndex;
 import org.activiti.pm.request.AbstractFilterResource;
+import org.activiti.pm.request.DataResponse;
 import org.activiti.pm.request.IProcessInstanceQueryRequest;
+import org.activiti.pm.request.KeysetQuery;
+import org.activiti.pm.request.PaginateRequest;
 import org.activiti.pm.request.QueryPaginateList;
+import org.activiti.pm.request.QueryRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -30,6 +39,18 @@ public class ProcessInstanceFilterResource extends AbstractFilterResource<IProce
   @Autowired
   RuntimeService runtimeService;
 
+  @Autowired
+  ManagementService managementService;
+
+  @Autowired
+  RunningProcessInstanceIndex runningProcessInstanceIndex;
+
+  @Autowired
+  VariableValueIndex variableValueIndex;
+
+  @Autowired
+  ProcessDefinitionMetadataCache processDefinitionMetadataCache;
+
   protected static Map<String, QueryProperty> allowedSortProperties = new HashMap<String, QueryProperty>();
 
   static {
@@ -83,13 +104,8 @@ public class ProcessInstanceFilterResource extends AbstractFilterResource<IProce
     if (queryRequest.getExcludeSubprocesses() != null) {
       query.excludeSubprocesses(queryRequest.getExcludeSubprocesses());
     }
-    if (queryRequest.getIncludeProcessVariables() != null) {
-      if (queryRequest.getIncludeProcessVariables()) {
-        query.includeProcessVariables();
-      }
-    }
     if (queryRequest.getVariables() != null) {
-      addVariables(query, queryRequest.getVariables());
+      addVariables(query, queryRequest.getVariables(), queryRequest.getProcessInstanceIds());
     }
 
     if(queryRequest.getTenantId() != null) {
@@ -107,7 +123,8 @@ public class ProcessInstanceFilterResource extends AbstractFilterResource<IProce
     return query;
   }
 
-  protected void addVariables(ProcessInstanceQuery processInstanceQuery, List<QueryVariable> variables) {
+  protected void addVariables(ProcessInstanceQuery processInstanceQuery, List<QueryVariable> variables,
+      List<String> processInstanceIds) {
     for (QueryVariable variable : variables) {
       if (variable.getVariableOperation() == null) {
         throw new ActivitiIllegalArgumentException("Variable operation is missing for variable: " + variable.getName());
@@ -186,14 +203,45 @@ public class ProcessInstanceFilterResource extends AbstractFilterResource<IProce
         throw new ActivitiIllegalArgumentException("Unsupported variable query operation: " + variable.getVariableOperation());
       }
     }
+
+    // the index holds a superset of matches, conditions above stay to check candidates
+    Set<String> candidateIds = variableValueIndex.restrictProcessInstanceIds(filterRequestFactory, variables,
+        processInstanceIds);
+    if (candidateIds != null) {
+      processInstanceQuery.processInstanceIds(candidateIds);
+    }
   }
 
   @SuppressWarnings("rawtypes")
   @Override
   protected Query getQuery(IProcessInstanceQueryRequest queryRequest) {
-    ProcessInstanceQuery query = getProcessInstanceQuery(queryRequest);
-    query.includeProcessVariables();
-    return query;
+    return getProcessInstanceQuery(queryRequest);
+  }
+
+  /**
+   * Filters with indexed fields only are answered from the running process
+   * instance index when it is enabled
+   */
+  @Override
+  protected DataResponse queryFilteredList(QueryRequest<IProcessInstanceQueryRequest> queryRequest,
+      Map<String, String> allRequestParams) {
+    IProcessInstanceQueryRequest processInstanceQueryRequest = (IProcessInstanceQueryRequest) queryRequest;
+    if (!isKeysetPagination((PaginateRequest) queryRequest, allRequestParams)
+        && ProcessInstanceIndexQuery.isSupported(runningProcessInstanceIndex, processInstanceQueryRequest)) {
+      QueryPaginateList paginateList = createPaginateList();
+      paginateList.setVariableNames(getVariableNames(queryRequest));
+      return paginateList.paginateInMemoryList(allRequestParams, (PaginateRequest) queryRequest,
+          new ProcessInstanceIndexQuery(runtimeService, runningProcessInstanceIndex, filterRequestFactory,
+              processInstanceQueryRequest), "processInstanceId");
+    }
+    return super.queryFilteredList(queryRequest, allRequestParams);
+  }
+
+  @Override
+  protected KeysetQuery getKeysetQuery(IProcessInstanceQueryRequest queryRequest) {
+    ProcessInstanceSqlBuilder sqlBuilder = new ProcessInstanceSqlBuilder(managementService, filterRequestFactory,
+        queryRequest);
+    return new ProcessInstanceKeysetQuery(runtimeService, sqlBuilder, processDefinitionMetadataCache);
   }
 
   @Override
@@ -0,0 +1,240 @@
+package org.activiti.pm.filter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.runtime.ProcessInstance;
+import org.activiti.pm.filter.variable.QueryVariable;
+import org.activiti.pm.index.IndexedProcessInstance;
+import org.activiti.pm.index.RunningProcessInstanceIndex;
+import org.activiti.pm.request.IProcessInstanceQueryRequest;
+import org.activiti.pm.request.InMemoryQuery;
+
+/**
+ * Answers a process instance filter from {@link RunningProcessInstanceIndex}
+ * with the same semantics as {@link ProcessInstanceFilterResource}. Only rows
+ * of the requested page are read from the database, by id.
+ *
+ * @author Dmitry Farafonov
+ */
+public class ProcessInstanceIndexQuery implements InMemoryQuery {
+  private static final int IN_CLAUSE_CHUNK_SIZE = 500;
+
+  private static final Set<String> sortProperties = new HashSet<String>();
+
+  static {
+    sortProperties.add("id");
+    sortProperties.add("processInstanceId");
+    sortProperties.add("processDefinitionId");
+    sortProperties.add("processDefinitionName");
+    sortProperties.add("tenantId");
+  }
+
+  protected RuntimeService runtimeService;
+  protected RunningProcessInstanceIndex index;
+  protected IProcessInstanceQueryRequest queryRequest;
+
+  private final Set<String> processInstanceIds;
+  private final Pattern tenantIdPattern;
+  private final List<VariableCondition> variableConditions = new ArrayList<VariableCondition>();
+
+  public ProcessInstanceIndexQuery(RuntimeService runtimeService, RunningProcessInstanceIndex index,
+      FilterRequestFactory filterRequestFactory, IProcessInstanceQueryRequest queryRequest) {
+    this.runtimeService = runtimeService;
+    this.index = index;
+    this.queryRequest = queryRequest;
+
+    if (queryRequest.getProcessInstanceIds() != null && !queryRequest.getProcessInstanceIds().isEmpty()) {
+      processInstanceIds = new HashSet<String>(queryRequest.getProcessInstanceIds());
+    } else {
+      processInstanceIds = null;
+    }
+    tenantIdPattern = (queryRequest.getTenantIdLike() != null) ? VariableCondition.toPattern(queryRequest
+        .getTenantIdLike()) : null;
+    if (queryRequest.getVariables() != null) {
+      for (QueryVariable variable : queryRequest.getVariables()) {
+        variableConditions.add(VariableCondition.create(filterRequestFactory, variable));
+      }
+    }
+  }
+
+  /**
+   * Returns true if all fields of the filter are indexed
+   *
+   * @param index
+   * @param queryRequest
+   * @return
+   */
+  public static boolean isSupported(RunningProcessInstanceIndex index, IProcessInstanceQueryRequest queryRequest) {
+    if (!index.isReady() || queryRequest.getInvolvedUser() != null) {
+      return false;
+    }
+    if (queryRequest.getVariables() != null) {
+      for (QueryVariable variable : queryRequest.getVariables()) {
+        if (variable.getName() == null || !index.getVariableNames().contains(variable.getName())) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean isSortSupported(String sort) {
+    return sortProperties.contains(sort);
+  }
+
+  @Override
+  public List<String> listIds(String sort, String order) {
+    Collection<IndexedProcessInstance> candidates;
+    if (queryRequest.getProcessInstanceId() != null || processInstanceIds != null) {
+      Set<String> ids = new HashSet<String>();
+      if (queryRequest.getProcessInstanceId() != null) {
+        ids.add(queryRequest.getProcessInstanceId());
+      } else {
+        ids.addAll(processInstanceIds);
+      }
+      candidates = new ArrayList<IndexedProcessInstance>();
+      for (String id : ids) {
+        IndexedProcessInstance instance = index.get(id);
+        if (instance != null) {
+          candidates.add(instance);
+        }
+      }
+    } else {
+      candidates = index.getAll();
+    }
+
+    List<IndexedProcessInstance> matches = new ArrayList<IndexedProcessInstance>();
+    for (IndexedProcessInstance instance : candidates) {
+      if (matches(instance)) {
+        matches.add(instance);
+      }
+    }
+    Collections.sort(matches, getComparator(sort, "asc".equals(order)));
+
+    List<String> ids = new ArrayList<String>(matches.size());
+    for (IndexedProcessInstance instance : matches) {
+      ids.add(instance.getId());
+    }
+    return ids;
+  }
+
+  protected boolean matches(IndexedProcessInstance instance) {
+    if (queryRequest.getProcessInstanceId() != null && !queryRequest.getProcessInstanceId().equals(instance.getId())) {
+      return false;
+    }
+    if (processInstanceIds != null && !processInstanceIds.contains(instance.getId())) {
+      return false;
+    }
+    if (queryRequest.getProcessDefinitionKey() != null
+        && !queryRequest.getProcessDefinitionKey().equals(instance.getProcessDefinitionKey())) {
+      return false;
+    }
+    if (queryRequest.getProcessDefinitionId() != null
+        && !queryRequest.getProcessDefinitionId().equals(instance.getProcessDefinitionId())) {
+      return false;
+    }
+    if (queryRequest.getProcessBusinessKey() != null
+        && !queryRequest.getProcessBusinessKey().equals(instance.getBusinessKey())) {
+      return false;
+    }
+    if (queryRequest.getSuspended() != null && queryRequest.getSuspended() != instance.isSuspended()) {
+      return false;
+    }
+    if (queryRequest.getSubProcessInstanceId() != null) {
+      IndexedProcessInstance subProcessInstance = index.get(queryRequest.getSubProcessInstanceId());
+      if (subProcessInstance == null || !instance.getId().equals(subProcessInstance.getSuperProcessInstanceId())) {
+        return false;
+      }
+    }
+    if (queryRequest.getSuperProcessInstanceId() != null
+        && !queryRequest.getSuperProcessInstanceId().equals(instance.getSuperProcessInstanceId())) {
+      return false;
+    }
+    if (Boolean.TRUE.equals(queryRequest.getExcludeSubprocesses()) && instance.getSuperProcessInstanceId() != null) {
+      return false;
+    }
+    if (queryRequest.getTenantId() != null && !queryRequest.getTenantId().equals(instance.getTenantId())) {
+      return false;
+    }
+    if (tenantIdPattern != null
+        && (instance.getTenantId() == null || !tenantIdPattern.matcher(instance.getTenantId()).matches())) {
+      return false;
+    }
+    if (Boolean.TRUE.equals(queryRequest.getWithoutTenantId()) && instance.getTenantId() != null
+        && instance.getTenantId().length() > 0) {
+      return false;
+    }
+    for (VariableCondition condition : variableConditions) {
+      if (!condition.matches(instance.getVariables())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Orders by the sort property, nulls after values in ascending order, and by
+   * id
+   */
+  private static Comparator<IndexedProcessInstance> getComparator(final String sort, final boolean asc) {
+    return new Comparator<IndexedProcessInstance>() {
+      @Override
+      public int compare(IndexedProcessInstance o1, IndexedProcessInstance o2) {
+        int result = compareValues(getSortValue(o1), getSortValue(o2));
+        if (result == 0) {
+          result = o1.getId().compareTo(o2.getId());
+        }
+        return asc ? result : -result;
+      }
+
+      private String getSortValue(IndexedProcessInstance instance) {
+        if ("processDefinitionId".equals(sort)) {
+          return instance.getProcessDefinitionId();
+        } else if ("processDefinitionName".equals(sort)) {
+          return instance.getProcessDefinitionKey();
+        } else if ("tenantId".equals(sort)) {
+          return instance.getTenantId();
+        }
+        return instance.getId();
+      }
+
+      private int compareValues(String v1, String v2) {
+        if (v1 == null) {
+          return (v2 == null) ? 0 : 1;
+        }
+        return (v2 == null) ? -1 : v1.compareTo(v2);
+      }
+    };
+  }
+
+  @Override
+  public List<ProcessInstance> listRows(List<String> ids) {
+    Map<String, ProcessInstance> processInstances = new HashMap<String, ProcessInstance>();
+    for (int from = 0; from < ids.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+      Set<String> chunk = new HashSet<String>(ids.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, ids.size())));
+      for (ProcessInstance processInstance : runtimeService.createProcessInstanceQuery().processInstanceIds(chunk)
+          .list()) {
+        processInstances.put(processInstance.getId(), processInstance);
+      }
+    }
+    List<ProcessInstance> rows = new ArrayList<ProcessInstance>(ids.size());
+    for (String id : ids) {
+      ProcessInstance processInstance = processInstances.get(id);
+      if (processInstance != null) {
+        rows.add(processInstance);
+      }
+    }
+    return rows;
+  }
+}
@@ -0,0 +1,103 @@
+package org.activiti.pm.filter;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.runtime.NativeProcessInstanceQuery;
+import org.activiti.engine.runtime.ProcessInstance;
+import org.activiti.pm.ProcessDefinitionMetadata;
+import org.activiti.pm.ProcessDefinitionMetadataCache;
+import org.activiti.pm.request.KeysetQuery;
+import org.activiti.pm.request.KeysetToken;
+
+/**
+ * Keyset pagination of running process instances, see
+ * {@link HistoricProcessInstanceKeysetQuery}
+ *
+ * @author Dmitry Farafonov
+ */
+public class ProcessInstanceKeysetQuery implements KeysetQuery {
+
+  protected static Map<String, String> sortColumns = new HashMap<String, String>();
+
+  static {
+    sortColumns.put("id", "RES.ID_");
+    sortColumns.put("processInstanceId", "RES.ID_");
+    sortColumns.put("processDefinitionId", "RES.PROC_DEF_ID_");
+    sortColumns.put("processDefinitionName", "DEF.KEY_");
+    sortColumns.put("tenantId", "RES.TENANT_ID_");
+  }
+
+  protected RuntimeService runtimeService;
+  protected ProcessInstanceSqlBuilder sqlBuilder;
+  protected ProcessDefinitionMetadataCache processDefinitionMetadataCache;
+
+  public ProcessInstanceKeysetQuery(RuntimeService runtimeService, ProcessInstanceSqlBuilder sqlBuilder,
+      ProcessDefinitionMetadataCache processDefinitionMetadataCache) {
+    this.runtimeService = runtimeService;
+    this.sqlBuilder = sqlBuilder;
+    this.processDefinitionMetadataCache = processDefinitionMetadataCache;
+  }
+
+  @Override
+  public boolean isSortSupported(String sort) {
+    return sortColumns.containsKey(sort);
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public List listPage(String sort, String order, KeysetToken after, int size) {
+    String column = sortColumns.get(sort);
+    boolean asc = "asc".equals(order);
+
+    String seek = null;
+    if (after != null) {
+      String key = after.getKey() != null ? sqlBuilder.parameter("keysetKey", after.getKey().toString()) : null;
+      seek = sqlBuilder.getSeekCondition(column, asc, key, sqlBuilder.parameter("keysetId", after.getId()));
+    }
+    String orderBy = sqlBuilder.getKeysetOrderBy(column, asc);
+
+    NativeProcessInstanceQuery query = runtimeService.createNativeProcessInstanceQuery();
+    sqlBuilder.applyParameters(query);
+    return query.sql(sqlBuilder.select("RES.*", seek, orderBy)).listPage(0, size);
+  }
+
+  @Override
+  public KeysetToken getToken(String sort, String order, Object row) {
+    ProcessInstance processInstance = (ProcessInstance) row;
+    Object key;
+    if ("processDefinitionId".equals(sort)) {
+      key = processInstance.getProcessDefinitionId();
+    } else if ("processDefinitionName".equals(sort)) {
+      // DEF.KEY_, the definition id is not always 'key:version:id'
+      key = getProcessDefinitionKey(processInstance.getProcessDefinitionId());
+    } else if ("tenantId".equals(sort)) {
+      key = processInstance.getTenantId();
+    } else {
+      key = processInstance.getId();
+    }
+    return new KeysetToken(sort, order, key, processInstance.getId());
+  }
+
+  /**
+   * @param processDefinitionId
+   * @return key of the process definition or null if it does not exist, as
+   *         joined DEF.KEY_
+   */
+  private String getProcessDefinitionKey(String processDefinitionId) {
+    if (processDefinitionId == null) {
+      return null;
+    }
+    ProcessDefinitionMetadata metadata = processDefinitionMetadataCache.get(processDefinitionId);
+    return (metadata != null) ? metadata.getKey() : null;
+  }
+
+  @Override
+  public long count() {
+    NativeProcessInstanceQuery query = runtimeService.createNativeProcessInstanceQuery();
+    sqlBuilder.applyParameters(query);
+    return query.sql(sqlBuilder.select("COUNT(RES.ID_)", null)).count();
+  }
+}
@@ -18,6 +18,6 @@ public class ProcessInstancePaginateList extends QueryPaginateList {
   @SuppressWarnings({ "rawtypes", "unchecked" })
   @Override
   protected List processList(List list) {
-    return filterRequestFactory.createProcessInstanceResponseList(list);
+    return filterRequestFactory.createProcessInstanceResponseList(list, variableNames);
   }
 }
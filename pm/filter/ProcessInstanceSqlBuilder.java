@@ -0,0 +1,93 @@
+package org.activiti.pm.filter;
+
+import org.activiti.engine.ManagementService;
+import org.activiti.engine.impl.persistence.entity.IdentityLinkEntity;
+import org.activiti.engine.impl.persistence.entity.VariableInstanceEntity;
+import org.activiti.engine.repository.ProcessDefinition;
+import org.activiti.engine.runtime.ProcessInstance;
+import org.activiti.pm.filter.variable.QueryVariable;
+import org.activiti.pm.request.IProcessInstanceQueryRequest;
+
+/**
+ * Translates a process instance filter to native SQL with the same semantics
+ * as {@link ProcessInstanceFilterResource}. Process instance is the root
+ * execution aliased <code>RES</code> and its process definition
+ * <code>DEF</code>.
+ *
+ * @author Dmitry Farafonov
+ */
+public class ProcessInstanceSqlBuilder extends AbstractProcessInstanceSqlBuilder {
+
+  private final String executionTable;
+  private final String processDefinitionTable;
+  private final String identityLinkTable;
+  private final String variableTable;
+
+  public ProcessInstanceSqlBuilder(ManagementService managementService, FilterRequestFactory filterRequestFactory,
+      IProcessInstanceQueryRequest queryRequest) {
+    this.executionTable = managementService.getTableName(ProcessInstance.class);
+    this.processDefinitionTable = managementService.getTableName(ProcessDefinition.class);
+    this.identityLinkTable = managementService.getTableName(IdentityLinkEntity.class);
+    this.variableTable = managementService.getTableName(VariableInstanceEntity.class);
+    and("RES.PARENT_ID_ IS NULL");
+    addConditions(filterRequestFactory, queryRequest);
+  }
+
+  private void addConditions(FilterRequestFactory filterRequestFactory, IProcessInstanceQueryRequest queryRequest) {
+    if (queryRequest.getProcessInstanceId() != null) {
+      and("RES.ID_ = " + parameter(queryRequest.getProcessInstanceId()));
+    }
+    if (queryRequest.getProcessInstanceIds() != null && !queryRequest.getProcessInstanceIds().isEmpty()) {
+      and(in("RES.ID_", queryRequest.getProcessInstanceIds()));
+    }
+    if (queryRequest.getProcessDefinitionKey() != null) {
+      and("DEF.KEY_ = " + parameter(queryRequest.getProcessDefinitionKey()));
+    }
+    if (queryRequest.getProcessDefinitionId() != null) {
+      and("RES.PROC_DEF_ID_ = " + parameter(queryRequest.getProcessDefinitionId()));
+    }
+    if (queryRequest.getProcessBusinessKey() != null) {
+      and("RES.BUSINESS_KEY_ = " + parameter(queryRequest.getProcessBusinessKey()));
+    }
+    if (queryRequest.getInvolvedUser() != null) {
+      and("EXISTS (SELECT LINK.USER_ID_ FROM " + identityLinkTable + " LINK WHERE LINK.USER_ID_ = "
+          + parameter(queryRequest.getInvolvedUser()) + " AND LINK.PROC_INST_ID_ = RES.ID_)");
+    }
+    if (queryRequest.getSuspended() != null) {
+      // suspension state 1 is active, 2 is suspended
+      and("RES.SUSPENSION_STATE_ = " + (queryRequest.getSuspended() ? 2 : 1));
+    }
+    if (queryRequest.getSubProcessInstanceId() != null) {
+      and("RES.ID_ = (SELECT SUPER.PROC_INST_ID_ FROM " + executionTable + " SUPER WHERE SUPER.ID_ = (SELECT SUB.SUPER_EXEC_ FROM "
+          + executionTable + " SUB WHERE SUB.ID_ = " + parameter(queryRequest.getSubProcessInstanceId()) + "))");
+    }
+    if (queryRequest.getSuperProcessInstanceId() != null) {
+      and("RES.SUPER_EXEC_ IN (SELECT SUPER.ID_ FROM " + executionTable + " SUPER WHERE SUPER.PROC_INST_ID_ = "
+          + parameter(queryRequest.getSuperProcessInstanceId()) + ")");
+    }
+    if (Boolean.TRUE.equals(queryRequest.getExcludeSubprocesses())) {
+      and("RES.SUPER_EXEC_ IS NULL");
+    }
+    if (queryRequest.getVariables() != null) {
+      for (QueryVariable variable : queryRequest.getVariables()) {
+        and(variableCondition(filterRequestFactory, variable, variableTable, "VAR.TYPE_",
+            "VAR.EXECUTION_ID_ = RES.ID_ AND VAR.TASK_ID_ IS NULL"));
+      }
+    }
+    if (queryRequest.getTenantId() != null) {
+      and("RES.TENANT_ID_ = " + parameter(queryRequest.getTenantId()));
+    }
+    if (queryRequest.getTenantIdLike() != null) {
+      and("RES.TENANT_ID_ LIKE " + parameter(queryRequest.getTenantIdLike()));
+    }
+    if (Boolean.TRUE.equals(queryRequest.getWithoutTenantId())) {
+      and("(RES.TENANT_ID_ = '' OR RES.TENANT_ID_ IS NULL)");
+    }
+  }
+
+  @Override
+  public String getFrom() {
+    return " FROM " + executionTable + " RES LEFT OUTER JOIN " + processDefinitionTable
+        + " DEF ON RES.PROC_DEF_ID_ = DEF.ID_";
+  }
+}
@@ -0,0 +1,94 @@
+package org.activiti.pm.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.activiti.pm.filter.variable.RestVariableConverter;
+
+/**
+ * Converters of {@link FilterRequestFactory} indexed by REST type name and by
+ * value class. Converter of a class is resolved once, with the same rules as a
+ * scan of the converter list: the first converter which variable type is
+ * assignable from the class, otherwise binary or serializable.
+ *
+ * @author Dmitry Farafonov
+ */
+public class RestVariableConverterRegistry {
+
+  /**
+   * Converter or fallback REST type of a value class
+   */
+  public static final class Resolution {
+    private final RestVariableConverter converter;
+    private final String restTypeName;
+
+    Resolution(RestVariableConverter converter, String restTypeName) {
+      this.converter = converter;
+      this.restTypeName = restTypeName;
+    }
+
+    /**
+     * @return converter or null if the value is binary or serializable
+     */
+    public RestVariableConverter getConverter() {
+      return converter;
+    }
+
+    public String getRestTypeName() {
+      return restTypeName;
+    }
+  }
+
+  private final List<RestVariableConverter> converters;
+  private final Map<String, RestVariableConverter> convertersByTypeName = new HashMap<String, RestVariableConverter>();
+  private final ConcurrentMap<Class<?>, Resolution> resolutionsByClass = new ConcurrentHashMap<Class<?>, Resolution>();
+
+  public RestVariableConverterRegistry(List<RestVariableConverter> converters) {
+    this.converters = Collections.unmodifiableList(new ArrayList<RestVariableConverter>(converters));
+    for (RestVariableConverter converter : this.converters) {
+      if (!convertersByTypeName.containsKey(converter.getRestTypeName())) {
+        convertersByTypeName.put(converter.getRestTypeName(), converter);
+      }
+    }
+  }
+
+  /**
+   * @param restTypeName
+   * @return converter or null if the type is not supported
+   */
+  public RestVariableConverter getConverter(String restTypeName) {
+    return convertersByTypeName.get(restTypeName);
+  }
+
+  /**
+   * Returns converter or fallback type of values of the class
+   *
+   * @param valueClass
+   * @return
+   */
+  public Resolution resolve(Class<?> valueClass) {
+    Resolution resolution = resolutionsByClass.get(valueClass);
+    if (resolution == null) {
+      resolution = createResolution(valueClass);
+      resolutionsByClass.putIfAbsent(valueClass, resolution);
+    }
+    return resolution;
+  }
+
+  private Resolution createResolution(Class<?> valueClass) {
+    for (RestVariableConverter converter : converters) {
+      if (converter.getVariableType().isAssignableFrom(valueClass)) {
+        return new Resolution(converter, converter.getRestTypeName());
+      }
+    }
+    if (Byte[].class.equals(valueClass) || byte[].class.equals(valueClass)) {
+      return new Resolution(null, FilterRequestFactory.BYTE_ARRAY_VARIABLE_TYPE);
+    }
+    return new Resolution(null, FilterRequestFactory.SERIALIZABLE_VARIABLE_TYPE);
+  }
+}
@@ -0,0 +1,121 @@
+package org.activiti.pm.filter;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.activiti.pm.filter.variable.RestVariable;
+import org.activiti.pm.filter.variable.RestVariable.RestVariableScope;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+/**
+ * List of REST variables backed by the variable map of the engine. It is
+ * serialized by {@link RestVariableMapSerializer} straight from the map,
+ * {@link RestVariable}s are created only if elements are read through the
+ * list interface. The first change of the list copies the variables to a
+ * list of {@link RestVariable}s, which backs the list from then on.
+ *
+ * @author Dmitry Farafonov
+ */
+@JsonSerialize(using = RestVariableMapSerializer.class)
+public class RestVariableMap extends AbstractList<RestVariable> {
+
+  private final FilterRequestFactory filterRequestFactory;
+  private final String[] names;
+  private final Object[] values;
+  private final RestVariableScope scope;
+  private final String id;
+  private final int variableType;
+  /** variables after the first change of the list, null before */
+  private List<RestVariable> copy;
+
+  public RestVariableMap(FilterRequestFactory filterRequestFactory, Map<String, Object> variables,
+      RestVariableScope scope, String id, int variableType) {
+    this.filterRequestFactory = filterRequestFactory;
+    this.names = new String[variables.size()];
+    this.values = new Object[variables.size()];
+    int i = 0;
+    for (Map.Entry<String, Object> variable : variables.entrySet()) {
+      names[i] = variable.getKey();
+      values[i] = variable.getValue();
+      i++;
+    }
+    this.scope = scope;
+    this.id = id;
+    this.variableType = variableType;
+  }
+
+  @Override
+  public RestVariable get(int index) {
+    if (copy != null) {
+      return copy.get(index);
+    }
+    return filterRequestFactory.createRestVariable(names[index], values[index], scope, id, variableType, false);
+  }
+
+  @Override
+  public int size() {
+    return (copy != null) ? copy.size() : names.length;
+  }
+
+  @Override
+  public RestVariable set(int index, RestVariable element) {
+    return getCopy().set(index, element);
+  }
+
+  @Override
+  public void add(int index, RestVariable element) {
+    getCopy().add(index, element);
+    modCount++;
+  }
+
+  @Override
+  public RestVariable remove(int index) {
+    RestVariable removed = getCopy().remove(index);
+    modCount++;
+    return removed;
+  }
+
+  /**
+   * @return true if the list was changed and is backed by a copy
+   */
+  public boolean isCopied() {
+    return copy != null;
+  }
+
+  /**
+   * @return variables as a modifiable list, created on the first call
+   */
+  List<RestVariable> getCopy() {
+    if (copy == null) {
+      List<RestVariable> variables = new ArrayList<RestVariable>(names.length);
+      for (int i = 0; i < names.length; i++) {
+        variables.add(get(i));
+      }
+      copy = variables;
+    }
+    return copy;
+  }
+
+  /**
+   * @param index
+   * @return name of the variable, only while the list is not copied
+   */
+  public String getName(int index) {
+    return names[index];
+  }
+
+  public Object getValue(int index) {
+    return values[index];
+  }
+
+  public RestVariableScope getScope() {
+    return scope;
+  }
+
+  RestVariableConverterRegistry getConverterRegistry() {
+    return filterRequestFactory.getConverterRegistry();
+  }
+}
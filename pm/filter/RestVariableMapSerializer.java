@@ -0,0 +1,63 @@
+package org.activiti.pm.filter;
+
+import java.io.IOException;
+
+import org.activiti.pm.filter.variable.RestVariable;
+import org.activiti.pm.filter.variable.RestVariableConverter;
+import org.activiti.pm.filter.variable.RestVariableValueWriter;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+
+/**
+ * Writes {@link RestVariableMap} in the same JSON shape as a list of
+ * {@link RestVariable}: name, type, value and scope of each variable. Values
+ * of converters implementing {@link RestVariableValueWriter} are written
+ * directly, other converters still convert through a {@link RestVariable}.
+ * A list changed after it was created is written as its list of
+ * {@link RestVariable}s.
+ *
+ * @author Dmitry Farafonov
+ */
+public class RestVariableMapSerializer extends JsonSerializer<RestVariableMap> {
+
+  @Override
+  public void serialize(RestVariableMap variables, JsonGenerator generator, SerializerProvider provider)
+      throws IOException {
+    if (variables.isCopied()) {
+      provider.defaultSerializeValue(variables.getCopy(), generator);
+      return;
+    }
+    String scope = (variables.getScope() != null) ? variables.getScope().name().toLowerCase() : null;
+    RestVariableConverterRegistry registry = variables.getConverterRegistry();
+
+    generator.writeStartArray();
+    for (int i = 0; i < variables.size(); i++) {
+      Object value = variables.getValue(i);
+      generator.writeStartObject();
+      generator.writeStringField("name", variables.getName(i));
+      if (value == null) {
+        generator.writeNullField("value");
+      } else {
+        RestVariableConverterRegistry.Resolution resolution = registry.resolve(value.getClass());
+        RestVariableConverter converter = resolution.getConverter();
+        generator.writeStringField("type", resolution.getRestTypeName());
+        generator.writeFieldName("value");
+        if (converter == null) {
+          // binary and serializable values are not included
+          generator.writeNull();
+        } else if (converter instanceof RestVariableValueWriter) {
+          ((RestVariableValueWriter) converter).writeValue(value, generator);
+        } else {
+          RestVariable restVariable = new RestVariable();
+          converter.convertVariableValue(value, restVariable);
+          provider.defaultSerializeValue(restVariable.getValue(), generator);
+        }
+      }
+      generator.writeStringField("scope", scope);
+      generator.writeEndObject();
+    }
+    generator.writeEndArray();
+  }
+}
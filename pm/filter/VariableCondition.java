@@ -0,0 +1,148 @@
+package org.activiti.pm.filter;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.activiti.engine.ActivitiIllegalArgumentException;
+import org.activiti.pm.filter.variable.QueryVariable;
+import org.activiti.pm.filter.variable.QueryVariable.QueryVariableOperation;
+
+/**
+ * Variable condition of a filter evaluated in memory against variable values,
+ * with the value of the condition converted once. Compares like the database
+ * does: the variable must exist with the type of the filter value.
+ *
+ * @author Dmitry Farafonov
+ */
+public class VariableCondition {
+  private final String name;
+  private final QueryVariableOperation operation;
+  private final Object value;
+  private final Pattern pattern;
+
+  VariableCondition(String name, QueryVariableOperation operation, Object value) {
+    this.name = name;
+    this.operation = operation;
+    this.value = value;
+    this.pattern = (operation == QueryVariableOperation.LIKE) ? toPattern((String) value) : null;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @param filterRequestFactory
+   * @param variable
+   * @return
+   * @throws ActivitiIllegalArgumentException if the variable condition is not valid
+   */
+  public static VariableCondition create(FilterRequestFactory filterRequestFactory, QueryVariable variable) {
+    if (variable.getVariableOperation() == null) {
+      throw new ActivitiIllegalArgumentException("Variable operation is missing for variable: " + variable.getName());
+    }
+    if (variable.getValue() == null) {
+      throw new ActivitiIllegalArgumentException("Variable value is missing for variable: " + variable.getName());
+    }
+    QueryVariableOperation operation = variable.getVariableOperation();
+    Object actualValue = filterRequestFactory.getVariableValue(variable);
+    switch (operation) {
+    case EQUALS_IGNORE_CASE:
+    case NOT_EQUALS_IGNORE_CASE:
+      if (!(actualValue instanceof String)) {
+        throw new ActivitiIllegalArgumentException(
+            "Only string variable values are supported when ignoring casing, but was: "
+                + actualValue.getClass().getName());
+      }
+      break;
+    case LIKE:
+      if (!(actualValue instanceof String)) {
+        throw new ActivitiIllegalArgumentException("Only string variable values are supported for like, but was: "
+            + actualValue.getClass().getName());
+      }
+      break;
+    default:
+      break;
+    }
+    return new VariableCondition(variable.getName(), operation, actualValue);
+  }
+
+  /**
+   * Translates SQL LIKE pattern to a regular expression
+   */
+  public static Pattern toPattern(String like) {
+    StringBuilder regex = new StringBuilder();
+    StringBuilder literal = new StringBuilder();
+    for (int i = 0; i < like.length(); i++) {
+      char c = like.charAt(i);
+      if (c == '%' || c == '_') {
+        if (literal.length() > 0) {
+          regex.append(Pattern.quote(literal.toString()));
+          literal.setLength(0);
+        }
+        regex.append(c == '%' ? ".*" : ".");
+      } else {
+        literal.append(c);
+      }
+    }
+    if (literal.length() > 0) {
+      regex.append(Pattern.quote(literal.toString()));
+    }
+    return Pattern.compile(regex.toString(), Pattern.DOTALL);
+  }
+
+  /**
+   * @param variables
+   *          values by variable name
+   * @return true if the variable matches, any variable if the condition has
+   *         no name
+   */
+  public boolean matches(Map<String, Object> variables) {
+    if (name == null) {
+      for (Object variableValue : variables.values()) {
+        if (matchesValue(variableValue)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return matchesValue(variables.get(name));
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private boolean matchesValue(Object variableValue) {
+    if (variableValue == null || !isSameType(variableValue, value)) {
+      return false;
+    }
+    switch (operation) {
+    case EQUALS:
+      return variableValue.equals(value);
+    case NOT_EQUALS:
+      return !variableValue.equals(value);
+    case EQUALS_IGNORE_CASE:
+      return ((String) variableValue).equalsIgnoreCase((String) value);
+    case NOT_EQUALS_IGNORE_CASE:
+      return !((String) variableValue).equalsIgnoreCase((String) value);
+    case LIKE:
+      return pattern.matcher((String) variableValue).matches();
+    case GREATER_THAN:
+      return ((Comparable) variableValue).compareTo(value) > 0;
+    case GREATER_THAN_OR_EQUALS:
+      return ((Comparable) variableValue).compareTo(value) >= 0;
+    case LESS_THAN:
+      return ((Comparable) variableValue).compareTo(value) < 0;
+    case LESS_THAN_OR_EQUALS:
+      return ((Comparable) variableValue).compareTo(value) <= 0;
+    default:
+      throw new ActivitiIllegalArgumentException("Unsupported variable query operation: " + operation);
+    }
+  }
+
+  private static boolean isSameType(Object value, Object filterValue) {
+    if (filterValue instanceof Date) {
+      return value instanceof Date;
+    }
+    return value.getClass().equals(filterValue.getClass());
+  }
+}
@@ -13,21 +13,20 @@
 
 package org.activiti.pm.filter.variable;
 
-import java.text.ParseException;
+import java.io.IOException;
 import java.util.Date;
 
 import org.activiti.engine.ActivitiIllegalArgumentException;
+import org.activiti.pm.util.DateCodec;
 
-import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 
 /**
  * @author Frederik Heremans
  */
-public class DateRestVariableConverter implements RestVariableConverter {
+public class DateRestVariableConverter implements RestVariableConverter, RestVariableValueWriter {
 
-  protected ISO8601DateFormat isoFormatter = new ISO8601DateFormat();
-  
   @Override
   public String getRestTypeName() {
     return "date";
@@ -45,8 +44,8 @@ public class DateRestVariableConverter implements RestVariableConverter {
         throw new ActivitiIllegalArgumentException("Converter can only convert string to date");
       }
       try {
-        return isoFormatter.parse((String) result.getValue());
-      } catch (ParseException e) {
+        return DateCodec.parseIso((String) result.getValue());
+      } catch (IllegalArgumentException e) {
         throw new ActivitiIllegalArgumentException("The given variable value is not a date: '" + result.getValue() + "'", e);
       }
     }
@@ -59,10 +58,14 @@ public class DateRestVariableConverter implements RestVariableConverter {
       if(!(variableValue instanceof Date)) {
         throw new ActivitiIllegalArgumentException("Converter can only convert booleans");
       }
-      result.setValue(isoFormatter.format(variableValue));
+      result.setValue(DateCodec.formatIso((Date) variableValue));
     } else {
       result.setValue(null);
     }
   }
 
+  @Override
+  public void writeValue(Object variableValue, JsonGenerator generator) throws IOException {
+    DateCodec.writeIso((Date) variableValue, generator);
+  }
 }
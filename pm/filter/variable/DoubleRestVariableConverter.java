@@ -13,13 +13,17 @@
 
 package org.activiti.pm.filter.variable;
 
+import java.io.IOException;
+
 import org.activiti.engine.ActivitiIllegalArgumentException;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+
 
 /**
  * @author Frederik Heremans
  */
-public class DoubleRestVariableConverter implements RestVariableConverter {
+public class DoubleRestVariableConverter implements RestVariableConverter, RestVariableValueWriter {
 
   @Override
   public String getRestTypeName() {
@@ -54,4 +58,8 @@ public class DoubleRestVariableConverter implements RestVariableConverter {
     }
   }
 
+  @Override
+  public void writeValue(Object variableValue, JsonGenerator generator) throws IOException {
+    generator.writeNumber((Double) variableValue);
+  }
 }
@@ -0,0 +1,25 @@
+package org.activiti.pm.filter.variable;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Converter which writes converted values straight to JSON, without a
+ * {@link RestVariable} in between
+ *
+ * @author Dmitry Farafonov
+ */
+public interface RestVariableValueWriter {
+
+  /**
+   * Writes the value the same way as the value set by
+   * {@link RestVariableConverter#convertVariableValue(Object, RestVariable)}
+   * is serialized
+   *
+   * @param variableValue not null value of the converter variable type
+   * @param generator
+   * @throws IOException
+   */
+  void writeValue(Object variableValue, JsonGenerator generator) throws IOException;
+}
@@ -0,0 +1,270 @@
+package org.activiti.pm.index;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.activiti.engine.ActivitiIllegalArgumentException;
+import org.activiti.pm.util.ChunkedBitmap;
+
+/**
+ * Bitmaps of facet values over process instance ordinals. An ordinal is
+ * assigned to a process instance id when it is added and is not reused after
+ * the instance is removed. Not thread-safe.
+ *
+ * @author Dmitry Farafonov
+ */
+class FacetBitmaps {
+
+  private static final int FORMAT_VERSION = 3;
+
+  private final Map<String, Integer> ordinals;
+  private final List<String> ids;
+  private final ChunkedBitmap live;
+  private final Map<String, Map<String, ChunkedBitmap>> facets;
+  /** time of the full build from history the bitmaps are maintained from */
+  private long buildTime;
+
+  FacetBitmaps(Collection<String> facetNames) {
+    ordinals = new HashMap<String, Integer>();
+    ids = new ArrayList<String>();
+    live = new ChunkedBitmap();
+    facets = new LinkedHashMap<String, Map<String, ChunkedBitmap>>();
+    for (String facetName : facetNames) {
+      facets.put(facetName, new HashMap<String, ChunkedBitmap>());
+    }
+  }
+
+  private FacetBitmaps(Map<String, Integer> ordinals, List<String> ids, ChunkedBitmap live,
+      Map<String, Map<String, ChunkedBitmap>> facets) {
+    this.ordinals = ordinals;
+    this.ids = ids;
+    this.live = live;
+    this.facets = facets;
+  }
+
+  /**
+   * @param processInstanceId
+   * @return ordinal of the process instance, a new one if it is not indexed
+   */
+  int add(String processInstanceId) {
+    Integer ordinal = ordinals.get(processInstanceId);
+    if (ordinal == null) {
+      ordinal = ids.size();
+      ids.add(processInstanceId);
+      ordinals.put(processInstanceId, ordinal);
+    }
+    live.set(ordinal);
+    return ordinal;
+  }
+
+  /**
+   * @param processInstanceId
+   * @return ordinal or -1 if the process instance is not indexed
+   */
+  int getOrdinal(String processInstanceId) {
+    Integer ordinal = ordinals.get(processInstanceId);
+    return (ordinal != null && live.get(ordinal)) ? ordinal : -1;
+  }
+
+  void remove(String processInstanceId) {
+    int ordinal = getOrdinal(processInstanceId);
+    if (ordinal < 0) {
+      return;
+    }
+    live.clear(ordinal);
+    for (Map<String, ChunkedBitmap> values : facets.values()) {
+      for (ChunkedBitmap bitmap : values.values()) {
+        bitmap.clear(ordinal);
+      }
+    }
+  }
+
+  long getBuildTime() {
+    return buildTime;
+  }
+
+  void setBuildTime(long buildTime) {
+    this.buildTime = buildTime;
+  }
+
+  /**
+   * Adds the value to values of the facet of the process instance
+   */
+  void add(int ordinal, String facetName, String value) {
+    Map<String, ChunkedBitmap> values = facets.get(facetName);
+    ChunkedBitmap bitmap = values.get(value);
+    if (bitmap == null) {
+      bitmap = new ChunkedBitmap();
+      values.put(value, bitmap);
+    }
+    bitmap.set(ordinal);
+  }
+
+  /**
+   * Makes the value the only value of the facet of the process instance
+   */
+  void replace(int ordinal, String facetName, String value) {
+    for (ChunkedBitmap bitmap : facets.get(facetName).values()) {
+      bitmap.clear(ordinal);
+    }
+    add(ordinal, facetName, value);
+  }
+
+  int size() {
+    return live.cardinality();
+  }
+
+  /**
+   * Selects process instances which have one of the values of every facet of
+   * the filter
+   *
+   * @param filter
+   *          values by facet name
+   * @param ignoredFacetName
+   *          facet which condition is skipped or null
+   * @return
+   */
+  ChunkedBitmap select(Map<String, ? extends Collection<String>> filter, String ignoredFacetName) {
+    ChunkedBitmap result = live.copy();
+    if (filter == null) {
+      return result;
+    }
+    for (Map.Entry<String, ? extends Collection<String>> condition : filter.entrySet()) {
+      Map<String, ChunkedBitmap> values = facets.get(condition.getKey());
+      if (values == null) {
+        throw new ActivitiIllegalArgumentException("Unknown facet: " + condition.getKey() + ", supported facets: "
+            + facets.keySet());
+      }
+      if (condition.getKey().equals(ignoredFacetName) || condition.getValue() == null
+          || condition.getValue().isEmpty()) {
+        continue;
+      }
+      ChunkedBitmap union = new ChunkedBitmap();
+      for (String value : condition.getValue()) {
+        ChunkedBitmap bitmap = values.get(value);
+        if (bitmap != null) {
+          union.or(bitmap);
+        }
+      }
+      result.and(union);
+    }
+    return result;
+  }
+
+  /**
+   * Counts process instances of the filter and of every facet value
+   *
+   * @param filter
+   *          values by facet name
+   * @return
+   */
+  FacetCounts count(Map<String, ? extends Collection<String>> filter) {
+    ChunkedBitmap selected = select(filter, null);
+    FacetCounts counts = new FacetCounts();
+    counts.setTotal(selected.cardinality());
+    for (Map.Entry<String, Map<String, ChunkedBitmap>> facet : facets.entrySet()) {
+      ChunkedBitmap facetSelected = selected;
+      if (filter != null && filter.get(facet.getKey()) != null && !filter.get(facet.getKey()).isEmpty()) {
+        facetSelected = select(filter, facet.getKey());
+      }
+      Map<String, Integer> valueCounts = new TreeMap<String, Integer>();
+      for (Map.Entry<String, ChunkedBitmap> value : facet.getValue().entrySet()) {
+        int count = facetSelected.andCardinality(value.getValue());
+        if (count > 0) {
+          valueCounts.put(value.getKey(), count);
+        }
+      }
+      counts.getFacets().put(facet.getKey(), valueCounts);
+    }
+    return counts;
+  }
+
+  FacetBitmaps copy() {
+    Map<String, Map<String, ChunkedBitmap>> facetsCopy = new LinkedHashMap<String, Map<String, ChunkedBitmap>>();
+    for (Map.Entry<String, Map<String, ChunkedBitmap>> facet : facets.entrySet()) {
+      Map<String, ChunkedBitmap> values = new HashMap<String, ChunkedBitmap>();
+      for (Map.Entry<String, ChunkedBitmap> value : facet.getValue().entrySet()) {
+        values.put(value.getKey(), value.getValue().copy());
+      }
+      facetsCopy.put(facet.getKey(), values);
+    }
+    FacetBitmaps copy = new FacetBitmaps(new HashMap<String, Integer>(ordinals), new ArrayList<String>(ids),
+        live.copy(), facetsCopy);
+    copy.buildTime = buildTime;
+    return copy;
+  }
+
+  void writeTo(DataOutput out) throws IOException {
+    out.writeInt(FORMAT_VERSION);
+    out.writeLong(buildTime);
+    out.writeInt(ids.size());
+    for (String id : ids) {
+      out.writeUTF(id);
+    }
+    live.writeTo(out);
+    out.writeInt(facets.size());
+    for (Map.Entry<String, Map<String, ChunkedBitmap>> facet : facets.entrySet()) {
+      out.writeUTF(facet.getKey());
+      List<Map.Entry<String, ChunkedBitmap>> values = new ArrayList<Map.Entry<String, ChunkedBitmap>>();
+      for (Map.Entry<String, ChunkedBitmap> value : facet.getValue().entrySet()) {
+        if (!value.getValue().isEmpty()) {
+          values.add(value);
+        }
+      }
+      out.writeInt(values.size());
+      for (Map.Entry<String, ChunkedBitmap> value : values) {
+        out.writeUTF(value.getKey());
+        value.getValue().writeTo(out);
+      }
+    }
+  }
+
+  /**
+   * @param in
+   * @param facetNames
+   * @return bitmaps or null if the data is of another format version or facets
+   * @throws IOException
+   */
+  static FacetBitmaps readFrom(DataInput in, Collection<String> facetNames) throws IOException {
+    if (in.readInt() != FORMAT_VERSION) {
+      return null;
+    }
+    long buildTime = in.readLong();
+    int size = in.readInt();
+    Map<String, Integer> ordinals = new HashMap<String, Integer>(size * 4 / 3 + 16);
+    List<String> ids = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++) {
+      String id = in.readUTF();
+      ids.add(id);
+      ordinals.put(id, i);
+    }
+    ChunkedBitmap live = ChunkedBitmap.readFrom(in);
+    Map<String, Map<String, ChunkedBitmap>> facets = new LinkedHashMap<String, Map<String, ChunkedBitmap>>();
+    int facetCount = in.readInt();
+    for (int f = 0; f < facetCount; f++) {
+      String facetName = in.readUTF();
+      int valueCount = in.readInt();
+      Map<String, ChunkedBitmap> values = new HashMap<String, ChunkedBitmap>(valueCount * 4 / 3 + 16);
+      for (int v = 0; v < valueCount; v++) {
+        String value = in.readUTF();
+        values.put(value, ChunkedBitmap.readFrom(in));
+      }
+      facets.put(facetName, values);
+    }
+    if (!facets.keySet().equals(new HashSet<String>(facetNames))) {
+      return null;
+    }
+    FacetBitmaps bitmaps = new FacetBitmaps(ordinals, ids, live, facets);
+    bitmaps.buildTime = buildTime;
+    return bitmaps;
+  }
+}
@@ -0,0 +1,41 @@
+package org.activiti.pm.index;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts of process instances matching a facet filter. Counts of values of a
+ * facet are computed with the conditions on all other facets, so they show how
+ * the total changes when a value of the facet is selected.
+ *
+ * @author Dmitry Farafonov
+ */
+public class FacetCounts implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private long total;
+  private Map<String, Map<String, Integer>> facets = new LinkedHashMap<String, Map<String, Integer>>();
+
+  /**
+   * @return number of process instances matching the filter
+   */
+  public long getTotal() {
+    return total;
+  }
+
+  public void setTotal(long total) {
+    this.total = total;
+  }
+
+  /**
+   * @return non-zero counts by facet name and value
+   */
+  public Map<String, Map<String, Integer>> getFacets() {
+    return facets;
+  }
+
+  public void setFacets(Map<String, Map<String, Integer>> facets) {
+    this.facets = facets;
+  }
+}
@@ -0,0 +1,628 @@
+package org.activiti.pm.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.ManagementService;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.delegate.event.ActivitiActivityEvent;
+import org.activiti.engine.delegate.event.ActivitiEntityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.impl.cfg.TransactionListener;
+import org.activiti.engine.impl.cfg.TransactionState;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.ExecutionEntity;
+import org.activiti.engine.impl.persistence.entity.HistoricActivityInstanceEntity;
+import org.activiti.engine.impl.persistence.entity.HistoricProcessInstanceEntity;
+import org.activiti.pm.ActivitiUtil;
+import org.activiti.pm.ProcessDefinitionMetadata;
+import org.activiti.pm.ProcessDefinitionMetadataCache;
+import org.activiti.pm.archive.ArchiveSegment;
+import org.activiti.pm.archive.ProcessInstanceArchive;
+import org.activiti.pm.util.DateCodec;
+import org.activiti.pm.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory facet index of historic process instances: one bitmap of process
+ * instance ordinals per value of definition key, tenant, finished state, start
+ * day and visited activity. A filter selects values of facets, values of a
+ * facet are ORed and facets are ANDed, and all counts of a filter are computed
+ * in one call without database queries.
+ *
+ * The index is built from the history tables once and then maintained from
+ * engine events applied when their transaction commits. Every
+ * <code>processmanager.index.facets.reconcileSeconds</code> process instances
+ * ended and activities started since the previous reconcile are read from the
+ * database, which adds changes of other engines, i.e. of other cluster nodes.
+ * History deletes do not publish engine events: a process instance deleted
+ * from history is removed by {@link #remove(String)}, otherwise it stays in
+ * the index until the rebuild every
+ * <code>processmanager.index.facets.rebuildHours</code>. A rebuild reads
+ * instances moved to the {@link ProcessInstanceArchive} from its segments. The
+ * index is saved to
+ * <code>processmanager.index.facets.file</code> after each reconcile and on
+ * shutdown, on startup the saved index is used and reconciled from the time it
+ * was saved instead of being built.
+ *
+ * @author Dmitry Farafonov
+ */
+@Component
+public class HistoricProcessInstanceFacetIndex implements ActivitiEventListener {
+  private static Logger logger = LoggerFactory.getLogger(HistoricProcessInstanceFacetIndex.class);
+
+  public static final String DEFINITION_KEY = "definitionKey";
+  public static final String TENANT_ID = "tenantId";
+  public static final String FINISHED = "finished";
+  public static final String START_DAY = "startDay";
+  public static final String ACTIVITY = "activity";
+
+  public static final List<String> FACET_NAMES = Collections.unmodifiableList(Arrays.asList(DEFINITION_KEY,
+      TENANT_ID, FINISHED, START_DAY, ACTIVITY));
+
+  /**
+   * Change of the index made by a committed transaction
+   */
+  private interface Change {
+    void apply(FacetBitmaps bitmaps);
+  }
+
+  @Autowired
+  protected Environment environment;
+
+  @Autowired
+  protected ManagementService managementService;
+
+  @Autowired
+  protected RuntimeService runtimeService;
+
+  @Autowired
+  protected ProcessDefinitionMetadataCache processDefinitionMetadataCache;
+
+  @Autowired
+  protected ProcessInstanceArchive processInstanceArchive;
+
+  private FacetBitmaps bitmaps;
+  private volatile boolean ready;
+  private File file;
+
+  private final Object lock = new Object();
+  private final Object rebuildLock = new Object();
+  private List<Change> recordedChanges;
+
+  /** changes committed before this time are in the index */
+  private long reconciledTime;
+  private long reconcileOverlapMillis;
+  private long rebuildMillis;
+
+  private ScheduledExecutorService scheduler;
+
+  @PostConstruct
+  public void init() {
+    Boolean enabled = environment.getProperty("processmanager.index.facets.enabled", Boolean.class, Boolean.FALSE);
+    if (!enabled) {
+      return;
+    }
+    long reconcileSeconds = environment.getProperty("processmanager.index.facets.reconcileSeconds", Long.class, 600L);
+    rebuildMillis = TimeUnit.HOURS.toMillis(environment.getProperty("processmanager.index.facets.rebuildHours",
+        Long.class, 24L));
+    file = new File(environment.getProperty("processmanager.index.facets.file",
+        new File(System.getProperty("java.io.tmpdir"), "pm-facet-index.bin").getPath()));
+
+    runtimeService.addEventListener(this, ActivitiEventType.PROCESS_STARTED, ActivitiEventType.PROCESS_COMPLETED,
+        ActivitiEventType.ENTITY_DELETED, ActivitiEventType.ACTIVITY_STARTED);
+    ActivitiUtil.setHistoricProcessInstanceFacetIndex(this);
+
+    // a change is read by two reconciles, so a transaction which commits late
+    // or a clock skew between nodes shorter than the period is not missed
+    reconcileOverlapMillis = TimeUnit.SECONDS.toMillis(Math.max(reconcileSeconds, 60));
+
+    // Listener is registered first, so changes after the saved index are applied to it
+    long initialDelay = load() ? reconcileSeconds : 0;
+    scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("pm-facet-index-"));
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (isRebuildDue()) {
+            rebuild();
+          } else {
+            reconcile();
+          }
+          save();
+        } catch (RuntimeException e) {
+          logger.error("Can not reconcile historic process instance facet index", e);
+        }
+      }
+    }, initialDelay, reconcileSeconds, TimeUnit.SECONDS);
+    logger.info("Historic process instance facet index is enabled, file " + file);
+  }
+
+  @PreDestroy
+  public void destroy() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      if (ready) {
+        save();
+      }
+    }
+  }
+
+  /**
+   * @return true if the index is built or loaded and maintained
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Counts process instances of the filter and of every value of every facet
+   * with the conditions on other facets
+   *
+   * @param filter
+   *          values by facet name, see {@link #FACET_NAMES}
+   * @return
+   */
+  public FacetCounts getCounts(Map<String, ? extends Collection<String>> filter) {
+    checkReady();
+    synchronized (lock) {
+      return bitmaps.count(filter);
+    }
+  }
+
+  /**
+   * @param filter
+   *          values by facet name, see {@link #FACET_NAMES}
+   * @return number of process instances of the filter
+   */
+  public long count(Map<String, ? extends Collection<String>> filter) {
+    checkReady();
+    synchronized (lock) {
+      return bitmaps.select(filter, null).cardinality();
+    }
+  }
+
+  private void checkReady() {
+    if (!ready) {
+      throw new ActivitiException("Historic process instance facet index is not ready");
+    }
+  }
+
+  private boolean isRebuildDue() {
+    synchronized (lock) {
+      return bitmaps != null && rebuildMillis > 0
+          && System.currentTimeMillis() - bitmaps.getBuildTime() >= rebuildMillis;
+    }
+  }
+
+  /**
+   * Removes a process instance deleted from history. Within a command the
+   * removal is applied when the transaction commits.
+   *
+   * @param processInstanceId
+   */
+  public void remove(final String processInstanceId) {
+    Change change = new Change() {
+      @Override
+      public void apply(FacetBitmaps bitmaps) {
+        bitmaps.remove(processInstanceId);
+      }
+    };
+    if (Context.getCommandContext() != null) {
+      applyOnCommit(change);
+    } else {
+      apply(change);
+    }
+  }
+
+  /**
+   * Applies process instances ended and activities started since the previous
+   * reconcile, builds the index if it is not built yet
+   *
+   * @return number of applied changes
+   */
+  public int reconcile() {
+    synchronized (rebuildLock) {
+      if (!ready) {
+        return rebuild();
+      }
+      long startTime = System.currentTimeMillis();
+      List<Change> changes = loadChangesFromDatabase(new Date(reconciledTime - reconcileOverlapMillis));
+      for (Change change : changes) {
+        apply(change);
+      }
+      reconciledTime = startTime;
+      logger.debug("Historic process instance facet index is reconciled, " + changes.size() + " changes");
+      return changes.size();
+    }
+  }
+
+  /**
+   * Reads all historic process instances from the database and the archive and
+   * replaces the index. Changes committed meanwhile are applied to the new
+   * index.
+   *
+   * @return number of indexed process instances
+   */
+  public int rebuild() {
+    synchronized (rebuildLock) {
+      long startTime = System.currentTimeMillis();
+      synchronized (lock) {
+        recordedChanges = new ArrayList<Change>();
+      }
+      FacetBitmaps loaded;
+      try {
+        loaded = loadFromDatabase();
+        loadFromArchive(loaded);
+      } catch (RuntimeException e) {
+        synchronized (lock) {
+          recordedChanges = null;
+        }
+        throw e;
+      }
+      synchronized (lock) {
+        for (Change change : recordedChanges) {
+          change.apply(loaded);
+        }
+        loaded.setBuildTime(startTime);
+        bitmaps = loaded;
+        recordedChanges = null;
+        ready = true;
+      }
+      reconciledTime = startTime;
+      int size = loaded.size();
+      logger.debug("Historic process instance facet index is rebuilt, " + size + " process instances");
+      return size;
+    }
+  }
+
+  private FacetBitmaps loadFromDatabase() {
+    final String processInstanceTable = managementService.getTableName(HistoricProcessInstanceEntity.class);
+    final String activityInstanceTable = managementService.getTableName(HistoricActivityInstanceEntity.class);
+    return managementService.executeCommand(new Command<FacetBitmaps>() {
+      @Override
+      public FacetBitmaps execute(CommandContext commandContext) {
+        Connection connection = commandContext.getDbSqlSession().getSqlSession().getConnection();
+        FacetBitmaps loaded = new FacetBitmaps(FACET_NAMES);
+        try {
+          // rows are indexed as they are read, definition keys are cached
+          PreparedStatement statement = connection.prepareStatement("SELECT RES.ID_, RES.PROC_DEF_ID_,"
+              + " RES.TENANT_ID_, RES.START_TIME_, RES.END_TIME_ FROM " + processInstanceTable
+              + " RES ORDER BY RES.START_TIME_");
+          try {
+            statement.setFetchSize(1000);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+              add(loaded, resultSet.getString(1), getProcessDefinitionKey(resultSet.getString(2)),
+                  resultSet.getString(3), resultSet.getTimestamp(4), resultSet.getTimestamp(5) != null);
+            }
+          } finally {
+            statement.close();
+          }
+
+          statement = connection.prepareStatement("SELECT DISTINCT PROC_INST_ID_, ACT_ID_ FROM "
+              + activityInstanceTable);
+          try {
+            statement.setFetchSize(1000);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+              int ordinal = loaded.getOrdinal(resultSet.getString(1));
+              if (ordinal >= 0 && resultSet.getString(2) != null) {
+                loaded.add(ordinal, ACTIVITY, resultSet.getString(2));
+              }
+            }
+          } finally {
+            statement.close();
+          }
+          return loaded;
+        } catch (SQLException e) {
+          throw new ActivitiException("Can not load historic process instance facet index", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Adds archived process instances, which are finished, with their activities
+   *
+   * @param loaded
+   */
+  private void loadFromArchive(FacetBitmaps loaded) {
+    if (!processInstanceArchive.isEnabled()) {
+      return;
+    }
+    for (ArchiveSegment segment : processInstanceArchive.getSegments()) {
+      ArchiveSegment.StringColumn ids = segment.getStrings(ArchiveSegment.ID);
+      ArchiveSegment.StringColumn definitionIds = segment.getStrings(ArchiveSegment.PROCESS_DEFINITION_ID);
+      ArchiveSegment.StringColumn tenantIds = segment.getStrings(ArchiveSegment.TENANT_ID);
+      long[] startTimes = segment.getLongs(ArchiveSegment.START_TIME);
+      int[] activityOffsets = segment.getOffsets(ArchiveSegment.ACTIVITY_ROW);
+      ArchiveSegment.StringColumn activityIds = segment.getStrings(ArchiveSegment.ACTIVITY_ID);
+      for (int row = 0; row < segment.getRowCount(); row++) {
+        Date startTime = (startTimes[row] != ArchiveSegment.NULL_LONG) ? new Date(startTimes[row]) : null;
+        add(loaded, ids.get(row), getProcessDefinitionKey(definitionIds.get(row)), tenantIds.get(row), startTime,
+            true);
+        int ordinal = loaded.getOrdinal(ids.get(row));
+        for (int i = activityOffsets[row]; i < activityOffsets[row + 1]; i++) {
+          if (activityIds.get(i) != null) {
+            loaded.add(ordinal, ACTIVITY, activityIds.get(i));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads process instances ended or with activities started since the time,
+   * and these activities. Process instances are read by indexed END_TIME_ of
+   * process instances and START_TIME_ of activity instances, every process
+   * instance has its start activity.
+   *
+   * @param since
+   * @return changes to apply to the index
+   */
+  private List<Change> loadChangesFromDatabase(final Date since) {
+    final String processInstanceTable = managementService.getTableName(HistoricProcessInstanceEntity.class);
+    final String activityInstanceTable = managementService.getTableName(HistoricActivityInstanceEntity.class);
+    return managementService.executeCommand(new Command<List<Change>>() {
+      @Override
+      public List<Change> execute(CommandContext commandContext) {
+        Connection connection = commandContext.getDbSqlSession().getSqlSession().getConnection();
+        List<Change> changes = new ArrayList<Change>();
+        String columns = "RES.ID_, RES.PROC_DEF_ID_, RES.TENANT_ID_, RES.START_TIME_, RES.END_TIME_";
+        try {
+          PreparedStatement statement = connection.prepareStatement("SELECT " + columns + " FROM "
+              + processInstanceTable + " RES WHERE RES.END_TIME_ >= ? UNION SELECT " + columns + " FROM "
+              + processInstanceTable + " RES INNER JOIN (SELECT DISTINCT PROC_INST_ID_ FROM "
+              + activityInstanceTable + " WHERE START_TIME_ >= ?) A ON RES.ID_ = A.PROC_INST_ID_");
+          try {
+            statement.setTimestamp(1, new Timestamp(since.getTime()));
+            statement.setTimestamp(2, new Timestamp(since.getTime()));
+            statement.setFetchSize(1000);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+              final String id = resultSet.getString(1);
+              final String processDefinitionKey = getProcessDefinitionKey(resultSet.getString(2));
+              final String tenantId = resultSet.getString(3);
+              final Date startTime = resultSet.getTimestamp(4);
+              final boolean finished = resultSet.getTimestamp(5) != null;
+              changes.add(new Change() {
+                @Override
+                public void apply(FacetBitmaps bitmaps) {
+                  add(bitmaps, id, processDefinitionKey, tenantId, startTime, finished);
+                }
+              });
+            }
+          } finally {
+            statement.close();
+          }
+
+          statement = connection.prepareStatement("SELECT DISTINCT PROC_INST_ID_, ACT_ID_ FROM "
+              + activityInstanceTable + " WHERE START_TIME_ >= ?");
+          try {
+            statement.setTimestamp(1, new Timestamp(since.getTime()));
+            statement.setFetchSize(1000);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+              if (resultSet.getString(1) != null && resultSet.getString(2) != null) {
+                changes.add(getActivityChange(resultSet.getString(1), resultSet.getString(2)));
+              }
+            }
+          } finally {
+            statement.close();
+          }
+          return changes;
+        } catch (SQLException e) {
+          throw new ActivitiException("Can not reconcile historic process instance facet index", e);
+        }
+      }
+    });
+  }
+
+  private String getProcessDefinitionKey(String processDefinitionId) {
+    if (processDefinitionId == null) {
+      return null;
+    }
+    ProcessDefinitionMetadata processDefinition = processDefinitionMetadataCache.get(processDefinitionId);
+    return (processDefinition != null) ? processDefinition.getKey() : null;
+  }
+
+  private static void add(FacetBitmaps bitmaps, String processInstanceId, String processDefinitionKey,
+      String tenantId, Date startTime, boolean finished) {
+    int ordinal = bitmaps.add(processInstanceId);
+    bitmaps.replace(ordinal, DEFINITION_KEY, processDefinitionKey != null ? processDefinitionKey : "");
+    bitmaps.replace(ordinal, TENANT_ID, tenantId != null ? tenantId : "");
+    bitmaps.replace(ordinal, FINISHED, String.valueOf(finished));
+    if (startTime != null) {
+      bitmaps.replace(ordinal, START_DAY, DateCodec.formatDay(startTime));
+    }
+  }
+
+  /**
+   * Loads the saved index
+   *
+   * @return true if the index is loaded
+   */
+  private boolean load() {
+    if (!file.isFile()) {
+      return false;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(
+          file), 65536)));
+      try {
+        FacetBitmaps saved = FacetBitmaps.readFrom(in, FACET_NAMES);
+        if (saved == null) {
+          logger.info("Saved historic process instance facet index " + file + " is of another format, ignored");
+          return false;
+        }
+        synchronized (lock) {
+          bitmaps = saved;
+          ready = true;
+        }
+        // the saved index has the changes committed before it was saved
+        reconciledTime = file.lastModified();
+        logger.info("Historic process instance facet index is loaded from " + file + ", " + saved.size()
+            + " process instances");
+        return true;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      logger.warn("Can not load historic process instance facet index from " + file, e);
+      return false;
+    }
+  }
+
+  /**
+   * Saves a copy of the index, the file is replaced when the copy is written
+   */
+  private void save() {
+    FacetBitmaps copy;
+    synchronized (lock) {
+      copy = bitmaps.copy();
+    }
+    File tempFile = new File(file.getPath() + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+          new FileOutputStream(tempFile), 65536)));
+      try {
+        copy.writeTo(out);
+      } finally {
+        out.close();
+      }
+      if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+        throw new IOException("Can not rename " + tempFile + " to " + file);
+      }
+    } catch (IOException e) {
+      logger.warn("Can not save historic process instance facet index to " + file, e);
+    }
+  }
+
+  @Override
+  public void onEvent(ActivitiEvent event) {
+    Change change = null;
+    if (event instanceof ActivitiActivityEvent) {
+      change = getActivityChange((ActivitiActivityEvent) event);
+    } else if (event instanceof ActivitiEntityEvent
+        && ((ActivitiEntityEvent) event).getEntity() instanceof ExecutionEntity) {
+      ExecutionEntity execution = (ExecutionEntity) ((ActivitiEntityEvent) event).getEntity();
+      if (execution.getParentId() == null) {
+        change = getProcessInstanceChange(event.getType(), execution);
+      }
+    }
+    if (change != null) {
+      applyOnCommit(change);
+    }
+  }
+
+  private Change getProcessInstanceChange(ActivitiEventType type, ExecutionEntity processInstance) {
+    final String id = processInstance.getId();
+    switch (type) {
+    case PROCESS_STARTED:
+      ProcessDefinitionMetadata processDefinition = processDefinitionMetadataCache.get(processInstance
+          .getProcessDefinitionId());
+      final String processDefinitionKey = processDefinition != null ? processDefinition.getKey() : null;
+      final String tenantId = processInstance.getTenantId();
+      final Date startTime = Context.getProcessEngineConfiguration().getClock().getCurrentTime();
+      return new Change() {
+        @Override
+        public void apply(FacetBitmaps bitmaps) {
+          add(bitmaps, id, processDefinitionKey, tenantId, startTime, false);
+        }
+      };
+    case PROCESS_COMPLETED:
+    case ENTITY_DELETED:
+      // the historic process instance of a deleted process instance is ended
+      return new Change() {
+        @Override
+        public void apply(FacetBitmaps bitmaps) {
+          int ordinal = bitmaps.getOrdinal(id);
+          if (ordinal >= 0) {
+            bitmaps.replace(ordinal, FINISHED, String.valueOf(true));
+          }
+        }
+      };
+    default:
+      return null;
+    }
+  }
+
+  private Change getActivityChange(ActivitiActivityEvent event) {
+    if (event.getProcessInstanceId() == null || event.getActivityId() == null) {
+      return null;
+    }
+    return getActivityChange(event.getProcessInstanceId(), event.getActivityId());
+  }
+
+  private static Change getActivityChange(final String id, final String activityId) {
+    return new Change() {
+      @Override
+      public void apply(FacetBitmaps bitmaps) {
+        // the start activity may be reported before the process instance
+        bitmaps.add(bitmaps.add(id), ACTIVITY, activityId);
+      }
+    };
+  }
+
+  private void applyOnCommit(final Change change) {
+    Context.getCommandContext().getTransactionContext()
+        .addTransactionListener(TransactionState.COMMITTED, new TransactionListener() {
+          @Override
+          public void execute(CommandContext commandContext) {
+            apply(change);
+          }
+        });
+  }
+
+  private void apply(Change change) {
+    synchronized (lock) {
+      if (bitmaps != null) {
+        change.apply(bitmaps);
+      }
+      if (recordedChanges != null) {
+        recordedChanges.add(change);
+      }
+    }
+  }
+
+  @Override
+  public boolean isFailOnException() {
+    return false;
+  }
+}
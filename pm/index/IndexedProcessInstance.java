@@ -0,0 +1,121 @@
+package org.activiti.pm.index;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable filterable fields of a running process instance kept by
+ * {@link RunningProcessInstanceIndex}. Changes create a new copy, so readers
+ * never see a partially updated instance.
+ *
+ * @author Dmitry Farafonov
+ */
+public class IndexedProcessInstance {
+
+  private final String id;
+  private final String processDefinitionId;
+  private final String processDefinitionKey;
+  private final String businessKey;
+  private final String tenantId;
+  private final boolean suspended;
+  private final String superProcessInstanceId;
+  private final Map<String, Object> variables;
+
+  public IndexedProcessInstance(String id, String processDefinitionId, String processDefinitionKey,
+      String businessKey, String tenantId, boolean suspended, String superProcessInstanceId,
+      Map<String, Object> variables) {
+    this.id = id;
+    this.processDefinitionId = processDefinitionId;
+    this.processDefinitionKey = processDefinitionKey;
+    this.businessKey = businessKey;
+    this.tenantId = tenantId;
+    this.suspended = suspended;
+    this.superProcessInstanceId = superProcessInstanceId;
+    this.variables = Collections.unmodifiableMap(new HashMap<String, Object>(variables));
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getProcessDefinitionId() {
+    return processDefinitionId;
+  }
+
+  public String getProcessDefinitionKey() {
+    return processDefinitionKey;
+  }
+
+  public String getBusinessKey() {
+    return businessKey;
+  }
+
+  public String getTenantId() {
+    return tenantId;
+  }
+
+  public boolean isSuspended() {
+    return suspended;
+  }
+
+  public String getSuperProcessInstanceId() {
+    return superProcessInstanceId;
+  }
+
+  /**
+   * @return indexed variables of the process instance, a variable with null
+   *         value is present with null
+   */
+  public Map<String, Object> getVariables() {
+    return variables;
+  }
+
+  public IndexedProcessInstance withSuspended(boolean suspended) {
+    return new IndexedProcessInstance(id, processDefinitionId, processDefinitionKey, businessKey, tenantId,
+        suspended, superProcessInstanceId, variables);
+  }
+
+  public IndexedProcessInstance withBusinessKey(String businessKey) {
+    return new IndexedProcessInstance(id, processDefinitionId, processDefinitionKey, businessKey, tenantId,
+        suspended, superProcessInstanceId, variables);
+  }
+
+  public IndexedProcessInstance withVariable(String name, Object value) {
+    Map<String, Object> changed = new HashMap<String, Object>(variables);
+    changed.put(name, value);
+    return new IndexedProcessInstance(id, processDefinitionId, processDefinitionKey, businessKey, tenantId,
+        suspended, superProcessInstanceId, changed);
+  }
+
+  public IndexedProcessInstance withoutVariable(String name) {
+    Map<String, Object> changed = new HashMap<String, Object>(variables);
+    changed.remove(name);
+    return new IndexedProcessInstance(id, processDefinitionId, processDefinitionKey, businessKey, tenantId,
+        suspended, superProcessInstanceId, changed);
+  }
+
+  @Override
+  public int hashCode() {
+    return id.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof IndexedProcessInstance)) {
+      return false;
+    }
+    IndexedProcessInstance other = (IndexedProcessInstance) obj;
+    return id.equals(other.id) && suspended == other.suspended && equal(processDefinitionId, other.processDefinitionId)
+        && equal(processDefinitionKey, other.processDefinitionKey) && equal(businessKey, other.businessKey)
+        && equal(tenantId, other.tenantId) && equal(superProcessInstanceId, other.superProcessInstanceId)
+        && variables.equals(other.variables);
+  }
+
+  private static boolean equal(Object o1, Object o2) {
+    return (o1 == null) ? o2 == null : o1.equals(o2);
+  }
+}
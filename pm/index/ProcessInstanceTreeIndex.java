@@ -0,0 +1,343 @@
+package org.activiti.pm.index;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.ManagementService;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.delegate.event.ActivitiEntityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.history.HistoricProcessInstance;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.ExecutionEntity;
+import org.activiti.pm.ActivitiUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Closure table of the process instance hierarchy. Every process instance has
+ * a row for itself (depth 0) and a row for each of its super process
+ * instances, so top ancestor, all descendants and depth are answered with one
+ * indexed lookup.
+ *
+ * Rows are written in the engine transaction by a listener on process start,
+ * under a savepoint. If they can not be written the statement is rolled back
+ * to the savepoint, the process start goes on and the index is not ready
+ * until {@link #backfill()}, readers walk the history instead. Existing
+ * history is indexed by {@link #backfill()} too.
+ *
+ * @author Dmitry Farafonov
+ */
+@Component
+public class ProcessInstanceTreeIndex implements ActivitiEventListener {
+  private static Logger logger = LoggerFactory.getLogger(ProcessInstanceTreeIndex.class);
+
+  public static final String TABLE_NAME = "PM_PROCINST_TREE";
+
+  @Autowired
+  protected Environment environment;
+
+  @Autowired
+  protected ManagementService managementService;
+
+  @Autowired
+  protected RuntimeService runtimeService;
+
+  /** rows of a process instance were not written, answers may be incomplete */
+  private volatile boolean needsBackfill;
+
+  @PostConstruct
+  public void init() {
+    Boolean enabled = environment.getProperty("processmanager.index.tree.enabled", Boolean.class, Boolean.FALSE);
+    if (!enabled) {
+      return;
+    }
+    managementService.executeCommand(new Command<Void>() {
+      @Override
+      public Void execute(CommandContext commandContext) {
+        createTableIfMissing(getConnection(commandContext));
+        return null;
+      }
+    });
+    runtimeService.addEventListener(this, ActivitiEventType.PROCESS_STARTED);
+    ActivitiUtil.setProcessInstanceTreeIndex(this);
+    logger.info("Process instance tree index is enabled");
+  }
+
+  @Override
+  public void onEvent(ActivitiEvent event) {
+    ExecutionEntity processInstance = (ExecutionEntity) ((ActivitiEntityEvent) event).getEntity();
+    String superProcessInstanceId = null;
+    if (processInstance.getSuperExecution() != null) {
+      superProcessInstanceId = processInstance.getSuperExecution().getProcessInstanceId();
+    }
+    Connection connection = getConnection(Context.getCommandContext());
+    try {
+      // a failed statement may abort the engine transaction, i.e. on
+      // PostgreSQL, the savepoint keeps it usable
+      Savepoint savepoint = connection.setSavepoint();
+      try {
+        insert(connection, processInstance.getProcessInstanceId(), superProcessInstanceId);
+        releaseSavepoint(connection, savepoint);
+      } catch (SQLException e) {
+        connection.rollback(savepoint);
+        throw e;
+      }
+    } catch (SQLException e) {
+      needsBackfill = true;
+      logger.error("Can not index process instance " + processInstance.getProcessInstanceId()
+          + ", process instance tree index needs backfill", e);
+    }
+  }
+
+  @Override
+  public boolean isFailOnException() {
+    return false;
+  }
+
+  /**
+   * @return false if rows of a process instance could not be written since
+   *         the last {@link #backfill()}
+   */
+  public boolean isReady() {
+    return !needsBackfill;
+  }
+
+  /**
+   * Returns top process instance id from the index
+   *
+   * @param processInstanceId
+   * @return top process instance id or null if process instance is not indexed
+   *         or the index is not ready
+   */
+  public String getTopProcessInstanceId(final String processInstanceId) {
+    if (!isReady()) {
+      return null;
+    }
+    List<String> ancestorIds = queryIds("SELECT ANCESTOR_ID_ FROM " + TABLE_NAME
+        + " WHERE DESCENDANT_ID_ = ? ORDER BY DEPTH_ DESC", processInstanceId, 1);
+    return ancestorIds.isEmpty() ? null : ancestorIds.get(0);
+  }
+
+  /**
+   * Returns ids of all subprocesses on all levels, ordered by depth
+   *
+   * @param processInstanceId
+   * @return descendant process instance ids
+   */
+  public List<String> getDescendantProcessInstanceIds(String processInstanceId) {
+    return queryIds("SELECT DESCENDANT_ID_ FROM " + TABLE_NAME
+        + " WHERE ANCESTOR_ID_ = ? AND DEPTH_ > 0 ORDER BY DEPTH_", processInstanceId, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns depth of the process instance in its tree, top process instance has depth 0
+   *
+   * @param processInstanceId
+   * @return depth or -1 if process instance is not indexed
+   */
+  public int getDepth(final String processInstanceId) {
+    return managementService.executeCommand(new Command<Integer>() {
+      @Override
+      public Integer execute(CommandContext commandContext) {
+        try {
+          PreparedStatement statement = getConnection(commandContext).prepareStatement(
+              "SELECT MAX(DEPTH_) FROM " + TABLE_NAME + " WHERE DESCENDANT_ID_ = ?");
+          try {
+            statement.setString(1, processInstanceId);
+            ResultSet resultSet = statement.executeQuery();
+            int depth = -1;
+            if (resultSet.next()) {
+              depth = resultSet.getInt(1);
+              if (resultSet.wasNull()) {
+                depth = -1;
+              }
+            }
+            return depth;
+          } finally {
+            statement.close();
+          }
+        } catch (SQLException e) {
+          throw new ActivitiException("Can not read depth of process instance " + processInstanceId, e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Indexes existing history. Inserts self rows for all not indexed process
+   * instances and then extends ancestor paths one level per step, each step in
+   * a separate transaction. Can be run repeatedly.
+   *
+   * @return number of inserted rows
+   */
+  public long backfill() {
+    // rows not written from now on are reported by the next failure
+    needsBackfill = false;
+    try {
+      return backfillRows();
+    } catch (RuntimeException e) {
+      needsBackfill = true;
+      throw e;
+    }
+  }
+
+  private long backfillRows() {
+    final String historyTableName = managementService.getTableName(HistoricProcessInstance.class);
+    long inserted = executeUpdate("INSERT INTO " + TABLE_NAME + " (ANCESTOR_ID_, DESCENDANT_ID_, DEPTH_)"
+        + " SELECT P.ID_, P.ID_, 0 FROM " + historyTableName + " P"
+        + " WHERE NOT EXISTS (SELECT 1 FROM " + TABLE_NAME + " T WHERE T.DESCENDANT_ID_ = P.ID_ AND T.DEPTH_ = 0)", -1);
+    logger.info("Process instance tree backfill: " + inserted + " process instances");
+
+    int depth = 0;
+    int levelInserted;
+    do {
+      levelInserted = executeUpdate("INSERT INTO " + TABLE_NAME + " (ANCESTOR_ID_, DESCENDANT_ID_, DEPTH_)"
+          + " SELECT T.ANCESTOR_ID_, P.ID_, T.DEPTH_ + 1 FROM " + TABLE_NAME + " T"
+          + " INNER JOIN " + historyTableName + " P ON P.SUPER_PROCESS_INSTANCE_ID_ = T.DESCENDANT_ID_"
+          + " WHERE T.DEPTH_ = ? AND NOT EXISTS (SELECT 1 FROM " + TABLE_NAME + " E"
+          + " WHERE E.ANCESTOR_ID_ = T.ANCESTOR_ID_ AND E.DESCENDANT_ID_ = P.ID_)", depth);
+      inserted += levelInserted;
+      depth++;
+    } while (levelInserted > 0);
+    logger.info("Process instance tree backfill: " + inserted + " rows inserted, max depth " + (depth - 1));
+    return inserted;
+  }
+
+  private void insert(Connection connection, String processInstanceId, String superProcessInstanceId) throws SQLException {
+    if (superProcessInstanceId != null) {
+      PreparedStatement statement = connection.prepareStatement("INSERT INTO " + TABLE_NAME
+          + " (ANCESTOR_ID_, DESCENDANT_ID_, DEPTH_) SELECT ANCESTOR_ID_, ?, DEPTH_ + 1 FROM " + TABLE_NAME
+          + " WHERE DESCENDANT_ID_ = ?");
+      try {
+        statement.setString(1, processInstanceId);
+        statement.setString(2, superProcessInstanceId);
+        if (statement.executeUpdate() == 0) {
+          // super process instance is not indexed yet, a self row only would
+          // report this process instance as top one
+          logger.debug("Super process instance " + superProcessInstanceId + " is not indexed, skip " + processInstanceId);
+          return;
+        }
+      } finally {
+        statement.close();
+      }
+    }
+    PreparedStatement statement = connection.prepareStatement("INSERT INTO " + TABLE_NAME
+        + " (ANCESTOR_ID_, DESCENDANT_ID_, DEPTH_) VALUES (?, ?, 0)");
+    try {
+      statement.setString(1, processInstanceId);
+      statement.setString(2, processInstanceId);
+      statement.executeUpdate();
+    } finally {
+      statement.close();
+    }
+  }
+
+  private List<String> queryIds(final String sql, final String processInstanceId, final int maxResults) {
+    return managementService.executeCommand(new Command<List<String>>() {
+      @Override
+      public List<String> execute(CommandContext commandContext) {
+        List<String> ids = new ArrayList<String>();
+        try {
+          PreparedStatement statement = getConnection(commandContext).prepareStatement(sql);
+          try {
+            statement.setString(1, processInstanceId);
+            ResultSet resultSet = statement.executeQuery();
+            while (ids.size() < maxResults && resultSet.next()) {
+              ids.add(resultSet.getString(1));
+            }
+          } finally {
+            statement.close();
+          }
+        } catch (SQLException e) {
+          throw new ActivitiException("Can not query process instance tree of " + processInstanceId, e);
+        }
+        return ids;
+      }
+    });
+  }
+
+  private int executeUpdate(final String sql, final int depth) {
+    return managementService.executeCommand(new Command<Integer>() {
+      @Override
+      public Integer execute(CommandContext commandContext) {
+        try {
+          PreparedStatement statement = getConnection(commandContext).prepareStatement(sql);
+          try {
+            if (depth >= 0) {
+              statement.setInt(1, depth);
+            }
+            return statement.executeUpdate();
+          } finally {
+            statement.close();
+          }
+        } catch (SQLException e) {
+          throw new ActivitiException("Can not backfill process instance tree", e);
+        }
+      }
+    });
+  }
+
+  private void createTableIfMissing(Connection connection) {
+    try {
+      DatabaseMetaData metaData = connection.getMetaData();
+      ResultSet tables = metaData.getTables(null, null, TABLE_NAME, null);
+      boolean exists = tables.next();
+      tables.close();
+      if (!exists) {
+        tables = metaData.getTables(null, null, TABLE_NAME.toLowerCase(), null);
+        exists = tables.next();
+        tables.close();
+      }
+      if (exists) {
+        return;
+      }
+      Statement statement = connection.createStatement();
+      try {
+        statement.executeUpdate("CREATE TABLE " + TABLE_NAME + " (ANCESTOR_ID_ VARCHAR(64) NOT NULL,"
+            + " DESCENDANT_ID_ VARCHAR(64) NOT NULL, DEPTH_ INTEGER NOT NULL,"
+            + " PRIMARY KEY (ANCESTOR_ID_, DESCENDANT_ID_))");
+        statement.executeUpdate("CREATE INDEX PM_IDX_PROCINST_TREE_DESC ON " + TABLE_NAME + " (DESCENDANT_ID_, DEPTH_)");
+      } finally {
+        statement.close();
+      }
+      logger.info("Created table " + TABLE_NAME);
+    } catch (SQLException e) {
+      throw new ActivitiException("Can not create table " + TABLE_NAME, e);
+    }
+  }
+
+  /**
+   * Releases the savepoint, drivers which do not support it (i.e. Oracle)
+   * release it with the transaction
+   */
+  private static void releaseSavepoint(Connection connection, Savepoint savepoint) throws SQLException {
+    try {
+      connection.releaseSavepoint(savepoint);
+    } catch (SQLFeatureNotSupportedException e) {
+      // released on commit or rollback
+    }
+  }
+
+  private static Connection getConnection(CommandContext commandContext) {
+    return commandContext.getDbSqlSession().getSqlSession().getConnection();
+  }
+}
@@ -0,0 +1,491 @@
+package org.activiti.pm.index;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.ManagementService;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.delegate.event.ActivitiEntityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.delegate.event.ActivitiVariableEvent;
+import org.activiti.engine.impl.cfg.TransactionListener;
+import org.activiti.engine.impl.cfg.TransactionState;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.ExecutionEntity;
+import org.activiti.engine.impl.persistence.entity.VariableInstanceEntity;
+import org.activiti.pm.ProcessDefinitionMetadata;
+import org.activiti.pm.ProcessDefinitionMetadataCache;
+import org.activiti.pm.util.NamedThreadFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory index of running process instances and their filterable fields:
+ * definition, business key, tenant, suspension, super process instance and
+ * process variables listed in <code>processmanager.index.running.variables</code>.
+ *
+ * The index is built from the database on startup and rebuilt every
+ * <code>processmanager.index.running.reconcileSeconds</code>. In between it is
+ * maintained from engine events, each change is applied when its transaction
+ * commits. Changes committed while the index is rebuilt are applied to the new
+ * index too, so none is lost by the swap.
+ *
+ * @author Dmitry Farafonov
+ */
+@Component
+public class RunningProcessInstanceIndex implements ActivitiEventListener {
+  private static Logger logger = LoggerFactory.getLogger(RunningProcessInstanceIndex.class);
+
+  private static final int SUSPENDED_STATE = 2;
+  private static final int IN_CLAUSE_CHUNK_SIZE = 500;
+
+  /**
+   * Change of the index made by a committed transaction
+   */
+  private interface Change {
+    void apply(ConcurrentMap<String, IndexedProcessInstance> entries);
+  }
+
+  @Autowired
+  protected Environment environment;
+
+  @Autowired
+  protected ManagementService managementService;
+
+  @Autowired
+  protected RuntimeService runtimeService;
+
+  @Autowired
+  protected ProcessDefinitionMetadataCache processDefinitionMetadataCache;
+
+  private volatile ConcurrentMap<String, IndexedProcessInstance> entries = new ConcurrentHashMap<String, IndexedProcessInstance>();
+  private volatile boolean ready;
+  private Set<String> variableNames = Collections.emptySet();
+
+  private final Object lock = new Object();
+  private final Object rebuildLock = new Object();
+  private List<Change> recordedChanges;
+
+  private ScheduledExecutorService scheduler;
+
+  @PostConstruct
+  public void init() {
+    Boolean enabled = environment.getProperty("processmanager.index.running.enabled", Boolean.class, Boolean.FALSE);
+    if (!enabled) {
+      return;
+    }
+    String variables = environment.getProperty("processmanager.index.running.variables", "");
+    Set<String> names = new LinkedHashSet<String>();
+    for (String name : StringUtils.split(variables, ",")) {
+      if (StringUtils.isNotBlank(name)) {
+        names.add(name.trim());
+      }
+    }
+    variableNames = Collections.unmodifiableSet(names);
+    long reconcileSeconds = environment.getProperty("processmanager.index.running.reconcileSeconds", Long.class, 300L);
+
+    runtimeService.addEventListener(this, ActivitiEventType.PROCESS_STARTED, ActivitiEventType.PROCESS_COMPLETED,
+        ActivitiEventType.ENTITY_DELETED, ActivitiEventType.ENTITY_UPDATED, ActivitiEventType.ENTITY_SUSPENDED,
+        ActivitiEventType.ENTITY_ACTIVATED, ActivitiEventType.VARIABLE_CREATED, ActivitiEventType.VARIABLE_UPDATED,
+        ActivitiEventType.VARIABLE_DELETED);
+
+    // Listener is registered first, so changes during the bootstrap are recorded
+    scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("pm-running-index-"));
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          rebuild();
+        } catch (RuntimeException e) {
+          logger.error("Can not rebuild running process instance index", e);
+        }
+      }
+    }, 0, reconcileSeconds, TimeUnit.SECONDS);
+    logger.info("Running process instance index is enabled, variables " + variableNames);
+  }
+
+  @PreDestroy
+  public void destroy() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * @return true if the index is built and maintained
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * @return names of indexed process variables
+   */
+  public Set<String> getVariableNames() {
+    return variableNames;
+  }
+
+  /**
+   * @param processInstanceId
+   * @return indexed process instance or null if it is not running
+   */
+  public IndexedProcessInstance get(String processInstanceId) {
+    return entries.get(processInstanceId);
+  }
+
+  /**
+   * @return live view of all indexed process instances
+   */
+  public Collection<IndexedProcessInstance> getAll() {
+    return entries.values();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Reads all running process instances from the database and replaces the
+   * index. Changes committed meanwhile are applied to the new index.
+   *
+   * @return number of indexed process instances
+   */
+  public int rebuild() {
+    synchronized (rebuildLock) {
+      synchronized (lock) {
+        recordedChanges = new ArrayList<Change>();
+      }
+      ConcurrentMap<String, IndexedProcessInstance> loaded;
+      try {
+        loaded = load();
+      } catch (RuntimeException e) {
+        synchronized (lock) {
+          recordedChanges = null;
+        }
+        throw e;
+      }
+      int drift;
+      synchronized (lock) {
+        for (Change change : recordedChanges) {
+          change.apply(loaded);
+        }
+        drift = ready ? countDifferences(entries, loaded) : 0;
+        entries = loaded;
+        recordedChanges = null;
+        ready = true;
+      }
+      if (drift > 0) {
+        logger.warn("Running process instance index is reconciled, " + drift + " process instances differed");
+      } else {
+        logger.debug("Running process instance index is rebuilt, " + loaded.size() + " process instances");
+      }
+      return loaded.size();
+    }
+  }
+
+  private static int countDifferences(Map<String, IndexedProcessInstance> current,
+      Map<String, IndexedProcessInstance> loaded) {
+    int differences = 0;
+    for (IndexedProcessInstance instance : loaded.values()) {
+      if (!instance.equals(current.get(instance.getId()))) {
+        differences++;
+      }
+    }
+    for (String id : current.keySet()) {
+      if (!loaded.containsKey(id)) {
+        differences++;
+      }
+    }
+    return differences;
+  }
+
+  private ConcurrentMap<String, IndexedProcessInstance> load() {
+    final String executionTable = managementService.getTableName(ExecutionEntity.class);
+    final String variableTable = managementService.getTableName(VariableInstanceEntity.class);
+    return managementService.executeCommand(new Command<ConcurrentMap<String, IndexedProcessInstance>>() {
+      @Override
+      public ConcurrentMap<String, IndexedProcessInstance> execute(CommandContext commandContext) {
+        Connection connection = commandContext.getDbSqlSession().getSqlSession().getConnection();
+        try {
+          List<String[]> rows = new ArrayList<String[]>();
+          Set<String> processDefinitionIds = new HashSet<String>();
+          PreparedStatement statement = connection.prepareStatement("SELECT RES.ID_, RES.PROC_DEF_ID_,"
+              + " RES.BUSINESS_KEY_, RES.TENANT_ID_, RES.SUSPENSION_STATE_, SUPER.PROC_INST_ID_ FROM " + executionTable
+              + " RES LEFT OUTER JOIN " + executionTable + " SUPER ON SUPER.ID_ = RES.SUPER_EXEC_"
+              + " WHERE RES.PARENT_ID_ IS NULL");
+          try {
+            statement.setFetchSize(1000);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+              String[] row = new String[] { resultSet.getString(1), resultSet.getString(2), resultSet.getString(3),
+                  resultSet.getString(4), String.valueOf(resultSet.getInt(5)), resultSet.getString(6) };
+              rows.add(row);
+              if (row[1] != null) {
+                processDefinitionIds.add(row[1]);
+              }
+            }
+          } finally {
+            statement.close();
+          }
+
+          Map<String, Map<String, Object>> variables = loadVariables(connection, variableTable);
+          Map<String, ProcessDefinitionMetadata> processDefinitions = processDefinitionMetadataCache
+              .getAll(processDefinitionIds);
+
+          ConcurrentMap<String, IndexedProcessInstance> loaded = new ConcurrentHashMap<String, IndexedProcessInstance>(
+              rows.size() * 4 / 3 + 16);
+          for (String[] row : rows) {
+            ProcessDefinitionMetadata processDefinition = processDefinitions.get(row[1]);
+            Map<String, Object> instanceVariables = variables.get(row[0]);
+            loaded.put(row[0], new IndexedProcessInstance(row[0], row[1],
+                processDefinition != null ? processDefinition.getKey() : null, row[2], row[3],
+                Integer.parseInt(row[4]) == SUSPENDED_STATE, row[5],
+                instanceVariables != null ? instanceVariables : Collections.<String, Object> emptyMap()));
+          }
+          return loaded;
+        } catch (SQLException e) {
+          throw new ActivitiException("Can not load running process instance index", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Reads indexed process variables of all running process instances. Only
+   * variables of the types the runtime query compares are loaded.
+   */
+  private Map<String, Map<String, Object>> loadVariables(Connection connection, String variableTable)
+      throws SQLException {
+    Map<String, Map<String, Object>> variables = new HashMap<String, Map<String, Object>>();
+    List<String> names = new ArrayList<String>(variableNames);
+    for (int from = 0; from < names.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+      List<String> chunk = names.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, names.size()));
+      StringBuilder sql = new StringBuilder("SELECT VAR.EXECUTION_ID_, VAR.NAME_, VAR.TYPE_, VAR.TEXT_, VAR.LONG_,"
+          + " VAR.DOUBLE_ FROM " + variableTable + " VAR WHERE VAR.TASK_ID_ IS NULL"
+          + " AND VAR.EXECUTION_ID_ = VAR.PROC_INST_ID_ AND VAR.NAME_ IN (");
+      for (int i = 0; i < chunk.size(); i++) {
+        sql.append(i > 0 ? ", ?" : "?");
+      }
+      sql.append(")");
+      PreparedStatement statement = connection.prepareStatement(sql.toString());
+      try {
+        for (int i = 0; i < chunk.size(); i++) {
+          statement.setString(i + 1, chunk.get(i));
+        }
+        statement.setFetchSize(1000);
+        ResultSet resultSet = statement.executeQuery();
+        while (resultSet.next()) {
+          String type = resultSet.getString(3);
+          Object value;
+          if ("null".equals(type)) {
+            value = null;
+          } else if ("string".equals(type)) {
+            value = resultSet.getString(4);
+          } else if ("double".equals(type)) {
+            value = resultSet.getDouble(6);
+          } else if (isLongType(type)) {
+            value = fromLong(type, resultSet.getLong(5));
+          } else {
+            continue;
+          }
+          Map<String, Object> instanceVariables = variables.get(resultSet.getString(1));
+          if (instanceVariables == null) {
+            instanceVariables = new HashMap<String, Object>();
+            variables.put(resultSet.getString(1), instanceVariables);
+          }
+          instanceVariables.put(resultSet.getString(2), value);
+        }
+      } finally {
+        statement.close();
+      }
+    }
+    return variables;
+  }
+
+  private static boolean isLongType(String type) {
+    return "long".equals(type) || "integer".equals(type) || "short".equals(type) || "boolean".equals(type)
+        || "date".equals(type);
+  }
+
+  private static Object fromLong(String type, long value) {
+    if ("integer".equals(type)) {
+      return (int) value;
+    } else if ("short".equals(type)) {
+      return (short) value;
+    } else if ("boolean".equals(type)) {
+      return value == 1;
+    } else if ("date".equals(type)) {
+      return new Date(value);
+    }
+    return value;
+  }
+
+  /**
+   * @param value
+   * @return true if the value is kept by the index, like the types loaded from
+   *         the database
+   */
+  private static boolean isIndexable(Object value) {
+    return value == null || value instanceof String || value instanceof Long || value instanceof Integer
+        || value instanceof Short || value instanceof Boolean || value instanceof Date || value instanceof Double;
+  }
+
+  @Override
+  public void onEvent(ActivitiEvent event) {
+    Change change = null;
+    if (event instanceof ActivitiVariableEvent) {
+      change = getVariableChange((ActivitiVariableEvent) event);
+    } else if (event instanceof ActivitiEntityEvent
+        && ((ActivitiEntityEvent) event).getEntity() instanceof ExecutionEntity) {
+      ExecutionEntity execution = (ExecutionEntity) ((ActivitiEntityEvent) event).getEntity();
+      if (execution.getParentId() == null) {
+        change = getProcessInstanceChange(event.getType(), execution);
+      }
+    }
+    if (change != null) {
+      applyOnCommit(change);
+    }
+  }
+
+  private Change getProcessInstanceChange(ActivitiEventType type, ExecutionEntity processInstance) {
+    final String id = processInstance.getId();
+    switch (type) {
+    case PROCESS_STARTED:
+      final IndexedProcessInstance started = createIndexedProcessInstance(processInstance);
+      return new Change() {
+        @Override
+        public void apply(ConcurrentMap<String, IndexedProcessInstance> entries) {
+          entries.put(id, started);
+        }
+      };
+    case PROCESS_COMPLETED:
+    case ENTITY_DELETED:
+      return new Change() {
+        @Override
+        public void apply(ConcurrentMap<String, IndexedProcessInstance> entries) {
+          entries.remove(id);
+        }
+      };
+    case ENTITY_SUSPENDED:
+    case ENTITY_ACTIVATED:
+      final boolean suspended = type == ActivitiEventType.ENTITY_SUSPENDED;
+      return new Change() {
+        @Override
+        public void apply(ConcurrentMap<String, IndexedProcessInstance> entries) {
+          IndexedProcessInstance instance = entries.get(id);
+          if (instance != null) {
+            entries.put(id, instance.withSuspended(suspended));
+          }
+        }
+      };
+    case ENTITY_UPDATED:
+      final String businessKey = processInstance.getBusinessKey();
+      return new Change() {
+        @Override
+        public void apply(ConcurrentMap<String, IndexedProcessInstance> entries) {
+          IndexedProcessInstance instance = entries.get(id);
+          if (instance != null) {
+            entries.put(id, instance.withBusinessKey(businessKey));
+          }
+        }
+      };
+    default:
+      return null;
+    }
+  }
+
+  private IndexedProcessInstance createIndexedProcessInstance(ExecutionEntity processInstance) {
+    String superProcessInstanceId = null;
+    if (processInstance.getSuperExecution() != null) {
+      superProcessInstanceId = processInstance.getSuperExecution().getProcessInstanceId();
+    }
+    ProcessDefinitionMetadata processDefinition = processDefinitionMetadataCache.get(processInstance
+        .getProcessDefinitionId());
+    // Variables of the start are set before the process instance is indexed
+    Map<String, Object> variables = new HashMap<String, Object>();
+    for (String name : variableNames) {
+      if (processInstance.hasVariableLocal(name)) {
+        Object value = processInstance.getVariableLocal(name);
+        if (isIndexable(value)) {
+          variables.put(name, value);
+        }
+      }
+    }
+    return new IndexedProcessInstance(processInstance.getId(), processInstance.getProcessDefinitionId(),
+        processDefinition != null ? processDefinition.getKey() : null, processInstance.getBusinessKey(),
+        processInstance.getTenantId(), processInstance.isSuspended(), superProcessInstanceId, variables);
+  }
+
+  private Change getVariableChange(ActivitiVariableEvent event) {
+    final String name = event.getVariableName();
+    final String id = event.getProcessInstanceId();
+    if (!variableNames.contains(name) || event.getTaskId() != null || id == null
+        || !id.equals(event.getExecutionId())) {
+      return null;
+    }
+    final Object value = event.getVariableValue();
+    final boolean removed = event.getType() == ActivitiEventType.VARIABLE_DELETED || !isIndexable(value);
+    return new Change() {
+      @Override
+      public void apply(ConcurrentMap<String, IndexedProcessInstance> entries) {
+        IndexedProcessInstance instance = entries.get(id);
+        if (instance != null) {
+          entries.put(id, removed ? instance.withoutVariable(name) : instance.withVariable(name, value));
+        }
+      }
+    };
+  }
+
+  private void applyOnCommit(final Change change) {
+    Context.getCommandContext().getTransactionContext()
+        .addTransactionListener(TransactionState.COMMITTED, new TransactionListener() {
+          @Override
+          public void execute(CommandContext commandContext) {
+            apply(change);
+          }
+        });
+  }
+
+  private void apply(Change change) {
+    synchronized (lock) {
+      change.apply(entries);
+      if (recordedChanges != null) {
+        recordedChanges.add(change);
+      }
+    }
+  }
+
+  @Override
+  public boolean isFailOnException() {
+    return false;
+  }
+}
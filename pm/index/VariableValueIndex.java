@@ -0,0 +1,596 @@
+package org.activiti.pm.index;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.ManagementService;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.delegate.event.ActivitiVariableEvent;
+import org.activiti.engine.history.HistoricVariableInstance;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.PropertyEntity;
+import org.activiti.pm.filter.FilterRequestFactory;
+import org.activiti.pm.filter.variable.QueryVariable;
+import org.activiti.pm.filter.variable.QueryVariable.QueryVariableOperation;
+import org.activiti.pm.util.NamedThreadFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Lookup table of values of the variables listed in
+ * <code>processmanager.index.variables.names</code>, indexed by name, type
+ * and value. EQUALS and prefix LIKE conditions on these variables are probed
+ * in the table to get candidate process instances, so the filter query reads
+ * only those instead of scanning the variable tables.
+ *
+ * Rows are written in the engine transaction by a listener on variable
+ * changes, under a savepoint. If a row can not be written the statements are
+ * rolled back to the savepoint, the engine transaction goes on and the index
+ * is not probed until {@link #backfill()} completes again. A row is
+ * updated when its variable is updated and kept when the variable is deleted,
+ * because the variable stays in history, so the table holds a superset of the
+ * matching process instances. Existing history is indexed by
+ * {@link #backfill()} on startup, the index is probed after it completes. Values are stored truncated to
+ * {@link #MAX_VALUE_LENGTH}, which keeps the superset.
+ *
+ * @author Dmitry Farafonov
+ */
+@Component
+public class VariableValueIndex implements ActivitiEventListener {
+  private static Logger logger = LoggerFactory.getLogger(VariableValueIndex.class);
+
+  public static final String TABLE_NAME = "PM_VAR_INDEX";
+
+  public static final int MAX_VALUE_LENGTH = 255;
+
+  private static final int BATCH_SIZE = 1000;
+
+  private static final String NO_PROCESS_INSTANCE_ID = "";
+
+  @Autowired
+  protected Environment environment;
+
+  @Autowired
+  protected ManagementService managementService;
+
+  @Autowired
+  protected RuntimeService runtimeService;
+
+  private Set<String> variableNames = Collections.emptySet();
+  private int maxCandidates;
+  private String propertyTable;
+  private volatile boolean ready;
+  /** a row could not be written since the start of the last backfill */
+  private volatile boolean writeFailed;
+  private ExecutorService backfillExecutor;
+
+  @PostConstruct
+  public void init() {
+    String names = environment.getProperty("processmanager.index.variables.names", "");
+    Set<String> indexedNames = new LinkedHashSet<String>();
+    for (String name : StringUtils.split(names, ",")) {
+      if (StringUtils.isNotBlank(name)) {
+        indexedNames.add(name.trim());
+      }
+    }
+    if (indexedNames.isEmpty()) {
+      return;
+    }
+    maxCandidates = environment.getProperty("processmanager.index.variables.maxCandidates", Integer.class, 1000);
+    // one row table of every engine schema, source row of inserts of missing rows
+    propertyTable = managementService.getTableName(PropertyEntity.class);
+    managementService.executeCommand(new Command<Void>() {
+      @Override
+      public Void execute(CommandContext commandContext) {
+        createTableIfMissing(getConnection(commandContext));
+        return null;
+      }
+    });
+    variableNames = Collections.unmodifiableSet(indexedNames);
+    runtimeService.addEventListener(this, ActivitiEventType.VARIABLE_CREATED, ActivitiEventType.VARIABLE_UPDATED);
+
+    // Listener is registered first, so the backfill does not miss changes
+    Boolean backfill = environment.getProperty("processmanager.index.variables.backfill", Boolean.class, Boolean.TRUE);
+    if (backfill) {
+      backfillExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("pm-variable-index-"));
+      backfillExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            backfill();
+          } catch (RuntimeException e) {
+            logger.error("Can not backfill variable value index, it is not used by filters", e);
+          }
+        }
+      });
+    } else {
+      ready = true;
+    }
+    logger.info("Variable value index is enabled for " + variableNames);
+  }
+
+  @PreDestroy
+  public void destroy() {
+    if (backfillExecutor != null) {
+      backfillExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return true if existing history is indexed and the index can be probed
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * @return names of indexed variables, empty if the index is disabled
+   */
+  public Set<String> getVariableNames() {
+    return variableNames;
+  }
+
+  @Override
+  public void onEvent(ActivitiEvent event) {
+    ActivitiVariableEvent variableEvent = (ActivitiVariableEvent) event;
+    if (!variableNames.contains(variableEvent.getVariableName()) || variableEvent.getProcessInstanceId() == null) {
+      return;
+    }
+    String scopeId = (variableEvent.getTaskId() != null) ? variableEvent.getTaskId() : variableEvent.getExecutionId();
+    Object value = variableEvent.getVariableValue();
+    Connection connection = getConnection(Context.getCommandContext());
+    try {
+      // a failed statement may abort the engine transaction, i.e. on
+      // PostgreSQL, the savepoint keeps it usable
+      Savepoint savepoint = connection.setSavepoint();
+      try {
+        upsert(connection, variableEvent.getProcessInstanceId(), scopeId, variableEvent.getVariableName(),
+            getType(value), toIndexValue(value));
+      } catch (SQLException e) {
+        connection.rollback(savepoint);
+        throw e;
+      } finally {
+        releaseSavepoint(connection, savepoint);
+      }
+    } catch (SQLException e) {
+      // a missing row would hide matches of filters, the plain query is used
+      writeFailed = true;
+      ready = false;
+      logger.error("Can not index variable " + variableEvent.getVariableName() + " of process instance "
+          + variableEvent.getProcessInstanceId() + ", variable value index is not used until backfill", e);
+    }
+  }
+
+  @Override
+  public boolean isFailOnException() {
+    return false;
+  }
+
+  /**
+   * Returns ids of process instances which may match all indexed conditions of
+   * the filter. Conditions on other variables and other operations are not
+   * probed and must still be checked by the query.
+   *
+   * @param filterRequestFactory
+   * @param variables
+   * @return candidate process instance ids or null if no condition is probed
+   *         or candidates are too many to restrict the query
+   */
+  public Set<String> findCandidateProcessInstanceIds(FilterRequestFactory filterRequestFactory,
+      List<QueryVariable> variables) {
+    if (!ready || variables == null) {
+      return null;
+    }
+    Set<String> candidates = null;
+    for (QueryVariable variable : variables) {
+      if (variable.getName() == null || !variableNames.contains(variable.getName()) || variable.getValue() == null) {
+        continue;
+      }
+      Object value = filterRequestFactory.getVariableValue(variable);
+      String type = getType(value);
+      String indexValue = toIndexValue(value);
+      if (type == null || indexValue == null || indexValue.length() >= MAX_VALUE_LENGTH) {
+        continue;
+      }
+      Set<String> ids;
+      if (variable.getVariableOperation() == QueryVariableOperation.EQUALS) {
+        ids = probe(variable.getName(), type, indexValue, false);
+      } else if (variable.getVariableOperation() == QueryVariableOperation.LIKE && isPrefixPattern(indexValue)) {
+        ids = probe(variable.getName(), type, indexValue, true);
+      } else {
+        continue;
+      }
+      if (ids == null) {
+        continue;
+      }
+      if (candidates == null) {
+        candidates = ids;
+      } else {
+        candidates.retainAll(ids);
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Returns process instance ids the filter query should be restricted to:
+   * candidates of indexed conditions which are among the requested ids. No
+   * candidates are returned as an id which does not exist, because the query
+   * does not accept an empty set.
+   *
+   * @param filterRequestFactory
+   * @param variables
+   * @param processInstanceIds
+   *          ids requested by the filter or null
+   * @return ids or null if the query should not be restricted
+   */
+  public Set<String> restrictProcessInstanceIds(FilterRequestFactory filterRequestFactory,
+      List<QueryVariable> variables, List<String> processInstanceIds) {
+    Set<String> candidates = findCandidateProcessInstanceIds(filterRequestFactory, variables);
+    if (candidates == null) {
+      return null;
+    }
+    if (processInstanceIds != null && !processInstanceIds.isEmpty()) {
+      candidates.retainAll(processInstanceIds);
+    }
+    if (candidates.isEmpty()) {
+      candidates.add(NO_PROCESS_INSTANCE_ID);
+    }
+    return candidates;
+  }
+
+  /**
+   * @param pattern
+   * @return true if the only wildcard of the LIKE pattern is % at the end
+   */
+  private static boolean isPrefixPattern(String pattern) {
+    int wildcard = StringUtils.indexOfAny(pattern, "%_");
+    return wildcard > 0 && wildcard == pattern.length() - 1 && pattern.charAt(wildcard) == '%';
+  }
+
+  private Set<String> probe(final String name, final String type, final String value, final boolean prefix) {
+    return managementService.executeCommand(new Command<Set<String>>() {
+      @Override
+      public Set<String> execute(CommandContext commandContext) {
+        Set<String> ids = new HashSet<String>();
+        try {
+          PreparedStatement statement = getConnection(commandContext).prepareStatement("SELECT DISTINCT PROC_INST_ID_ FROM "
+              + TABLE_NAME + " WHERE NAME_ = ? AND TYPE_ = ? AND VALUE_ " + (prefix ? "LIKE" : "=") + " ?");
+          try {
+            statement.setString(1, name);
+            statement.setString(2, type);
+            statement.setString(3, value);
+            statement.setMaxRows(maxCandidates + 1);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+              ids.add(resultSet.getString(1));
+            }
+          } finally {
+            statement.close();
+          }
+        } catch (SQLException e) {
+          throw new ActivitiException("Can not probe variable value index for " + name, e);
+        }
+        return ids.size() > maxCandidates ? null : ids;
+      }
+    });
+  }
+
+  /**
+   * Indexes variables of existing history in batches, each batch in a
+   * separate transaction. Only missing rows are inserted, a row written by the
+   * listener meanwhile holds a newer value. Can be run repeatedly. The index
+   * is probed after a backfill during which every row was written.
+   *
+   * @return number of indexed variables
+   */
+  public long backfill() {
+    if (variableNames.isEmpty()) {
+      return 0;
+    }
+    writeFailed = false;
+    final String variableTable = managementService.getTableName(HistoricVariableInstance.class);
+    final List<String> names = new ArrayList<String>(variableNames);
+    final long[] indexed = new long[1];
+    String after = "";
+    while (after != null) {
+      final String lastId = after;
+      after = managementService.executeCommand(new Command<String>() {
+        @Override
+        public String execute(CommandContext commandContext) {
+          Connection connection = getConnection(commandContext);
+          StringBuilder sql = new StringBuilder("SELECT ID_, PROC_INST_ID_, EXECUTION_ID_, TASK_ID_, NAME_, VAR_TYPE_,"
+              + " TEXT_, LONG_, DOUBLE_ FROM " + variableTable + " WHERE PROC_INST_ID_ IS NOT NULL AND ID_ > ?"
+              + " AND NAME_ IN (");
+          for (int i = 0; i < names.size(); i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+          }
+          sql.append(") ORDER BY ID_");
+          try {
+            List<String[]> rows = new ArrayList<String[]>();
+            PreparedStatement statement = connection.prepareStatement(sql.toString());
+            try {
+              statement.setString(1, lastId);
+              for (int i = 0; i < names.size(); i++) {
+                statement.setString(i + 2, names.get(i));
+              }
+              statement.setMaxRows(BATCH_SIZE);
+              ResultSet resultSet = statement.executeQuery();
+              while (resultSet.next()) {
+                String type = resultSet.getString(6);
+                String value = toIndexValue(type, resultSet.getString(7), resultSet.getLong(8), resultSet.wasNull(),
+                    resultSet.getDouble(9));
+                String scopeId = resultSet.getString(4) != null ? resultSet.getString(4) : resultSet.getString(3);
+                rows.add(new String[] { resultSet.getString(1), resultSet.getString(2), scopeId,
+                    resultSet.getString(5), type, value });
+              }
+            } finally {
+              statement.close();
+            }
+            for (String[] row : rows) {
+              if (insertIfMissing(connection, row[1], row[2], row[3], row[4], row[5])) {
+                indexed[0]++;
+              }
+            }
+            return rows.size() < BATCH_SIZE ? null : rows.get(rows.size() - 1)[0];
+          } catch (SQLException e) {
+            throw new ActivitiException("Can not backfill variable value index", e);
+          }
+        }
+      });
+      logger.debug("Variable value index backfill: " + indexed[0] + " variables");
+    }
+    ready = !writeFailed;
+    logger.info("Variable value index backfill is completed, " + indexed[0] + " variables");
+    return indexed[0];
+  }
+
+  /**
+   * Updates or inserts the row of the variable of the scope, a variable without
+   * indexable value has no row. An insert which collides with a concurrent one
+   * is rolled back to a savepoint and the row is updated.
+   */
+  private static void upsert(Connection connection, String processInstanceId, String scopeId, String name,
+      String type, String value) throws SQLException {
+    if (type == null || value == null) {
+      delete(connection, scopeId, name);
+      return;
+    }
+    if (update(connection, processInstanceId, scopeId, name, type, value) > 0) {
+      return;
+    }
+    Savepoint savepoint = connection.setSavepoint();
+    try {
+      insert(connection, processInstanceId, scopeId, name, type, value);
+    } catch (SQLException e) {
+      connection.rollback(savepoint);
+      if (update(connection, processInstanceId, scopeId, name, type, value) == 0) {
+        throw e;
+      }
+    } finally {
+      releaseSavepoint(connection, savepoint);
+    }
+  }
+
+  /**
+   * Inserts the row of the variable of the scope unless the scope has a row of
+   * the variable already
+   *
+   * @return true if the row is inserted
+   */
+  private boolean insertIfMissing(Connection connection, String processInstanceId, String scopeId, String name,
+      String type, String value) throws SQLException {
+    if (type == null || value == null) {
+      return false;
+    }
+    Savepoint savepoint = connection.setSavepoint();
+    PreparedStatement statement = connection.prepareStatement("INSERT INTO " + TABLE_NAME
+        + " (PROC_INST_ID_, SCOPE_ID_, NAME_, TYPE_, VALUE_) SELECT ?, ?, ?, ?, ? FROM " + propertyTable
+        + " WHERE NAME_ = 'schema.version' AND NOT EXISTS (SELECT 1 FROM " + TABLE_NAME
+        + " WHERE SCOPE_ID_ = ? AND NAME_ = ?)");
+    try {
+      statement.setString(1, processInstanceId);
+      statement.setString(2, scopeId);
+      statement.setString(3, name);
+      statement.setString(4, type);
+      statement.setString(5, StringUtils.left(value, MAX_VALUE_LENGTH));
+      statement.setString(6, scopeId);
+      statement.setString(7, name);
+      return statement.executeUpdate() > 0;
+    } catch (SQLException e) {
+      // the row is inserted by a concurrent listener, which value is newer
+      connection.rollback(savepoint);
+      if (!exists(connection, scopeId, name)) {
+        throw e;
+      }
+      return false;
+    } finally {
+      statement.close();
+      releaseSavepoint(connection, savepoint);
+    }
+  }
+
+  private static int update(Connection connection, String processInstanceId, String scopeId, String name,
+      String type, String value) throws SQLException {
+    PreparedStatement statement = connection.prepareStatement("UPDATE " + TABLE_NAME
+        + " SET PROC_INST_ID_ = ?, TYPE_ = ?, VALUE_ = ? WHERE SCOPE_ID_ = ? AND NAME_ = ?");
+    try {
+      statement.setString(1, processInstanceId);
+      statement.setString(2, type);
+      statement.setString(3, StringUtils.left(value, MAX_VALUE_LENGTH));
+      statement.setString(4, scopeId);
+      statement.setString(5, name);
+      return statement.executeUpdate();
+    } finally {
+      statement.close();
+    }
+  }
+
+  private static void insert(Connection connection, String processInstanceId, String scopeId, String name,
+      String type, String value) throws SQLException {
+    PreparedStatement statement = connection.prepareStatement("INSERT INTO " + TABLE_NAME
+        + " (PROC_INST_ID_, SCOPE_ID_, NAME_, TYPE_, VALUE_) VALUES (?, ?, ?, ?, ?)");
+    try {
+      statement.setString(1, processInstanceId);
+      statement.setString(2, scopeId);
+      statement.setString(3, name);
+      statement.setString(4, type);
+      statement.setString(5, StringUtils.left(value, MAX_VALUE_LENGTH));
+      statement.executeUpdate();
+    } finally {
+      statement.close();
+    }
+  }
+
+  private static void delete(Connection connection, String scopeId, String name) throws SQLException {
+    PreparedStatement statement = connection.prepareStatement("DELETE FROM " + TABLE_NAME
+        + " WHERE SCOPE_ID_ = ? AND NAME_ = ?");
+    try {
+      statement.setString(1, scopeId);
+      statement.setString(2, name);
+      statement.executeUpdate();
+    } finally {
+      statement.close();
+    }
+  }
+
+  private static boolean exists(Connection connection, String scopeId, String name) throws SQLException {
+    PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM " + TABLE_NAME
+        + " WHERE SCOPE_ID_ = ? AND NAME_ = ?");
+    try {
+      statement.setString(1, scopeId);
+      statement.setString(2, name);
+      return statement.executeQuery().next();
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * @param value
+   * @return engine type name of the value or null if the value is not indexed
+   */
+  private static String getType(Object value) {
+    if (value instanceof String) {
+      return "string";
+    } else if (value instanceof Long) {
+      return "long";
+    } else if (value instanceof Integer) {
+      return "integer";
+    } else if (value instanceof Short) {
+      return "short";
+    } else if (value instanceof Boolean) {
+      return "boolean";
+    } else if (value instanceof Date) {
+      return "date";
+    } else if (value instanceof Double) {
+      return "double";
+    }
+    return null;
+  }
+
+  /**
+   * Returns text form of the value, the same as of the value stored by the
+   * engine with {@link #toIndexValue(String, String, long, boolean, double)}
+   */
+  private static String toIndexValue(Object value) {
+    if (value instanceof String) {
+      return (String) value;
+    } else if (value instanceof Boolean) {
+      return (Boolean) value ? "1" : "0";
+    } else if (value instanceof Date) {
+      return String.valueOf(((Date) value).getTime());
+    } else if (value instanceof Number) {
+      return value.toString();
+    }
+    return null;
+  }
+
+  private static String toIndexValue(String type, String text, long longValue, boolean longNull, double doubleValue) {
+    if ("string".equals(type)) {
+      return text;
+    } else if ("double".equals(type)) {
+      return Double.toString(doubleValue);
+    } else if (longNull) {
+      return null;
+    } else if ("long".equals(type) || "integer".equals(type) || "short".equals(type) || "boolean".equals(type)
+        || "date".equals(type)) {
+      return Long.toString(longValue);
+    }
+    return null;
+  }
+
+  private void createTableIfMissing(Connection connection) {
+    try {
+      DatabaseMetaData metaData = connection.getMetaData();
+      ResultSet tables = metaData.getTables(null, null, TABLE_NAME, null);
+      boolean exists = tables.next();
+      tables.close();
+      if (!exists) {
+        tables = metaData.getTables(null, null, TABLE_NAME.toLowerCase(), null);
+        exists = tables.next();
+        tables.close();
+      }
+      if (exists) {
+        return;
+      }
+      Statement statement = connection.createStatement();
+      try {
+        statement.executeUpdate("CREATE TABLE " + TABLE_NAME + " (PROC_INST_ID_ VARCHAR(64) NOT NULL,"
+            + " SCOPE_ID_ VARCHAR(64) NOT NULL, NAME_ VARCHAR(255) NOT NULL, TYPE_ VARCHAR(32) NOT NULL,"
+            + " VALUE_ VARCHAR(" + MAX_VALUE_LENGTH + ") NOT NULL, PRIMARY KEY (SCOPE_ID_, NAME_))");
+        statement.executeUpdate("CREATE INDEX PM_IDX_VAR_INDEX_VALUE ON " + TABLE_NAME
+            + " (NAME_, TYPE_, VALUE_, PROC_INST_ID_)");
+      } finally {
+        statement.close();
+      }
+      logger.info("Created table " + TABLE_NAME);
+    } catch (SQLException e) {
+      throw new ActivitiException("Can not create table " + TABLE_NAME, e);
+    }
+  }
+
+  /**
+   * Releases the savepoint, drivers which do not support it (i.e. Oracle)
+   * release it with the transaction
+   */
+  private static void releaseSavepoint(Connection connection, Savepoint savepoint) throws SQLException {
+    try {
+      connection.releaseSavepoint(savepoint);
+    } catch (SQLFeatureNotSupportedException e) {
+      // released on commit or rollback
+    }
+  }
+
+  private static Connection getConnection(CommandContext commandContext) {
+    return commandContext.getDbSqlSession().getSqlSession().getConnection();
+  }
+}
@@ -1,12 +1,23 @@
 package org.activiti.pm.request;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
+import org.activiti.engine.ActivitiIllegalArgumentException;
 import org.activiti.engine.query.Query;
 import org.activiti.engine.query.QueryProperty;
 import org.activiti.pm.filter.FilterRequestFactory;
+import org.activiti.pm.util.SingleFlight;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  *
@@ -14,23 +25,224 @@ import org.springframework.beans.factory.annotation.Autowired;
  *
  */
 public abstract class AbstractFilterResource<T> {
+  private static final SingleFlight<String, DataResponse> inFlightQueries = new SingleFlight<String, DataResponse>();
+
   @Autowired
   protected FilterRequestFactory filterRequestFactory;
 
+  @Autowired
+  protected PaginateTotals paginateTotals;
+
+  @Autowired
+  protected Environment environment;
+
+  @Autowired
+  protected FilterResultCache filterResultCache;
+
+  /**
+   * Returns page of the filter, cached by the normalized request. Concurrent
+   * identical requests share one execution and one response.
+   *
+   * @param queryRequest
+   * @param allRequestParams
+   * @return
+   */
+  public DataResponse getFilteredList(final QueryRequest<T> queryRequest, final Map<String, String> allRequestParams) {
+    // Key is taken before the paginate list fills the request from parameters
+    final String key = QueryRequestKey.ofPage(queryRequest, allRequestParams);
+    final boolean cached = filterResultCache.isEnabled(allRequestParams);
+    if (cached) {
+      DataResponse response = filterResultCache.get(key);
+      if (response != null) {
+        return response;
+      }
+    }
+    return inFlightQueries.execute(key, new Callable<DataResponse>() {
+      @Override
+      public DataResponse call() {
+        DataResponse response = queryFilteredList(queryRequest, allRequestParams);
+        if (cached) {
+          filterResultCache.put(key, queryRequest, response);
+        }
+        return response;
+      }
+    });
+  }
+
+  /**
+   * @return number of requests which shared execution of an identical request
+   */
+  public static long getCoalescedCount() {
+    return inFlightQueries.getCoalescedCount();
+  }
+
   @SuppressWarnings({ "rawtypes", "unchecked" })
-  public DataResponse getFilteredList(QueryRequest<T> queryRequest, Map<String, String> allRequestParams) {
+  protected DataResponse queryFilteredList(QueryRequest<T> queryRequest, Map<String, String> allRequestParams) {
+    if (isKeysetPagination((PaginateRequest) queryRequest, allRequestParams)) {
+      KeysetQuery keysetQuery = getKeysetQuery((T) queryRequest);
+      if (keysetQuery == null) {
+        throw new ActivitiIllegalArgumentException("Keyset pagination is not supported by " + getClass().getSimpleName());
+      }
+      QueryPaginateList paginateList = createPaginateList();
+      paginateList.setPaginateTotals(paginateTotals);
+      paginateList.setVariableNames(getVariableNames(queryRequest));
+      return paginateList.paginateKeysetList(allRequestParams, (PaginateRequest) queryRequest, keysetQuery,
+          "processInstanceId");
+    }
+
+    // Page and total are read in parallel, each by its own query
     Query query = getQuery((T) queryRequest);
+    Query countQuery = getQuery((T) queryRequest);
 
-    DataResponse dataResponce = createPaginateList().paginateList(allRequestParams, (PaginateRequest) queryRequest,
-        query, "processInstanceId", getAllowedSortProperties());
+    QueryPaginateList paginateList = createPaginateList();
+    paginateList.setPaginateTotals(paginateTotals);
+    paginateList.setVariableNames(getVariableNames(queryRequest));
+    DataResponse dataResponce = paginateList.paginateList(allRequestParams, (PaginateRequest) queryRequest,
+        query, countQuery, "processInstanceId", getAllowedSortProperties());
 
     return dataResponce;
   }
 
+  /**
+   * Creates writer of exported rows, CSV has a column for each requested
+   * variable
+   *
+   * @param queryRequest
+   * @param format {@link ExportWriter#NDJSON} or {@link ExportWriter#CSV}
+   * @param out
+   * @param mapper
+   * @return
+   * @throws IOException
+   */
+  public ExportWriter createExportWriter(QueryRequest<T> queryRequest, String format, OutputStream out,
+      ObjectMapper mapper) throws IOException {
+    return ExportWriter.create(format, out, mapper, getVariableNames(queryRequest));
+  }
+
+  /**
+   * Checks that rows of the filter can be exported with the sort and order of
+   * the request, so an invalid request is reported before the response is
+   * started
+   *
+   * @param queryRequest
+   * @param allRequestParams
+   * @return query of exported rows
+   */
+  @SuppressWarnings("unchecked")
+  public KeysetQuery checkExport(QueryRequest<T> queryRequest, Map<String, String> allRequestParams) {
+    KeysetQuery keysetQuery = getKeysetQuery((T) queryRequest);
+    if (keysetQuery == null) {
+      throw new ActivitiIllegalArgumentException("Export is not supported by " + getClass().getSimpleName());
+    }
+    String sort = getExportSort(queryRequest, allRequestParams);
+    String order = getExportOrder(queryRequest, allRequestParams);
+    if (!keysetQuery.isSortSupported(sort)) {
+      throw new ActivitiIllegalArgumentException("Value for param 'sort' is not valid, '" + sort + "' is not a valid property");
+    }
+    if (!order.equals("asc") && !order.equals("desc")) {
+      throw new ActivitiIllegalArgumentException("Value for param 'order' is not valid : '" + order + "', must be 'asc' or 'desc'");
+    }
+    return keysetQuery;
+  }
+
+  /**
+   * Writes all rows of the filter to the writer, see
+   * {@link #export(KeysetQuery, QueryRequest, Map, ExportWriter)}
+   */
+  public long export(QueryRequest<T> queryRequest, Map<String, String> allRequestParams, ExportWriter writer)
+      throws IOException {
+    return export(checkExport(queryRequest, allRequestParams), queryRequest, allRequestParams, writer);
+  }
+
+  /**
+   * Writes all rows of the filter to the writer. Rows are read in keyset
+   * batches of processmanager.export.batchSize, written rows are flushed after
+   * each batch and not kept. Total is not counted.
+   *
+   * @param keysetQuery query returned by {@link #checkExport(QueryRequest, Map)}
+   * @param queryRequest
+   * @param allRequestParams
+   * @param writer
+   * @return number of written rows
+   * @throws IOException
+   */
+  @SuppressWarnings("rawtypes")
+  public long export(KeysetQuery keysetQuery, QueryRequest<T> queryRequest, Map<String, String> allRequestParams,
+      ExportWriter writer) throws IOException {
+    String sort = getExportSort(queryRequest, allRequestParams);
+    String order = getExportOrder(queryRequest, allRequestParams);
+
+    int batchSize = environment.getProperty("processmanager.export.batchSize", Integer.class, 500);
+    QueryPaginateList paginateList = createPaginateList();
+    paginateList.setVariableNames(getVariableNames(queryRequest));
+
+    long count = 0;
+    KeysetToken after = null;
+    while (true) {
+      List rows = keysetQuery.listPage(sort, order, after, batchSize);
+      if (rows.isEmpty()) {
+        break;
+      }
+      for (Object row : paginateList.processList(rows)) {
+        writer.writeRow(row);
+      }
+      writer.flush();
+      count += rows.size();
+      if (rows.size() < batchSize) {
+        break;
+      }
+      after = keysetQuery.getToken(sort, order, rows.get(rows.size() - 1));
+    }
+    writer.finish();
+    return count;
+  }
+
+  private static String getExportSort(QueryRequest<?> queryRequest, Map<String, String> allRequestParams) {
+    PaginateRequest paginateRequest = (PaginateRequest) queryRequest;
+    String sort = paginateRequest.getSort() != null ? paginateRequest.getSort() : allRequestParams.get("sort");
+    return StringUtils.isEmpty(sort) ? "processInstanceId" : sort;
+  }
+
+  private static String getExportOrder(QueryRequest<?> queryRequest, Map<String, String> allRequestParams) {
+    PaginateRequest paginateRequest = (PaginateRequest) queryRequest;
+    String order = paginateRequest.getOrder() != null ? paginateRequest.getOrder() : allRequestParams.get("order");
+    return StringUtils.isEmpty(order) ? "asc" : order;
+  }
+
+  protected boolean isKeysetPagination(PaginateRequest paginateRequest, Map<String, String> allRequestParams) {
+    if (paginateRequest != null && paginateRequest.isKeysetPagination()) {
+      return true;
+    }
+    return RequestUtil.getBoolean(allRequestParams, "keyset", false)
+        || StringUtils.isNotEmpty(allRequestParams.get("continuationToken"));
+  }
+
+  /**
+   * Returns names of process variables returned with rows, variables are not
+   * returned if includeProcessVariables is false
+   *
+   * @param queryRequest
+   * @return null for all, empty list for none
+   */
+  protected List<String> getVariableNames(QueryRequest<T> queryRequest) {
+    if (Boolean.FALSE.equals(queryRequest.getIncludeProcessVariables())) {
+      return Collections.emptyList();
+    }
+    return queryRequest.getVariableNames();
+  }
+
   protected abstract Map<String, QueryProperty> getAllowedSortProperties();
 
   @SuppressWarnings("rawtypes")
   protected abstract Query getQuery(T queryRequest);
 
+  /**
+   * @param queryRequest
+   * @return query for keyset pagination or null if it is not supported
+   */
+  protected KeysetQuery getKeysetQuery(T queryRequest) {
+    return null;
+  }
+
   protected abstract QueryPaginateList createPaginateList();
 }
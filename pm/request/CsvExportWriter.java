@@ -0,0 +1,157 @@
+package org.activiti.pm.request;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes rows as CSV. Columns are the properties of the first row, in the
+ * order they are serialized to JSON. Requested variables get a column each,
+ * otherwise all variables of a row are written to one column as JSON.
+ *
+ * @author Dmitry Farafonov
+ */
+public class CsvExportWriter extends ExportWriter {
+  private static final String VARIABLES_PROPERTY = "variables";
+
+  private final Writer writer;
+  private final ObjectMapper mapper;
+  private final List<String> variableNames;
+  private List<String> columns;
+
+  public CsvExportWriter(OutputStream out, ObjectMapper mapper, List<String> variableNames) throws IOException {
+    this.writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+    this.mapper = mapper;
+    this.variableNames = variableNames;
+  }
+
+  @Override
+  public String getContentType() {
+    return "text/csv; charset=UTF-8";
+  }
+
+  @Override
+  public String getFileExtension() {
+    return "csv";
+  }
+
+  @Override
+  public void writeRow(Object row) throws IOException {
+    JsonNode node = mapper.valueToTree(row);
+    if (columns == null) {
+      columns = new ArrayList<String>();
+      for (Iterator<String> names = node.fieldNames(); names.hasNext();) {
+        String name = names.next();
+        if (!VARIABLES_PROPERTY.equals(name)) {
+          columns.add(name);
+        }
+      }
+      writeHeader();
+    }
+
+    boolean first = true;
+    for (String column : columns) {
+      first = writeSeparator(first);
+      writeValue(node.get(column));
+    }
+
+    JsonNode variables = node.get(VARIABLES_PROPERTY);
+    if (variableNames == null) {
+      first = writeSeparator(first);
+      if (variables != null && variables.size() > 0) {
+        writeText(variables.toString());
+      }
+    } else if (!variableNames.isEmpty()) {
+      Map<String, JsonNode> values = new HashMap<String, JsonNode>();
+      if (variables != null) {
+        for (JsonNode variable : variables) {
+          values.put(variable.path("name").asText(), variable.get("value"));
+        }
+      }
+      for (String variableName : variableNames) {
+        first = writeSeparator(first);
+        writeValue(values.get(variableName));
+      }
+    }
+    writer.write("\r\n");
+  }
+
+  private void writeHeader() throws IOException {
+    boolean first = true;
+    for (String column : columns) {
+      first = writeSeparator(first);
+      writeText(column);
+    }
+    if (variableNames == null) {
+      first = writeSeparator(first);
+      writeText(VARIABLES_PROPERTY);
+    } else {
+      for (String variableName : variableNames) {
+        first = writeSeparator(first);
+        writeText(variableName);
+      }
+    }
+    writer.write("\r\n");
+  }
+
+  private boolean writeSeparator(boolean first) throws IOException {
+    if (!first) {
+      writer.write(',');
+    }
+    return false;
+  }
+
+  private void writeValue(JsonNode value) throws IOException {
+    if (value == null || value.isNull()) {
+      return;
+    }
+    writeText(value.isValueNode() ? value.asText() : value.toString());
+  }
+
+  /**
+   * Writes the text, quoted if it contains a separator, quote or line break
+   *
+   * @param text
+   * @throws IOException
+   */
+  private void writeText(String text) throws IOException {
+    boolean quote = false;
+    for (int i = 0; i < text.length() && !quote; i++) {
+      char c = text.charAt(i);
+      quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+    }
+    if (!quote) {
+      writer.write(text);
+      return;
+    }
+    writer.write('"');
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"') {
+        writer.write('"');
+      }
+      writer.write(c);
+    }
+    writer.write('"');
+  }
+
+  @Override
+  public void flush() throws IOException {
+    writer.flush();
+  }
+
+  @Override
+  public void finish() throws IOException {
+    writer.flush();
+  }
+}
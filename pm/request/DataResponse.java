@@ -11,6 +11,8 @@ public class DataResponse {
   String sort;
   String order;
   int size;
+  String nextToken;
+  String totalType;
 
   public Object getRows() {
     return rows;
@@ -60,4 +62,26 @@ public class DataResponse {
   public void setSize(int size) {
     this.size = size;
   }
+
+  /**
+   * @return continuation token of the next page in keyset mode, null for the last page
+   */
+  public String getNextToken() {
+    return nextToken;
+  }
+
+  public void setNextToken(String nextToken) {
+    this.nextToken = nextToken;
+  }
+
+  /**
+   * @return kind of the total: 'exact', 'none', 'cached' or 'estimated'
+   */
+  public String getTotalType() {
+    return totalType;
+  }
+
+  public void setTotalType(String totalType) {
+    this.totalType = totalType;
+  }
 }
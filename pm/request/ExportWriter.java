@@ -0,0 +1,84 @@
+package org.activiti.pm.request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.activiti.engine.ActivitiIllegalArgumentException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes rows of an export to an output stream one by one, so nothing but the
+ * current batch is kept in memory
+ *
+ * @author Dmitry Farafonov
+ */
+public abstract class ExportWriter {
+
+  /**
+   * One JSON object per line
+   */
+  public static final String NDJSON = "ndjson";
+
+  /**
+   * Comma separated values with a header line
+   */
+  public static final String CSV = "csv";
+
+  /**
+   * Creates writer of the format
+   *
+   * @param format {@link #NDJSON} or {@link #CSV}, null for NDJSON
+   * @param out
+   * @param mapper
+   * @param variableNames names of variables written as CSV columns, null to write all variables as JSON
+   * @return
+   * @throws IOException
+   */
+  public static ExportWriter create(String format, OutputStream out, ObjectMapper mapper, List<String> variableNames)
+      throws IOException {
+    checkFormat(format);
+    if (CSV.equals(format)) {
+      return new CsvExportWriter(out, mapper, variableNames);
+    }
+    return new NdjsonExportWriter(out, mapper);
+  }
+
+  /**
+   * Checks format before anything is written to the response
+   *
+   * @param format {@link #NDJSON} or {@link #CSV}, null for NDJSON
+   * @throws ActivitiIllegalArgumentException if the format is not supported
+   */
+  public static void checkFormat(String format) {
+    if (format != null && !NDJSON.equals(format) && !CSV.equals(format)) {
+      throw new ActivitiIllegalArgumentException("Value for param 'format' is not valid : '" + format
+          + "', must be '" + NDJSON + "' or '" + CSV + "'");
+    }
+  }
+
+  public abstract String getContentType();
+
+  public abstract String getFileExtension();
+
+  /**
+   * @param row response object of a row
+   * @throws IOException
+   */
+  public abstract void writeRow(Object row) throws IOException;
+
+  /**
+   * Sends written rows to the client, called after each batch
+   *
+   * @throws IOException
+   */
+  public abstract void flush() throws IOException;
+
+  /**
+   * Flushes written rows, the output stream is not closed
+   *
+   * @throws IOException
+   */
+  public abstract void finish() throws IOException;
+}
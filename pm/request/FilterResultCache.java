@@ -0,0 +1,114 @@
+package org.activiti.pm.request;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.activiti.pm.util.BoundedCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cache of filtered list responses keyed by the normalized request, see
+ * {@link QueryRequestKey#ofPage(Object, Map)}. Responses of queries
+ * restricted to finished instances live for
+ * <code>processmanager.cache.results.finishedTtlSeconds</code>, others for
+ * <code>processmanager.cache.results.ttlSeconds</code>. Cache is bounded by
+ * number of responses and by total number of cached rows. A request bypasses
+ * the cache with the URL parameter <code>cache=false</code>.
+ *
+ * @author Dmitry Farafonov
+ */
+@Component
+public class FilterResultCache {
+
+  @Autowired
+  protected Environment environment;
+
+  private boolean enabled;
+  private long ttlMillis;
+  private long finishedTtlMillis;
+  private BoundedCache<String, DataResponse> cache;
+
+  @PostConstruct
+  public void init() {
+    enabled = environment.getProperty("processmanager.cache.results.enabled", Boolean.class, true);
+    int maxEntries = environment.getProperty("processmanager.cache.results.maxEntries", Integer.class, 500);
+    long maxRows = environment.getProperty("processmanager.cache.results.maxRows", Long.class, 50000L);
+    ttlMillis = environment.getProperty("processmanager.cache.results.ttlSeconds", Long.class, 5L) * 1000;
+    finishedTtlMillis = environment.getProperty("processmanager.cache.results.finishedTtlSeconds", Long.class, 300L) * 1000;
+    cache = new BoundedCache<String, DataResponse>(maxEntries, maxRows, new BoundedCache.Weigher<DataResponse>() {
+      @Override
+      public long weigh(DataResponse response) {
+        // the response itself counts as a row
+        Object rows = response.getRows();
+        return (rows instanceof List) ? ((List<?>) rows).size() + 1 : 1;
+      }
+    }, ttlMillis);
+  }
+
+  /**
+   * @param requestParams
+   * @return true if the response of the request is cached
+   */
+  public boolean isEnabled(Map<String, String> requestParams) {
+    return enabled && RequestUtil.getBoolean(requestParams, "cache", true);
+  }
+
+  /**
+   * @param key
+   * @return cached response or null
+   */
+  public DataResponse get(String key) {
+    return cache.get(key);
+  }
+
+  public void put(String key, Object queryRequest, DataResponse response) {
+    cache.put(key, response, isFinishedOnly(queryRequest) ? finishedTtlMillis : ttlMillis);
+  }
+
+  /**
+   * @param queryRequest
+   * @return true if the request selects only finished process instances,
+   *         which do not change
+   */
+  protected boolean isFinishedOnly(Object queryRequest) {
+    return queryRequest instanceof IHistoricProcessInstanceQueryRequest
+        && Boolean.TRUE.equals(((IHistoricProcessInstanceQueryRequest) queryRequest).getFinished());
+  }
+
+  public void clear() {
+    cache.clear();
+  }
+
+  public int getSize() {
+    return cache.size();
+  }
+
+  /**
+   * @return number of cached rows, the measure of memory used by the cache
+   */
+  public long getRowCount() {
+    return cache.getWeight();
+  }
+
+  public long getHitCount() {
+    return cache.getHitCount();
+  }
+
+  public long getMissCount() {
+    return cache.getMissCount();
+  }
+
+  public double getHitRatio() {
+    return cache.getHitRatio();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("FilterResultCache [size=%d, rows=%d, hitRatio=%.2f, evictions=%d]", getSize(),
+        getRowCount(), getHitRatio(), cache.getEvictionCount());
+  }
+}
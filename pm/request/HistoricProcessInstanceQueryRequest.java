@@ -53,6 +53,7 @@ public class HistoricProcessInstanceQueryRequest extends PaginateRequest impleme
 
   private String startedBy;
   private Boolean includeProcessVariables;
+  private List<String> variableNames;
   private List<QueryVariable> variables;
   private String tenantId;
   private String tenantIdLike;
@@ -178,6 +179,14 @@ public class HistoricProcessInstanceQueryRequest extends PaginateRequest impleme
     this.includeProcessVariables = includeProcessVariables;
   }
 
+  public List<String> getVariableNames() {
+    return variableNames;
+  }
+
+  public void setVariableNames(List<String> variableNames) {
+    this.variableNames = variableNames;
+  }
+
   @JsonTypeInfo(use=Id.CLASS, defaultImpl=QueryVariable.class)
   public List<QueryVariable> getVariables() {
     return variables;
@@ -0,0 +1,37 @@
+package org.activiti.pm.request;
+
+import java.util.List;
+
+/**
+ * Query answered from an in-memory index: matching ids are selected and
+ * ordered in memory, only rows of the page are read from the database.
+ *
+ * @author Dmitry Farafonov
+ */
+public interface InMemoryQuery {
+
+  /**
+   * @param sort
+   * @return true if rows can be ordered by this sort property
+   */
+  boolean isSortSupported(String sort);
+
+  /**
+   * Returns ids of all matching rows ordered by the sort property and id
+   *
+   * @param sort
+   * @param order 'asc' or 'desc'
+   * @return
+   */
+  List<String> listIds(String sort, String order);
+
+  /**
+   * Returns rows of the ids in the same order, rows which no longer exist are
+   * skipped
+   *
+   * @param ids
+   * @return
+   */
+  @SuppressWarnings("rawtypes")
+  List listRows(List<String> ids);
+}
@@ -0,0 +1,42 @@
+package org.activiti.pm.request;
+
+import java.util.List;
+
+/**
+ * Query which pages by seeking past the last row of the previous page instead
+ * of skipping an offset, so the cost of a page does not grow with its depth.
+ *
+ * @author Dmitry Farafonov
+ */
+public interface KeysetQuery {
+
+  /**
+   * @param sort
+   * @return true if rows can be paged by this sort property
+   */
+  boolean isSortSupported(String sort);
+
+  /**
+   * Returns rows ordered by the sort property and id
+   *
+   * @param sort
+   * @param order 'asc' or 'desc'
+   * @param after position of the last row of the previous page, null for the first page
+   * @param size maximum number of rows
+   * @return
+   */
+  @SuppressWarnings("rawtypes")
+  List listPage(String sort, String order, KeysetToken after, int size);
+
+  /**
+   * Returns position of the row to continue after it
+   *
+   * @param sort
+   * @param order
+   * @param row row returned by {@link #listPage(String, String, KeysetToken, int)}
+   * @return
+   */
+  KeysetToken getToken(String sort, String order, Object row);
+
+  long count();
+}
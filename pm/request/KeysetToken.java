@@ -0,0 +1,92 @@
+package org.activiti.pm.request;
+
+import java.io.IOException;
+
+import org.activiti.engine.ActivitiIllegalArgumentException;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Position of the last row of a keyset page: sort property, order, value of
+ * the sort key and id of the row. The id breaks ties of equal sort keys, so
+ * the next page starts exactly after the row even if rows are inserted
+ * meanwhile. Clients get it as an opaque url safe string.
+ *
+ * @author Dmitry Farafonov
+ */
+public class KeysetToken {
+  private static ObjectMapper mapper = new ObjectMapper();
+
+  private String sort;
+  private String order;
+  private Object key;
+  private String id;
+
+  public KeysetToken() {
+  }
+
+  public KeysetToken(String sort, String order, Object key, String id) {
+    this.sort = sort;
+    this.order = order;
+    this.key = key;
+    this.id = id;
+  }
+
+  public String getSort() {
+    return sort;
+  }
+
+  public void setSort(String sort) {
+    this.sort = sort;
+  }
+
+  public String getOrder() {
+    return order;
+  }
+
+  public void setOrder(String order) {
+    this.order = order;
+  }
+
+  /**
+   * @return value of the sort key: string, number (dates as millis) or null
+   */
+  public Object getKey() {
+    return key;
+  }
+
+  public void setKey(Object key) {
+    this.key = key;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  public String encode() {
+    try {
+      return Base64Variants.MODIFIED_FOR_URL.encode(mapper.writeValueAsBytes(this));
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not encode continuation token", e);
+    }
+  }
+
+  public static KeysetToken decode(String token) {
+    try {
+      KeysetToken keysetToken = mapper.readValue(Base64Variants.MODIFIED_FOR_URL.decode(token), KeysetToken.class);
+      if (keysetToken.getId() == null) {
+        throw new ActivitiIllegalArgumentException("Value for param 'continuationToken' is not valid");
+      }
+      return keysetToken;
+    } catch (IOException e) {
+      throw new ActivitiIllegalArgumentException("Value for param 'continuationToken' is not valid", e);
+    } catch (IllegalArgumentException e) {
+      throw new ActivitiIllegalArgumentException("Value for param 'continuationToken' is not valid", e);
+    }
+  }
+}
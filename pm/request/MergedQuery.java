@@ -0,0 +1,45 @@
+package org.activiti.pm.request;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Second source of rows of a filter, merged with the rows of the database
+ * query in the order of the page
+ *
+ * @author Dmitry Farafonov
+ */
+public interface MergedQuery {
+
+  /**
+   * @param sort
+   * @return true if rows can be ordered by this sort property
+   */
+  boolean isSortSupported(String sort);
+
+  /**
+   * Returns order of rows of both sources
+   *
+   * @param sort
+   * @param order 'asc' or 'desc'
+   * @return
+   */
+  @SuppressWarnings("rawtypes")
+  Comparator getComparator(String sort, String order);
+
+  /**
+   * Returns first matching rows in the order of {@link #getComparator(String, String)}
+   *
+   * @param sort
+   * @param order
+   * @param maxResults
+   * @return
+   */
+  @SuppressWarnings("rawtypes")
+  List listFirstRows(String sort, String order, int maxResults);
+
+  /**
+   * @return number of matching rows
+   */
+  long count();
+}
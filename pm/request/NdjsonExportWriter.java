@@ -0,0 +1,55 @@
+package org.activiti.pm.request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Writes rows as newline delimited JSON
+ *
+ * @author Dmitry Farafonov
+ */
+public class NdjsonExportWriter extends ExportWriter {
+
+  private final JsonGenerator generator;
+  private final ObjectWriter writer;
+
+  public NdjsonExportWriter(OutputStream out, ObjectMapper mapper) throws IOException {
+    this.generator = mapper.getFactory().createGenerator(out);
+    this.generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    // rows are separated by line breaks instead of spaces
+    this.generator.setRootValueSeparator(null);
+    this.writer = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+        .without(SerializationFeature.INDENT_OUTPUT);
+  }
+
+  @Override
+  public String getContentType() {
+    return "application/x-ndjson";
+  }
+
+  @Override
+  public String getFileExtension() {
+    return "ndjson";
+  }
+
+  @Override
+  public void writeRow(Object row) throws IOException {
+    writer.writeValue(generator, row);
+    generator.writeRaw('\n');
+  }
+
+  @Override
+  public void flush() throws IOException {
+    generator.flush();
+  }
+
+  @Override
+  public void finish() throws IOException {
+    generator.close();
+  }
+}
@@ -1,5 +1,7 @@
 package org.activiti.pm.request;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * Interface representing a paginated request object, use when paging is needed
  * without using URL-parameters.
@@ -16,6 +18,12 @@ public class PaginateRequest {
 
   protected String order;
 
+  protected Boolean keyset;
+
+  protected String continuationToken;
+
+  protected String totalMode;
+
   public String getSort() {
     return sort;
   }
@@ -47,4 +55,45 @@ public class PaginateRequest {
   public void setOrder(String order) {
     this.order = order;
   }
+
+  /**
+   * @return true to page with continuation tokens instead of offset
+   */
+  public Boolean getKeyset() {
+    return keyset;
+  }
+
+  public void setKeyset(Boolean keyset) {
+    this.keyset = keyset;
+  }
+
+  /**
+   * @return opaque token of the previous page, see {@link DataResponse#getNextToken()}
+   */
+  public String getContinuationToken() {
+    return continuationToken;
+  }
+
+  public void setContinuationToken(String continuationToken) {
+    this.continuationToken = continuationToken;
+  }
+
+  /**
+   * @return true if keyset mode is requested explicitly or by a continuation token
+   */
+  @JsonIgnore
+  public boolean isKeysetPagination() {
+    return Boolean.TRUE.equals(keyset) || continuationToken != null;
+  }
+
+  /**
+   * @return 'exact', 'none', 'cached' or 'estimated', see {@link PaginateTotals}
+   */
+  public String getTotalMode() {
+    return totalMode;
+  }
+
+  public void setTotalMode(String totalMode) {
+    this.totalMode = totalMode;
+  }
 }
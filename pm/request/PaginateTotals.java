@@ -0,0 +1,259 @@
+package org.activiti.pm.request;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.activiti.engine.ActivitiIllegalArgumentException;
+import org.activiti.engine.ManagementService;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.pm.util.BoundedCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Total of paginated lists by the total mode of the request:
+ * <ul>
+ * <li><code>exact</code> - count query, the default</li>
+ * <li><code>none</code> - no count query, total is -1</li>
+ * <li><code>cached</code> - count of the same filter cached for
+ * <code>processmanager.total.cache.ttlSeconds</code></li>
+ * <li><code>estimated</code> - row count from database statistics for
+ * unfiltered lists, cached count otherwise</li>
+ * </ul>
+ * A total known from the page itself, i.e. of the last page, is always exact.
+ * {@link DataResponse#getTotalType()} tells which kind of total is returned.
+ *
+ * @author Dmitry Farafonov
+ */
+@Component
+public class PaginateTotals {
+  private static Logger logger = LoggerFactory.getLogger(PaginateTotals.class);
+
+  public static final String EXACT = "exact";
+  public static final String NONE = "none";
+  public static final String CACHED = "cached";
+  public static final String ESTIMATED = "estimated";
+
+  /**
+   * Counts rows of the query
+   */
+  public interface Counter {
+    long count();
+  }
+
+  @Autowired
+  protected Environment environment;
+
+  @Autowired
+  protected ManagementService managementService;
+
+  private BoundedCache<String, Long> cache;
+
+  @PostConstruct
+  public void init() {
+    int maxEntries = environment.getProperty("processmanager.total.cache.maxEntries", Integer.class, 1000);
+    long ttlSeconds = environment.getProperty("processmanager.total.cache.ttlSeconds", Long.class, 60L);
+    cache = new BoundedCache<String, Long>(maxEntries, Long.MAX_VALUE, null, ttlSeconds * 1000);
+    initStatementTimeout();
+  }
+
+  /**
+   * Page and count queries read in parallel are not interrupted when the other
+   * one fails or the count is not needed, so they end by the statement timeout
+   * <code>processmanager.paginate.statementTimeoutSeconds</code>. It is set
+   * as the default of the engine unless the engine sets its own, 0 disables it.
+   */
+  protected void initStatementTimeout() {
+    final int timeoutSeconds = environment.getProperty("processmanager.paginate.statementTimeoutSeconds",
+        Integer.class, 60);
+    if (timeoutSeconds <= 0) {
+      return;
+    }
+    managementService.executeCommand(new Command<Void>() {
+      @Override
+      public Void execute(CommandContext commandContext) {
+        org.apache.ibatis.session.Configuration configuration = commandContext.getProcessEngineConfiguration()
+            .getSqlSessionFactory().getConfiguration();
+        if (configuration.getDefaultStatementTimeout() == null) {
+          configuration.setDefaultStatementTimeout(timeoutSeconds);
+          logger.info("Default statement timeout is set to {} seconds", timeoutSeconds);
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Returns total mode of the request, exact by default
+   *
+   * @param requestParams
+   * @param paginateRequest
+   * @return
+   */
+  public static String getTotalMode(Map<String, String> requestParams, PaginateRequest paginateRequest) {
+    String totalMode = paginateRequest != null ? paginateRequest.getTotalMode() : null;
+    if (totalMode == null) {
+      totalMode = requestParams.get("totalMode");
+    }
+    if (totalMode == null || totalMode.isEmpty()) {
+      return EXACT;
+    }
+    if (!EXACT.equals(totalMode) && !NONE.equals(totalMode) && !CACHED.equals(totalMode) && !ESTIMATED.equals(totalMode)) {
+      throw new ActivitiIllegalArgumentException("Value for param 'totalMode' is not valid : '" + totalMode
+          + "', must be 'exact', 'none', 'cached' or 'estimated'");
+    }
+    return totalMode;
+  }
+
+  /**
+   * Sets total and total type of the response
+   *
+   * @param response
+   * @param totalMode
+   * @param queryRequest request with the filter of the list
+   * @param knownTotal total known without counting or null
+   * @param counter
+   * @param statisticsEntity entity class which table statistics estimate total
+   *          of the unfiltered list, or null
+   */
+  public void setTotal(DataResponse response, String totalMode, Object queryRequest, Long knownTotal,
+      Counter counter, Class<?> statisticsEntity) {
+    if (knownTotal != null) {
+      if (!EXACT.equals(totalMode) && !NONE.equals(totalMode)) {
+        cache.put(QueryRequestKey.of(queryRequest), knownTotal);
+      }
+      setTotal(response, knownTotal, EXACT);
+      return;
+    }
+    if (NONE.equals(totalMode)) {
+      setTotal(response, -1, NONE);
+      return;
+    }
+    if (ESTIMATED.equals(totalMode) && statisticsEntity != null && QueryRequestKey.isEmptyFilter(queryRequest)) {
+      Long estimated = getEstimatedRowCount(managementService.getTableName(statisticsEntity));
+      if (estimated != null) {
+        setTotal(response, estimated, ESTIMATED);
+        return;
+      }
+    }
+    if (CACHED.equals(totalMode) || ESTIMATED.equals(totalMode)) {
+      String key = QueryRequestKey.of(queryRequest);
+      Long cached = cache.get(key);
+      if (cached != null) {
+        setTotal(response, cached, CACHED);
+        return;
+      }
+      long total = counter.count();
+      cache.put(key, total);
+      setTotal(response, total, EXACT);
+      return;
+    }
+    setTotal(response, counter.count(), EXACT);
+  }
+
+  /**
+   * Returns true if {@link #setTotal(DataResponse, String, Object, Long, Counter, Class)}
+   * will probably count, so the count may be started in advance
+   *
+   * @param totalMode
+   * @param queryRequest
+   * @param statisticsEntity
+   * @return
+   */
+  public boolean isCountNeeded(String totalMode, Object queryRequest, Class<?> statisticsEntity) {
+    if (EXACT.equals(totalMode)) {
+      return true;
+    }
+    if (NONE.equals(totalMode)) {
+      return false;
+    }
+    if (ESTIMATED.equals(totalMode) && statisticsEntity != null && QueryRequestKey.isEmptyFilter(queryRequest)) {
+      return false;
+    }
+    return !cache.containsKey(QueryRequestKey.of(queryRequest));
+  }
+
+  private void setTotal(DataResponse response, long total, String totalType) {
+    response.setTotal(total);
+    response.setTotalType(totalType);
+  }
+
+  /**
+   * Returns row count of the table from database statistics. Estimates are
+   * cached like counts.
+   *
+   * @param tableName
+   * @return row count or null if the database has no statistics of the table
+   */
+  protected Long getEstimatedRowCount(final String tableName) {
+    String key = "estimated:" + tableName;
+    Long estimated = cache.get(key);
+    if (estimated != null) {
+      return estimated;
+    }
+    estimated = managementService.executeCommand(new Command<Long>() {
+      @Override
+      public Long execute(CommandContext commandContext) {
+        String databaseType = commandContext.getProcessEngineConfiguration().getDatabaseType();
+        String sql = getStatisticsSql(databaseType);
+        if (sql == null) {
+          return null;
+        }
+        // table name may be prefixed by a schema
+        String name = tableName.substring(tableName.lastIndexOf('.') + 1);
+        if ("postgres".equals(databaseType)) {
+          name = name.toLowerCase();
+        }
+        Connection connection = commandContext.getDbSqlSession().getSqlSession().getConnection();
+        try {
+          PreparedStatement statement = connection.prepareStatement(sql);
+          try {
+            statement.setString(1, name);
+            ResultSet resultSet = statement.executeQuery();
+            if (resultSet.next()) {
+              long rows = resultSet.getLong(1);
+              if (!resultSet.wasNull() && rows >= 0) {
+                return rows;
+              }
+            }
+            return null;
+          } finally {
+            statement.close();
+          }
+        } catch (SQLException e) {
+          logger.warn("Can not read statistics of " + tableName + ": " + e.getMessage());
+          return null;
+        }
+      }
+    });
+    if (estimated != null) {
+      cache.put(key, estimated);
+    }
+    return estimated;
+  }
+
+  protected String getStatisticsSql(String databaseType) {
+    if ("postgres".equals(databaseType)) {
+      return "SELECT CAST(reltuples AS BIGINT) FROM pg_class WHERE relname = ?";
+    }
+    if ("mysql".equals(databaseType)) {
+      return "SELECT TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?";
+    }
+    if ("oracle".equals(databaseType)) {
+      return "SELECT NUM_ROWS FROM USER_TABLES WHERE TABLE_NAME = ?";
+    }
+    if ("mssql".equals(databaseType)) {
+      return "SELECT SUM(ROWS) FROM sys.partitions WHERE OBJECT_ID = OBJECT_ID(?) AND INDEX_ID IN (0, 1)";
+    }
+    return null;
+  }
+}
@@ -26,6 +26,7 @@ public class ProcessInstanceQueryRequest extends PaginateRequest implements IPro
   private String involvedUser;
   private Boolean suspended;
   private Boolean includeProcessVariables;
+  private List<String> variableNames;
   private List<QueryVariable> variables;
   private String tenantId;
   private String tenantIdLike;
@@ -119,6 +120,14 @@ public class ProcessInstanceQueryRequest extends PaginateRequest implements IPro
     this.includeProcessVariables = includeProcessVariables;
   }
 
+  public List<String> getVariableNames() {
+    return variableNames;
+  }
+
+  public void setVariableNames(List<String> variableNames) {
+    this.variableNames = variableNames;
+  }
+
   @JsonTypeInfo(use=Id.CLASS, defaultImpl=QueryVariable.class)
   public List<QueryVariable> getVariables() {
     return variables;
@@ -1,22 +1,41 @@
 package org.activiti.pm.request;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.activiti.engine.ActivitiException;
 import org.activiti.engine.ActivitiIllegalArgumentException;
 import org.activiti.engine.impl.AbstractQuery;
 import org.activiti.engine.query.Query;
 import org.activiti.engine.query.QueryProperty;
+import org.activiti.pm.util.LatencyStats;
+import org.activiti.pm.util.NamedThreadFactory;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.time.StopWatch;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * @author Dmitry Farafonov
  */
 public abstract class QueryPaginateList {
-  private static Logger logger = LoggerFactory.getLogger(QueryPaginateList.class);
+
+  private static final LatencyStats listLatency = new LatencyStats("list");
+  private static final LatencyStats countLatency = new LatencyStats("count");
+
+  private static ExecutorService paginateExecutor = createPaginateExecutor();
+
+  protected PaginateTotals paginateTotals;
+
+  protected List<String> variableNames;
 
 	/**
    * uses the pagination parameters form the request and makes sure to order the result and set all pagination
@@ -31,6 +50,25 @@ public abstract class QueryPaginateList {
   @SuppressWarnings("rawtypes")
   public DataResponse paginateList(Map<String, String> requestParams, PaginateRequest paginateRequest, Query query,
       String defaultSort, Map<String, QueryProperty> properties) {
+    return paginateList(requestParams, paginateRequest, query, null, defaultSort, properties);
+  }
+
+  /**
+   * Same as {@link #paginateList(Map, PaginateRequest, Query, String, Map)},
+   * but page and total are read in parallel. Queries are not thread-safe, so
+   * the total is counted by another query with the same filter.
+   *
+   * @param requestParams
+   * @param paginateRequest
+   * @param query query of the page
+   * @param countQuery query of the total or null to count by the page query after the page
+   * @param defaultSort
+   * @param properties
+   * @return
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public DataResponse paginateList(Map<String, String> requestParams, PaginateRequest paginateRequest, final Query query,
+      final Query countQuery, String defaultSort, Map<String, QueryProperty> properties) {
 
     if (paginateRequest == null) {
       paginateRequest = new PaginateRequest();
@@ -54,6 +92,8 @@ public abstract class QueryPaginateList {
       paginateRequest.setSort(requestParams.get("sort"));
     }
 
+    String totalMode = PaginateTotals.getTotalMode(requestParams, paginateRequest);
+
     // Use defaults for paging, if not set in the PaginationRequest, nor in the URL
     Integer start = paginateRequest.getOffset();
     if(start == null || start < 0) {
@@ -95,19 +135,103 @@ public abstract class QueryPaginateList {
     }
 
     // Get result and set pagination parameters
-    StopWatch stopWatch = new StopWatch();
-    stopWatch.start();
-    List listPage = query.listPage(start, size);
-    stopWatch.split();
+    final int firstResult = start;
+    final int maxResults = size;
+    TimedCall listCall = new TimedCall(listLatency) {
+      @Override
+      protected Object doCall() {
+        return query.listPage(firstResult, maxResults);
+      }
+    };
+    TimedCall countCall = null;
+    if (countQuery != null && isCountNeeded(totalMode, paginateRequest)) {
+      countCall = new TimedCall(countLatency) {
+        @Override
+        protected Object doCall() {
+          return countQuery.count();
+        }
+      };
+    }
+
+    List listPage;
+    PaginateTotals.Counter counter;
+    // Whichever fails first cancels the other one. Cancel does not interrupt
+    // a running query, which ends by the statement timeout instead.
+    ExecutorCompletionService<Object> completionService = null;
+    Future<Object> submittedCount = null;
+    if (countCall != null) {
+      completionService = new ExecutorCompletionService<Object>(paginateExecutor);
+      submittedCount = submit(completionService, countCall);
+    }
+    final Future<Object> countFuture = submittedCount;
+    if (countFuture == null) {
+      // No parallel count or the executor is saturated: list, then count
+      listPage = (List) call(listCall);
+      counter = new PaginateTotals.Counter() {
+        @Override
+        public long count() {
+          return (Long) call(new TimedCall(countLatency) {
+            @Override
+            protected Object doCall() {
+              return (countQuery != null ? countQuery : query).count();
+            }
+          });
+        }
+      };
+    } else {
+      Future<Object> listFuture = submit(completionService, listCall);
+      try {
+        if (listFuture == null) {
+          // the executor is saturated, the page is read by the request thread
+          listPage = (List) call(listCall);
+        } else {
+          completionService.take().get();
+          listPage = (List) listFuture.get();
+        }
+      } catch (ExecutionException e) {
+        listFuture.cancel(false);
+        countFuture.cancel(false);
+        throw unwrap(e);
+      } catch (InterruptedException e) {
+        listFuture.cancel(false);
+        countFuture.cancel(false);
+        Thread.currentThread().interrupt();
+        throw new ActivitiException("Interrupted while reading the page", e);
+      } catch (RuntimeException e) {
+        countFuture.cancel(false);
+        throw e;
+      }
+      counter = new PaginateTotals.Counter() {
+        @Override
+        public long count() {
+          try {
+            return (Long) countFuture.get();
+          } catch (ExecutionException e) {
+            throw unwrap(e);
+          } catch (InterruptedException e) {
+            countFuture.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new ActivitiException("Interrupted while counting", e);
+          }
+        }
+      };
+    }
     List list = processList(listPage);
-    stopWatch.stop();
-    logger.debug("query time: "+ stopWatch.toSplitString());
     DataResponse response = new DataResponse();
     response.setStart(start);
     response.setSize(list.size());
     response.setSort(sort);
     response.setOrder(order);
-    response.setTotal(query.count());
+    // Total of the last page is known without counting
+    Long knownTotal = null;
+    if (listPage.size() < size && (!listPage.isEmpty() || start == 0)) {
+      knownTotal = (long) start + listPage.size();
+    }
+    setTotal(response, totalMode, paginateRequest, knownTotal, counter);
+    if (countFuture != null) {
+      // not needed if the total is known or cached
+      countFuture.cancel(false);
+    }
     response.setRows(list);
     return response;
   }
@@ -130,6 +254,481 @@ public abstract class QueryPaginateList {
   }
 
 
+  /**
+   * Returns a page which starts after the continuation token of the request.
+   * The response carries the token of the next page, it is null for the last
+   * page.
+   *
+   * @param requestParams
+   * @param paginateRequest
+   * @param query
+   * @param defaultSort
+   * @return
+   */
+  @SuppressWarnings("rawtypes")
+  public DataResponse paginateKeysetList(Map<String, String> requestParams, PaginateRequest paginateRequest,
+      KeysetQuery query, String defaultSort) {
+
+    if (paginateRequest == null) {
+      paginateRequest = new PaginateRequest();
+    }
+
+    if (paginateRequest.getContinuationToken() == null) {
+      paginateRequest.setContinuationToken(requestParams.get("continuationToken"));
+    }
+
+    if (paginateRequest.getLimit() == null) {
+      paginateRequest.setLimit(RequestUtil.getInteger(requestParams, "limit", 10));
+    }
+
+    if (paginateRequest.getOrder() == null) {
+      paginateRequest.setOrder(requestParams.get("order"));
+    }
+
+    if (paginateRequest.getSort() == null) {
+      paginateRequest.setSort(requestParams.get("sort"));
+    }
+
+    String totalMode = PaginateTotals.getTotalMode(requestParams, paginateRequest);
+
+    KeysetToken after = null;
+    if (StringUtils.isNotEmpty(paginateRequest.getContinuationToken())) {
+      after = KeysetToken.decode(paginateRequest.getContinuationToken());
+    }
+
+    // An empty page has no last row to continue after
+    Integer size = paginateRequest.getLimit();
+    if(size == null || size <= 0) {
+      size = 10;
+    }
+
+    // Next pages may omit sort and order, they are kept in the token
+    String sort = paginateRequest.getSort();
+    if(StringUtils.isEmpty(sort)) {
+      sort = after != null ? after.getSort() : defaultSort;
+    }
+
+    String order = paginateRequest.getOrder();
+    if(StringUtils.isEmpty(order)) {
+      order = after != null ? after.getOrder() : "asc";
+    }
+
+    if (!query.isSortSupported(sort)) {
+      throw new ActivitiIllegalArgumentException("Value for param 'sort' is not valid, '" + sort + "' is not a valid property");
+    }
+    if (!order.equals("asc") && !order.equals("desc")) {
+      throw new ActivitiIllegalArgumentException("Value for param 'order' is not valid : '" + order + "', must be 'asc' or 'desc'");
+    }
+    if (after != null && (!sort.equals(after.getSort()) || !order.equals(after.getOrder()))) {
+      throw new ActivitiIllegalArgumentException("Value for param 'continuationToken' is not valid for sort '" + sort + "' and order '" + order + "'");
+    }
+
+    // One more row tells whether there is a next page. Keyset query is not
+    // thread-safe, page and total are read one after the other.
+    final KeysetQuery keysetQuery = query;
+    final String keysetSort = sort;
+    final String keysetOrder = order;
+    final KeysetToken keysetAfter = after;
+    final int maxResults = size + 1;
+    List listPage = (List) call(new TimedCall(listLatency) {
+      @Override
+      protected Object doCall() {
+        return keysetQuery.listPage(keysetSort, keysetOrder, keysetAfter, maxResults);
+      }
+    });
+    String nextToken = null;
+    if (listPage.size() > size) {
+      listPage = listPage.subList(0, size);
+      nextToken = query.getToken(sort, order, listPage.get(size - 1)).encode();
+    }
+    List list = processList(listPage);
+    DataResponse response = new DataResponse();
+    response.setStart(0);
+    response.setSize(list.size());
+    response.setSort(sort);
+    response.setOrder(order);
+    setTotal(response, totalMode, paginateRequest,
+        (after == null && nextToken == null) ? Long.valueOf(listPage.size()) : null, new PaginateTotals.Counter() {
+          @Override
+          public long count() {
+            return (Long) call(new TimedCall(countLatency) {
+              @Override
+              protected Object doCall() {
+                return keysetQuery.count();
+              }
+            });
+          }
+        });
+    response.setNextToken(nextToken);
+    response.setRows(list);
+    return response;
+  }
+
+  /**
+   * Returns a page of an in-memory query. Total is the exact number of
+   * matching ids, no count query is needed. If rows of the page no longer
+   * exist, the page is filled by rows of the following ids and the total is
+   * estimated.
+   *
+   * @param requestParams
+   * @param paginateRequest
+   * @param query
+   * @param defaultSort
+   * @return
+   */
+  @SuppressWarnings("rawtypes")
+  public DataResponse paginateInMemoryList(Map<String, String> requestParams, PaginateRequest paginateRequest,
+      final InMemoryQuery query, String defaultSort) {
+
+    if (paginateRequest == null) {
+      paginateRequest = new PaginateRequest();
+    }
+
+    if (paginateRequest.getOffset() == null) {
+      paginateRequest.setOffset(RequestUtil.getInteger(requestParams, "offset", 0));
+    }
+
+    if (paginateRequest.getLimit() == null) {
+      paginateRequest.setLimit(RequestUtil.getInteger(requestParams, "limit", 10));
+    }
+
+    if (paginateRequest.getOrder() == null) {
+      paginateRequest.setOrder(requestParams.get("order"));
+    }
+
+    if (paginateRequest.getSort() == null) {
+      paginateRequest.setSort(requestParams.get("sort"));
+    }
+
+    Integer start = paginateRequest.getOffset();
+    if(start == null || start < 0) {
+      start = 0;
+    }
+
+    Integer size = paginateRequest.getLimit();
+    if(size == null || size < 0) {
+      size = 10;
+    }
+
+    String sort = paginateRequest.getSort();
+    if(StringUtils.isEmpty(sort)) {
+      sort = defaultSort;
+    }
+
+    String order = paginateRequest.getOrder();
+    if(StringUtils.isEmpty(order)) {
+      order = "asc";
+    }
+
+    if (!query.isSortSupported(sort)) {
+      throw new ActivitiIllegalArgumentException("Value for param 'sort' is not valid, '" + sort + "' is not a valid property");
+    }
+    if (!order.equals("asc") && !order.equals("desc")) {
+      throw new ActivitiIllegalArgumentException("Value for param 'order' is not valid : '" + order + "', must be 'asc' or 'desc'");
+    }
+
+    final int firstResult = start;
+    final int maxResults = size;
+    final List<String> ids = query.listIds(sort, order);
+    final int[] vanished = new int[1];
+    List listPage = (List) call(new TimedCall(listLatency) {
+      @Override
+      protected Object doCall() {
+        // rows which no longer exist are replaced by rows of the following ids
+        List rows = new ArrayList();
+        int from = Math.min(firstResult, ids.size());
+        while (rows.size() < maxResults && from < ids.size()) {
+          int to = Math.min(from + maxResults - rows.size(), ids.size());
+          List chunk = query.listRows(ids.subList(from, to));
+          vanished[0] += (to - from) - chunk.size();
+          rows.addAll(chunk);
+          from = to;
+        }
+        return rows;
+      }
+    });
+    List list = processList(listPage);
+    DataResponse response = new DataResponse();
+    response.setStart(start);
+    response.setSize(list.size());
+    response.setSort(sort);
+    response.setOrder(order);
+    if (vanished[0] == 0) {
+      response.setTotal(ids.size());
+      response.setTotalType(PaginateTotals.EXACT);
+    } else {
+      // ids of other pages may vanish as well
+      response.setTotal(ids.size() - vanished[0]);
+      response.setTotalType(PaginateTotals.ESTIMATED);
+    }
+    response.setRows(list);
+    return response;
+  }
+
+  /**
+   * Returns a page of the rows of the query merged with the rows of another
+   * source. First offset + limit rows of both sources are read and merged in
+   * the order of the page, total is the sum of totals of both sources. The
+   * database rows are read by the keyset query, which orders them as the
+   * comparator of the merged query: nulls last in ascending order, ties by
+   * id. Offsets above maxOffset are rejected, deeper pages are read with keyset
+   * pagination.
+   *
+   * @param requestParams
+   * @param paginateRequest
+   * @param query
+   * @param mergedQuery
+   * @param defaultSort
+   * @param maxOffset
+   * @return
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public DataResponse paginateMergedList(Map<String, String> requestParams, PaginateRequest paginateRequest,
+      final KeysetQuery query, final MergedQuery mergedQuery, String defaultSort, int maxOffset) {
+
+    if (paginateRequest == null) {
+      paginateRequest = new PaginateRequest();
+    }
+
+    if (paginateRequest.getOffset() == null) {
+      paginateRequest.setOffset(RequestUtil.getInteger(requestParams, "offset", 0));
+    }
+
+    if (paginateRequest.getLimit() == null) {
+      paginateRequest.setLimit(RequestUtil.getInteger(requestParams, "limit", 10));
+    }
+
+    if (paginateRequest.getOrder() == null) {
+      paginateRequest.setOrder(requestParams.get("order"));
+    }
+
+    if (paginateRequest.getSort() == null) {
+      paginateRequest.setSort(requestParams.get("sort"));
+    }
+
+    String totalMode = PaginateTotals.getTotalMode(requestParams, paginateRequest);
+
+    Integer start = paginateRequest.getOffset();
+    if(start == null || start < 0) {
+      start = 0;
+    }
+
+    Integer size = paginateRequest.getLimit();
+    if(size == null || size < 0) {
+      size = 10;
+    }
+
+    String sort = paginateRequest.getSort();
+    if(StringUtils.isEmpty(sort)) {
+      sort = defaultSort;
+    }
+
+    String order = paginateRequest.getOrder();
+    if(StringUtils.isEmpty(order)) {
+      order = "asc";
+    }
+
+    if (!query.isSortSupported(sort) || !mergedQuery.isSortSupported(sort)) {
+      throw new ActivitiIllegalArgumentException("Value for param 'sort' is not valid, '" + sort + "' is not a valid property");
+    }
+    if (!order.equals("asc") && !order.equals("desc")) {
+      throw new ActivitiIllegalArgumentException("Value for param 'order' is not valid : '" + order + "', must be 'asc' or 'desc'");
+    }
+    if (start > maxOffset) {
+      throw new ActivitiIllegalArgumentException("Value for param 'offset' is not valid, offsets above " + maxOffset
+          + " are not supported with archived rows, use 'keyset' pagination");
+    }
+
+    final int window = start + size;
+    final String querySort = sort;
+    final String queryOrder = order;
+    List queryRows = (List) call(new TimedCall(listLatency) {
+      @Override
+      protected Object doCall() {
+        return query.listPage(querySort, queryOrder, null, window);
+      }
+    });
+    List mergedRows = mergedQuery.listFirstRows(sort, order, window);
+
+    Comparator comparator = mergedQuery.getComparator(sort, order);
+    List<Object> rows = new ArrayList<Object>(Math.min(window, queryRows.size() + mergedRows.size()));
+    int queryIndex = 0;
+    int mergedIndex = 0;
+    while (rows.size() < window && (queryIndex < queryRows.size() || mergedIndex < mergedRows.size())) {
+      if (mergedIndex >= mergedRows.size() || (queryIndex < queryRows.size()
+          && comparator.compare(queryRows.get(queryIndex), mergedRows.get(mergedIndex)) <= 0)) {
+        rows.add(queryRows.get(queryIndex++));
+      } else {
+        rows.add(mergedRows.get(mergedIndex++));
+      }
+    }
+    List listPage = rows.subList(Math.min(start, rows.size()), rows.size());
+
+    List list = processList(listPage);
+    DataResponse response = new DataResponse();
+    response.setStart(start);
+    response.setSize(list.size());
+    response.setSort(sort);
+    response.setOrder(order);
+    // Total of the query is known if it has less rows than the window
+    Long knownTotal = null;
+    if (queryRows.size() < window) {
+      knownTotal = queryRows.size() + mergedQuery.count();
+    }
+    setTotal(response, totalMode, paginateRequest, knownTotal, new PaginateTotals.Counter() {
+      @Override
+      public long count() {
+        return (Long) call(new TimedCall(countLatency) {
+          @Override
+          protected Object doCall() {
+            return query.count();
+          }
+        }) + mergedQuery.count();
+      }
+    });
+    response.setRows(list);
+    return response;
+  }
+
+  private void setTotal(DataResponse response, String totalMode, PaginateRequest paginateRequest, Long knownTotal,
+      PaginateTotals.Counter counter) {
+    if (paginateTotals != null) {
+      paginateTotals.setTotal(response, totalMode, paginateRequest, knownTotal, counter, getStatisticsEntity());
+    } else if (knownTotal == null && PaginateTotals.NONE.equals(totalMode)) {
+      response.setTotal(-1);
+      response.setTotalType(PaginateTotals.NONE);
+    } else {
+      response.setTotal(knownTotal != null ? knownTotal : counter.count());
+      response.setTotalType(PaginateTotals.EXACT);
+    }
+  }
+
+  private boolean isCountNeeded(String totalMode, PaginateRequest paginateRequest) {
+    if (paginateTotals != null) {
+      return paginateTotals.isCountNeeded(totalMode, paginateRequest, getStatisticsEntity());
+    }
+    return !PaginateTotals.NONE.equals(totalMode);
+  }
+
+  /**
+   * Runs the call on the current thread
+   *
+   * @param call
+   * @return
+   */
+  private static Object call(TimedCall call) {
+    try {
+      return call.call();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new ActivitiException(e.getMessage(), e);
+    }
+  }
+
+  private static RuntimeException unwrap(ExecutionException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof RuntimeException) {
+      return (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new ActivitiException(cause.getMessage(), cause);
+  }
+
+  /**
+   * Submits the call to the executor
+   *
+   * @return future of the call or null if the executor rejects it
+   */
+  private static Future<Object> submit(ExecutorCompletionService<Object> completionService, TimedCall call) {
+    try {
+      return completionService.submit(call);
+    } catch (RejectedExecutionException e) {
+      return null;
+    }
+  }
+
+  private static ExecutorService createPaginateExecutor() {
+    int threads = Integer.getInteger("processmanager.paginate.threads", 16);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(threads * 16), new NamedThreadFactory("pm-paginate-"),
+        new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Sets executor of parallel page and count reads
+   *
+   * @param executor
+   */
+  public static void setPaginateExecutor(ExecutorService executor) {
+    paginateExecutor = executor;
+  }
+
+  /**
+   * @return latencies of page reads
+   */
+  public static LatencyStats getListLatency() {
+    return listLatency;
+  }
+
+  /**
+   * @return latencies of count reads
+   */
+  public static LatencyStats getCountLatency() {
+    return countLatency;
+  }
+
+  /**
+   * Callable which records its latency
+   */
+  private static abstract class TimedCall implements Callable<Object> {
+    private final LatencyStats latencyStats;
+
+    TimedCall(LatencyStats latencyStats) {
+      this.latencyStats = latencyStats;
+    }
+
+    @Override
+    public Object call() throws Exception {
+      long startTime = System.nanoTime();
+      try {
+        Object result = doCall();
+        latencyStats.record(System.nanoTime() - startTime);
+        return result;
+      } catch (RuntimeException e) {
+        latencyStats.recordFailure();
+        throw e;
+      }
+    }
+
+    protected abstract Object doCall();
+  }
+
+  /**
+   * Sets names of process variables returned with rows
+   *
+   * @param variableNames null for all, empty list for none
+   */
+  public void setVariableNames(List<String> variableNames) {
+    this.variableNames = variableNames;
+  }
+
+  public void setPaginateTotals(PaginateTotals paginateTotals) {
+    this.paginateTotals = paginateTotals;
+  }
+
+  /**
+   * @return entity class which table statistics estimate total of the
+   *         unfiltered list, or null if it can not be estimated
+   */
+  protected Class<?> getStatisticsEntity() {
+    return null;
+  }
+
   @SuppressWarnings("rawtypes")
   protected abstract List processList(List list);
 
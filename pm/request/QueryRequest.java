@@ -1,5 +1,15 @@
 package org.activiti.pm.request;
 
+import java.util.List;
+
 public interface QueryRequest<T> {
 
+  public Boolean getIncludeProcessVariables();
+
+  /**
+   * @return names of process variables returned with rows: null for all,
+   *         empty list for none
+   */
+  public List<String> getVariableNames();
+
 }
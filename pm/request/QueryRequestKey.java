@@ -0,0 +1,156 @@
+package org.activiti.pm.request;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Normalized key of a query request filter. Equal filters have equal keys
+ * regardless of property order, order of ids and variables, null properties
+ * and pagination parameters, so the key identifies cached results of the
+ * filter.
+ *
+ * @author Dmitry Farafonov
+ */
+public class QueryRequestKey {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final Set<String> PAGINATION_PROPERTIES = new HashSet<String>(Arrays.asList("offset", "limit",
+      "sort", "order", "keyset", "continuationToken", "totalMode"));
+
+  /**
+   * Properties which change the content of rows but not which rows are selected
+   */
+  private static final Set<String> PROJECTION_PROPERTIES = new HashSet<String>(Arrays.asList("includeProcessVariables",
+      "variableNames"));
+
+  private static ObjectMapper mapper = new ObjectMapper();
+
+  static {
+    mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+  }
+
+  /**
+   * Returns normalized filter of the request as JSON
+   *
+   * @param queryRequest
+   * @return
+   */
+  public static String getFilter(Object queryRequest) {
+    ObjectNode filter = (ObjectNode) normalize(mapper.valueToTree(queryRequest));
+    for (String property : PAGINATION_PROPERTIES) {
+      filter.remove(property);
+    }
+    return filter.toString();
+  }
+
+  /**
+   * Returns key of the request filter: type of the request and a digest of the
+   * normalized filter
+   *
+   * @param queryRequest
+   * @return
+   */
+  public static String of(Object queryRequest) {
+    return queryRequest.getClass().getSimpleName() + ":" + digest(getFilter(queryRequest));
+  }
+
+  /**
+   * Returns key of a page of the request: the normalized filter together with
+   * pagination, sort and projection. Pagination parameters missing in the
+   * request are taken from the URL parameters, like the paginate list does.
+   *
+   * @param queryRequest
+   * @param requestParams
+   * @return
+   */
+  public static String ofPage(Object queryRequest, Map<String, String> requestParams) {
+    ObjectNode request = mapper.valueToTree(queryRequest);
+    for (String property : PAGINATION_PROPERTIES) {
+      String value = requestParams.get(property);
+      if (value != null && !request.has(property)) {
+        request.put(property, value);
+      }
+    }
+    return queryRequest.getClass().getSimpleName() + ":page:" + digest(normalize(request).toString());
+  }
+
+  /**
+   * @param queryRequest
+   * @return true if the request has no filter conditions
+   */
+  public static boolean isEmptyFilter(Object queryRequest) {
+    ObjectNode filter = (ObjectNode) normalize(mapper.valueToTree(queryRequest));
+    for (String property : PAGINATION_PROPERTIES) {
+      filter.remove(property);
+    }
+    for (String property : PROJECTION_PROPERTIES) {
+      filter.remove(property);
+    }
+    return filter.size() == 0;
+  }
+
+  private static JsonNode normalize(JsonNode node) {
+    if (node.isObject()) {
+      TreeMap<String, JsonNode> fields = new TreeMap<String, JsonNode>();
+      Iterator<String> names = node.fieldNames();
+      while (names.hasNext()) {
+        String name = names.next();
+        JsonNode value = node.get(name);
+        if (!value.isNull()) {
+          fields.put(name, normalize(value));
+        }
+      }
+      ObjectNode result = JsonNodeFactory.instance.objectNode();
+      result.setAll(fields);
+      return result;
+    }
+    if (node.isArray()) {
+      // Ids and variable conditions are sets, their order does not matter
+      List<JsonNode> elements = new ArrayList<JsonNode>();
+      for (JsonNode element : node) {
+        elements.add(normalize(element));
+      }
+      Collections.sort(elements, new Comparator<JsonNode>() {
+        @Override
+        public int compare(JsonNode o1, JsonNode o2) {
+          return o1.toString().compareTo(o2.toString());
+        }
+      });
+      ArrayNode result = JsonNodeFactory.instance.arrayNode();
+      result.addAll(elements);
+      return result;
+    }
+    return node;
+  }
+
+  private static String digest(String filter) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(filter.getBytes(UTF_8));
+      StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
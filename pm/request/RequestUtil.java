@@ -17,6 +17,7 @@ import java.util.Date;
 import java.util.Map;
 
 import org.activiti.engine.ActivitiIllegalArgumentException;
+import org.activiti.pm.util.DateCodec;
 import org.apache.commons.lang3.time.FastDateFormat;
 
 /**
@@ -48,21 +49,8 @@ public class RequestUtil {
     if (requestParams.get(name) != null) {
       
       String input = requestParams.get(name).trim();
-      
-      //this is zero time so we need to add that TZ indicator for 
-      if (input.endsWith("Z")) {
-        input = input.substring(0, input.length() - 1) + "GMT-00:00";
-      } else {
-        int inset = 6;
-    
-        String s0 = input.substring(0, input.length() - inset);
-        String s1 = input.substring(input.length() - inset, input.length());
-
-        input = s0 + "GMT" + s1;
-      }
-      
       try {
-        value = longDateFormat.parse(input);
+        value = DateCodec.parseIso(input);
       } catch(Exception e) {
         throw new ActivitiIllegalArgumentException("Failed to parse date " + input);
       }
@@ -0,0 +1,209 @@
+package org.activiti.pm.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe LRU cache bounded by number of entries and by total weight of
+ * values. Entries may expire after a time to live. Counts hits, misses and
+ * evictions.
+ *
+ * @author Dmitry Farafonov
+ */
+public class BoundedCache<K, V> {
+
+  /**
+   * Calculates weight of a cached value, i.e. number of contained elements
+   */
+  public interface Weigher<V> {
+    long weigh(V value);
+  }
+
+  private final int maxEntries;
+  private final long maxWeight;
+  private final Weigher<? super V> weigher;
+  private final long ttlMillis;
+
+  private final LinkedHashMap<K, CacheEntry<V>> entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true);
+  private long weight;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  public BoundedCache(int maxEntries) {
+    this(maxEntries, Long.MAX_VALUE, null);
+  }
+
+  public BoundedCache(int maxEntries, long maxWeight, Weigher<? super V> weigher) {
+    this(maxEntries, maxWeight, weigher, 0);
+  }
+
+  /**
+   * @param maxEntries
+   * @param maxWeight
+   * @param weigher weigher of values or null to count entries
+   * @param ttlMillis default time to live of entries, 0 if entries do not expire
+   */
+  public BoundedCache(int maxEntries, long maxWeight, Weigher<? super V> weigher, long ttlMillis) {
+    this.maxEntries = maxEntries;
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * @param key
+   * @return cached value or null
+   */
+  public V get(K key) {
+    V value = getIfPresent(key);
+    if (value == null) {
+      missCount.incrementAndGet();
+    }
+    return value;
+  }
+
+  /**
+   * Same as {@link #get(Object)}, but a miss is not counted. Used when the
+   * caller knows whether the value is cacheable only after the lookup, it
+   * records the miss by {@link #recordMiss()} then.
+   *
+   * @param key
+   * @return cached value or null
+   */
+  public V getIfPresent(K key) {
+    CacheEntry<V> entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+        entries.remove(key);
+        weight -= entry.weight;
+        entry = null;
+      }
+    }
+    if (entry == null) {
+      return null;
+    }
+    hitCount.incrementAndGet();
+    return entry.value;
+  }
+
+  public void recordMiss() {
+    missCount.incrementAndGet();
+  }
+
+  /**
+   * Returns true if the cache has a live entry of the key, hit and miss
+   * counters are not changed
+   *
+   * @param key
+   * @return
+   */
+  public synchronized boolean containsKey(K key) {
+    CacheEntry<V> entry = entries.get(key);
+    return entry != null && entry.expiresAt > System.currentTimeMillis();
+  }
+
+  /**
+   * Puts value and evicts least recently used entries over the bounds. Value
+   * heavier than the whole cache is not cached.
+   *
+   * @param key
+   * @param value
+   */
+  public void put(K key, V value) {
+    put(key, value, ttlMillis);
+  }
+
+  /**
+   * Puts value which expires after its own time to live
+   *
+   * @param key
+   * @param value
+   * @param ttlMillis time to live, 0 if the entry does not expire
+   */
+  public void put(K key, V value, long ttlMillis) {
+    long expiresAt = (ttlMillis > 0) ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+    long valueWeight = (weigher != null) ? weigher.weigh(value) : 1;
+    synchronized (this) {
+      CacheEntry<V> previous = entries.remove(key);
+      if (previous != null) {
+        weight -= previous.weight;
+      }
+      if (valueWeight > maxWeight) {
+        return;
+      }
+      entries.put(key, new CacheEntry<V>(value, valueWeight, expiresAt));
+      weight += valueWeight;
+      evict();
+    }
+  }
+
+  public synchronized void remove(K key) {
+    CacheEntry<V> previous = entries.remove(key);
+    if (previous != null) {
+      weight -= previous.weight;
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    weight = 0;
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<K, CacheEntry<V>>> iterator = entries.entrySet().iterator();
+    while ((entries.size() > maxEntries || weight > maxWeight) && iterator.hasNext()) {
+      weight -= iterator.next().getValue().weight;
+      iterator.remove();
+      evictionCount.incrementAndGet();
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getWeight() {
+    return weight;
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  public double getHitRatio() {
+    long hits = hitCount.get();
+    long requests = hits + missCount.get();
+    return (requests == 0) ? 0 : (double) hits / requests;
+  }
+
+  @Override
+  public String toString() {
+    return "BoundedCache [size=" + size() + ", weight=" + getWeight() + ", hits=" + getHitCount() + ", misses="
+        + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+  }
+
+  private static class CacheEntry<V> {
+    final V value;
+    final long weight;
+    final long expiresAt;
+
+    CacheEntry(V value, long weight, long expiresAt) {
+      this.value = value;
+      this.weight = weight;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
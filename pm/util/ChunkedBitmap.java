@@ -0,0 +1,509 @@
+package org.activiti.pm.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Compressed set of non-negative ints split in chunks of 65536 values, as in
+ * Roaring bitmaps. A chunk with at most {@link #ARRAY_MAX_SIZE} values is a
+ * sorted array of their low 16 bits, a denser chunk is a bitmap of 65536 bits,
+ * and a chunk without values is not allocated. Not thread-safe.
+ *
+ * @author Dmitry Farafonov
+ */
+public class ChunkedBitmap {
+
+  private static final int CHUNK_SHIFT = 16;
+  private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+  private static final int WORDS_PER_CHUNK = 1 << (CHUNK_SHIFT - 6);
+
+  /**
+   * Maximum number of values of an array chunk, an array of this size takes as
+   * much memory as a bitmap
+   */
+  public static final int ARRAY_MAX_SIZE = 4096;
+
+  private Chunk[] chunks;
+
+  public ChunkedBitmap() {
+    chunks = new Chunk[0];
+  }
+
+  private ChunkedBitmap(Chunk[] chunks) {
+    this.chunks = chunks;
+  }
+
+  public void set(int index) {
+    int chunkIndex = index >>> CHUNK_SHIFT;
+    grow(chunkIndex + 1);
+    Chunk chunk = chunks[chunkIndex];
+    if (chunk == null) {
+      chunk = new ArrayChunk(new short[4], 0);
+    }
+    chunks[chunkIndex] = chunk.set(index & CHUNK_MASK);
+  }
+
+  public void clear(int index) {
+    int chunkIndex = index >>> CHUNK_SHIFT;
+    if (chunkIndex < chunks.length && chunks[chunkIndex] != null) {
+      chunks[chunkIndex] = chunks[chunkIndex].clear(index & CHUNK_MASK);
+    }
+  }
+
+  public boolean get(int index) {
+    int chunkIndex = index >>> CHUNK_SHIFT;
+    return chunkIndex < chunks.length && chunks[chunkIndex] != null
+        && chunks[chunkIndex].get(index & CHUNK_MASK);
+  }
+
+  public int cardinality() {
+    int cardinality = 0;
+    for (Chunk chunk : chunks) {
+      if (chunk != null) {
+        cardinality += chunk.cardinality();
+      }
+    }
+    return cardinality;
+  }
+
+  public boolean isEmpty() {
+    for (Chunk chunk : chunks) {
+      if (chunk != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Keeps only the values which are in the other bitmap too
+   *
+   * @param other
+   */
+  public void and(ChunkedBitmap other) {
+    for (int i = 0; i < chunks.length; i++) {
+      if (chunks[i] != null) {
+        Chunk otherChunk = (i < other.chunks.length) ? other.chunks[i] : null;
+        chunks[i] = (otherChunk != null) ? chunks[i].and(otherChunk) : null;
+      }
+    }
+  }
+
+  /**
+   * Adds the values of the other bitmap
+   *
+   * @param other
+   */
+  public void or(ChunkedBitmap other) {
+    grow(other.chunks.length);
+    for (int i = 0; i < other.chunks.length; i++) {
+      Chunk otherChunk = other.chunks[i];
+      if (otherChunk != null) {
+        chunks[i] = (chunks[i] != null) ? chunks[i].or(otherChunk) : otherChunk.copy();
+      }
+    }
+  }
+
+  /**
+   * @param other
+   * @return number of values in both bitmaps, without creating their
+   *         intersection
+   */
+  public int andCardinality(ChunkedBitmap other) {
+    int cardinality = 0;
+    int length = Math.min(chunks.length, other.chunks.length);
+    for (int i = 0; i < length; i++) {
+      if (chunks[i] != null && other.chunks[i] != null) {
+        cardinality += chunks[i].andCardinality(other.chunks[i]);
+      }
+    }
+    return cardinality;
+  }
+
+  public ChunkedBitmap copy() {
+    Chunk[] copy = new Chunk[chunks.length];
+    for (int i = 0; i < chunks.length; i++) {
+      if (chunks[i] != null) {
+        copy[i] = chunks[i].copy();
+      }
+    }
+    return new ChunkedBitmap(copy);
+  }
+
+  /**
+   * Writes chunks as their index, cardinality and either the sorted values or
+   * the bitmap words
+   *
+   * @param out
+   * @throws IOException
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    int count = 0;
+    for (Chunk chunk : chunks) {
+      if (chunk != null) {
+        count++;
+      }
+    }
+    out.writeInt(count);
+    for (int i = 0; i < chunks.length; i++) {
+      if (chunks[i] != null) {
+        out.writeInt(i);
+        out.writeInt(chunks[i].cardinality());
+        chunks[i].writeTo(out);
+      }
+    }
+  }
+
+  public static ChunkedBitmap readFrom(DataInput in) throws IOException {
+    int count = in.readInt();
+    ChunkedBitmap bitmap = new ChunkedBitmap();
+    for (int n = 0; n < count; n++) {
+      int chunkIndex = in.readInt();
+      int cardinality = in.readInt();
+      Chunk chunk;
+      if (cardinality <= ARRAY_MAX_SIZE) {
+        short[] values = new short[cardinality];
+        for (int i = 0; i < cardinality; i++) {
+          values[i] = in.readShort();
+        }
+        chunk = new ArrayChunk(values, cardinality);
+      } else {
+        long[] words = new long[WORDS_PER_CHUNK];
+        for (int w = 0; w < WORDS_PER_CHUNK; w++) {
+          words[w] = in.readLong();
+        }
+        chunk = new BitmapChunk(words, cardinality);
+      }
+      bitmap.grow(chunkIndex + 1);
+      bitmap.chunks[chunkIndex] = chunk;
+    }
+    return bitmap;
+  }
+
+  private void grow(int length) {
+    if (length > chunks.length) {
+      Chunk[] grown = new Chunk[Math.max(length, chunks.length * 2)];
+      System.arraycopy(chunks, 0, grown, 0, chunks.length);
+      chunks = grown;
+    }
+  }
+
+  /**
+   * Values of a chunk by their low 16 bits. Operations which change the
+   * values return the chunk to keep in place of this one, null if it is empty.
+   * Binary operations do not change their arguments.
+   */
+  private static abstract class Chunk {
+
+    abstract Chunk set(int value);
+
+    abstract Chunk clear(int value);
+
+    abstract boolean get(int value);
+
+    abstract int cardinality();
+
+    abstract Chunk and(Chunk other);
+
+    abstract Chunk or(Chunk other);
+
+    abstract int andCardinality(Chunk other);
+
+    abstract Chunk copy();
+
+    abstract void writeTo(DataOutput out) throws IOException;
+  }
+
+  /**
+   * Sorted array of unsigned 16 bit values
+   */
+  private static final class ArrayChunk extends Chunk {
+    private short[] values;
+    private int size;
+
+    ArrayChunk(short[] values, int size) {
+      this.values = values;
+      this.size = size;
+    }
+
+    /**
+     * @return index of the value or -(insertion point + 1)
+     */
+    private int indexOf(int value) {
+      int low = 0;
+      int high = size - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int middleValue = values[middle] & CHUNK_MASK;
+        if (middleValue < value) {
+          low = middle + 1;
+        } else if (middleValue > value) {
+          high = middle - 1;
+        } else {
+          return middle;
+        }
+      }
+      return -(low + 1);
+    }
+
+    @Override
+    Chunk set(int value) {
+      int index = indexOf(value);
+      if (index >= 0) {
+        return this;
+      }
+      if (size >= ARRAY_MAX_SIZE) {
+        return toBitmap().set(value);
+      }
+      index = -index - 1;
+      if (size == values.length) {
+        short[] grown = new short[Math.min(ARRAY_MAX_SIZE, values.length * 2)];
+        System.arraycopy(values, 0, grown, 0, size);
+        values = grown;
+      }
+      System.arraycopy(values, index, values, index + 1, size - index);
+      values[index] = (short) value;
+      size++;
+      return this;
+    }
+
+    @Override
+    Chunk clear(int value) {
+      int index = indexOf(value);
+      if (index < 0) {
+        return this;
+      }
+      System.arraycopy(values, index + 1, values, index, size - index - 1);
+      size--;
+      return (size > 0) ? this : null;
+    }
+
+    @Override
+    boolean get(int value) {
+      return indexOf(value) >= 0;
+    }
+
+    @Override
+    int cardinality() {
+      return size;
+    }
+
+    @Override
+    Chunk and(Chunk other) {
+      short[] result = new short[size];
+      int count = 0;
+      if (other instanceof ArrayChunk) {
+        ArrayChunk otherArray = (ArrayChunk) other;
+        int i = 0;
+        int j = 0;
+        while (i < size && j < otherArray.size) {
+          int value = values[i] & CHUNK_MASK;
+          int otherValue = otherArray.values[j] & CHUNK_MASK;
+          if (value < otherValue) {
+            i++;
+          } else if (value > otherValue) {
+            j++;
+          } else {
+            result[count++] = values[i];
+            i++;
+            j++;
+          }
+        }
+      } else {
+        for (int i = 0; i < size; i++) {
+          if (other.get(values[i] & CHUNK_MASK)) {
+            result[count++] = values[i];
+          }
+        }
+      }
+      return (count > 0) ? new ArrayChunk(result, count) : null;
+    }
+
+    @Override
+    Chunk or(Chunk other) {
+      if (other instanceof BitmapChunk) {
+        return other.or(this);
+      }
+      ArrayChunk otherArray = (ArrayChunk) other;
+      short[] result = new short[size + otherArray.size];
+      int count = 0;
+      int i = 0;
+      int j = 0;
+      while (i < size || j < otherArray.size) {
+        int value = (i < size) ? values[i] & CHUNK_MASK : Integer.MAX_VALUE;
+        int otherValue = (j < otherArray.size) ? otherArray.values[j] & CHUNK_MASK : Integer.MAX_VALUE;
+        if (value <= otherValue) {
+          result[count++] = values[i++];
+          if (value == otherValue) {
+            j++;
+          }
+        } else {
+          result[count++] = otherArray.values[j++];
+        }
+      }
+      ArrayChunk union = new ArrayChunk(result, count);
+      return (count > ARRAY_MAX_SIZE) ? union.toBitmap() : union;
+    }
+
+    @Override
+    int andCardinality(Chunk other) {
+      int count = 0;
+      for (int i = 0; i < size; i++) {
+        if (other.get(values[i] & CHUNK_MASK)) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    Chunk copy() {
+      short[] copy = new short[size];
+      System.arraycopy(values, 0, copy, 0, size);
+      return new ArrayChunk(copy, size);
+    }
+
+    @Override
+    void writeTo(DataOutput out) throws IOException {
+      for (int i = 0; i < size; i++) {
+        out.writeShort(values[i]);
+      }
+    }
+
+    BitmapChunk toBitmap() {
+      long[] words = new long[WORDS_PER_CHUNK];
+      for (int i = 0; i < size; i++) {
+        int value = values[i] & CHUNK_MASK;
+        words[value >>> 6] |= 1L << value;
+      }
+      return new BitmapChunk(words, size);
+    }
+  }
+
+  /**
+   * Bitmap of 65536 bits
+   */
+  private static final class BitmapChunk extends Chunk {
+    private final long[] words;
+    private int cardinality;
+
+    BitmapChunk(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    Chunk set(int value) {
+      long bit = 1L << value;
+      if ((words[value >>> 6] & bit) == 0) {
+        words[value >>> 6] |= bit;
+        cardinality++;
+      }
+      return this;
+    }
+
+    @Override
+    Chunk clear(int value) {
+      long bit = 1L << value;
+      if ((words[value >>> 6] & bit) != 0) {
+        words[value >>> 6] &= ~bit;
+        cardinality--;
+      }
+      return compact();
+    }
+
+    @Override
+    boolean get(int value) {
+      return (words[value >>> 6] & (1L << value)) != 0;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    Chunk and(Chunk other) {
+      if (other instanceof ArrayChunk) {
+        return other.and(this);
+      }
+      long[] otherWords = ((BitmapChunk) other).words;
+      long[] result = new long[WORDS_PER_CHUNK];
+      int count = 0;
+      for (int w = 0; w < WORDS_PER_CHUNK; w++) {
+        result[w] = words[w] & otherWords[w];
+        count += Long.bitCount(result[w]);
+      }
+      return new BitmapChunk(result, count).compact();
+    }
+
+    @Override
+    Chunk or(Chunk other) {
+      BitmapChunk result = new BitmapChunk(words.clone(), cardinality);
+      if (other instanceof ArrayChunk) {
+        ArrayChunk otherArray = (ArrayChunk) other;
+        for (int i = 0; i < otherArray.size; i++) {
+          result.set(otherArray.values[i] & CHUNK_MASK);
+        }
+      } else {
+        long[] otherWords = ((BitmapChunk) other).words;
+        int count = 0;
+        for (int w = 0; w < WORDS_PER_CHUNK; w++) {
+          result.words[w] |= otherWords[w];
+          count += Long.bitCount(result.words[w]);
+        }
+        result.cardinality = count;
+      }
+      return result;
+    }
+
+    @Override
+    int andCardinality(Chunk other) {
+      if (other instanceof ArrayChunk) {
+        return other.andCardinality(this);
+      }
+      long[] otherWords = ((BitmapChunk) other).words;
+      int count = 0;
+      for (int w = 0; w < WORDS_PER_CHUNK; w++) {
+        count += Long.bitCount(words[w] & otherWords[w]);
+      }
+      return count;
+    }
+
+    @Override
+    Chunk copy() {
+      return new BitmapChunk(words.clone(), cardinality);
+    }
+
+    @Override
+    void writeTo(DataOutput out) throws IOException {
+      for (long word : words) {
+        out.writeLong(word);
+      }
+    }
+
+    /**
+     * @return this bitmap or an array of its values if they are few, null if
+     *         there are no values
+     */
+    private Chunk compact() {
+      if (cardinality == 0) {
+        return null;
+      }
+      if (cardinality > ARRAY_MAX_SIZE) {
+        return this;
+      }
+      short[] values = new short[cardinality];
+      int count = 0;
+      for (int w = 0; w < WORDS_PER_CHUNK; w++) {
+        long word = words[w];
+        while (word != 0) {
+          values[count++] = (short) ((w << 6) + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return new ArrayChunk(values, cardinality);
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package org.activiti.pm.util;
+
+import java.io.IOException;
+import java.util.Date;
+
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Shared date formats of the module. Formatters are immutable and thread-safe,
+ * dates are printed from and parsed to milliseconds without intermediate
+ * {@link org.joda.time.DateTime} objects. Values written to a
+ * {@link JsonGenerator} are printed to a per-thread buffer.
+ *
+ * @author Dmitry Farafonov
+ */
+public final class DateCodec {
+
+  /**
+   * Format of dates in filters and responses, in default time zone
+   */
+  public static final String SHORT_PATTERN = "yyyy-MM-dd HH:mm";
+
+  /**
+   * Format of day buckets, in default time zone
+   */
+  public static final String DAY_PATTERN = "yyyy-MM-dd";
+
+  private static final DateTimeFormatter shortFormatter = DateTimeFormat.forPattern(SHORT_PATTERN);
+  private static final DateTimeFormatter dayFormatter = DateTimeFormat.forPattern(DAY_PATTERN);
+  private static final DateTimeFormatter isoPrinter = ISODateTimeFormat.dateTimeNoMillis().withZoneUTC();
+  private static final DateTimeFormatter isoParser = ISODateTimeFormat.dateTimeParser().withZoneUTC();
+
+  private static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+    @Override
+    protected Buffer initialValue() {
+      return new Buffer();
+    }
+  };
+
+  private static final class Buffer {
+    final StringBuilder builder = new StringBuilder(32);
+    char[] chars = new char[32];
+  }
+
+  private DateCodec() {
+  }
+
+  /**
+   * @param date
+   * @return date as 'yyyy-MM-dd HH:mm' or null
+   */
+  public static String formatShort(Date date) {
+    return (date != null) ? shortFormatter.print(date.getTime()) : null;
+  }
+
+  /**
+   * @param date
+   * @return day of the date as 'yyyy-MM-dd' or null
+   */
+  public static String formatDay(Date date) {
+    return (date != null) ? dayFormatter.print(date.getTime()) : null;
+  }
+
+  /**
+   * @param text date as 'yyyy-MM-dd HH:mm'
+   * @return
+   * @throws IllegalArgumentException if the text is not a date
+   */
+  public static Date parseShort(String text) {
+    return new Date(shortFormatter.parseMillis(text));
+  }
+
+  /**
+   * @param date
+   * @return date as ISO 8601 in UTC without milliseconds, e.g.
+   *         '2014-01-31T10:15:00Z', or null
+   */
+  public static String formatIso(Date date) {
+    return (date != null) ? isoPrinter.print(date.getTime()) : null;
+  }
+
+  /**
+   * Parses ISO 8601 date with optional time, milliseconds and offset, UTC is
+   * used if there is no offset
+   *
+   * @param text
+   * @return
+   * @throws IllegalArgumentException if the text is not a date
+   */
+  public static Date parseIso(String text) {
+    return new Date(isoParser.parseMillis(text));
+  }
+
+  public static void writeShort(Date date, JsonGenerator generator) throws IOException {
+    write(shortFormatter, date, generator);
+  }
+
+  public static void writeIso(Date date, JsonGenerator generator) throws IOException {
+    write(isoPrinter, date, generator);
+  }
+
+  private static void write(DateTimeFormatter formatter, Date date, JsonGenerator generator) throws IOException {
+    if (date == null) {
+      generator.writeNull();
+      return;
+    }
+    Buffer buffer = buffers.get();
+    StringBuilder builder = buffer.builder;
+    builder.setLength(0);
+    formatter.printTo(builder, date.getTime());
+    int length = builder.length();
+    if (buffer.chars.length < length) {
+      buffer.chars = new char[length];
+    }
+    builder.getChars(0, length, buffer.chars, 0);
+    generator.writeString(buffer.chars, 0, length);
+  }
+}
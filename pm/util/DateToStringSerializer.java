@@ -3,10 +3,6 @@ package org.activiti.pm.util;
 import java.io.IOException;
 import java.util.Date;
 
-import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
-
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonSerializer;
@@ -14,16 +10,9 @@ import com.fasterxml.jackson.databind.SerializerProvider;
 
 public class DateToStringSerializer extends JsonSerializer<Date> {
 
-  protected DateTimeFormatter dateTimeFormatter = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm");
-
   @Override
   public void serialize(Date tmpDate, JsonGenerator jsonGenerator, SerializerProvider serializerProvider)
       throws IOException, JsonProcessingException {
-
-    if (tmpDate != null) {
-      jsonGenerator.writeString(new DateTime(tmpDate).toString(dateTimeFormatter));
-    } else {
-      jsonGenerator.writeNull();
-    }
+    DateCodec.writeShort(tmpDate, jsonGenerator);
   }
 }
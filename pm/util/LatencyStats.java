@@ -0,0 +1,66 @@
+package org.activiti.pm.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe count, mean and maximum of latencies of an operation
+ *
+ * @author Dmitry Farafonov
+ */
+public class LatencyStats {
+
+  private final String name;
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+  private final AtomicLong failureCount = new AtomicLong();
+
+  public LatencyStats(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Records latency of a completed operation
+   *
+   * @param nanos
+   */
+  public void record(long nanos) {
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  public void recordFailure() {
+    failureCount.incrementAndGet();
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getFailureCount() {
+    return failureCount.get();
+  }
+
+  public double getMeanMillis() {
+    long n = count.get();
+    return (n == 0) ? 0 : totalNanos.get() / 1000000.0 / n;
+  }
+
+  public double getMaxMillis() {
+    return maxNanos.get() / 1000000.0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s [count=%d, failures=%d, mean=%.1fms, max=%.1fms]", name, getCount(), getFailureCount(),
+        getMeanMillis(), getMaxMillis());
+  }
+}
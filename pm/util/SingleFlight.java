@@ -0,0 +1,81 @@
+package org.activiti.pm.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.activiti.engine.ActivitiException;
+
+/**
+ * Coalesces concurrent calls with the same key: the first caller executes the
+ * call on its own thread, callers which arrive while it is in flight wait for
+ * it and get the same result or exception. Nothing is kept after the call
+ * completes.
+ *
+ * @author Dmitry Farafonov
+ */
+public class SingleFlight<K, V> {
+
+  private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+  private final AtomicLong executedCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  /**
+   * Executes the call or joins the call in flight with the same key
+   *
+   * @param key
+   * @param callable
+   * @return
+   */
+  public V execute(K key, Callable<V> callable) {
+    FutureTask<V> task = new FutureTask<V>(callable);
+    FutureTask<V> running = inFlight.putIfAbsent(key, task);
+    if (running == null) {
+      executedCount.incrementAndGet();
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+      running = task;
+    } else {
+      coalescedCount.incrementAndGet();
+    }
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ActivitiException("Interrupted while waiting for the same query", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new ActivitiException(cause.getMessage(), cause);
+    }
+  }
+
+  /**
+   * @return number of calls executed
+   */
+  public long getExecutedCount() {
+    return executedCount.get();
+  }
+
+  /**
+   * @return number of calls which joined a call in flight instead of executing
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  public int getInFlightCount() {
+    return inFlight.size();
+  }
+}